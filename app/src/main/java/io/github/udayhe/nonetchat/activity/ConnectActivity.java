@@ -13,6 +13,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
@@ -22,15 +23,30 @@ import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import io.github.udayhe.nonetchat.R;
+import io.github.udayhe.nonetchat.discovery.ListDiff;
+import io.github.udayhe.nonetchat.discovery.PeerCache;
+import io.github.udayhe.nonetchat.metrics.Histogram;
+import io.github.udayhe.nonetchat.metrics.MetricsRegistry;
 
 public class ConnectActivity extends AppCompatActivity {
 
     private static final String TAG = "WiFiP2P";
     private static final int PERMISSION_REQUEST_CODE = 1001;
+    private static final String PEER_CACHE_FILE = "peers.bin";
+    private static final long FALLBACK_REQUEST_MILLIS = 4000;
+    private static final long CONNECT_TIMEOUT_MILLIS = 30000;
+    /** Only peers that connected at least this often are connected to without a tap. */
+    private static final double AUTO_CONNECT_MIN_SUCCESS_RATE = 0.6;
+    private static final String FIRST_PEER_METRIC = "wifi.first_peer_ms";
+    private static final String FIRST_LIVE_PEER_METRIC = "wifi.first_live_peer_ms";
 
     WifiP2pManager manager;
     WifiP2pManager.Channel channel;
@@ -38,8 +54,20 @@ public class ConnectActivity extends AppCompatActivity {
     IntentFilter intentFilter;
 
     ListView deviceListView;
-    ArrayAdapter<String> adapter;
-    List<WifiP2pDevice> peers = new ArrayList<>();
+    ArrayAdapter<PeerRow> adapter;
+    final List<PeerRow> rows = new ArrayList<>();
+    final Map<String, WifiP2pDevice> livePeers = new HashMap<>();
+    final PeerCache peerCache = new PeerCache();
+    final Handler handler = new Handler(Looper.getMainLooper());
+    File peerCacheFile;
+
+    final Histogram firstPeerLatency = MetricsRegistry.getDefault().histogram(FIRST_PEER_METRIC);
+    final Histogram firstLivePeerLatency = MetricsRegistry.getDefault().histogram(FIRST_LIVE_PEER_METRIC);
+    long tapMillis;
+    boolean firstPeerShown;
+    boolean firstLivePeerShown;
+    boolean autoConnectPending;
+    String connectingAddress;
 
     WifiP2pManager.ConnectionInfoListener connectionInfoListener;
 
@@ -50,8 +78,18 @@ public class ConnectActivity extends AppCompatActivity {
 
         deviceListView = findViewById(R.id.deviceList);
         adapter = new ArrayAdapter<>(this, android.R.layout.simple_list_item_1);
+        adapter.setNotifyOnChange(false);
         deviceListView.setAdapter(adapter);
 
+        peerCacheFile = new File(getFilesDir(), PEER_CACHE_FILE);
+        try {
+            peerCache.load(peerCacheFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable peer cache", e);
+            peerCache.clear();
+        }
+        showPeers();
+
         manager = (WifiP2pManager) getSystemService(Context.WIFI_P2P_SERVICE);
         channel = manager.initialize(this, getMainLooper(), null);
 
@@ -60,12 +98,17 @@ public class ConnectActivity extends AppCompatActivity {
         setupReceiver();
 
         findViewById(R.id.discoverBtn).setOnClickListener(v -> {
-            adapter.clear();
             if (!hasPermissions(this)) {
                 requestRequiredPermissions();
                 return;
             }
 
+            tapMillis = SystemClock.elapsedRealtime();
+            firstPeerShown = firstLivePeerShown = false;
+            autoConnectPending = connectingAddress == null;
+            // Known peers are on screen already; this only times them.
+            showPeers();
+
             Log.d(TAG, "Initiating discoverPeers()...");
             manager.discoverPeers(channel, new WifiP2pManager.ActionListener() {
                 @Override
@@ -73,10 +116,13 @@ public class ConnectActivity extends AppCompatActivity {
                     Log.d(TAG, "discoverPeers() started");
                     Toast.makeText(ConnectActivity.this, "Discovering Peers...", Toast.LENGTH_SHORT).show();
 
-                    new Handler(Looper.getMainLooper()).postDelayed(() -> {
+                    // The framework may still hold peers from an earlier scan.
+                    manager.requestPeers(channel, peerListListener);
+                    handler.postDelayed(() -> {
+                        if (firstLivePeerShown) return;
                         Log.d(TAG, "Running fallback requestPeers()");
                         manager.requestPeers(channel, peerListListener);
-                    }, 4000);
+                    }, FALLBACK_REQUEST_MILLIS);
                 }
 
                 @Override
@@ -88,32 +134,60 @@ public class ConnectActivity extends AppCompatActivity {
         });
 
         deviceListView.setOnItemClickListener((parent, view, position, id) -> {
-            WifiP2pDevice device = peers.get(position);
-            WifiP2pConfig config = new WifiP2pConfig();
-            config.deviceAddress = device.deviceAddress;
-
             if (!hasPermissions(this)) {
                 requestRequiredPermissions();
                 return;
             }
+            String address = rows.get(position).address;
+            if (!address.isEmpty()) connect(address);
+        });
+    }
 
-            Log.d(TAG, "Connecting to: " + device.deviceName);
-            manager.connect(channel, config, new WifiP2pManager.ActionListener() {
-                @Override
-                public void onSuccess() {
-                    Log.d(TAG, "Connection initiated");
-                    Toast.makeText(ConnectActivity.this, "Connecting to " + device.deviceName, Toast.LENGTH_SHORT).show();
-                }
+    private void connect(String address) {
+        WifiP2pDevice device = livePeers.get(address);
+        PeerCache.Peer known = peerCache.get(address);
+        String name = device != null ? device.deviceName : known != null ? known.getName() : address;
+        WifiP2pConfig config = new WifiP2pConfig();
+        config.deviceAddress = address;
+        if (known != null && known.getOwnerRate() > 0.5) {
+            // It usually ends up owner anyway; saying so up front avoids a tie-break.
+            config.groupOwnerIntent = 0;
+        }
 
-                @Override
-                public void onFailure(int reason) {
-                    Log.e(TAG, "Connection failed: " + reason);
-                    Toast.makeText(ConnectActivity.this, "Connection failed", Toast.LENGTH_SHORT).show();
-                }
-            });
+        Log.d(TAG, "Connecting to: " + name);
+        connectingAddress = address;
+        autoConnectPending = false;
+        peerCache.onConnectAttempt(address);
+        handler.removeCallbacks(connectTimeout);
+        handler.postDelayed(connectTimeout, CONNECT_TIMEOUT_MILLIS);
+        manager.connect(channel, config, new WifiP2pManager.ActionListener() {
+            @Override
+            public void onSuccess() {
+                Log.d(TAG, "Connection initiated");
+                Toast.makeText(ConnectActivity.this, "Connecting to " + name, Toast.LENGTH_SHORT).show();
+            }
+
+            @Override
+            public void onFailure(int reason) {
+                Log.e(TAG, "Connection failed: " + reason);
+                Toast.makeText(ConnectActivity.this, "Connection failed", Toast.LENGTH_SHORT).show();
+                connectFinished();
+            }
         });
     }
 
+    // The attempt already counts as a failure unless the group forms.
+    private final Runnable connectTimeout = () -> {
+        Log.w(TAG, "No group formed with " + connectingAddress);
+        connectFinished();
+    };
+
+    private void connectFinished() {
+        connectingAddress = null;
+        handler.removeCallbacks(connectTimeout);
+        savePeers();
+    }
+
     private void setupIntentFilter() {
         intentFilter = new IntentFilter();
         intentFilter.addAction(WifiP2pManager.WIFI_P2P_STATE_CHANGED_ACTION);
@@ -126,6 +200,11 @@ public class ConnectActivity extends AppCompatActivity {
         connectionInfoListener = info -> {
             Log.d(TAG, "ConnectionInfo available: " + info);
             if (info.groupFormed) {
+                if (connectingAddress != null) {
+                    // In a two-device group whoever is not owner joined the other.
+                    peerCache.onConnected(connectingAddress, !info.isGroupOwner, System.currentTimeMillis());
+                    connectFinished();
+                }
                 Intent intent = new Intent(ConnectActivity.this, MainActivity.class);
                 intent.putExtra("isGroupOwner", info.isGroupOwner);
                 intent.putExtra("groupOwnerAddress", info.groupOwnerAddress.getHostAddress());
@@ -160,21 +239,109 @@ public class ConnectActivity extends AppCompatActivity {
 
     WifiP2pManager.PeerListListener peerListListener = peerList -> {
         Log.d(TAG, "peerListListener triggered");
-        peers.clear();
-        peers.addAll(peerList.getDeviceList());
-        adapter.clear();
+        long now = System.currentTimeMillis();
+        livePeers.clear();
+        for (WifiP2pDevice device : peerList.getDeviceList()) {
+            livePeers.put(device.deviceAddress, device);
+            peerCache.onSeen(device.deviceAddress, device.deviceName, now);
+        }
+        showPeers();
+        if (!livePeers.isEmpty() && tapMillis != 0 && !firstLivePeerShown) {
+            firstLivePeerShown = true;
+            firstLivePeerLatency.record(SystemClock.elapsedRealtime() - tapMillis);
+        }
 
-        if (peers.isEmpty()) {
-            adapter.add("No peers found");
-        } else {
-            for (WifiP2pDevice device : peers) {
-                String deviceInfo = device.deviceName + " - " + device.deviceAddress;
-                adapter.add(deviceInfo);
-                Log.d(TAG, "Found peer: " + deviceInfo);
-            }
+        if (autoConnectPending && connectingAddress == null) {
+            PeerCache.Peer likely = peerCache.mostLikely(livePeers.keySet(), AUTO_CONNECT_MIN_SUCCESS_RATE, now);
+            if (likely != null && hasPermissions(this)) connect(likely.getAddress());
         }
     };
 
+    /**
+     * Shows discovered peers first, then remembered ones, each ranked by how likely they
+     * are to connect, and applies only what changed to the list.
+     */
+    private void showPeers() {
+        long now = System.currentTimeMillis();
+        List<PeerRow> target = new ArrayList<>();
+        List<PeerCache.Peer> remembered = new ArrayList<>();
+        for (PeerCache.Peer peer : peerCache.ranked(now)) {
+            if (livePeers.containsKey(peer.getAddress())) {
+                WifiP2pDevice device = livePeers.get(peer.getAddress());
+                target.add(new PeerRow(peer.getAddress(), device.deviceName + " - " + device.deviceAddress));
+            } else {
+                remembered.add(peer);
+            }
+        }
+        for (PeerCache.Peer peer : remembered) {
+            long minutes = (now - peer.getLastSeenMillis()) / 60000;
+            target.add(new PeerRow(peer.getAddress(), peer.getName() + " - " + peer.getAddress()
+                    + " (seen " + (minutes < 1 ? "just now" : minutes + " min ago") + ")"));
+        }
+
+        if (target.isEmpty() && tapMillis != 0) target.add(new PeerRow("", "No peers found"));
+
+        boolean changed = ListDiff.apply(rows, target, new ListDiff.Listener<PeerRow>() {
+            @Override
+            public void onRemoved(int index, PeerRow row) {
+                adapter.remove(rows.remove(index));
+            }
+
+            @Override
+            public void onInserted(int index, PeerRow row) {
+                rows.add(index, row);
+                adapter.insert(row, index);
+            }
+        }) > 0;
+        for (int i = 0; i < rows.size(); i++) {
+            if (!rows.get(i).label.equals(target.get(i).label)) {
+                rows.get(i).label = target.get(i).label;
+                changed = true;
+            }
+        }
+        if (changed) adapter.notifyDataSetChanged();
+
+        if (tapMillis != 0 && !firstPeerShown && !rows.get(0).address.isEmpty()) {
+            firstPeerShown = true;
+            firstPeerLatency.record(SystemClock.elapsedRealtime() - tapMillis);
+        }
+    }
+
+    private void savePeers() {
+        try {
+            peerCache.save(peerCacheFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not save peer cache", e);
+        }
+    }
+
+    /** A list entry, matched across updates by device address. */
+    static final class PeerRow {
+
+        final String address;
+        String label;
+
+        PeerRow(String address, String label) {
+            this.address = address;
+            this.label = label;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof PeerRow && ((PeerRow) o).address.equals(address);
+        }
+
+        @Override
+        public int hashCode() {
+            return address.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
     private boolean hasPermissions(Context context) {
         boolean fine = ActivityCompat.checkSelfPermission(context, Manifest.permission.ACCESS_FINE_LOCATION)
                 == PackageManager.PERMISSION_GRANTED;
@@ -220,5 +387,12 @@ public class ConnectActivity extends AppCompatActivity {
     protected void onPause() {
         super.onPause();
         if (receiver != null) unregisterReceiver(receiver);
+        savePeers();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacksAndMessages(null);
     }
 }
@@ -0,0 +1,56 @@
+package io.github.udayhe.nonetchat.activity;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.widget.TextView;
+
+import androidx.appcompat.app.AppCompatActivity;
+
+import io.github.udayhe.nonetchat.R;
+import io.github.udayhe.nonetchat.metrics.MetricsRegistry;
+
+/**
+ * Live view of {@link MetricsRegistry#getDefault()}, refreshed every second while visible.
+ * A long press writes the dump to logcat for bug reports.
+ */
+public class DiagnosticsActivity extends AppCompatActivity {
+
+    private static final String TAG = "Diagnostics";
+    private static final long REFRESH_MILLIS = 1000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            diagnosticsText.setText(MetricsRegistry.getDefault().dump());
+            handler.postDelayed(this, REFRESH_MILLIS);
+        }
+    };
+
+    TextView diagnosticsText;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+        diagnosticsText = findViewById(R.id.diagnosticsText);
+        diagnosticsText.setOnLongClickListener(v -> {
+            Log.i(TAG, MetricsRegistry.getDefault().dump());
+            return true;
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refresh);
+    }
+}
@@ -2,11 +2,19 @@ package io.github.udayhe.nonetchat.activity;
 
 import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
+import android.database.Cursor;
+import android.net.Uri;
 import android.net.wifi.p2p.WifiP2pManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.ParcelFileDescriptor;
+import android.os.SystemClock;
+import android.provider.OpenableColumns;
 import android.util.Log;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
@@ -19,33 +27,70 @@ import androidx.core.app.ActivityCompat;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
 
 import io.github.udayhe.nonetchat.adapter.MessageAdapter;
+import io.github.udayhe.nonetchat.bluetooth.BluetoothMeshManager;
+import io.github.udayhe.nonetchat.delivery.AckBatcher;
+import io.github.udayhe.nonetchat.delivery.RetransmitWindow;
+import io.github.udayhe.nonetchat.delivery.StoreAndForward;
+import io.github.udayhe.nonetchat.exec.ConnectionExecutor;
+import io.github.udayhe.nonetchat.inbound.InboundBatcher;
+import io.github.udayhe.nonetchat.log.AndroidLogSink;
+import io.github.udayhe.nonetchat.log.ChatLog;
+import io.github.udayhe.nonetchat.mesh.MeshRelay;
+import io.github.udayhe.nonetchat.metrics.MetricsRegistry;
+import io.github.udayhe.nonetchat.relay.MessageRouter;
+import io.github.udayhe.nonetchat.relay.RelayHandler;
 import io.github.udayhe.nonetchat.sender.MultiPeerChatSender;
+import io.github.udayhe.nonetchat.sender.PeerWriter;
 import io.github.udayhe.nonetchat.R;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+import io.github.udayhe.nonetchat.server.ChatServer;
+import io.github.udayhe.nonetchat.session.Heartbeat;
+import io.github.udayhe.nonetchat.session.HostSession;
+import io.github.udayhe.nonetchat.session.Roster;
+import io.github.udayhe.nonetchat.session.RosterSnapshot;
+import io.github.udayhe.nonetchat.store.MessageLog;
+import io.github.udayhe.nonetchat.store.MessageWindow;
+import io.github.udayhe.nonetchat.store.Outbox;
+import io.github.udayhe.nonetchat.transfer.FileReceiver;
+import io.github.udayhe.nonetchat.transfer.FileSender;
+import io.github.udayhe.nonetchat.transfer.Transfer;
+import io.github.udayhe.nonetchat.transfer.TransferFormat;
+import io.github.udayhe.nonetchat.transport.MeshTransport;
+import io.github.udayhe.nonetchat.transport.TcpTransport;
+import io.github.udayhe.nonetchat.transport.TransportRouter;
 import io.github.udayhe.nonetchat.wifi.WiFiDirectBroadcastReceiver;
 import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.payload.MessageIds;
 
 public class MainActivity extends AppCompatActivity {
 
     private static final String TAG = "WiFiChat";
     private static final int REQUEST_PERMISSIONS_CODE = 1001;
     private static final int PORT = 8888;
+    private static final int REQUEST_PICK_FILE = 1002;
+    private static final int MAX_TRANSFERS = 6;
+    private static final long MAX_INCOMING_TRANSFER_BYTES = 1L << 30;
+    // How long onDestroy waits on the main thread for each executor's loops to stop.
+    private static final long TEARDOWN_WAIT_MILLIS = 200;
+    private static final String[] MESH_PERMISSIONS = {
+            android.Manifest.permission.BLUETOOTH_SCAN, android.Manifest.permission.BLUETOOTH_ADVERTISE};
 
     WifiP2pManager manager;
     WifiP2pManager.Channel channel;
@@ -55,18 +100,48 @@ public class MainActivity extends AppCompatActivity {
     RecyclerView recyclerView;
     EditText messageInput;
     Button sendButton;
+    Button attachButton;
+    Button diagnosticsButton;
     Spinner recipientSpinner;
 
-    List<Message> messages = new ArrayList<>();
+    MessageLog messageLog;
     MessageAdapter adapter;
-
-    ServerSocket serverSocket;
-    List<Socket> clientSockets = new ArrayList<>();
-    Map<String, PrintWriter> userWriters = new HashMap<>();
-    List<String> userList = new ArrayList<>();
-    Socket socket; // For client mode
-
-    MultiPeerChatSender chatSender;
+    InboundBatcher inbound;
+    final MetricsRegistry metrics = MetricsRegistry.getDefault();
+    RetransmitWindow deliveries;
+    AckBatcher acks;
+    Outbox outbox;
+    StoreAndForward forward;
+    // Every message takes the cheapest of the group and the BLE mesh that reaches its recipient.
+    TransportRouter transports;
+    TcpTransport tcp;
+    BluetoothMeshManager mesh;
+    MeshTransport meshTransport;
+
+    // Every socket loop runs on one of these so onDestroy can stop them all. Transfers get
+    // their own, so a burst of files can never starve the group session of threads.
+    // The group: the host session, its writer and up to two earlier writers winding down
+    // after reconnects, plus one kept for the server a successor starts while its session
+    // is still on the way out. An owner only runs the server.
+    final ConnectionExecutor connections = ConnectionExecutor.platform("NoNetChat", 4 + 1);
+    // The file receiver's accept loop, and one loop per transfer either way.
+    final ConnectionExecutor transfers = ConnectionExecutor.platform("NoNetChat-files", 1 + MAX_TRANSFERS);
+    // A client binds one too, to serve the group if the owner leaves and names it successor.
+    volatile ChatServer chatServer;
+    HostSession hostSession; // Client only
+
+    volatile MultiPeerChatSender chatSender;
+    volatile MessageRouter router; // Group owner, or a client that took over
+    volatile String hostName; // Client only
+    volatile InetAddress hostAddress; // Client only
+    FileReceiver fileReceiver;
+    int shownTransferPercent = -1;
+    // Ids of sends that failed, by file and recipient, so sending it again resumes the transfer.
+    final ConcurrentMap<String, Long> unfinishedTransfers = new ConcurrentHashMap<>();
+
+    final Roster<Void> roster = new Roster<>();
+    ArrayAdapter<String> recipients;
+    long shownRosterVersion;
 
     String myUsername = "User" + new Random().nextInt(1000);
 
@@ -74,29 +149,115 @@ public class MainActivity extends AppCompatActivity {
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
+        ChatLog.setSink(new AndroidLogSink());
+        // Debug logging is opt-in (adb shell setprop log.tag.WiFiChat DEBUG) so hot paths skip it.
+        ChatLog.setLevel(Log.isLoggable(TAG, Log.DEBUG) ? ChatLog.DEBUG : ChatLog.INFO);
 
         recyclerView = findViewById(R.id.recyclerView);
         messageInput = findViewById(R.id.messageInput);
         sendButton = findViewById(R.id.sendButton);
+        attachButton = findViewById(R.id.attachButton);
+        diagnosticsButton = findViewById(R.id.diagnosticsButton);
         recipientSpinner = findViewById(R.id.recipientSpinner);
 
-        adapter = new MessageAdapter(this, messages);
+        try {
+            messageLog = new MessageLog(new File(getFilesDir(), "messages"));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open message history", e);
+        }
+        adapter = new MessageAdapter(this, new MessageWindow(messageLog));
         recyclerView.setAdapter(adapter);
         recyclerView.setLayoutManager(new LinearLayoutManager(this));
+        if (adapter.getItemCount() > 0) recyclerView.scrollToPosition(adapter.getItemCount() - 1);
+        // postOnAnimation is safe from reader threads and lands on the next frame.
+        inbound = new InboundBatcher(recyclerView::postOnAnimation, this::showBatch);
+
+        MeshRelay.Scheduler scheduler = new MeshRelay.Scheduler() {
+            final Handler handler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public long nowMillis() {
+                return SystemClock.elapsedRealtime();
+            }
+
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                handler.postDelayed(task, delayMillis);
+            }
+        };
+        transports = new TransportRouter(myUsername, new TransportRouter.Listener() {
+            @Override
+            public void onFrame(Frame frame) {
+                if (frame.getType() == WireFormat.TYPE_ACK) receiveAcks(frame);
+                else receiveMessage(frame.toMessage());
+            }
+
+            @Override
+            public void onPeersChanged(List<String> peers) {
+                roster.replaceAll(peers, null);
+            }
+        }, scheduler);
+        metrics.gauge("transport.unroutable", transports::getUnroutableCount);
+        // Within the group the owner routes everything, so clients always write to it.
+        tcp = new TcpTransport(myUsername);
+        transports.add(tcp);
+        deliveries = new RetransmitWindow(transports, (id, status) -> {
+            // A failed message stays in the outbox and goes again when its recipient is back.
+            Message.Status shown = forward.onStatusChanged(id, status) ? Message.Status.PENDING : status;
+            runOnUiThread(() -> adapter.setStatus(id, shown));
+        }, scheduler);
+        try {
+            outbox = new Outbox(new File(getFilesDir(), "outbox"));
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot open outbox", e);
+        }
+        outbox.setAgeHistogram(metrics.histogram("outbox.age_ms"));
+        metrics.gauge("outbox.size", outbox::size);
+        metrics.gauge("outbox.oldest_ms", () -> outbox.getOldestAgeMillis(System.currentTimeMillis()));
+        // Queued messages outlive reboots, so the outbox keeps wall-clock time.
+        forward = new StoreAndForward(outbox, deliveries::send, new MeshRelay.Scheduler() {
+            @Override
+            public long nowMillis() {
+                return System.currentTimeMillis();
+            }
+
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                scheduler.schedule(task, delayMillis);
+            }
+        });
+        acks = new AckBatcher(myUsername, transports, scheduler);
+        startMesh();
+
+        recipients = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, new ArrayList<String>());
+        recipients.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+        recipients.setNotifyOnChange(false);
+        recipientSpinner.setAdapter(recipients);
+        roster.addListener(snapshot -> {
+            forward.setPresent(snapshot.getNames());
+            runOnUiThread(() -> showRoster(snapshot));
+        });
 
         sendButton.setOnClickListener(v -> {
             String msg = messageInput.getText().toString().trim();
             String recipient = recipientSpinner.getSelectedItem() != null ? recipientSpinner.getSelectedItem().toString() : null;
             if (!msg.isEmpty() && recipient != null) {
-                messages.add(new Message(myUsername, recipient, msg, System.currentTimeMillis()));
-                adapter.notifyItemInserted(messages.size() - 1);
-                recyclerView.smoothScrollToPosition(messages.size() - 1);
+                Message message = new Message(myUsername, recipient, msg, System.currentTimeMillis());
+                int position = adapter.append(message);
+                if (position >= 0) recyclerView.smoothScrollToPosition(position);
                 messageInput.setText("");
-
-                if (chatSender != null) chatSender.sendToUser(recipient, myUsername + ": " + msg);
+                forward.send(message);
             }
         });
 
+        diagnosticsButton.setOnClickListener(v -> startActivity(new Intent(this, DiagnosticsActivity.class)));
+
+        attachButton.setOnClickListener(v -> {
+            Intent pick = new Intent(Intent.ACTION_GET_CONTENT).setType("*/*").addCategory(Intent.CATEGORY_OPENABLE);
+            startActivityForResult(pick, REQUEST_PICK_FILE);
+        });
+        startFileReceiver();
+
         manager = (WifiP2pManager) getSystemService(Context.WIFI_P2P_SERVICE);
         channel = manager.initialize(this, getMainLooper(), null);
 
@@ -129,6 +290,13 @@ public class MainActivity extends AppCompatActivity {
                 != PackageManager.PERMISSION_GRANTED) {
             permissions.add(android.Manifest.permission.ACCESS_FINE_LOCATION);
         }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) {
+            for (String permission : MESH_PERMISSIONS) {
+                if (ActivityCompat.checkSelfPermission(this, permission) != PackageManager.PERMISSION_GRANTED) {
+                    permissions.add(permission);
+                }
+            }
+        }
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU &&
                 ActivityCompat.checkSelfPermission(this, android.Manifest.permission.NEARBY_WIFI_DEVICES)
                         != PackageManager.PERMISSION_GRANTED) {
@@ -140,126 +308,376 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
-    public void startServer() {
-        chatSender = new MultiPeerChatSender();
-        new Thread(() -> {
-            try {
-                serverSocket = new ServerSocket(PORT);
-                while (!serverSocket.isClosed()) {
-                    Socket client = serverSocket.accept();
-                    BufferedReader reader = new BufferedReader(new InputStreamReader(client.getInputStream()));
-                    PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(client.getOutputStream())), true);
-
-                    String username = reader.readLine();
-                    if (username == null || username.trim().isEmpty()) {
-                        Log.w(TAG, "Username is null or empty. Skipping client.");
-                        client.close();
-                        continue;
-                    }
+    /** Joins the BLE mesh as a second transport, reaching nearby users outside the group. */
+    private void startMesh() {
+        if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) return;
+        BluetoothMeshManager manager = new BluetoothMeshManager(this);
+        MeshTransport transport = new MeshTransport(new MeshTransport.Mesh() {
+            @Override
+            public boolean send(byte[] payload) {
+                return manager.sendPayload(payload);
+            }
+
+            @Override
+            public int getMaxPayloadLength() {
+                return manager.getMaxPayloadLength();
+            }
+        }, myUsername, manager.getScheduler());
+        transport.setAckBatcher(acks);
+        manager.setTransport(transport);
+        transports.add(transport);
+        metrics.gauge("ble.peers", () -> transport.getPeers().size());
+        mesh = manager;
+        meshTransport = transport;
+    }
 
-                    Log.d(TAG, "Received username: " + username);
-                    userWriters.put(username, writer);
-                    userList.add(username);
-                    runOnUiThread(this::updateSpinner);
-                    chatSender.addUserWriter(username, writer);
+    private boolean canUseMesh() {
+        if (mesh == null) return false;
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.S) return true;
+        for (String permission : MESH_PERMISSIONS) {
+            if (ActivityCompat.checkSelfPermission(this, permission) != PackageManager.PERMISSION_GRANTED) return false;
+        }
+        return true;
+    }
 
-                    new Thread(() -> receiveFromClient(username, reader)).start();
-                }
+    public void startServer() {
+        MultiPeerChatSender sender = new MultiPeerChatSender();
+        MessageRouter owner = new MessageRouter(myUsername, sender, routerListener);
+        ChatServer server = newServer(owner);
+        host(sender, owner, server);
+        connections.execute("ChatServer", () -> {
+            try {
+                server.bind(PORT);
+                server.serve();
             } catch (IOException e) {
                 Log.e(TAG, "Server error", e);
             }
-        }).start();
+        }, server);
+    }
+
+    private ChatServer newServer(MessageRouter owner) {
+        owner.setAckBatcher(acks);
+        RelayHandler relayHandler = new RelayHandler(owner);
+        relayHandler.setMetrics(metrics);
+        ChatServer server = new ChatServer(relayHandler, ChatServer.DEFAULT_BUFFER_SIZE, WireFormat.DEFAULT_MAX_FRAME_LENGTH + 16);
+        server.setHeartbeat(Heartbeat.DEFAULT_INTERVAL_MILLIS, Heartbeat.DEFAULT_TIMEOUT_MILLIS, FrameEncoder.encodePing(0));
+        return server;
+    }
+
+    private void host(MultiPeerChatSender sender, MessageRouter owner, ChatServer server) {
+        chatSender = sender;
+        router = owner;
+        chatServer = server;
+        tcp.setRouter(owner);
+        metrics.gauge("server.dead_peers", server::getDeadPeerCount);
+        metrics.gauge("router.relayed", owner::getRelayedCount);
+        metrics.gauge("router.broadcasts", owner::getBroadcastCount);
+        metrics.gauge("router.unroutable", owner::getUnroutableCount);
+        metrics.gauge("router.duplicates", owner::getDuplicateCount);
+        metrics.gauge("router.held", owner::getHeldCount);
+        metrics.gauge("router.replicated", owner::getReplicatedCount);
+        metrics.gauge("sender.queue_depth", sender::getTotalQueueDepth);
+    }
+
+    private final MessageRouter.Listener routerListener = new MessageRouter.Listener() {
+        @Override
+        public void onMessage(Frame frame) {
+            tcp.deliver(frame);
+        }
+
+        @Override
+        public void onRosterChanged(List<String> names) {
+            tcp.setRoster(names);
+        }
+    };
+
+    private void receiveMessage(Message message) {
+        inbound.offer(message);
+    }
+
+    private void receiveAcks(Frame frame) {
+        for (int i = 0; i < frame.getAckCount(); i++) deliveries.onAck(frame.getAckId(i), frame.getAckStatus());
+    }
+
+    private void showBatch(List<Message> batch, boolean burst) {
+        int last = adapter.appendAll(batch);
+        if (last < 0) return;
+        for (int i = 0; i < batch.size(); i++) {
+            Message message = batch.get(i);
+            if (message.isLocal() || message.getSender().equals(myUsername)) continue;
+            acks.add(message.getSender(), message.getId(), WireFormat.ACK_READ);
+        }
+        // Animating through a large burst costs more frames than it is worth.
+        if (burst) recyclerView.scrollToPosition(last);
+        else recyclerView.smoothScrollToPosition(last);
     }
 
-    private void receiveFromClient(String username, BufferedReader reader) {
+    private void showRoster(RosterSnapshot<Void> snapshot) {
+        // Snapshots from different threads can arrive out of order; only move forward.
+        if (snapshot.getVersion() <= shownRosterVersion) return;
+        shownRosterVersion = snapshot.getVersion();
+
+        Object selected = recipientSpinner.getSelectedItem();
+        recipients.clear();
+        recipients.add(WireFormat.RECIPIENT_ALL);
+        for (int i = 0; i < snapshot.size(); i++) {
+            String name = snapshot.nameAt(i);
+            if (!name.equals(myUsername)) recipients.add(name);
+        }
+        recipients.notifyDataSetChanged();
+        int position = selected != null ? recipients.getPosition(selected.toString()) : -1;
+        recipientSpinner.setSelection(Math.max(position, 0));
+    }
+
+    private void startFileReceiver() {
         try {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                String finalLine = line;
-                runOnUiThread(() -> {
-                    messages.add(new Message(username, "You", finalLine, System.currentTimeMillis()));
-                    adapter.notifyItemInserted(messages.size() - 1);
-                    recyclerView.smoothScrollToPosition(messages.size() - 1);
-                });
-            }
+            fileReceiver = new FileReceiver(new File(getFilesDir(), "transfers"), transferListener);
+            fileReceiver.bind(new InetSocketAddress(TransferFormat.DEFAULT_PORT));
+            fileReceiver.start(transfers);
         } catch (IOException e) {
-            Log.w(TAG, "Client disconnected: " + username);
-        } finally {
-            chatSender.removeUser(username);
-            userWriters.remove(username);
-            userList.remove(username);
-            runOnUiThread(this::updateSpinner);
+            Log.e(TAG, "File transfers unavailable", e);
+        }
+    }
+
+    private final FileReceiver.Listener transferListener = new FileReceiver.Listener() {
+        @Override
+        public boolean onOffer(Transfer transfer, long resumeOffset) {
+            // The side channel takes any connection, so only accept files from people in the chat.
+            if (!roster.snapshot().contains(transfer.getSender())) {
+                Log.w(TAG, "Refusing " + transfer + " from " + transfer.getSender() + ", who is not in the chat");
+                return false;
+            }
+            long needed = transfer.getSize() - resumeOffset;
+            if (transfer.getSize() > MAX_INCOMING_TRANSFER_BYTES || needed > getFilesDir().getUsableSpace()) {
+                Log.w(TAG, "Refusing " + transfer + " of " + Transfer.formatSize(transfer.getSize()));
+                return false;
+            }
+            receiveMessage(transfer.toMessage(myUsername, resumeOffset, System.currentTimeMillis()));
+            return true;
+        }
+
+        @Override
+        public void onProgress(Transfer transfer, long received) {
+            showTransferProgress(transfer, received);
+        }
+
+        @Override
+        public void onComplete(Transfer transfer, File file) {
+            receiveMessage(transfer.toMessage(myUsername, transfer.getSize(), System.currentTimeMillis()));
+        }
+
+        @Override
+        public void onFailed(Transfer transfer, IOException cause) {
+            receiveMessage(transfer.toMessage(myUsername, -1, System.currentTimeMillis()));
+        }
+    };
+
+    @Override
+    protected void onActivityResult(int requestCode, int resultCode, Intent data) {
+        super.onActivityResult(requestCode, resultCode, data);
+        if (requestCode != REQUEST_PICK_FILE || resultCode != RESULT_OK || data == null || data.getData() == null) return;
+        Object selected = recipientSpinner.getSelectedItem();
+        String recipient = selected != null ? selected.toString() : null;
+        // Files travel on a direct side channel, so only peers we hold a socket to can get them.
+        InetAddress address = null;
+        if (recipient != null && router != null) address = router.getRemoteAddress(recipient);
+        else if (recipient != null && recipient.equals(hostName)) address = hostAddress;
+        if (address == null) {
+            Toast.makeText(this, "Files can only be sent directly to one connected peer", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        sendFile(data.getData(), recipient, new InetSocketAddress(address, TransferFormat.DEFAULT_PORT));
+    }
+
+    private void sendFile(Uri uri, String recipient, InetSocketAddress address) {
+        String name = "file";
+        try (Cursor cursor = getContentResolver().query(uri, new String[]{OpenableColumns.DISPLAY_NAME}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) name = cursor.getString(0);
+        }
+        String fileName = name;
+        try {
+            transfers.execute("FileSender-" + recipient, () -> sendFile(uri, fileName, recipient, address));
+        } catch (RejectedExecutionException e) {
+            Toast.makeText(this, "Too many transfers running, try again shortly", Toast.LENGTH_SHORT).show();
         }
     }
 
-    private void updateSpinner() {
-        ArrayAdapter<String> spinnerAdapter = new ArrayAdapter<>(this, android.R.layout.simple_spinner_item, new ArrayList<>(userList));
-        spinnerAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
-        recipientSpinner.setAdapter(spinnerAdapter);
+    private void sendFile(Uri uri, String fileName, String recipient, InetSocketAddress address) {
+        Transfer transfer = null;
+        String key = null;
+        try (ParcelFileDescriptor descriptor = getContentResolver().openFileDescriptor(uri, "r");
+             FileChannel file = new FileInputStream(descriptor.getFileDescriptor()).getChannel()) {
+            long size = descriptor.getStatSize();
+            // A changed file is a new transfer: the receiver's partial copy no longer matches.
+            key = uri + "\n" + recipient + "\n" + size;
+            // Taken out while sending, so the same file picked twice at once gets two ids.
+            Long id = unfinishedTransfers.remove(key);
+            transfer = new Transfer(id != null ? id : MessageIds.next(), myUsername, fileName, size);
+            receiveMessage(transfer.toMessage(recipient, 0, System.currentTimeMillis()));
+            new FileSender().send(address, transfer, file, this::showTransferProgress);
+            receiveMessage(transfer.toMessage(recipient, transfer.getSize(), System.currentTimeMillis()));
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Sending " + fileName + " failed", e);
+            if (transfer == null) return;
+            unfinishedTransfers.put(key, transfer.getId());
+            receiveMessage(transfer.toMessage(recipient, -1, System.currentTimeMillis()));
+            runOnUiThread(() -> Toast.makeText(this, "Send " + fileName + " again to resume it", Toast.LENGTH_SHORT).show());
+        }
+    }
+
+    private void showTransferProgress(Transfer transfer, long bytes) {
+        int percent = transfer.getSize() == 0 ? 100 : (int) (bytes * 100 / transfer.getSize());
+        runOnUiThread(() -> {
+            // A chunk ACK arrives every few hundred KB; only redraw when the percentage moves.
+            if (percent == shownTransferPercent) return;
+            shownTransferPercent = percent;
+            setTitle(percent < 100 ? transfer.getName() + " " + percent + "%" : getString(R.string.app_name));
+        });
     }
 
     public void connectToHost(InetAddress hostAddress) {
-        new Thread(() -> {
-            try {
-                Log.d(TAG, "Attempting to connect to host: " + hostAddress);
-                socket = new Socket();
-                socket.connect(new InetSocketAddress(hostAddress, PORT), 8000);
-
-                PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(socket.getOutputStream())), true);
-                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-                writer.println(myUsername);
-                writer.flush();
-
-                chatSender = new MultiPeerChatSender();
-                chatSender.addUserWriter("Host", writer);
-
-                runOnUiThread(() -> {
-                    userList.clear();
-                    userList.add("Host");
-                    updateSpinner();
-                });
-
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    String finalLine = line;
-                    runOnUiThread(() -> {
-                        messages.add(new Message("Host", myUsername, finalLine, System.currentTimeMillis()));
-                        adapter.notifyItemInserted(messages.size() - 1);
-                        recyclerView.smoothScrollToPosition(messages.size() - 1);
-                    });
+        this.hostAddress = hostAddress;
+        chatSender = new MultiPeerChatSender();
+        hostSession = new HostSession(myUsername, new InetSocketAddress(hostAddress, PORT), new HostSession.Listener() {
+            @Override
+            public void onConnected(String name, PeerWriter writer, boolean resumed) {
+                hostName = name;
+                MainActivity.this.hostAddress = hostSession.getHost().getAddress();
+                chatSender.addPeer(name, writer);
+            }
+
+            @Override
+            public void onFrame(Frame frame) {
+                if (frame.getType() == WireFormat.TYPE_CHAT || frame.getType() == WireFormat.TYPE_ACK) {
+                    tcp.deliver(frame);
+                } else if (frame.getType() == WireFormat.TYPE_ROSTER) {
+                    tcp.setRoster(frame.getRoster());
                 }
+            }
 
-            } catch (IOException e) {
-                Log.e(TAG, "Client connection failed", e);
-                runOnUiThread(() ->
-                        Toast.makeText(MainActivity.this, "Failed to connect to server", Toast.LENGTH_SHORT).show()
-                );
+            @Override
+            public void onDisconnected(IOException cause, long retryMillis) {
+                if (hostName != null) chatSender.removeUser(hostName);
+                // Until the group is back, only the mesh reaches anyone.
+                tcp.setRoster(Collections.<String>emptyList());
+                runOnUiThread(() -> Toast.makeText(MainActivity.this,
+                        "Connection lost, retrying in " + (retryMillis + 999) / 1000 + " s", Toast.LENGTH_SHORT).show());
             }
-        }).start();
+        });
+        hostSession.setAckBatcher(acks);
+        hostSession.setMetrics(metrics);
+        tcp.setSession(hostSession);
+        metrics.gauge("session.duplicates", hostSession::getDuplicateCount);
+        metrics.gauge("session.failovers", hostSession::getFailoverCount);
+        standBy();
+        hostSession.start(connections);
+    }
+
+    /**
+     * Offers to host the group should its owner leave. The server is bound now, so the
+     * address announced is the one clients will reach, but only serves after a takeover.
+     */
+    private void standBy() {
+        MultiPeerChatSender sender = new MultiPeerChatSender();
+        MessageRouter heir = new MessageRouter(myUsername, sender, routerListener);
+        ChatServer server = newServer(heir);
+        try {
+            server.bind(PORT);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot stand by to host the group", e);
+            return;
+        }
+        chatServer = server;
+        hostSession.setStandby(PORT, (replica, formerHost) -> {
+            heir.adopt(replica, formerHost);
+            try {
+                connections.execute("ChatServer", () -> {
+                    try {
+                        server.serve();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Server error", e);
+                    }
+                }, server);
+            } catch (RejectedExecutionException e) {
+                // Refuse connections rather than accept them unserved, so clients fall back at once.
+                Log.e(TAG, "No thread to host the group " + formerHost + " left", e);
+                server.close();
+                chatServer = null;
+                runOnUiThread(() -> Toast.makeText(MainActivity.this,
+                        "Could not take over the group from " + formerHost, Toast.LENGTH_LONG).show());
+                return;
+            }
+            MultiPeerChatSender clientSender = chatSender;
+            host(sender, heir, server);
+            clientSender.shutdown();
+            hostName = null;
+            hostAddress = null;
+            runOnUiThread(() -> Toast.makeText(MainActivity.this,
+                    formerHost + " left, you are hosting now", Toast.LENGTH_SHORT).show());
+        });
     }
 
     @Override
     protected void onResume() {
         super.onResume();
         registerReceiver(receiver, intentFilter);
+        if (canUseMesh()) {
+            mesh.setForeground(true);
+            mesh.startScanning();
+            mesh.getScheduler().schedule(meshTransport::start, 0);
+        }
     }
 
     @Override
     protected void onPause() {
         super.onPause();
+        try {
+            messageLog.sync();
+            outbox.sync();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot sync message history", e);
+        }
         unregisterReceiver(receiver);
+        if (mesh != null) mesh.setForeground(false);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
         try {
-            for (Socket s : clientSockets) s.close();
-            if (socket != null) socket.close();
-            if (serverSocket != null) serverSocket.close();
+            if (hostSession != null) hostSession.close();
+            // Sent ahead of the close, so clients move to the successor without retrying us.
+            if (router != null) router.resign();
+            if (chatServer != null) chatServer.close();
+            if (fileReceiver != null) fileReceiver.close();
+            if (mesh != null) {
+                meshTransport.stop();
+                mesh.close();
+            }
+            if (chatSender != null) chatSender.shutdown();
+            // Their sockets are closed, so loops normally stop at once; slow ones are waited
+            // out elsewhere rather than risk an ANR.
+            boolean stopped = connections.shutdown(TEARDOWN_WAIT_MILLIS);
+            stopped &= transfers.shutdown(TEARDOWN_WAIT_MILLIS);
+            messageLog.close();
+            if (stopped) outbox.close();
+            else new Thread(this::finishTeardown, "NoNetChat-teardown").start();
         } catch (IOException e) {
             Log.e(TAG, "Cleanup failed", e);
         }
     }
+
+    /** Waits for the last connection loops, then closes the outbox they may still write to. */
+    private void finishTeardown() {
+        for (ConnectionExecutor executor : new ConnectionExecutor[]{connections, transfers}) {
+            if (!executor.shutdown(ConnectionExecutor.DEFAULT_SHUTDOWN_TIMEOUT_MILLIS)) {
+                Log.w(TAG, "Connection loops still running: " + executor.getTaskNames());
+            }
+        }
+        try {
+            outbox.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot close the outbox", e);
+        }
+    }
 }
\ No newline at end of file
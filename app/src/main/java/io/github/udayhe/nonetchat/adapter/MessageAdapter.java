@@ -6,34 +6,102 @@ import android.widget.TextView;
 import androidx.annotation.NonNull;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 
 import io.github.udayhe.nonetchat.R;
+import io.github.udayhe.nonetchat.log.ChatLog;
 import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.store.MessageWindow;
 
 public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.MessageViewHolder> {
 
-    private final List<Message> messages;
+    private static final String TAG = "MessageAdapter";
+    private static final int TRACKED_STATUSES = 512;
+
+    private final MessageWindow messages;
     private final Context context;
     private final SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm", Locale.getDefault());
+    // Delivery state of our own recent messages, kept in memory only.
+    private final Map<Long, Message.Status> statuses = bounded();
+    private final Map<Long, Integer> positions = bounded();
+
+    // Labels of the last bound row. Neighbouring rows mostly share them, and names are
+    // interned by the decoder, so rebinding usually formats nothing.
+    private final Date date = new Date();
+    private long shownMinute = -1;
+    private String shownTime;
+    private String shownSender;
+    private String shownRecipient;
+    private String shownLabel;
 
-    public MessageAdapter(Context context, List<Message> messages) {
+    public MessageAdapter(Context context, MessageWindow messages) {
         this.context = context;
         this.messages = messages;
     }
 
+    /**
+     * Stores {@code message} and shows it at the end of the list. Returns its position,
+     * or -1 if it could not be stored.
+     */
+    public int append(Message message) {
+        try {
+            int position = (int) messages.append(message);
+            positions.put(message.getId(), position);
+            notifyItemInserted(position);
+            return position;
+        } catch (IOException e) {
+            ChatLog.e(TAG, "Cannot store message " + message.getId(), e);
+            return -1;
+        }
+    }
+
+    /**
+     * Shows {@code status} under our message {@code id}, which may not be appended yet.
+     */
+    public void setStatus(long id, Message.Status status) {
+        statuses.put(id, status);
+        Integer position = positions.get(id);
+        if (position == null) return;
+        notifyItemChanged(position);
+    }
+
     public static class MessageViewHolder extends RecyclerView.ViewHolder {
         TextView messageSender;
         TextView messageContent;
         TextView messageTime;
+        TextView messageStatus;
 
         public MessageViewHolder(@NonNull View itemView) {
             super(itemView);
             messageSender = itemView.findViewById(R.id.messageSender);
             messageContent = itemView.findViewById(R.id.messageContent);
             messageTime = itemView.findViewById(R.id.messageTime);
+            messageStatus = itemView.findViewById(R.id.messageStatus);
+        }
+    }
+
+    /**
+     * Stores a batch and announces it as one range insert. Returns the last stored
+     * position, or -1 if nothing was stored.
+     */
+    public int appendAll(List<Message> batch) {
+        int first = -1;
+        int stored = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            try {
+                int position = (int) messages.append(batch.get(i));
+                if (first < 0) first = position;
+                stored++;
+            } catch (IOException e) {
+                ChatLog.e(TAG, "Cannot store message " + batch.get(i).getId(), e);
+                break;
+            }
         }
+        if (stored == 0) return -1;
+        notifyItemRangeInserted(first, stored);
+        return first + stored - 1;
     }
 
     @NonNull
@@ -45,15 +113,55 @@ public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.MessageV
 
     @Override
     public void onBindViewHolder(@NonNull MessageViewHolder holder, int position) {
-        Message msg = messages.get(position);
-        String senderLabel = msg.getSender() + " → " + msg.getRecipient();
-        holder.messageSender.setText(senderLabel);
+        Message msg;
+        try {
+            msg = messages.get(position);
+        } catch (IOException e) {
+            ChatLog.e(TAG, "Cannot read message " + position, e);
+            holder.messageSender.setText("");
+            holder.messageContent.setText("");
+            holder.messageTime.setText("");
+            holder.messageStatus.setVisibility(View.GONE);
+            return;
+        }
+        holder.messageSender.setText(labelOf(msg));
         holder.messageContent.setText(msg.getContent());
-        holder.messageTime.setText(timeFormat.format(new Date(msg.getTimestamp())));
+        holder.messageTime.setText(timeOf(msg.getTimestamp()));
+        Message.Status status = statuses.get(msg.getId());
+        holder.messageStatus.setVisibility(status != null ? View.VISIBLE : View.GONE);
+        if (status != null) holder.messageStatus.setText(status.name().toLowerCase(Locale.ROOT));
+    }
+
+    private String labelOf(Message msg) {
+        if (!msg.getSender().equals(shownSender) || !msg.getRecipient().equals(shownRecipient)) {
+            shownSender = msg.getSender();
+            shownRecipient = msg.getRecipient();
+            shownLabel = shownSender + " → " + shownRecipient;
+        }
+        return shownLabel;
+    }
+
+    private String timeOf(long timestamp) {
+        long minute = timestamp / 60_000;
+        if (minute != shownMinute) {
+            date.setTime(timestamp);
+            shownTime = timeFormat.format(date);
+            shownMinute = minute;
+        }
+        return shownTime;
+    }
+
+    private static <V> Map<Long, V> bounded() {
+        return new LinkedHashMap<Long, V>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, V> eldest) {
+                return size() > TRACKED_STATUSES;
+            }
+        };
     }
 
     @Override
     public int getItemCount() {
-        return messages.size();
+        return (int) messages.size();
     }
 }
\ No newline at end of file
@@ -5,89 +5,447 @@ import android.bluetooth.BluetoothManager;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
+import android.bluetooth.le.AdvertisingSet;
+import android.bluetooth.le.AdvertisingSetCallback;
+import android.bluetooth.le.AdvertisingSetParameters;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
 import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
 import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.ParcelUuid;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.udayhe.nonetchat.mesh.AdvertisementRotator;
+import io.github.udayhe.nonetchat.mesh.DutyCycleScheduler;
+import io.github.udayhe.nonetchat.mesh.MeshPacket;
+import io.github.udayhe.nonetchat.mesh.MeshRelay;
+import io.github.udayhe.nonetchat.mesh.PacketHandoff;
+import io.github.udayhe.nonetchat.mesh.ShortTextCodec;
+import io.github.udayhe.nonetchat.metrics.MetricsRegistry;
+import io.github.udayhe.nonetchat.transport.MeshTransport;
 
 public class BluetoothMeshManager {
 
     private static final String TAG = "BluetoothMesh";
     private static final UUID SERVICE_UUID = UUID.fromString("0000feed-0000-1000-8000-00805f9b34fb");
+    private static final ParcelUuid SERVICE_PARCEL_UUID = new ParcelUuid(SERVICE_UUID);
+    private static final int SERVICE_UUID16 = (int) (SERVICE_UUID.getMostSignificantBits() >>> 32) & 0xFFFF;
+    // Matched in the controller, so the app is only woken for mesh packets, and scans keep
+    // running with the screen off.
+    private static final List<ScanFilter> SCAN_FILTERS = Collections.singletonList(
+            new ScanFilter.Builder().setServiceUuid(SERVICE_PARCEL_UUID).build());
+    // Service UUID list (4 bytes) and the service data header (4 bytes) share the PDU.
+    private static final int AD_OVERHEAD = 8;
 
     private final BluetoothLeAdvertiser advertiser;
     private final BluetoothLeScanner scanner;
+    private final boolean extended;
+    private final boolean batching;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final MeshRelay.Scheduler scheduler;
+    private final MeshRelay relay;
+    private final PacketHandoff handoff;
+    private final AdvertisementRotator rotator;
+    private final DutyCycleScheduler dutyCycle;
+    private volatile MeshMessageListener messageListener;
+    private volatile MeshTransport transport;
+    private boolean advertising;
+    private AdvertisingSet advertisingSet;
+    private AdvertiseData pendingSetData;
+    private boolean scanning;
+
+    private final AtomicLong scanResults;
+    private final AtomicLong scanFailures;
+    private final AtomicLong advertiseStarts;
+    private final AtomicLong advertiseFailures;
+    private final AtomicLong meshMessages;
 
     public BluetoothMeshManager(Context context) {
         BluetoothManager bluetoothManager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
         BluetoothAdapter bluetoothAdapter = bluetoothManager.getAdapter();
         advertiser = bluetoothAdapter.getBluetoothLeAdvertiser();
         scanner = bluetoothAdapter.getBluetoothLeScanner();
+        extended = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O && bluetoothAdapter.isLeExtendedAdvertisingSupported();
+        batching = bluetoothAdapter.isOffloadedScanBatchingSupported();
+
+        MetricsRegistry metrics = MetricsRegistry.getDefault();
+        scanResults = metrics.counter("ble.scan_results");
+        scanFailures = metrics.counter("ble.scan_failures");
+        advertiseStarts = metrics.counter("ble.advertise_starts");
+        advertiseFailures = metrics.counter("ble.advertise_failures");
+        meshMessages = metrics.counter("ble.mesh_messages");
+
+        // The relay, its timers and the radio state live on one thread of their own; scan
+        // callbacks only filter and copy packets into the hand-off.
+        thread = new HandlerThread("BluetoothMesh");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        scheduler = new MeshRelay.Scheduler() {
+            @Override
+            public long nowMillis() {
+                return SystemClock.elapsedRealtime();
+            }
+
+            @Override
+            public void schedule(Runnable task, long delayMillis) {
+                handler.postDelayed(task, delayMillis);
+            }
+        };
+        rotator = new AdvertisementRotator(new AdvertisementRotator.Advertiser() {
+            @Override
+            public void advertise(byte[] packet) {
+                startAdvertising(packet);
+            }
+
+            @Override
+            public void stop() {
+                stopAdvertising();
+            }
+        }, scheduler);
+        relay = new MeshRelay(rotator, scheduler, (id, payload) -> {
+            meshMessages.incrementAndGet();
+            if (Log.isLoggable(TAG, Log.DEBUG)) Log.d(TAG, "Received mesh message " + Long.toHexString(id));
+            MeshTransport meshTransport = transport;
+            if (meshTransport != null && meshTransport.onPayload(payload)) return;
+            MeshMessageListener listener = messageListener;
+            if (listener == null) return;
+            byte[] text;
+            try {
+                text = ShortTextCodec.decode(payload);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Dropping mesh message " + Long.toHexString(id) + ": " + e.getMessage());
+                return;
+            }
+            listener.onMeshMessage(id, text);
+        });
+        if (extended) {
+            int maxData = bluetoothAdapter.getLeMaximumAdvertisingDataLength() - AD_OVERHEAD;
+            relay.setMaxPacketLength(Math.min(MeshPacket.EXTENDED_MAX_LENGTH, maxData));
+        }
+        metrics.gauge("ble.relayed", relay::getRelayedCount);
+        metrics.gauge("ble.duplicates", relay::getDuplicateCount);
+
+        dutyCycle = new DutyCycleScheduler(scheduler, this::applyProfile);
+        dutyCycle.setMetrics(metrics);
+        handoff = new PacketHandoff(scheduler, (packet, length, source) -> {
+            dutyCycle.onPacketHeard();
+            relay.onPacket(packet, length, source);
+        });
+        metrics.gauge("ble.handoff_dropped", handoff::getDroppedCount);
+        handler.post(dutyCycle::start);
+    }
+
+    /**
+     * Tells the duty-cycle scheduler whether the UI is visible; the radio backs off sooner
+     * in the background.
+     */
+    public void setForeground(boolean foreground) {
+        handler.post(() -> dutyCycle.setForeground(foreground));
     }
 
-    public void startAdvertising(String message) {
-        if (advertiser == null || message == null || message.length() > 20) {
+    /** Only to be used on the mesh thread. */
+    public DutyCycleScheduler getDutyCycle() {
+        return dutyCycle;
+    }
+
+    /** Receives reassembled mesh messages on the mesh thread. */
+    public void setMessageListener(MeshMessageListener listener) {
+        this.messageListener = listener;
+    }
+
+    /** Only to be used on the mesh thread, e.g. from {@link MeshMessageListener} calls. */
+    public MeshRelay getRelay() {
+        return relay;
+    }
+
+    /** Runs tasks on the mesh thread. */
+    public MeshRelay.Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Offers every mesh message to {@code transport} first; those it does not take go to
+     * the {@link MeshMessageListener} as text.
+     */
+    public void setTransport(MeshTransport transport) {
+        this.transport = transport;
+    }
+
+    /** Longest payload {@link #sendPayload} takes. */
+    public int getMaxPayloadLength() {
+        return relay.getMaxPayloadLength();
+    }
+
+    /** Stops scanning and advertising and ends the mesh thread. */
+    public void close() {
+        stopScanning();
+        handler.post(() -> {
+            stopAdvertising();
+            thread.quitSafely();
+        });
+    }
+
+    /**
+     * Floods {@code message} through the mesh, dictionary-coded when that makes it shorter
+     * and fragmented if needed. May be called on any thread.
+     */
+    public boolean send(String message) {
+        return sendPayload(message != null ? ShortTextCodec.encode(message.getBytes(StandardCharsets.UTF_8)) : null);
+    }
+
+    /** Floods a payload as is, fragmented if needed. May be called on any thread. */
+    public boolean sendPayload(byte[] payload) {
+        if (advertiser == null || payload == null || payload.length > relay.getMaxPayloadLength()) {
             Log.w(TAG, "Cannot advertise: Advertiser null or message too long");
+            return false;
+        }
+        handler.post(() -> {
+            dutyCycle.onTraffic();
+            relay.send(payload);
+        });
+        return true;
+    }
+
+    private void startAdvertising(byte[] packet) {
+        if (advertiser == null) return;
+        AdvertiseData data = new AdvertiseData.Builder()
+                .addServiceUuid(SERVICE_PARCEL_UUID)
+                .addServiceData(SERVICE_PARCEL_UUID, packet)
+                .build();
+
+        if (extended) {
+            startAdvertisingSet(data);
             return;
         }
 
+        // One legacy advertisement at a time: the rotator decides which chunk is on air.
+        if (advertising) advertiser.stopAdvertising(advertiseCallback);
+        DutyCycleScheduler.Profile profile = dutyCycle.getProfile();
         AdvertiseSettings settings = new AdvertiseSettings.Builder()
-                .setAdvertiseMode(AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY)
+                .setAdvertiseMode(advertiseModeOf(profile))
                 .setConnectable(false)
-                .setTxPowerLevel(AdvertiseSettings.ADVERTISE_TX_POWER_HIGH)
+                .setTxPowerLevel(advertiseTxPowerOf(profile))
                 .build();
+        advertiser.startAdvertising(settings, data, advertiseCallback);
+        advertising = true;
+    }
 
-        AdvertiseData data = new AdvertiseData.Builder()
-                .addServiceUuid(new ParcelUuid(SERVICE_UUID))
-                .addServiceData(new ParcelUuid(SERVICE_UUID), message.getBytes(StandardCharsets.UTF_8))
+    private void startAdvertisingSet(AdvertiseData data) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return;
+        if (advertisingSet != null) {
+            // Swapping the data of a running set avoids a stop/start per chunk.
+            advertisingSet.setAdvertisingData(data);
+            return;
+        }
+        pendingSetData = data;
+        if (advertising) return;
+        advertiser.startAdvertisingSet(advertisingSetParameters(dutyCycle.getProfile()), data, null, null, null,
+                advertisingSetCallback, handler);
+        advertising = true;
+    }
+
+    private AdvertisingSetParameters advertisingSetParameters(DutyCycleScheduler.Profile profile) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.O) return null;
+        int interval;
+        int txPower;
+        switch (profile) {
+            case LOW_LATENCY:
+                interval = AdvertisingSetParameters.INTERVAL_LOW;
+                txPower = AdvertisingSetParameters.TX_POWER_HIGH;
+                break;
+            case BALANCED:
+                interval = AdvertisingSetParameters.INTERVAL_MEDIUM;
+                txPower = AdvertisingSetParameters.TX_POWER_MEDIUM;
+                break;
+            default:
+                interval = AdvertisingSetParameters.INTERVAL_HIGH;
+                txPower = AdvertisingSetParameters.TX_POWER_LOW;
+                break;
+        }
+        return new AdvertisingSetParameters.Builder()
+                .setLegacyMode(false)
+                .setConnectable(false)
+                .setScannable(false)
+                .setInterval(interval)
+                .setTxPowerLevel(txPower)
                 .build();
+    }
 
-        advertiser.startAdvertising(settings, data, advertiseCallback);
+    private static int advertiseModeOf(DutyCycleScheduler.Profile profile) {
+        switch (profile) {
+            case LOW_LATENCY:
+                return AdvertiseSettings.ADVERTISE_MODE_LOW_LATENCY;
+            case BALANCED:
+                return AdvertiseSettings.ADVERTISE_MODE_BALANCED;
+            default:
+                return AdvertiseSettings.ADVERTISE_MODE_LOW_POWER;
+        }
     }
 
-    public void stopAdvertising() {
-        if (advertiser != null) advertiser.stopAdvertising(advertiseCallback);
+    private static int advertiseTxPowerOf(DutyCycleScheduler.Profile profile) {
+        switch (profile) {
+            case LOW_LATENCY:
+                return AdvertiseSettings.ADVERTISE_TX_POWER_HIGH;
+            case BALANCED:
+                return AdvertiseSettings.ADVERTISE_TX_POWER_MEDIUM;
+            default:
+                return AdvertiseSettings.ADVERTISE_TX_POWER_LOW;
+        }
+    }
+
+    private static int scanModeOf(DutyCycleScheduler.Profile profile) {
+        switch (profile) {
+            case LOW_LATENCY:
+                return ScanSettings.SCAN_MODE_LOW_LATENCY;
+            case BALANCED:
+                return ScanSettings.SCAN_MODE_BALANCED;
+            default:
+                return ScanSettings.SCAN_MODE_LOW_POWER;
+        }
+    }
+
+    private void applyProfile(DutyCycleScheduler.Profile profile) {
+        if (Log.isLoggable(TAG, Log.DEBUG)) Log.d(TAG, "Radio profile " + profile);
+        // Keep a few advertising intervals per chunk so slower profiles still put each on air.
+        rotator.setDwellMillis(Math.max(AdvertisementRotator.DEFAULT_DWELL_MILLIS, 3 * profile.getAdvertiseIntervalMillis()));
+        if (extended && advertisingSet != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // Parameters of a set can only change while it is disabled.
+            advertisingSet.enableAdvertising(false, 0, 0);
+            advertisingSet.setAdvertisingParameters(advertisingSetParameters(profile));
+            advertisingSet.enableAdvertising(true, 0, 0);
+        }
+        // Legacy advertising picks the new settings up with the next chunk.
+        if (scanning) {
+            scanner.stopScan(scanCallback);
+            startScan(profile);
+        }
+    }
+
+    private void stopAdvertising() {
+        if (advertiser != null) {
+            if (extended && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                advertiser.stopAdvertisingSet(advertisingSetCallback);
+                advertisingSet = null;
+            } else {
+                advertiser.stopAdvertising(advertiseCallback);
+            }
+        }
+        advertising = false;
     }
 
     public void startScanning() {
-        if (scanner != null) scanner.startScan(scanCallback);
+        handler.post(() -> {
+            if (scanner == null || scanning) return;
+            scanning = true;
+            startScan(dutyCycle.getProfile());
+        });
+    }
+
+    private void startScan(DutyCycleScheduler.Profile profile) {
+        ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(scanModeOf(profile));
+        if (extended && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) settings.setLegacy(false);
+        // Batched results let the controller buffer packets while the CPU sleeps.
+        if (batching) settings.setReportDelay(profile.getReportDelayMillis());
+        scanner.startScan(SCAN_FILTERS, settings.build(), scanCallback);
+        dutyCycle.onScanStarted();
     }
 
     public void stopScanning() {
-        if (scanner != null) scanner.stopScan(scanCallback);
+        handler.post(() -> {
+            if (scanner != null && scanning) scanner.stopScan(scanCallback);
+            scanning = false;
+        });
     }
 
     private final AdvertiseCallback advertiseCallback = new AdvertiseCallback() {
         @Override
         public void onStartSuccess(AdvertiseSettings settingsInEffect) {
+            advertiseStarts.incrementAndGet();
             Log.d(TAG, "Advertising started");
         }
 
         @Override
         public void onStartFailure(int errorCode) {
+            advertiseFailures.incrementAndGet();
             Log.e(TAG, "Advertising failed: " + errorCode);
         }
     };
 
+    private final AdvertisingSetCallback advertisingSetCallback = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+            ? new AdvertisingSetCallback() {
+        @Override
+        public void onAdvertisingSetStarted(AdvertisingSet set, int txPower, int status) {
+            if (status != ADVERTISE_SUCCESS) {
+                advertiseFailures.incrementAndGet();
+                Log.e(TAG, "Extended advertising failed: " + status);
+                advertising = false;
+                return;
+            }
+            advertiseStarts.incrementAndGet();
+            Log.d(TAG, "Extended advertising started");
+            if (!advertising) {
+                // Stopped while the set was starting.
+                set.enableAdvertising(false, 0, 0);
+                return;
+            }
+            advertisingSet = set;
+            if (pendingSetData != null) set.setAdvertisingData(pendingSetData);
+            pendingSetData = null;
+        }
+
+        @Override
+        public void onAdvertisingSetStopped(AdvertisingSet set) {
+            Log.d(TAG, "Extended advertising stopped");
+        }
+    } : null;
+
+    private static long sourceOf(ScanResult result) {
+        String address = result.getDevice() != null ? result.getDevice().getAddress() : null;
+        if (address == null) return MeshRelay.UNKNOWN_SOURCE;
+        long source = 0;
+        for (int i = 0; i < address.length(); i++) {
+            int digit = Character.digit(address.charAt(i), 16);
+            if (digit >= 0) source = (source << 4) | digit;
+        }
+        return source;
+    }
+
     private final ScanCallback scanCallback = new ScanCallback() {
         @Override
         public void onScanResult(int callbackType, ScanResult result) {
-            byte[] data = result.getScanRecord() != null ? result.getScanRecord().getServiceData(new ParcelUuid(SERVICE_UUID)) : null;
-            if (data != null) {
-                String msg = new String(data, StandardCharsets.UTF_8);
-                Log.d(TAG, "Received mesh message: " + msg);
-                // TODO: Forward to UI or message handler
-            }
+            scanResults.incrementAndGet();
+            // Walks the raw record in place: getServiceData() would build a map key and copy
+            // the data for every advertisement, mesh or not.
+            ScanRecord record = result.getScanRecord();
+            byte[] bytes = record != null ? record.getBytes() : null;
+            int offset = MeshPacket.findServiceData(bytes, bytes != null ? bytes.length : 0, SERVICE_UUID16);
+            if (offset < 0) return;
+            handoff.offer(bytes, offset, MeshPacket.serviceDataLength(bytes, offset), sourceOf(result));
+        }
+
+        @Override
+        public void onBatchScanResults(List<ScanResult> results) {
+            for (int i = 0; i < results.size(); i++) onScanResult(ScanSettings.CALLBACK_TYPE_ALL_MATCHES, results.get(i));
         }
 
         @Override
         public void onScanFailed(int errorCode) {
+            scanFailures.incrementAndGet();
             Log.e(TAG, "Scan failed: " + errorCode);
         }
     };
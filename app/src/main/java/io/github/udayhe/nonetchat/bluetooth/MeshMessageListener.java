@@ -0,0 +1,10 @@
+package io.github.udayhe.nonetchat.bluetooth;
+
+/**
+ * Receives messages reassembled from the BLE mesh. Called on the mesh thread, so
+ * implementations should hand anything slow, or UI work, to their own thread.
+ */
+public interface MeshMessageListener {
+    /** {@code text} is the message's UTF-8 text, already decoded if it was dictionary-coded. */
+    void onMeshMessage(long id, byte[] text);
+}
@@ -0,0 +1,12 @@
+package io.github.udayhe.nonetchat.log;
+
+import android.util.Log;
+
+public class AndroidLogSink implements ChatLog.Sink {
+
+    @Override
+    public void log(int level, String tag, String message, Throwable error) {
+        if (error != null) message = message + '\n' + Log.getStackTraceString(error);
+        Log.println(level, tag, message);
+    }
+}
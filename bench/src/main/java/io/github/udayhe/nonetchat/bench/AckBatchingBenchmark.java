@@ -0,0 +1,146 @@
+package io.github.udayhe.nonetchat.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import io.github.udayhe.nonetchat.delivery.AckBatcher;
+import io.github.udayhe.nonetchat.delivery.RetransmitWindow;
+import io.github.udayhe.nonetchat.mesh.MeshRelay;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+
+/**
+ * A busy one-way chat over a simulated link with 20 ms latency and 5% loss each way, with
+ * receipts sent one by one ({@code delayMillis} 0) and batched. Each operation sends one
+ * message 5 ms after the last; teardown prints ACK packets per message and retransmits.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AckBatchingBenchmark {
+
+    private static final long LINK_MILLIS = 20;
+    private static final long SPACING_MILLIS = 5;
+
+    @Param({"0", "40"})
+    public long delayMillis;
+
+    private final Random random = new Random(11);
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final Frame frame = new Frame();
+    private SimulatedClock clock;
+    private RetransmitWindow alice;
+    private long sent;
+    private long ackPackets;
+    private long failed;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        clock = new SimulatedClock();
+        AckBatcher bob = new AckBatcher("bob", (recipient, ack) -> {
+            ackPackets++;
+            if (random.nextInt(20) == 0) return;
+            ByteBuffer copy = ack.duplicate();
+            clock.schedule(() -> deliverAck(copy), LINK_MILLIS);
+        }, clock, delayMillis, AckBatcher.DEFAULT_MAX_BATCH);
+        alice = new RetransmitWindow(message -> {
+            if (random.nextInt(20) == 0) return;
+            clock.schedule(() -> bob.add(message.getSender(), message.getId(), WireFormat.ACK_DELIVERED),
+                    LINK_MILLIS);
+        }, (id, status) -> {
+            if (status == Message.Status.FAILED) failed++;
+        }, clock);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        clock.advance(60_000);
+        System.out.println(String.format(Locale.ROOT,
+                "%ndelay %d ms: %.3f ack packets/message, %d retransmits, %d failed of %d",
+                delayMillis, (double) ackPackets / sent, alice.getRetransmitCount(), failed, sent));
+    }
+
+    @Benchmark
+    public long sendOne() {
+        sent++;
+        alice.send(new Message(sent, "alice", "bob", "m" + sent, sent));
+        clock.advance(SPACING_MILLIS);
+        return ackPackets;
+    }
+
+    private void deliverAck(ByteBuffer ack) {
+        try {
+            if (!decoder.next(ack, frame)) throw new IllegalStateException("Partial ACK");
+        } catch (ProtocolException e) {
+            throw new IllegalStateException(e);
+        }
+        for (int i = 0; i < frame.getAckCount(); i++) alice.onAck(frame.getAckId(i), frame.getAckStatus());
+    }
+
+    /** Runs scheduled tasks in time order as the benchmark advances it; nothing waits for real. */
+    private static final class SimulatedClock implements MeshRelay.Scheduler {
+        private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+        private long now;
+        private long sequence;
+
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            tasks.add(new Task(now + delayMillis, sequence++, task));
+        }
+
+        void advance(long millis) {
+            long until = now + millis;
+            while (!tasks.isEmpty() && tasks.peek().due <= until) {
+                Task next = tasks.poll();
+                now = next.due;
+                next.task.run();
+            }
+            now = until;
+        }
+    }
+
+    private static final class Task implements Comparable<Task> {
+        final long due;
+        final long sequence;
+        final Runnable task;
+
+        Task(long due, long sequence, Runnable task) {
+            this.due = due;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            return due != other.due ? Long.compare(due, other.due) : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package io.github.udayhe.nonetchat.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+
+/**
+ * One broadcast from the owner, measured until every loopback peer has read it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"1", "4", "16", "32"})
+    public int peers;
+
+    private LoopbackGroup group;
+    private Message message;
+    private long received;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        group = new LoopbackGroup(peers, false);
+        message = new Message(1, "host", WireFormat.RECIPIENT_ALL, "hello everyone in the group", 1_700_000_000_000L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        group.close();
+    }
+
+    @Benchmark
+    public long broadcastToAll() {
+        group.sender.broadcast(message);
+        return received = group.awaitReceived(received + peers);
+    }
+}
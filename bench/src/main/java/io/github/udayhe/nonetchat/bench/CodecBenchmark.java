@@ -0,0 +1,80 @@
+package io.github.udayhe.nonetchat.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+
+/**
+ * Encode and decode throughput for CHAT frames. decodeFrame stops at the zero-copy
+ * {@link Frame} view, decodeMessage goes on to build a {@link Message} like the UI path.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"16", "256", "4096"})
+    public int contentLength;
+
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final Frame frame = new Frame();
+    private Message message;
+    private ByteBuffer encoded;
+    private ByteBuffer out;
+
+    @Setup
+    public void setUp() {
+        char[] content = new char[contentLength];
+        Arrays.fill(content, 'm');
+        message = new Message(42, "alice", "bob", new String(content), 1_700_000_000_000L);
+        encoded = FrameEncoder.encodeChat(message);
+        out = ByteBuffer.allocate(FrameEncoder.chatFrameLength(message));
+    }
+
+    @Benchmark
+    public ByteBuffer encodeChat() {
+        return FrameEncoder.encodeChat(message);
+    }
+
+    @Benchmark
+    public ByteBuffer writeChatIntoBuffer() {
+        out.clear();
+        FrameEncoder.writeChat(out, message);
+        return out;
+    }
+
+    @Benchmark
+    public long decodeFrame() throws ProtocolException {
+        ByteBuffer in = encoded.duplicate();
+        decoder.next(in, frame);
+        return frame.getId();
+    }
+
+    @Benchmark
+    public Message decodeMessage() throws ProtocolException {
+        ByteBuffer in = encoded.duplicate();
+        decoder.next(in, frame);
+        return frame.toMessage();
+    }
+}
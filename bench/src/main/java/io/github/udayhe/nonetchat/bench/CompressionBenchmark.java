@@ -0,0 +1,141 @@
+package io.github.udayhe.nonetchat.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import io.github.udayhe.nonetchat.mesh.ShortTextCodec;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.FrameDeflater;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.FrameInflater;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+
+/**
+ * Festival-style chat between a few friends, one message compressed and restored per
+ * operation: through the per-connection deflate stream, deflating each frame on its own, or
+ * the BLE dictionary codec on the message text. Teardown prints the bytes saved.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    private static final int MESSAGES = 4096;
+    private static final String[] NAMES = {"alice", "bob", "carol", "dave", "erin"};
+    private static final String[] PHRASES = {
+            "where are you", "I'm at the main stage", "near the food tent", "meet at the north gate",
+            "on my way", "see you in 10 min", "my phone is at 5% battery", "no signal here at all",
+            "lol", "ok", "can you get me a water", "going back to the tent", "the set starts at 9",
+            "lost the others, are you with them?", "haha yes", "wait for me at the entrance",
+            "just left the bar", "coming now", "which stage are you at?", "thanks!",
+    };
+
+    @Param({"stream", "each", "dictionary"})
+    public String codec;
+
+    private final ByteBuffer[] frames = new ByteBuffer[MESSAGES];
+    private final byte[][] texts = new byte[MESSAGES][];
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final Frame frame = new Frame();
+    private final byte[] scratch = new byte[4096];
+    private FrameDeflater deflater;
+    private FrameInflater inflater;
+    private long bytesIn;
+    private long bytesOut;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random random = new Random(21);
+        long now = 1_700_000_000_000L;
+        for (int i = 0; i < MESSAGES; i++) {
+            String sender = NAMES[random.nextInt(NAMES.length)];
+            String recipient = random.nextInt(3) == 0 ? WireFormat.RECIPIENT_ALL : NAMES[random.nextInt(NAMES.length)];
+            String text = PHRASES[random.nextInt(PHRASES.length)];
+            if (random.nextBoolean()) text += ", " + PHRASES[random.nextInt(PHRASES.length)];
+            now += random.nextInt(20_000);
+            frames[i] = FrameEncoder.encodeChat(new Message(random.nextLong(), sender, recipient, text, now));
+            texts[i] = text.getBytes(StandardCharsets.UTF_8);
+        }
+        deflater = new FrameDeflater();
+        inflater = new FrameInflater();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.out.println(String.format(Locale.ROOT, "%n%s: %.1f bytes/msg -> %.1f (%.1f%% saved)", codec,
+                (double) bytesIn / next, (double) bytesOut / next, 100 * (1 - (double) bytesOut / bytesIn)));
+        deflater.close();
+        inflater.close();
+    }
+
+    @Benchmark
+    public int roundTrip() throws Exception {
+        int i = next++ & (MESSAGES - 1);
+        switch (codec) {
+            case "stream":
+                return stream(frames[i].duplicate());
+            case "each":
+                return each(frames[i].duplicate());
+            default:
+                return dictionary(texts[i]);
+        }
+    }
+
+    private int stream(ByteBuffer raw) throws Exception {
+        bytesIn += raw.remaining();
+        ByteBuffer compressed = deflater.compress(raw);
+        bytesOut += compressed.remaining();
+        decoder.next(compressed, frame);
+        if (frame.getType() == WireFormat.TYPE_COMPRESSED) decoder.next(inflater.inflate(frame), frame);
+        return frame.getType();
+    }
+
+    private int each(ByteBuffer raw) throws DataFormatException {
+        bytesIn += raw.remaining();
+        Deflater alone = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        alone.setInput(raw.array(), raw.arrayOffset() + raw.position(), raw.remaining());
+        alone.finish();
+        int n = alone.deflate(scratch);
+        alone.end();
+        // Sent raw when deflate does not help, plus the COMPRESSED frame header when it does.
+        bytesOut += Math.min(raw.remaining(), n + 2);
+        Inflater restore = new Inflater(true);
+        restore.setInput(scratch, 0, n);
+        int restored = restore.inflate(new byte[raw.remaining()]);
+        restore.end();
+        return restored;
+    }
+
+    private int dictionary(byte[] text) {
+        bytesIn += text.length;
+        byte[] encoded = ShortTextCodec.encode(text);
+        bytesOut += encoded.length;
+        return ShortTextCodec.decode(encoded).length;
+    }
+}
@@ -0,0 +1,174 @@
+package io.github.udayhe.nonetchat.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.udayhe.nonetchat.exec.ConnectionExecutor;
+import io.github.udayhe.nonetchat.server.ChatConnection;
+import io.github.udayhe.nonetchat.server.ChatServer;
+
+/**
+ * Wake-up latency from a loopback peer writing one byte to the serving side reading it, with
+ * a blocking reader loop per peer on pooled platform threads, the same loops on virtual
+ * threads (JDK 21+ only) or one selector thread for everyone. Setup prints heap and threads
+ * per connection for each model.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionModelBenchmark {
+
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    @Param({"platform", "virtual", "selector"})
+    public String model;
+
+    @Param({"128", "512"})
+    public int peers;
+
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicInteger opened = new AtomicInteger();
+    private final List<Socket> clients = new ArrayList<>();
+    private ConnectionExecutor executor;
+    private Closeable server;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (model.equals("virtual") && !ConnectionExecutor.isVirtualAvailable()) {
+            throw new IllegalStateException("Virtual threads need a JDK 21+ runtime");
+        }
+        long heapBefore = usedHeap();
+        int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        executor = model.equals("virtual")
+                ? ConnectionExecutor.virtual(model) : ConnectionExecutor.platform(model, peers + 1);
+        int port = model.equals("selector") ? serveBySelector() : serveBlocking();
+        for (int i = 0; i < peers; i++) {
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 2000);
+            clients.add(socket);
+        }
+        awaitOpened();
+
+        double heapPerConnection = (usedHeap() - heapBefore) / 1024.0 / peers;
+        double threadsPerConnection =
+                (ManagementFactory.getThreadMXBean().getThreadCount() - threadsBefore) / (double) peers;
+        System.out.println(String.format(Locale.ROOT, "%n%s, %d peers: %.1f KB heap and %.2f threads per connection",
+                model, peers, heapPerConnection, threadsPerConnection));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Socket socket : clients) socket.close();
+        if (server != null) server.close();
+        if (executor != null) executor.shutdown(5000);
+    }
+
+    @Benchmark
+    public long wakeUp() throws IOException {
+        OutputStream out = clients.get(next++ % peers).getOutputStream();
+        long target = handled.get() + 1;
+        out.write(1);
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        long value;
+        while ((value = handled.get()) < target) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException(model + " missed a wake-up");
+            Thread.yield();
+        }
+        return value;
+    }
+
+    private int serveBlocking() throws IOException {
+        ServerSocket serverSocket = new ServerSocket(0, 1024, InetAddress.getLoopbackAddress());
+        server = serverSocket;
+        executor.execute("acceptor", () -> {
+            try {
+                while (true) {
+                    Socket accepted = serverSocket.accept();
+                    accepted.setTcpNoDelay(true);
+                    executor.execute("reader-" + opened.incrementAndGet(), () -> {
+                        try (InputStream in = accepted.getInputStream()) {
+                            while (in.read() >= 0) handled.incrementAndGet();
+                        } catch (IOException ignored) {
+                        }
+                    }, accepted);
+                }
+            } catch (IOException ignored) {
+                // Closed at the end of the trial.
+            }
+        }, serverSocket);
+        return serverSocket.getLocalPort();
+    }
+
+    private int serveBySelector() throws IOException {
+        ChatServer chatServer = new ChatServer(new ChatServer.Handler() {
+            @Override
+            public void onOpen(ChatConnection connection) {
+                opened.incrementAndGet();
+            }
+
+            @Override
+            public void onRead(ChatConnection connection, ByteBuffer in) {
+                handled.addAndGet(in.remaining());
+                in.position(in.limit());
+            }
+
+            @Override
+            public void onClose(ChatConnection connection, IOException cause) {
+            }
+        });
+        server = chatServer;
+        chatServer.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        chatServer.start(executor);
+        return chatServer.getLocalPort();
+    }
+
+    private void awaitOpened() throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (opened.get() < peers) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("Only " + opened.get() + " peers opened");
+            Thread.sleep(1);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,141 @@
+package io.github.udayhe.nonetchat.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.FrameReader;
+import io.github.udayhe.nonetchat.sender.MultiPeerChatSender;
+import io.github.udayhe.nonetchat.server.ChatConnection;
+import io.github.udayhe.nonetchat.server.ChatServer;
+
+/**
+ * A group owner on a loopback {@link ChatServer} with {@code peers} socket clients named
+ * peer0, peer1, ... Each client reads frames on its own thread and, in echo mode, writes
+ * them straight back to the owner.
+ */
+final class LoopbackGroup implements Closeable {
+
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    final MultiPeerChatSender sender = new MultiPeerChatSender();
+    private final ChatServer server;
+    private final Thread serverThread;
+    private final List<Socket> sockets = new ArrayList<>();
+    private final List<Thread> readers = new ArrayList<>();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong echoed = new AtomicLong();
+
+    LoopbackGroup(int peers, boolean echo) throws IOException, InterruptedException {
+        CountDownLatch opened = new CountDownLatch(peers);
+        server = new ChatServer(new ChatServer.Handler() {
+            private final Frame frame = new Frame();
+
+            @Override
+            public void onOpen(ChatConnection connection) {
+                connection.setAttachment(new FrameDecoder());
+                sender.addPeer("peer" + (connection.getId() - 1), connection);
+                opened.countDown();
+            }
+
+            @Override
+            public void onRead(ChatConnection connection, ByteBuffer in) throws IOException {
+                FrameDecoder decoder = (FrameDecoder) connection.getAttachment();
+                while (decoder.next(in, frame)) echoed.incrementAndGet();
+            }
+
+            @Override
+            public void onClose(ChatConnection connection, IOException cause) {
+            }
+        });
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        serverThread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException ignored) {
+            }
+        }, "ChatServer-bench");
+        serverThread.start();
+
+        for (int i = 0; i < peers; i++) {
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), 2000);
+            // Connect one at a time so connection ids line up with peer names.
+            waitForCount(opened, peers - i - 1);
+            sockets.add(socket);
+            Thread reader = new Thread(() -> read(socket, echo), "Peer-" + i);
+            reader.setDaemon(true);
+            reader.start();
+            readers.add(reader);
+        }
+    }
+
+    long awaitReceived(long target) {
+        return await(received, target);
+    }
+
+    long awaitEchoed(long target) {
+        return await(echoed, target);
+    }
+
+    @Override
+    public void close() throws IOException {
+        sender.shutdown();
+        server.close();
+        for (Socket socket : sockets) socket.close();
+        try {
+            serverThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void read(Socket socket, boolean echo) {
+        try {
+            FrameReader reader = new FrameReader(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            Frame frame = new Frame();
+            while (reader.read(frame)) {
+                if (echo) {
+                    ByteBuffer copy = frame.copyEncoded();
+                    out.write(copy.array(), copy.arrayOffset() + copy.position(), copy.remaining());
+                    out.flush();
+                }
+                received.incrementAndGet();
+            }
+        } catch (IOException ignored) {
+            // Closed by the benchmark.
+        }
+    }
+
+    private static long await(AtomicLong counter, long target) {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        long value;
+        while ((value = counter.get()) < target) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("Stuck at " + value + " of " + target);
+            Thread.yield();
+        }
+        return value;
+    }
+
+    private static void waitForCount(CountDownLatch latch, long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (latch.getCount() > count) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("Peer did not connect");
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package io.github.udayhe.nonetchat.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.udayhe.nonetchat.mux.StreamDemultiplexer;
+import io.github.udayhe.nonetchat.mux.StreamMultiplexer;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.FrameReader;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+import io.github.udayhe.nonetchat.sender.OutboundQueue;
+import io.github.udayhe.nonetchat.sender.Priority;
+import io.github.udayhe.nonetchat.sender.StreamPeerWriter;
+
+/**
+ * Chat latency over one loopback connection whose reader is throttled to a Wi-Fi Direct
+ * like rate, while a bulk producer saturates it: with no bulk traffic, with bulk data sent
+ * as plain frames in the same FIFO, and with bulk data on a BULK stream under credit flow
+ * control. Teardown prints the bulk throughput of the trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultiplexBenchmark {
+
+    private static final int BYTES_PER_SECOND = 40 * 1024 * 1024;
+    private static final int BULK_MESSAGE = 512 * 1024;
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    @Param({"idle", "fifo", "mux"})
+    public String mode;
+
+    private final AtomicLong pings = new AtomicLong();
+    private final AtomicLong bulkBytes = new AtomicLong();
+    private Socket sending;
+    private Socket receiving;
+    private StreamPeerWriter writer;
+    private StreamPeerWriter replies;
+    private Thread bulk;
+    private long bulkStart;
+    private long sent;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        try (ServerSocket listener = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            sending = new Socket(InetAddress.getLoopbackAddress(), listener.getLocalPort());
+            receiving = listener.accept();
+        }
+        sending.setTcpNoDelay(true);
+        receiving.setTcpNoDelay(true);
+        writer = new StreamPeerWriter("bench", sending.getOutputStream(),
+                new OutboundQueue(64, OutboundQueue.Policy.BLOCK, 10_000));
+        replies = new StreamPeerWriter("bench-replies", receiving.getOutputStream(),
+                new OutboundQueue(64, OutboundQueue.Policy.BLOCK));
+        StreamMultiplexer mux = new StreamMultiplexer(writer);
+        StreamDemultiplexer demux = new StreamDemultiplexer(replies,
+                (id, message) -> bulkBytes.addAndGet(message.remaining()));
+        InputStream in = new Throttled(receiving.getInputStream());
+        daemon(() -> receive(in, demux), "receiver").start();
+        daemon(() -> readCredit(mux), "credit-reader").start();
+
+        bulkStart = System.nanoTime();
+        bulk = daemon(() -> produceBulk(mux), "bulk");
+        if (!mode.equals("idle")) bulk.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        double seconds = (System.nanoTime() - bulkStart) / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%n%s: %.1f MB/s of bulk data", mode,
+                bulkBytes.get() / 1048576.0 / seconds));
+        bulk.interrupt();
+        writer.close();
+        replies.close();
+        sending.close();
+        receiving.close();
+        bulk.join(5000);
+    }
+
+    @Benchmark
+    public long chatUnderBulk() {
+        writer.send(FrameEncoder.encodeChat(new Message(sent++, "ping", "peer", "ping", 0)));
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        long value;
+        while ((value = pings.get()) < sent) {
+            if (System.nanoTime() > deadline) throw new IllegalStateException("Stuck at " + value + " of " + sent);
+            Thread.yield();
+        }
+        return value;
+    }
+
+    private void produceBulk(StreamMultiplexer mux) {
+        ByteBuffer payload = ByteBuffer.allocate(BULK_MESSAGE);
+        long stream = mux.open(Priority.BULK);
+        ByteBuffer asChat = FrameEncoder.encodeChat(
+                new Message(-1, "bulk", "peer", new String(new char[BULK_MESSAGE]), 0));
+        while (!Thread.currentThread().isInterrupted() && !writer.isClosed()) {
+            if (mode.equals("fifo")) {
+                if (!writer.send(asChat.duplicate())) return;
+            } else {
+                // Keep a couple of messages buffered in the multiplexer, as a file reader would.
+                while (mux.getPendingChunks(stream) > 2 * BULK_MESSAGE / StreamMultiplexer.DEFAULT_CHUNK_SIZE) {
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!mux.write(stream, payload.duplicate())) return;
+            }
+        }
+    }
+
+    private void receive(InputStream in, StreamDemultiplexer demux) {
+        try {
+            FrameReader reader = new FrameReader(in);
+            Frame frame = new Frame();
+            while (reader.read(frame)) {
+                if (frame.getType() == WireFormat.TYPE_STREAM) {
+                    demux.onFrame(frame);
+                } else if (frame.getType() == WireFormat.TYPE_CHAT && frame.getId() < 0) {
+                    bulkBytes.addAndGet(BULK_MESSAGE);
+                } else if (frame.getType() == WireFormat.TYPE_CHAT) {
+                    pings.incrementAndGet();
+                }
+            }
+        } catch (IOException ignored) {
+            // Closed by the benchmark.
+        }
+    }
+
+    private void readCredit(StreamMultiplexer mux) {
+        try {
+            FrameReader reader = new FrameReader(sending.getInputStream());
+            Frame frame = new Frame();
+            while (reader.read(frame)) {
+                if (frame.getType() == WireFormat.TYPE_CREDIT) mux.onCredit(frame.getStreamId(), frame.getCredit());
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /** Caps reads at {@link #BYTES_PER_SECOND}, standing in for the radio link. */
+    private static final class Throttled extends FilterInputStream {
+        private final long start = System.nanoTime();
+        private long total;
+
+        Throttled(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            long due = start + total * 1_000_000_000L / BYTES_PER_SECOND;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+            }
+            int n = super.read(b, off, Math.min(len, 16 * 1024));
+            if (n > 0) total += n;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package io.github.udayhe.nonetchat.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import io.github.udayhe.nonetchat.mesh.MeshPacket;
+import io.github.udayhe.nonetchat.mesh.MeshRelay;
+import io.github.udayhe.nonetchat.mesh.PacketHandoff;
+
+/**
+ * Synthetic scan callbacks delivered as fast as one thread can, the way a crowded venue would
+ * with an unfiltered scan: three in four advertisements are foreign, the rest repeat a handful
+ * of mesh packets. The callback thread filters and hands off; a second thread runs the relay.
+ * {@code gc.alloc.rate.norm} is what the callback thread allocates per callback.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ScanCallbackBenchmark {
+
+    private static final int SERVICE_UUID16 = 0xFEED;
+
+    private final byte[][] records = records();
+    private Consumer consumer;
+    private PacketHandoff handoff;
+    private long callbacks;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        consumer = new Consumer();
+        MeshRelay relay = new MeshRelay(packet -> {
+        }, consumer, (id, payload) -> {
+        });
+        handoff = new PacketHandoff(consumer, relay::onPacket);
+        consumer.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        consumer.interrupt();
+        consumer.join();
+    }
+
+    @Benchmark
+    public boolean onScanResult() {
+        byte[] record = records[(int) (callbacks++ & (records.length - 1))];
+        int offset = MeshPacket.findServiceData(record, record.length, SERVICE_UUID16);
+        return offset >= 0 && handoff.offer(record, offset, MeshPacket.serviceDataLength(record, offset), callbacks & 7);
+    }
+
+    private static byte[][] records() {
+        byte[][] records = new byte[32][];
+        for (int i = 0; i < records.length; i++) {
+            if (i % 4 != 0) {
+                // Flags and 24 bytes of manufacturer data, like a beacon or a phone.
+                records[i] = new byte[31];
+                records[i][0] = 0x02;
+                records[i][1] = 0x01;
+                records[i][2] = 0x06;
+                records[i][3] = 0x19;
+                records[i][4] = (byte) 0xFF;
+                for (int j = 5; j < 30; j++) records[i][j] = (byte) (i * j);
+                continue;
+            }
+            byte[] packet = MeshPacket.encode(0x1000 + i, 1, 0, 1, new byte[]{'h', 'i', (byte) i}, 0, 3);
+            records[i] = new byte[31];
+            byte[] header = {0x02, 0x01, 0x06, 0x03, 0x03, (byte) 0xED, (byte) 0xFE,
+                    (byte) (packet.length + 3), 0x16, (byte) 0xED, (byte) 0xFE};
+            System.arraycopy(header, 0, records[i], 0, header.length);
+            System.arraycopy(packet, 0, records[i], header.length, packet.length);
+        }
+        return records;
+    }
+
+    /** A looper that runs posted drains without allocating, like an Android Handler. */
+    private static final class Consumer extends Thread implements MeshRelay.Scheduler {
+        private volatile Runnable posted;
+
+        Consumer() {
+            super("mesh-consumer");
+            setDaemon(true);
+        }
+
+        @Override
+        public long nowMillis() {
+            return System.nanoTime() / 1_000_000;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            // Only the hand-off's drain is ever posted here: TTL 1 packets are never relayed.
+            posted = task;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                Runnable task = posted;
+                if (task == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                posted = null;
+                task.run();
+            }
+        }
+    }
+}
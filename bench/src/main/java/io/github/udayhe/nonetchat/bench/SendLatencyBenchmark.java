@@ -0,0 +1,53 @@
+package io.github.udayhe.nonetchat.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import io.github.udayhe.nonetchat.payload.Message;
+
+/**
+ * Round trip of one chat message from the owner to a single peer and back over loopback:
+ * encode, queue, selector write, peer read and echo, selector read and decode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SendLatencyBenchmark {
+
+    private LoopbackGroup group;
+    private Message message;
+    private long echoed;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        group = new LoopbackGroup(1, true);
+        message = new Message(1, "host", "peer0", "hello from the group owner", 1_700_000_000_000L);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        group.close();
+    }
+
+    @Benchmark
+    public long roundTrip() {
+        group.sender.sendToUser("peer0", message);
+        return echoed = group.awaitEchoed(echoed + 1);
+    }
+}
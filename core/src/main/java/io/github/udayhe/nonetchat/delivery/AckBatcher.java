@@ -0,0 +1,119 @@
+package io.github.udayhe.nonetchat.delivery;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.github.udayhe.nonetchat.mesh.MeshRelay;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+
+/**
+ * Collects receipts per original sender and status, and sends them as one ACK frame when
+ * {@code maxBatch} ids have gathered or {@code delayMillis} after the first, whichever
+ * comes first. In a busy chat most receipts then share a frame instead of each costing a
+ * packet of its own, at the price of that much extra latency on the acknowledgement.
+ */
+public class AckBatcher {
+
+    public static final long DEFAULT_DELAY_MILLIS = 40;
+    public static final int DEFAULT_MAX_BATCH = 32;
+
+    public interface Sink {
+        /** Sends an ACK frame towards {@code recipient}, the sender of the acknowledged messages. */
+        void sendAck(String recipient, ByteBuffer frame);
+    }
+
+    private final class Batch implements Runnable {
+        final String recipient;
+        final int status;
+        final long[] ids = new long[maxBatch];
+        int count;
+        boolean scheduled;
+
+        Batch(String recipient, int status) {
+            this.recipient = recipient;
+            this.status = status;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer frame;
+            synchronized (AckBatcher.this) {
+                scheduled = false;
+                frame = take();
+            }
+            if (frame != null) sink.sendAck(recipient, frame);
+        }
+
+        /** Encodes and clears the batch; null if empty. Caller holds the batcher's lock. */
+        ByteBuffer take() {
+            if (count == 0) return null;
+            ByteBuffer frame = FrameEncoder.encodeAck(status, localName, recipient, ids, count);
+            count = 0;
+            frameCount++;
+            return frame;
+        }
+    }
+
+    private final String localName;
+    private final Sink sink;
+    private final MeshRelay.Scheduler scheduler;
+    private final long delayMillis;
+    private final int maxBatch;
+    private final Map<String, Batch> delivered = new HashMap<>();
+    private final Map<String, Batch> read = new HashMap<>();
+
+    private long ackCount;
+    private long frameCount;
+
+    public AckBatcher(String localName, Sink sink, MeshRelay.Scheduler scheduler) {
+        this(localName, sink, scheduler, DEFAULT_DELAY_MILLIS, DEFAULT_MAX_BATCH);
+    }
+
+    public AckBatcher(String localName, Sink sink, MeshRelay.Scheduler scheduler, long delayMillis, int maxBatch) {
+        if (maxBatch <= 0) throw new IllegalArgumentException("maxBatch must be positive: " + maxBatch);
+        this.localName = localName;
+        this.sink = sink;
+        this.scheduler = scheduler;
+        this.delayMillis = delayMillis;
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * Queues a receipt for message {@code id} from {@code sender}. Safe from any thread.
+     */
+    public void add(String sender, long id, int status) {
+        Batch batch;
+        ByteBuffer full = null;
+        boolean schedule = false;
+        synchronized (this) {
+            Map<String, Batch> batches = status == WireFormat.ACK_READ ? read : delivered;
+            batch = batches.get(sender);
+            if (batch == null) {
+                batch = new Batch(sender, status);
+                batches.put(sender, batch);
+            }
+            batch.ids[batch.count++] = id;
+            ackCount++;
+            if (batch.count == maxBatch || delayMillis <= 0) {
+                full = batch.take();
+            } else if (!batch.scheduled) {
+                batch.scheduled = true;
+                schedule = true;
+            }
+        }
+        if (full != null) sink.sendAck(sender, full);
+        else if (schedule) scheduler.schedule(batch, delayMillis);
+    }
+
+    /** Receipts queued so far. */
+    public synchronized long getAckCount() {
+        return ackCount;
+    }
+
+    /** ACK frames sent so far. */
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+}
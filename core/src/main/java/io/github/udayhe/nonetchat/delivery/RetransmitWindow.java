@@ -0,0 +1,273 @@
+package io.github.udayhe.nonetchat.delivery;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.github.udayhe.nonetchat.mesh.MeshRelay;
+import io.github.udayhe.nonetchat.metrics.Histogram;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+
+/**
+ * Sending side of end-to-end delivery. At most {@code window} messages per recipient are
+ * unacknowledged at a time; later ones wait as {@link Message.Status#PENDING} and go out
+ * as acks slide the window. Each recipient gets its own retransmission timeout, estimated
+ * from ack round trips the way TCP does (RFC 6298: srtt + 4 * rttvar, doubled per retry,
+ * no samples from retransmitted messages). A message still unacknowledged after
+ * {@code maxAttempts} transmissions is {@link Message.Status#FAILED}.
+ * <p>
+ * Safe to use from any thread. The transport and listener are called without the lock
+ * held, so they may feed acks straight back in.
+ */
+public class RetransmitWindow {
+
+    public static final int DEFAULT_WINDOW = 32;
+    public static final int DEFAULT_MAX_ATTEMPTS = 5;
+    public static final long INITIAL_RTO_MILLIS = 1_000;
+    public static final long MIN_RTO_MILLIS = 200;
+    public static final long MAX_RTO_MILLIS = 10_000;
+    private static final int REMEMBERED_DELIVERIES = 1024;
+
+    public interface Transport {
+        void transmit(Message message);
+    }
+
+    public interface Listener {
+        void onStatusChanged(long messageId, Message.Status status);
+    }
+
+    private static final class Outstanding {
+        final Message message;
+        final Peer peer;
+        int attempts;
+        long firstSentAt;
+        long sentAt;
+        long deadline;
+
+        Outstanding(Message message, Peer peer) {
+            this.message = message;
+            this.peer = peer;
+        }
+    }
+
+    private static final class Peer {
+        final Map<Long, Outstanding> inFlight = new LinkedHashMap<>();
+        final ArrayDeque<Outstanding> backlog = new ArrayDeque<>();
+        long srtt = -1;
+        long rttvar;
+        long rto = INITIAL_RTO_MILLIS;
+    }
+
+    private final Transport transport;
+    private final Listener listener;
+    private final MeshRelay.Scheduler scheduler;
+    private final int window;
+    private final int maxAttempts;
+    private final Map<String, Peer> peers = new HashMap<>();
+    private final Map<Long, Outstanding> byId = new HashMap<>();
+    private final Map<Long, Boolean> delivered = new LinkedHashMap<Long, Boolean>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > REMEMBERED_DELIVERIES;
+        }
+    };
+    private final Runnable tick = this::onTimer;
+    private long nextTick = Long.MAX_VALUE;
+    private volatile Histogram latencyHistogram;
+
+    private long transmitCount;
+    private long retransmitCount;
+    private long failedCount;
+
+    public RetransmitWindow(Transport transport, Listener listener, MeshRelay.Scheduler scheduler) {
+        this(transport, listener, scheduler, DEFAULT_WINDOW, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    public RetransmitWindow(Transport transport, Listener listener, MeshRelay.Scheduler scheduler,
+                            int window, int maxAttempts) {
+        if (window <= 0 || maxAttempts <= 0) throw new IllegalArgumentException("Invalid window " + window + "/" + maxAttempts);
+        this.transport = transport;
+        this.listener = listener;
+        this.scheduler = scheduler;
+        this.window = window;
+        this.maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Records, in milliseconds, how long each message takes from its first transmission
+     * to its delivery receipt, retransmissions included. Null stops recording.
+     */
+    public void setLatencyHistogram(Histogram latencyHistogram) {
+        this.latencyHistogram = latencyHistogram;
+    }
+
+    public void send(Message message) {
+        List<Outstanding> transmit = new ArrayList<>(1);
+        Message.Status status;
+        synchronized (this) {
+            Peer peer = peers.get(message.getRecipient());
+            if (peer == null) {
+                peer = new Peer();
+                peers.put(message.getRecipient(), peer);
+            }
+            Outstanding entry = new Outstanding(message, peer);
+            byId.put(message.getId(), entry);
+            if (peer.inFlight.size() < window) {
+                start(entry, transmit);
+                status = Message.Status.SENT;
+            } else {
+                peer.backlog.add(entry);
+                status = Message.Status.PENDING;
+            }
+        }
+        listener.onStatusChanged(message.getId(), status);
+        transmitAll(transmit);
+    }
+
+    /**
+     * Applies a receipt from an ACK frame. Acks for unknown ids, e.g. duplicates, are ignored.
+     */
+    public void onAck(long messageId, int ackStatus) {
+        List<Outstanding> transmit = new ArrayList<>();
+        List<Long> promoted = new ArrayList<>();
+        Message.Status status;
+        synchronized (this) {
+            Outstanding entry = byId.remove(messageId);
+            if (entry == null) {
+                // The first receipt already settled the message; only a later READ is news.
+                if (ackStatus != WireFormat.ACK_READ || delivered.remove(messageId) == null) return;
+                status = Message.Status.READ;
+            } else {
+                Peer peer = entry.peer;
+                if (peer.inFlight.remove(messageId) == null) {
+                    peer.backlog.remove(entry); // acked before it was even sent: a duplicate id
+                } else {
+                    long now = scheduler.nowMillis();
+                    if (entry.attempts == 1) sample(peer, now - entry.sentAt);
+                    Histogram latencies = latencyHistogram;
+                    if (latencies != null) latencies.record(now - entry.firstSentAt);
+                }
+                promote(peer, transmit, promoted);
+                if (ackStatus == WireFormat.ACK_READ) {
+                    status = Message.Status.READ;
+                } else {
+                    delivered.put(messageId, Boolean.TRUE);
+                    status = Message.Status.DELIVERED;
+                }
+            }
+        }
+        listener.onStatusChanged(messageId, status);
+        report(promoted, Message.Status.SENT);
+        transmitAll(transmit);
+    }
+
+    /** Current retransmission timeout towards {@code recipient}. */
+    public synchronized long getRtoMillis(String recipient) {
+        Peer peer = peers.get(recipient);
+        return peer != null ? peer.rto : INITIAL_RTO_MILLIS;
+    }
+
+    public synchronized int getInFlight(String recipient) {
+        Peer peer = peers.get(recipient);
+        return peer != null ? peer.inFlight.size() : 0;
+    }
+
+    public synchronized long getTransmitCount() {
+        return transmitCount;
+    }
+
+    public synchronized long getRetransmitCount() {
+        return retransmitCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    private void onTimer() {
+        List<Outstanding> transmit = new ArrayList<>();
+        List<Long> failed = new ArrayList<>();
+        List<Long> promoted = new ArrayList<>();
+        synchronized (this) {
+            long now = scheduler.nowMillis();
+            // Timers cannot be cancelled, so ticks armed for a deadline since superseded
+            // by an earlier one still arrive; they find nothing due.
+            if (now < nextTick) return;
+            nextTick = Long.MAX_VALUE;
+            for (Peer peer : peers.values()) {
+                for (Iterator<Outstanding> it = peer.inFlight.values().iterator(); it.hasNext(); ) {
+                    Outstanding entry = it.next();
+                    if (entry.deadline > now) {
+                        armTimer(entry.deadline);
+                    } else if (entry.attempts >= maxAttempts) {
+                        it.remove();
+                        byId.remove(entry.message.getId());
+                        failed.add(entry.message.getId());
+                        failedCount++;
+                    } else {
+                        retransmitCount++;
+                        transmit(entry, now);
+                        transmit.add(entry);
+                    }
+                }
+                promote(peer, transmit, promoted);
+            }
+        }
+        report(failed, Message.Status.FAILED);
+        report(promoted, Message.Status.SENT);
+        transmitAll(transmit);
+    }
+
+    private void promote(Peer peer, List<Outstanding> transmit, List<Long> promoted) {
+        while (peer.inFlight.size() < window && !peer.backlog.isEmpty()) {
+            Outstanding entry = peer.backlog.poll();
+            start(entry, transmit);
+            promoted.add(entry.message.getId());
+        }
+    }
+
+    private void start(Outstanding entry, List<Outstanding> transmit) {
+        entry.peer.inFlight.put(entry.message.getId(), entry);
+        transmit(entry, scheduler.nowMillis());
+        transmit.add(entry);
+    }
+
+    private void transmit(Outstanding entry, long now) {
+        if (entry.attempts++ == 0) entry.firstSentAt = now;
+        entry.sentAt = now;
+        long timeout = Math.min(entry.peer.rto << (entry.attempts - 1), MAX_RTO_MILLIS);
+        entry.deadline = now + timeout;
+        transmitCount++;
+        armTimer(entry.deadline);
+    }
+
+    private void armTimer(long deadline) {
+        if (deadline >= nextTick) return;
+        nextTick = deadline;
+        scheduler.schedule(tick, Math.max(0, deadline - scheduler.nowMillis()));
+    }
+
+    private void report(List<Long> ids, Message.Status status) {
+        for (int i = 0; i < ids.size(); i++) listener.onStatusChanged(ids.get(i), status);
+    }
+
+    private void transmitAll(List<Outstanding> entries) {
+        for (int i = 0; i < entries.size(); i++) transport.transmit(entries.get(i).message);
+    }
+
+    private static void sample(Peer peer, long rtt) {
+        if (peer.srtt < 0) {
+            peer.srtt = rtt;
+            peer.rttvar = rtt / 2;
+        } else {
+            peer.rttvar = (3 * peer.rttvar + Math.abs(peer.srtt - rtt)) / 4;
+            peer.srtt = (7 * peer.srtt + rtt) / 8;
+        }
+        peer.rto = Math.max(MIN_RTO_MILLIS, Math.min(MAX_RTO_MILLIS, peer.srtt + 4 * peer.rttvar));
+    }
+}
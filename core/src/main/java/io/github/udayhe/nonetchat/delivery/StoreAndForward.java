@@ -0,0 +1,152 @@
+package io.github.udayhe.nonetchat.delivery;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.github.udayhe.nonetchat.log.ChatLog;
+import io.github.udayhe.nonetchat.mesh.MeshRelay;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+import io.github.udayhe.nonetchat.store.Outbox;
+
+/**
+ * Keeps every direct message in an {@link Outbox} until it is delivered, and only hands
+ * it to the transport while its recipient is present. A recipient that reappears gets its
+ * backlog in batches of {@code batchSize}, one batch per {@code intervalMillis}, so a
+ * reconnecting peer is not flooded; new messages to it wait behind the backlog. A message
+ * that fails stays, and goes out again with its recipient's next batch. Broadcasts bypass
+ * the outbox, as there is no one to wait for.
+ * <p>
+ * Safe to use from any thread. The transport is called without the lock held.
+ */
+public class StoreAndForward {
+
+    private static final String TAG = "StoreAndForward";
+
+    public static final int DEFAULT_BATCH_SIZE = 16;
+    public static final long DEFAULT_INTERVAL_MILLIS = 250;
+
+    private final Outbox outbox;
+    private final RetransmitWindow.Transport transport;
+    private final MeshRelay.Scheduler scheduler;
+    private final int batchSize;
+    private final long intervalMillis;
+    private final Set<String> present = new HashSet<>();
+    private final Runnable tick = this::flush;
+    private boolean scheduled;
+    private long forwardedCount;
+
+    public StoreAndForward(Outbox outbox, RetransmitWindow.Transport transport, MeshRelay.Scheduler scheduler) {
+        this(outbox, transport, scheduler, DEFAULT_BATCH_SIZE, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    public StoreAndForward(Outbox outbox, RetransmitWindow.Transport transport, MeshRelay.Scheduler scheduler,
+                           int batchSize, long intervalMillis) {
+        if (batchSize <= 0 || intervalMillis <= 0) throw new IllegalArgumentException("Invalid rate " + batchSize + "/" + intervalMillis);
+        this.outbox = outbox;
+        this.transport = transport;
+        this.scheduler = scheduler;
+        this.batchSize = batchSize;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void send(Message message) {
+        String recipient = message.getRecipient();
+        List<Message> now = null;
+        boolean flush = false;
+        synchronized (this) {
+            if (recipient.equals(WireFormat.RECIPIENT_ALL)) {
+                now = new ArrayList<>(1);
+                now.add(message);
+            } else {
+                try {
+                    if (!outbox.offer(message, scheduler.nowMillis())) {
+                        ChatLog.w(TAG, "Message " + message.getId() + " too large to keep, sending it unkept");
+                        now = new ArrayList<>(1);
+                        now.add(message);
+                    } else if (present.contains(recipient) && !scheduled) {
+                        // Nothing waiting ahead of it: no need to wait for the next batch.
+                        if (outbox.getAvailable(recipient) == 1) now = outbox.take(recipient, 1, scheduler.nowMillis());
+                        else flush = scheduled = true;
+                    }
+                } catch (IOException e) {
+                    ChatLog.w(TAG, "Cannot keep message " + message.getId() + ", sending it unkept", e);
+                    now = new ArrayList<>(1);
+                    now.add(message);
+                }
+            }
+        }
+        if (flush) scheduler.schedule(tick, 0);
+        transmitAll(now);
+    }
+
+    /**
+     * Replaces who can be reached, on any transport; callers with several transports pass
+     * the union of their rosters. Newly present recipients with a backlog start flushing.
+     */
+    public void setPresent(Collection<String> names) {
+        synchronized (this) {
+            boolean arrived = false;
+            for (String name : names) {
+                if (!present.contains(name) && outbox.getAvailable(name) > 0) arrived = true;
+            }
+            present.clear();
+            present.addAll(names);
+            if (!arrived || scheduled) return;
+            scheduled = true;
+        }
+        scheduler.schedule(tick, 0);
+    }
+
+    /**
+     * Applies a status from the {@link RetransmitWindow}: a delivered message leaves the
+     * outbox, a failed one is kept for later. Returns true if the message is still kept.
+     */
+    public boolean onStatusChanged(long messageId, Message.Status status) {
+        try {
+            if (status == Message.Status.DELIVERED || status == Message.Status.READ) {
+                outbox.remove(messageId);
+                return false;
+            }
+            if (status == Message.Status.FAILED) return outbox.release(messageId);
+        } catch (IOException e) {
+            ChatLog.w(TAG, "Cannot update outbox for message " + messageId, e);
+        }
+        return false;
+    }
+
+    /** Messages sent from the outbox after waiting for their recipient. */
+    public synchronized long getForwardedCount() {
+        return forwardedCount;
+    }
+
+    private void flush() {
+        List<Message> batch = new ArrayList<>();
+        boolean more = false;
+        synchronized (this) {
+            scheduled = false;
+            long now = scheduler.nowMillis();
+            for (String name : present) {
+                try {
+                    batch.addAll(outbox.take(name, batchSize, now));
+                } catch (IOException e) {
+                    ChatLog.w(TAG, "Cannot read outbox for " + name, e);
+                }
+                if (outbox.getAvailable(name) > 0) more = true;
+            }
+            forwardedCount += batch.size();
+            if (more) scheduled = true;
+        }
+        if (more) scheduler.schedule(tick, intervalMillis);
+        transmitAll(batch);
+    }
+
+    private void transmitAll(List<Message> messages) {
+        if (messages == null) return;
+        for (int i = 0; i < messages.size(); i++) transport.transmit(messages.get(i));
+    }
+}
@@ -0,0 +1,50 @@
+package io.github.udayhe.nonetchat.discovery;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Turns one list into another with removals and insertions, so a list view can be updated
+ * in place instead of cleared and refilled. Elements are matched with {@code equals};
+ * quadratic, which is fine for lists of nearby peers.
+ */
+public final class ListDiff {
+
+    public interface Listener<T> {
+        void onRemoved(int index, T item);
+
+        void onInserted(int index, T item);
+    }
+
+    private ListDiff() {
+    }
+
+    /**
+     * Reports the edits that, applied in order to a copy of {@code current}, make it equal
+     * {@code target}. Elements present in both keep their relative order where they can.
+     * Returns the number of edits.
+     */
+    public static <T> int apply(List<T> current, List<T> target, Listener<T> listener) {
+        List<T> list = new ArrayList<>(current);
+        int edits = 0;
+        for (int i = list.size() - 1; i >= 0; i--) {
+            if (!target.contains(list.get(i))) {
+                listener.onRemoved(i, list.remove(i));
+                edits++;
+            }
+        }
+        for (int i = 0; i < target.size(); i++) {
+            T item = target.get(i);
+            if (i < list.size() && list.get(i).equals(item)) continue;
+            int from = list.subList(i, list.size()).indexOf(item);
+            if (from >= 0) {
+                listener.onRemoved(i + from, list.remove(i + from));
+                edits++;
+            }
+            list.add(i, item);
+            listener.onInserted(i, item);
+            edits++;
+        }
+        return edits;
+    }
+}
@@ -0,0 +1,283 @@
+package io.github.udayhe.nonetchat.discovery;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wi-Fi Direct peers seen before, keyed by device address: when each was last seen, how
+ * often it ended up group owner and how many connects to it succeeded. Lets the connect
+ * screen list known peers before discovery reports anything and pick the one most likely
+ * to connect. Once {@link #getCapacity()} peers are known the least recently seen is
+ * forgotten.
+ * <p>
+ * Thread-safe.
+ */
+public class PeerCache {
+
+    public static final int DEFAULT_CAPACITY = 64;
+    /** Score halves for every hour a peer goes unseen. */
+    public static final long DEFAULT_HALF_LIFE_MILLIS = 60 * 60 * 1000L;
+
+    private static final int MAGIC = 0x50454552; // "PEER"
+    private static final int FORMAT_VERSION = 1;
+
+    private final int capacity;
+    private final long halfLifeMillis;
+    private final Map<String, Peer> peers = new HashMap<>();
+
+    public PeerCache() {
+        this(DEFAULT_CAPACITY, DEFAULT_HALF_LIFE_MILLIS);
+    }
+
+    public PeerCache(int capacity, long halfLifeMillis) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        if (halfLifeMillis <= 0) throw new IllegalArgumentException("halfLifeMillis must be positive: " + halfLifeMillis);
+        this.capacity = capacity;
+        this.halfLifeMillis = halfLifeMillis;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return peers.size();
+    }
+
+    public synchronized Peer get(String address) {
+        return peers.get(address);
+    }
+
+    /** Records that discovery reported {@code address}; returns its updated entry. */
+    public synchronized Peer onSeen(String address, String name, long nowMillis) {
+        Peer peer = entry(address);
+        if (name != null && !name.isEmpty()) peer.name = name;
+        peer.lastSeenMillis = Math.max(peer.lastSeenMillis, nowMillis);
+        return peer;
+    }
+
+    /** Counts a connect; it stays a failure unless {@link #onConnected} follows. */
+    public synchronized void onConnectAttempt(String address) {
+        entry(address).attempts++;
+    }
+
+    /**
+     * Records that the group with {@code address} formed; {@code peerWasOwner} tells
+     * whether it, rather than this device, became group owner.
+     */
+    public synchronized void onConnected(String address, boolean peerWasOwner, long nowMillis) {
+        Peer peer = entry(address);
+        // A group can form without a connect from this side, e.g. when the peer invited us.
+        peer.attempts = Math.max(peer.attempts, peer.successes + 1);
+        peer.successes++;
+        if (peerWasOwner) peer.ownerCount++;
+        peer.lastSeenMillis = Math.max(peer.lastSeenMillis, nowMillis);
+    }
+
+    /**
+     * Known peers, most likely to connect first; see {@link #score(Peer, long)}.
+     */
+    public synchronized List<Peer> ranked(long nowMillis) {
+        List<Peer> list = new ArrayList<>(peers.values());
+        sort(list, nowMillis);
+        return list;
+    }
+
+    /** Sorts {@code list} by descending {@link #score(Peer, long)}, ties by recency. */
+    public void sort(List<Peer> list, final long nowMillis) {
+        Collections.sort(list, (a, b) -> {
+            int byScore = Double.compare(score(b, nowMillis), score(a, nowMillis));
+            return byScore != 0 ? byScore : Long.compare(b.lastSeenMillis, a.lastSeenMillis);
+        });
+    }
+
+    /**
+     * The peer among {@code candidates} that connected before and is most likely to again,
+     * or null if none has a success rate of at least {@code minSuccessRate}.
+     */
+    public synchronized Peer mostLikely(Iterable<String> candidates, double minSuccessRate, long nowMillis) {
+        Peer best = null;
+        double bestScore = 0;
+        for (String address : candidates) {
+            Peer peer = peers.get(address);
+            if (peer == null || peer.successes == 0 || peer.getSuccessRate() < minSuccessRate) continue;
+            double score = score(peer, nowMillis);
+            if (best == null || score > bestScore) {
+                best = peer;
+                bestScore = score;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Smoothed success rate, decayed by how long ago the peer was seen. Peers that were
+     * group owner get a small boost, as joining an existing group skips negotiation.
+     */
+    public double score(Peer peer, long nowMillis) {
+        long age = Math.max(0, nowMillis - peer.lastSeenMillis);
+        double recency = Math.pow(0.5, (double) age / halfLifeMillis);
+        double ownerBonus = 1 + 0.25 * peer.getOwnerRate();
+        return peer.getSuccessRate() * recency * ownerBonus;
+    }
+
+    private Peer entry(String address) {
+        Peer peer = peers.get(address);
+        if (peer == null) {
+            if (peers.size() >= capacity) evictOldest();
+            peer = new Peer(address);
+            peers.put(address, peer);
+        }
+        return peer;
+    }
+
+    private void evictOldest() {
+        Peer oldest = null;
+        for (Peer peer : peers.values()) {
+            if (oldest == null || peer.lastSeenMillis < oldest.lastSeenMillis) oldest = peer;
+        }
+        if (oldest != null) peers.remove(oldest.address);
+    }
+
+    /**
+     * Writes {@code file} through a temporary file renamed into place, so a crash leaves
+     * either the old cache or the new one.
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            writeTo(out);
+        }
+        if (!tmp.renameTo(file)) {
+            // Some platforms refuse to rename over an existing file.
+            if (!file.delete() || !tmp.renameTo(file)) throw new IOException("Cannot replace " + file);
+        }
+    }
+
+    /** Replaces the contents with {@code file}; a missing file leaves the cache empty. */
+    public void load(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            readFrom(in);
+        } catch (FileNotFoundException e) {
+            clear();
+        }
+    }
+
+    public synchronized void writeTo(OutputStream stream) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        out.writeInt(MAGIC);
+        out.writeByte(FORMAT_VERSION);
+        out.writeShort(peers.size());
+        for (Peer peer : peers.values()) {
+            out.writeUTF(peer.address);
+            out.writeUTF(peer.name);
+            out.writeLong(peer.lastSeenMillis);
+            out.writeInt(peer.attempts);
+            out.writeInt(peer.successes);
+            out.writeInt(peer.ownerCount);
+        }
+        out.flush();
+    }
+
+    public synchronized void readFrom(InputStream stream) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        Map<String, Peer> read = new HashMap<>();
+        try {
+            if (in.readInt() != MAGIC) throw new IOException("Not a peer cache");
+            int version = in.readUnsignedByte();
+            if (version != FORMAT_VERSION) throw new IOException("Unsupported peer cache version " + version);
+            int count = in.readUnsignedShort();
+            for (int i = 0; i < count; i++) {
+                Peer peer = new Peer(in.readUTF());
+                peer.name = in.readUTF();
+                peer.lastSeenMillis = in.readLong();
+                peer.attempts = in.readInt();
+                peer.successes = in.readInt();
+                peer.ownerCount = in.readInt();
+                if (peer.attempts < 0 || peer.successes < 0 || peer.successes > peer.attempts
+                        || peer.ownerCount < 0 || peer.ownerCount > peer.successes) {
+                    throw new IOException("Corrupt entry for " + peer.address);
+                }
+                read.put(peer.address, peer);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Truncated peer cache", e);
+        }
+        peers.clear();
+        peers.putAll(read);
+        while (peers.size() > capacity) evictOldest();
+    }
+
+    public synchronized void clear() {
+        peers.clear();
+    }
+
+    /** One known peer; a live entry that changes as the cache is updated. */
+    public static final class Peer {
+
+        final String address;
+        String name = "";
+        long lastSeenMillis;
+        int attempts;
+        int successes;
+        int ownerCount;
+
+        Peer(String address) {
+            this.address = address;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getLastSeenMillis() {
+            return lastSeenMillis;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public int getSuccesses() {
+            return successes;
+        }
+
+        /** Times the peer, not this device, became owner of a group we formed with it. */
+        public int getOwnerCount() {
+            return ownerCount;
+        }
+
+        /** Laplace-smoothed, so an untried peer rates 0.5 and one success is not certainty. */
+        public double getSuccessRate() {
+            return (successes + 1.0) / (attempts + 2.0);
+        }
+
+        public double getOwnerRate() {
+            return successes == 0 ? 0 : (double) ownerCount / successes;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + address + ", " + successes + "/" + attempts + " connects)";
+        }
+    }
+}
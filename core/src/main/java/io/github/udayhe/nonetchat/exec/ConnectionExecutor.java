@@ -0,0 +1,241 @@
+package io.github.udayhe.nonetchat.exec;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import io.github.udayhe.nonetchat.log.ChatLog;
+
+/**
+ * Runs long-lived connection loops (socket readers, peer writers, a server's event loop)
+ * on named, tracked threads. Backends differ only in where the threads come from: a
+ * bounded platform pool or one virtual thread per loop. A selector-based server needs
+ * just one loop for all its peers; see {@code ChatServer.start}.
+ * <p>
+ * {@link #shutdown(long)} is deterministic: it refuses new loops, closes the resource
+ * each loop blocks on, interrupts the threads and waits for every loop to return.
+ */
+public abstract class ConnectionExecutor implements Closeable {
+
+    private static final String TAG = "ConnectionExecutor";
+
+    public static final long DEFAULT_SHUTDOWN_TIMEOUT_MILLIS = 2000;
+
+    private final String name;
+    private final int maxLoops;
+    private final Set<Task> tasks = new LinkedHashSet<>();
+    private boolean shutdown;
+    private long startedCount;
+    private long rejectedCount;
+
+    protected ConnectionExecutor(String name, int maxLoops) {
+        if (maxLoops <= 0) throw new IllegalArgumentException("maxLoops must be positive: " + maxLoops);
+        this.name = name;
+        this.maxLoops = maxLoops;
+    }
+
+    /**
+     * Bounded pool of platform threads; a loop beyond {@code maxThreads} running ones is
+     * rejected rather than queued behind loops that may never return.
+     */
+    public static ConnectionExecutor platform(String name, int maxThreads) {
+        return new PlatformConnectionExecutor(name, maxThreads);
+    }
+
+    /**
+     * One virtual thread per loop. Only available on a JDK 21+ host, never on Android.
+     *
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    public static ConnectionExecutor virtual(String name) {
+        return new VirtualConnectionExecutor(name);
+    }
+
+    public static boolean isVirtualAvailable() {
+        return VirtualConnectionExecutor.isAvailable();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void execute(String taskName, Runnable loop) {
+        execute(taskName, loop, null);
+    }
+
+    /**
+     * Starts {@code loop} on its own thread. {@code resource}, if given, is closed on
+     * shutdown to release a loop blocked in I/O, which interrupts alone cannot do.
+     *
+     * @throws RejectedExecutionException if shut down or already running its maximum
+     */
+    public void execute(String taskName, Runnable loop, Closeable resource) {
+        Task task = new Task(taskName, loop, resource);
+        synchronized (this) {
+            if (shutdown) {
+                rejectedCount++;
+                throw new RejectedExecutionException(name + " is shut down");
+            }
+            // Counted here rather than by the pool: a pooled thread stays busy for a moment
+            // after its loop has returned.
+            if (tasks.size() >= maxLoops) {
+                rejectedCount++;
+                throw new RejectedExecutionException(name + " is running " + maxLoops + " loops already");
+            }
+            tasks.add(task);
+        }
+        try {
+            start(task, name + "/" + taskName);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                tasks.remove(task);
+                rejectedCount++;
+                notifyAll();
+            }
+            throw e instanceof RejectedExecutionException ? e
+                    : new RejectedExecutionException("Cannot start " + taskName + " on " + name, e);
+        }
+        synchronized (this) {
+            startedCount++;
+        }
+    }
+
+    /**
+     * Hands {@code task} to a thread named {@code threadName}. Throws if none is available.
+     */
+    protected abstract void start(Runnable task, String threadName);
+
+    /**
+     * Called once every loop has returned, or the shutdown timed out.
+     */
+    protected abstract void terminate();
+
+    public int getMaxLoops() {
+        return maxLoops;
+    }
+
+    public synchronized int getActiveCount() {
+        return tasks.size();
+    }
+
+    public synchronized long getStartedCount() {
+        return startedCount;
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * Names of the loops still running, for diagnostics.
+     */
+    public synchronized List<String> getTaskNames() {
+        List<String> names = new ArrayList<>(tasks.size());
+        for (Task task : tasks) names.add(task.name);
+        return names;
+    }
+
+    /**
+     * Stops every loop and waits up to {@code timeoutMillis} for them to return. Returns
+     * false if some loop is still running when the time is up.
+     */
+    public boolean shutdown(long timeoutMillis) {
+        Task[] running;
+        synchronized (this) {
+            shutdown = true;
+            running = tasks.toArray(new Task[0]);
+        }
+        for (Task task : running) task.cancel();
+
+        boolean interrupted = false;
+        boolean clean;
+        synchronized (this) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            long remaining;
+            while (!tasks.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+            }
+            clean = tasks.isEmpty();
+            if (!clean) ChatLog.w(TAG, name + " still running after shutdown: " + getTaskNames());
+        }
+        terminate();
+        if (interrupted) Thread.currentThread().interrupt();
+        return clean;
+    }
+
+    @Override
+    public void close() {
+        shutdown(DEFAULT_SHUTDOWN_TIMEOUT_MILLIS);
+    }
+
+    private synchronized void finished(Task task) {
+        tasks.remove(task);
+        notifyAll();
+    }
+
+    private synchronized boolean isAccepting() {
+        return !shutdown;
+    }
+
+    private final class Task implements Runnable {
+        final String name;
+        final Runnable loop;
+        final Closeable resource;
+        private Thread thread;
+        private volatile boolean cancelled;
+
+        Task(String name, Runnable loop, Closeable resource) {
+            this.name = name;
+            this.loop = loop;
+            this.resource = resource;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                thread = Thread.currentThread();
+            }
+            try {
+                // Shutdown may have run before this thread got going; its interrupt missed us.
+                if (!cancelled && isAccepting()) loop.run();
+            } catch (RuntimeException e) {
+                ChatLog.e(TAG, ConnectionExecutor.this.name + "/" + name + " failed", e);
+            } finally {
+                synchronized (this) {
+                    // Pooled threads move on to other loops; drop any interrupt meant for this one.
+                    thread = null;
+                    Thread.interrupted();
+                }
+                finished(this);
+            }
+        }
+
+        void cancel() {
+            cancelled = true;
+            if (resource != null) {
+                try {
+                    resource.close();
+                } catch (IOException e) {
+                    ChatLog.d(TAG, "Closing " + name + " failed: " + e);
+                }
+            }
+            synchronized (this) {
+                if (thread != null) thread.interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package io.github.udayhe.nonetchat.exec;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pooled platform threads. Idle threads linger briefly so reconnecting peers reuse them;
+ * each thread carries the name of the loop it is running. The pool itself is unbounded:
+ * {@link ConnectionExecutor} caps the loops.
+ */
+final class PlatformConnectionExecutor extends ConnectionExecutor {
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final ThreadPoolExecutor pool;
+
+    PlatformConnectionExecutor(String name, int maxThreads) {
+        super(name, maxThreads);
+        AtomicInteger counter = new AtomicInteger();
+        ThreadFactory factory = r -> {
+            Thread thread = new Thread(r, name + "-idle-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), factory);
+    }
+
+    @Override
+    protected void start(Runnable task, String threadName) {
+        pool.execute(() -> {
+            Thread current = Thread.currentThread();
+            String idleName = current.getName();
+            current.setName(threadName);
+            try {
+                task.run();
+            } finally {
+                current.setName(idleName);
+            }
+        });
+    }
+
+    @Override
+    protected void terminate() {
+        pool.shutdownNow();
+    }
+}
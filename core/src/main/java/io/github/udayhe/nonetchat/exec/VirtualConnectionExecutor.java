@@ -0,0 +1,62 @@
+package io.github.udayhe.nonetchat.exec;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+/**
+ * A fresh virtual thread per loop, reached through reflection so the module still
+ * compiles for Java 8 and Android.
+ */
+final class VirtualConnectionExecutor extends ConnectionExecutor {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    VirtualConnectionExecutor(String name) {
+        super(name, Integer.MAX_VALUE);
+        if (!isAvailable()) throw new UnsupportedOperationException("Virtual threads need a JDK 21+ runtime");
+    }
+
+    @Override
+    protected void start(Runnable task, String threadName) {
+        Thread thread;
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), threadName);
+            thread = (Thread) UNSTARTED.invoke(builder, task);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        }
+        thread.start();
+    }
+
+    @Override
+    protected void terminate() {
+        // Nothing pooled; every thread ends with its loop.
+    }
+}
@@ -0,0 +1,110 @@
+package io.github.udayhe.nonetchat.inbound;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.udayhe.nonetchat.payload.Message;
+
+/**
+ * Hands messages from any number of reader threads to the UI in batches. Offers go into an
+ * {@link MpscQueue}; the first offer after a drain schedules one frame callback, and that
+ * callback delivers everything queued by then as a single batch. A burst of messages
+ * therefore costs one main-thread post per frame instead of one per message.
+ */
+public class InboundBatcher {
+
+    /** Bursts larger than this should jump to the end rather than animate the scroll. */
+    public static final int DEFAULT_SMOOTH_SCROLL_LIMIT = 20;
+    public static final int DEFAULT_MAX_BATCH = 500;
+
+    public interface FrameScheduler {
+        /** Runs {@code task} on the UI thread at the next frame; called from any thread. */
+        void scheduleFrame(Runnable task);
+    }
+
+    public interface Sink {
+        /**
+         * Delivers one batch on the UI thread. {@code batch} is reused after the call
+         * returns; {@code burst} is true when it exceeds the smooth-scroll limit.
+         */
+        void onBatch(List<Message> batch, boolean burst);
+    }
+
+    private final MpscQueue<Message> queue = new MpscQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final FrameScheduler scheduler;
+    private final Sink sink;
+    private final int smoothScrollLimit;
+    private final int maxBatch;
+    private final List<Message> batch = new ArrayList<>();
+    private final Runnable drainTask = this::drain;
+
+    private final AtomicLong offeredCount = new AtomicLong();
+    private final AtomicLong postCount = new AtomicLong();
+    private long batchCount;
+    private int largestBatch;
+
+    public InboundBatcher(FrameScheduler scheduler, Sink sink) {
+        this(scheduler, sink, DEFAULT_SMOOTH_SCROLL_LIMIT, DEFAULT_MAX_BATCH);
+    }
+
+    /**
+     * @param maxBatch messages delivered per frame at most; the rest wait for the next frame
+     *                 so one huge burst cannot stall the UI thread
+     */
+    public InboundBatcher(FrameScheduler scheduler, Sink sink, int smoothScrollLimit, int maxBatch) {
+        this.scheduler = scheduler;
+        this.sink = sink;
+        this.smoothScrollLimit = smoothScrollLimit;
+        this.maxBatch = maxBatch;
+    }
+
+    /** Any thread. */
+    public void offer(Message message) {
+        queue.offer(message);
+        offeredCount.incrementAndGet();
+        if (scheduled.compareAndSet(false, true)) schedule();
+    }
+
+    public long getOfferedCount() {
+        return offeredCount.get();
+    }
+
+    /** Frame callbacks requested so far, i.e. main-thread posts. */
+    public long getPostCount() {
+        return postCount.get();
+    }
+
+    /** UI thread. */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    /** UI thread. */
+    public int getLargestBatch() {
+        return largestBatch;
+    }
+
+    private void schedule() {
+        postCount.incrementAndGet();
+        scheduler.scheduleFrame(drainTask);
+    }
+
+    private void drain() {
+        // Cleared first: anything offered from here on schedules the next frame itself.
+        scheduled.set(false);
+        Message message;
+        while (batch.size() < maxBatch && (message = queue.poll()) != null) batch.add(message);
+        if (batch.isEmpty()) return;
+        try {
+            batchCount++;
+            if (batch.size() > largestBatch) largestBatch = batch.size();
+            sink.onBatch(batch, batch.size() > smoothScrollLimit);
+        } finally {
+            batch.clear();
+        }
+        if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) schedule();
+    }
+}
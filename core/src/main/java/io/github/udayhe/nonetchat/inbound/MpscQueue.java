@@ -0,0 +1,53 @@
+package io.github.udayhe.nonetchat.inbound;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free queue for many producers and a single consumer. Producers swap
+ * themselves in as the newest node and then link the previous one to it; the consumer
+ * follows the links from a stub node. Between those two producer steps the consumer may
+ * briefly see the queue as empty, so a producer must signal the consumer only after
+ * {@link #offer} has returned.
+ */
+public class MpscQueue<E> {
+
+    private static final class Node<E> {
+        E value;
+        volatile Node<E> next;
+
+        Node(E value) {
+            this.value = value;
+        }
+    }
+
+    private final AtomicReference<Node<E>> newest;
+    private Node<E> oldest;
+
+    public MpscQueue() {
+        Node<E> stub = new Node<>(null);
+        newest = new AtomicReference<>(stub);
+        oldest = stub;
+    }
+
+    /** Any thread. */
+    public void offer(E value) {
+        if (value == null) throw new NullPointerException();
+        Node<E> node = new Node<>(value);
+        newest.getAndSet(node).next = node;
+    }
+
+    /** Consumer thread only. Returns null when nothing is linked in yet. */
+    public E poll() {
+        Node<E> next = oldest.next;
+        if (next == null) return null;
+        E value = next.value;
+        next.value = null;
+        oldest = next;
+        return value;
+    }
+
+    /** Consumer thread only. */
+    public boolean isEmpty() {
+        return oldest.next == null;
+    }
+}
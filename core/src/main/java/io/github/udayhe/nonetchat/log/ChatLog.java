@@ -0,0 +1,69 @@
+package io.github.udayhe.nonetchat.log;
+
+/**
+ * Logging facade for :core, which cannot see android.util.Log. The app installs a sink
+ * that forwards to logcat; plain JVM runs print warnings and errors to stderr.
+ * <p>
+ * Messages below {@link #setLevel the level} are dropped before reaching the sink. Hot
+ * paths check {@link #isLoggable} first so that, when disabled, they build no strings.
+ */
+public final class ChatLog {
+
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    public interface Sink {
+        void log(int level, String tag, String message, Throwable error);
+    }
+
+    private static final Sink STDERR = (level, tag, message, error) -> {
+        if (level < WARN) return;
+        System.err.println(tag + ": " + message);
+        if (error != null) error.printStackTrace();
+    };
+
+    private static volatile Sink sink = STDERR;
+    private static volatile int level = DEBUG;
+
+    private ChatLog() {
+    }
+
+    public static void setSink(Sink newSink) {
+        sink = newSink != null ? newSink : STDERR;
+    }
+
+    /** The lowest level passed to the sink. */
+    public static void setLevel(int minLevel) {
+        level = minLevel;
+    }
+
+    public static boolean isLoggable(int messageLevel) {
+        return messageLevel >= level;
+    }
+
+    public static void d(String tag, String message) {
+        log(DEBUG, tag, message, null);
+    }
+
+    public static void i(String tag, String message) {
+        log(INFO, tag, message, null);
+    }
+
+    public static void w(String tag, String message) {
+        log(WARN, tag, message, null);
+    }
+
+    public static void w(String tag, String message, Throwable error) {
+        log(WARN, tag, message, error);
+    }
+
+    public static void e(String tag, String message, Throwable error) {
+        log(ERROR, tag, message, error);
+    }
+
+    private static void log(int messageLevel, String tag, String message, Throwable error) {
+        if (messageLevel >= level) sink.log(messageLevel, tag, message, error);
+    }
+}
@@ -0,0 +1,100 @@
+package io.github.udayhe.nonetchat.mesh;
+
+import java.util.ArrayDeque;
+
+/**
+ * Shares the single advertisement slot between queued packets. Each packet stays on air
+ * for one dwell period at a time and is cycled round-robin with the others until it has
+ * been shown {@code rounds} times, so every chunk of a fragmented message gets repeated
+ * airtime instead of the newest chunk replacing the rest.
+ */
+public class AdvertisementRotator implements MeshRelay.Radio {
+
+    public static final long DEFAULT_DWELL_MILLIS = 100;
+    public static final int DEFAULT_ROUNDS = 3;
+    public static final int DEFAULT_MAX_QUEUED = 32;
+
+    public interface Advertiser {
+        void advertise(byte[] packet);
+
+        void stop();
+    }
+
+    private static final class Entry {
+        final byte[] packet;
+        int roundsLeft;
+
+        Entry(byte[] packet, int rounds) {
+            this.packet = packet;
+            this.roundsLeft = rounds;
+        }
+    }
+
+    private final Advertiser advertiser;
+    private final MeshRelay.Scheduler scheduler;
+    private long dwellMillis;
+    private final int rounds;
+    private final int maxQueued;
+    private final ArrayDeque<Entry> queue = new ArrayDeque<>();
+    private final Runnable tick = this::tick;
+    private Entry current;
+    private boolean running;
+    private long droppedCount;
+
+    public AdvertisementRotator(Advertiser advertiser, MeshRelay.Scheduler scheduler) {
+        this(advertiser, scheduler, DEFAULT_DWELL_MILLIS, DEFAULT_ROUNDS, DEFAULT_MAX_QUEUED);
+    }
+
+    public AdvertisementRotator(Advertiser advertiser, MeshRelay.Scheduler scheduler,
+                                long dwellMillis, int rounds, int maxQueued) {
+        this.advertiser = advertiser;
+        this.scheduler = scheduler;
+        this.dwellMillis = dwellMillis;
+        this.rounds = rounds;
+        this.maxQueued = maxQueued;
+    }
+
+    @Override
+    public void transmit(byte[] packet) {
+        if (queue.size() >= maxQueued) {
+            // The oldest packet has had the most airtime already.
+            queue.pollFirst();
+            droppedCount++;
+        }
+        queue.addLast(new Entry(packet, rounds));
+        if (!running) {
+            running = true;
+            tick();
+        }
+    }
+
+    /**
+     * Changes the dwell from the next packet on, e.g. to keep several advertising intervals
+     * per dwell when the radio slows down.
+     */
+    public void setDwellMillis(long dwellMillis) {
+        this.dwellMillis = dwellMillis;
+    }
+
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    private void tick() {
+        // Requeue the packet leaving the air only now, behind anything queued during its dwell.
+        if (current != null && current.roundsLeft > 0) queue.addLast(current);
+        current = queue.pollFirst();
+        if (current == null) {
+            running = false;
+            advertiser.stop();
+            return;
+        }
+        current.roundsLeft--;
+        advertiser.advertise(current.packet);
+        scheduler.schedule(tick, dwellMillis);
+    }
+}
@@ -0,0 +1,224 @@
+package io.github.udayhe.nonetchat.mesh;
+
+import java.util.Locale;
+
+import io.github.udayhe.nonetchat.metrics.Histogram;
+import io.github.udayhe.nonetchat.metrics.MetricsRegistry;
+
+/**
+ * Picks the BLE radio profile from recent mesh traffic and whether the app is visible:
+ * full duty cycle while a conversation is active in the foreground, balanced while it is
+ * active in the background or has gone quiet, and low power once the mesh has been idle
+ * for a while. Traffic steps the profile up at once; stepping down waits out the quiet
+ * period, so a lull between messages does not flap the radio.
+ * <p>
+ * Discovery latency, from a scan starting to the first mesh packet it hears, is kept per
+ * profile so {@link #report()} shows what each duty cycle costs in latency.
+ * <p>
+ * Not thread-safe; call it on the scheduler's thread.
+ */
+public class DutyCycleScheduler {
+
+    public static final long DEFAULT_ACTIVE_MILLIS = 15_000;
+    public static final long DEFAULT_IDLE_MILLIS = 2 * 60_000;
+
+    public enum Profile {
+        LOW_LATENCY(100, 0, 100),
+        BALANCED(25, 1_000, 250),
+        LOW_POWER(10, 5_000, 1_000);
+
+        private final int scanDutyPercent;
+        private final long reportDelayMillis;
+        private final long advertiseIntervalMillis;
+
+        Profile(int scanDutyPercent, long reportDelayMillis, long advertiseIntervalMillis) {
+            this.scanDutyPercent = scanDutyPercent;
+            this.reportDelayMillis = reportDelayMillis;
+            this.advertiseIntervalMillis = advertiseIntervalMillis;
+        }
+
+        /** Share of time the radio listens, as the platform's scan mode of the same name. */
+        public int getScanDutyPercent() {
+            return scanDutyPercent;
+        }
+
+        /** How long scan results may be batched in the controller before delivery. */
+        public long getReportDelayMillis() {
+            return reportDelayMillis;
+        }
+
+        /** Nominal advertising interval of the platform's advertise mode of the same name. */
+        public long getAdvertiseIntervalMillis() {
+            return advertiseIntervalMillis;
+        }
+    }
+
+    public interface Listener {
+        void onProfileChanged(Profile profile);
+    }
+
+    private static final Profile[] PROFILES = Profile.values();
+
+    private final MeshRelay.Scheduler scheduler;
+    private final Listener listener;
+    private final long activeMillis;
+    private final long idleMillis;
+    private final Runnable tick = this::onTimer;
+    private final long[] timeIn = new long[PROFILES.length];
+    private final Histogram[] discovery = new Histogram[PROFILES.length];
+
+    private Profile profile;
+    private long profileSince;
+    private boolean foreground = true;
+    private long lastTraffic = Long.MIN_VALUE / 2;
+    private long scanStartedAt = -1;
+    private long nextTick = Long.MAX_VALUE;
+    private long switchCount;
+
+    public DutyCycleScheduler(MeshRelay.Scheduler scheduler, Listener listener) {
+        this(scheduler, listener, DEFAULT_ACTIVE_MILLIS, DEFAULT_IDLE_MILLIS);
+    }
+
+    public DutyCycleScheduler(MeshRelay.Scheduler scheduler, Listener listener, long activeMillis, long idleMillis) {
+        if (activeMillis <= 0 || idleMillis < activeMillis) {
+            throw new IllegalArgumentException("Invalid periods: " + activeMillis + "/" + idleMillis);
+        }
+        this.scheduler = scheduler;
+        this.listener = listener;
+        this.activeMillis = activeMillis;
+        this.idleMillis = idleMillis;
+        for (int i = 0; i < PROFILES.length; i++) discovery[i] = new Histogram();
+    }
+
+    /**
+     * Publishes discovery latency per profile as {@code ble.discovery_ms.<profile>} and the
+     * average scan duty cycle as {@code ble.duty_cycle_pct}. Call before {@link #start()}.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        for (int i = 0; i < PROFILES.length; i++) {
+            discovery[i] = metrics.histogram("ble.discovery_ms." + PROFILES[i].name().toLowerCase(Locale.ROOT));
+        }
+        metrics.gauge("ble.duty_cycle_pct", () -> Math.round(getAverageDutyPercent()));
+    }
+
+    /** Chooses the first profile and reports it. */
+    public void start() {
+        long now = scheduler.nowMillis();
+        profile = desired(now);
+        profileSince = now;
+        listener.onProfileChanged(profile);
+        armTimer(now);
+    }
+
+    public Profile getProfile() {
+        return profile;
+    }
+
+    /** A mesh packet was sent or received. */
+    public void onTraffic() {
+        lastTraffic = scheduler.nowMillis();
+        update();
+    }
+
+    public void setForeground(boolean foreground) {
+        this.foreground = foreground;
+        update();
+    }
+
+    /** A scan (re)started; the next {@link #onPacketHeard()} measures discovery latency. */
+    public void onScanStarted() {
+        scanStartedAt = scheduler.nowMillis();
+    }
+
+    /** A mesh packet arrived over the air. Counts as traffic. */
+    public void onPacketHeard() {
+        long now = scheduler.nowMillis();
+        if (scanStartedAt >= 0 && profile != null) {
+            discovery[profile.ordinal()].record(now - scanStartedAt);
+            scanStartedAt = -1;
+        }
+        onTraffic();
+    }
+
+    public Histogram getDiscoveryLatency(Profile profile) {
+        return discovery[profile.ordinal()];
+    }
+
+    /** Milliseconds spent in {@code profile} so far. */
+    public long getTimeIn(Profile profile) {
+        long time = timeIn[profile.ordinal()];
+        if (profile == this.profile) time += scheduler.nowMillis() - profileSince;
+        return time;
+    }
+
+    /** Scan duty cycle averaged over the time since {@link #start()}. */
+    public double getAverageDutyPercent() {
+        long total = 0;
+        double weighted = 0;
+        for (Profile p : PROFILES) {
+            long time = getTimeIn(p);
+            total += time;
+            weighted += (double) time * p.getScanDutyPercent();
+        }
+        return total == 0 ? (profile != null ? profile.getScanDutyPercent() : 0) : weighted / total;
+    }
+
+    public long getSwitchCount() {
+        return switchCount;
+    }
+
+    /** One line per profile: duty cycle, share of time, and discovery latency. */
+    public String report() {
+        long total = 0;
+        for (Profile p : PROFILES) total += getTimeIn(p);
+        StringBuilder out = new StringBuilder();
+        for (Profile p : PROFILES) {
+            Histogram h = discovery[p.ordinal()];
+            out.append(String.format(Locale.ROOT, "%-11s duty=%3d%% time=%5.1f%% discoveries=%d p50=%dms p90=%dms%n",
+                    p.name().toLowerCase(Locale.ROOT), p.getScanDutyPercent(),
+                    total == 0 ? 0 : 100.0 * getTimeIn(p) / total, h.getCount(),
+                    h.getValueAtPercentile(50), h.getValueAtPercentile(90)));
+        }
+        return out.toString();
+    }
+
+    private Profile desired(long now) {
+        long quiet = now - lastTraffic;
+        if (quiet < activeMillis) return foreground ? Profile.LOW_LATENCY : Profile.BALANCED;
+        if (quiet < idleMillis && foreground) return Profile.BALANCED;
+        return Profile.LOW_POWER;
+    }
+
+    private void update() {
+        if (profile == null) return;
+        long now = scheduler.nowMillis();
+        Profile next = desired(now);
+        if (next != profile) {
+            timeIn[profile.ordinal()] += now - profileSince;
+            profile = next;
+            profileSince = now;
+            switchCount++;
+            listener.onProfileChanged(next);
+        }
+        armTimer(now);
+    }
+
+    /** Wakes up when the current profile would next step down. */
+    private void armTimer(long now) {
+        long at;
+        if (now - lastTraffic < activeMillis) at = lastTraffic + activeMillis;
+        else if (now - lastTraffic < idleMillis) at = lastTraffic + idleMillis;
+        else return;
+        if (at >= nextTick && nextTick > now) return;
+        nextTick = at;
+        scheduler.schedule(tick, at - now);
+    }
+
+    private void onTimer() {
+        long now = scheduler.nowMillis();
+        // Ticks cannot be cancelled; one armed for an older deadline finds nothing to do.
+        if (now < nextTick) return;
+        nextTick = Long.MAX_VALUE;
+        update();
+    }
+}
@@ -0,0 +1,108 @@
+package io.github.udayhe.nonetchat.mesh;
+
+/**
+ * Service data carried by one mesh advertisement:
+ * <pre>
+ * packet := id:u64 ttl:u8 index:u8 count:u8 chunk
+ * </pre>
+ * A message too long for one advertisement is split into {@code count} chunks sharing its
+ * id. The id is minted once by the originator and kept by every relay, which only lowers
+ * the TTL.
+ */
+public final class MeshPacket {
+
+    public static final int HEADER_LENGTH = 11;
+    /** Service data that fits a legacy 31-byte advertisement next to flags and a 16-bit UUID. */
+    public static final int LEGACY_MAX_LENGTH = 20;
+    /** One AD structure holds at most 255 bytes, three of which are its type and 16-bit UUID. */
+    public static final int EXTENDED_MAX_LENGTH = 252;
+    public static final int MAX_TTL = 255;
+    public static final int MAX_FRAGMENTS = 255;
+    /** AD type of service data keyed by a 16-bit UUID. */
+    public static final int AD_SERVICE_DATA_16 = 0x16;
+
+    private MeshPacket() {
+    }
+
+    public static byte[] encode(long id, int ttl, int index, int count, byte[] chunk, int offset, int length) {
+        if (ttl < 0 || ttl > MAX_TTL) throw new IllegalArgumentException("ttl out of range: " + ttl);
+        if (count < 1 || count > MAX_FRAGMENTS || index < 0 || index >= count) {
+            throw new IllegalArgumentException("fragment " + index + " of " + count);
+        }
+        byte[] packet = new byte[HEADER_LENGTH + length];
+        for (int i = 0; i < 8; i++) packet[i] = (byte) (id >>> (56 - 8 * i));
+        packet[8] = (byte) ttl;
+        packet[9] = (byte) index;
+        packet[10] = (byte) count;
+        System.arraycopy(chunk, offset, packet, HEADER_LENGTH, length);
+        return packet;
+    }
+
+    /**
+     * Finds the 16-bit UUID service data for {@code uuid16} in a raw advertising record,
+     * without allocating, and returns the offset of its data or -1. The data runs for
+     * {@link #serviceDataLength} bytes.
+     */
+    public static int findServiceData(byte[] record, int length, int uuid16) {
+        if (record == null) return -1;
+        int end = Math.min(length, record.length);
+        int cursor = 0;
+        while (cursor < end) {
+            int fieldLength = record[cursor] & 0xFF;
+            // A zero length pads out the rest of a legacy record.
+            if (fieldLength == 0 || cursor + 1 + fieldLength > end) return -1;
+            if ((record[cursor + 1] & 0xFF) == AD_SERVICE_DATA_16 && fieldLength >= 3
+                    && (record[cursor + 2] & 0xFF) == (uuid16 & 0xFF)
+                    && (record[cursor + 3] & 0xFF) == (uuid16 >>> 8 & 0xFF)) {
+                return cursor + 4;
+            }
+            cursor += 1 + fieldLength;
+        }
+        return -1;
+    }
+
+    public static int serviceDataLength(byte[] record, int offset) {
+        return (record[offset - 4] & 0xFF) - 3;
+    }
+
+    public static boolean isValid(byte[] packet, int length) {
+        if (packet == null || length < HEADER_LENGTH || length > packet.length) return false;
+        int count = getCount(packet);
+        return count >= 1 && getIndex(packet) < count;
+    }
+
+    public static long getId(byte[] packet) {
+        long id = 0;
+        for (int i = 0; i < 8; i++) id = (id << 8) | (packet[i] & 0xFF);
+        return id;
+    }
+
+    public static int getTtl(byte[] packet) {
+        return packet[8] & 0xFF;
+    }
+
+    public static int getIndex(byte[] packet) {
+        return packet[9] & 0xFF;
+    }
+
+    public static int getCount(byte[] packet) {
+        return packet[10] & 0xFF;
+    }
+
+    /**
+     * Duplicate-suppression key of one chunk; the whole message keeps the plain id.
+     */
+    public static long fragmentKey(long id, int index) {
+        return index == 0 ? id : id ^ (index * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * Copy of {@code packet} with its TTL replaced, ready to be relayed.
+     */
+    public static byte[] withTtl(byte[] packet, int length, int ttl) {
+        byte[] copy = new byte[length];
+        System.arraycopy(packet, 0, copy, 0, length);
+        copy[8] = (byte) ttl;
+        return copy;
+    }
+}
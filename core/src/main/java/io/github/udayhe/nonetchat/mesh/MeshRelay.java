@@ -0,0 +1,283 @@
+package io.github.udayhe.nonetchat.mesh;
+
+import java.util.Random;
+
+import io.github.udayhe.nonetchat.log.ChatLog;
+import io.github.udayhe.nonetchat.payload.MessageIds;
+
+/**
+ * Managed flooding over BLE advertisements. Every packet carries a 64-bit id and a TTL, and
+ * long messages are split into numbered chunks that are relayed independently and
+ * reassembled at each node. A node relays each chunk at most once, waits a random jitter
+ * before relaying, skips the relay if enough distinct neighbours already repeated it
+ * meanwhile, and caps its relay rate with a token bucket. Radio and timing are injected so
+ * the same code runs on the Android main looper and in a simulated topology.
+ * <p>
+ * Not thread-safe: call everything, and run scheduled tasks, on one thread.
+ */
+public class MeshRelay {
+
+    private static final String TAG = "MeshRelay";
+
+    public static final int DEFAULT_TTL = 5;
+    public static final int DEFAULT_SEEN_CAPACITY = 1024;
+    public static final long DEFAULT_MAX_JITTER_MILLIS = 150;
+    public static final int DEFAULT_RELAYS_PER_SECOND = 10;
+    public static final int DEFAULT_RELAY_BURST = 20;
+    public static final int DEFAULT_SUPPRESSION_THRESHOLD = 3;
+    public static final int MAX_PENDING_RELAYS = 64;
+    /** Source for packets whose transmitter is not known; they never count towards suppression. */
+    public static final long UNKNOWN_SOURCE = 0;
+
+    public interface Radio {
+        void transmit(byte[] packet);
+    }
+
+    public interface Listener {
+        void onMeshMessage(long id, byte[] payload);
+    }
+
+    public interface Scheduler {
+        long nowMillis();
+
+        void schedule(Runnable task, long delayMillis);
+    }
+
+    private static final class PendingRelay {
+        final byte[] packet;
+        final long[] heardFrom;
+        int heard;
+
+        PendingRelay(byte[] packet, int threshold) {
+            this.packet = packet;
+            this.heardFrom = new long[threshold];
+        }
+
+        void hear(long source) {
+            // Advertisers repeat themselves, so only distinct transmitters count.
+            if (source == UNKNOWN_SOURCE || heard == heardFrom.length) return;
+            for (int i = 0; i < heard; i++) {
+                if (heardFrom[i] == source) return;
+            }
+            heardFrom[heard++] = source;
+        }
+    }
+
+    private final Radio radio;
+    private final Scheduler scheduler;
+    private final Listener listener;
+    private final Random random;
+    private final SeenCache seen;
+    private final Reassembler reassembler;
+    // At most MAX_PENDING_RELAYS, so a scan of the keys beats a boxed map lookup.
+    private final long[] pendingKeys = new long[MAX_PENDING_RELAYS];
+    private final PendingRelay[] pendingRelays = new PendingRelay[MAX_PENDING_RELAYS];
+    private int pendingCount;
+
+    private int defaultTtl = DEFAULT_TTL;
+    private long maxJitterMillis = DEFAULT_MAX_JITTER_MILLIS;
+    private int relaysPerSecond = DEFAULT_RELAYS_PER_SECOND;
+    private int relayBurst = DEFAULT_RELAY_BURST;
+    private int suppressionThreshold = DEFAULT_SUPPRESSION_THRESHOLD;
+    private int maxPacketLength = MeshPacket.LEGACY_MAX_LENGTH;
+
+    private double tokens = DEFAULT_RELAY_BURST;
+    private long lastRefillMillis;
+
+    private long deliveredCount;
+    private long duplicateCount;
+    private long relayedCount;
+    private long suppressedCount;
+    private long rateLimitedCount;
+    private long malformedCount;
+
+    public MeshRelay(Radio radio, Scheduler scheduler, Listener listener) {
+        this(radio, scheduler, listener, new Random(), DEFAULT_SEEN_CAPACITY, new Reassembler());
+    }
+
+    public MeshRelay(Radio radio, Scheduler scheduler, Listener listener, Random random, int seenCapacity,
+                     Reassembler reassembler) {
+        this.radio = radio;
+        this.scheduler = scheduler;
+        this.listener = listener;
+        this.random = random;
+        this.seen = new SeenCache(seenCapacity);
+        this.reassembler = reassembler;
+        this.lastRefillMillis = scheduler.nowMillis();
+    }
+
+    public void setDefaultTtl(int ttl) {
+        if (ttl < 1 || ttl > MeshPacket.MAX_TTL) throw new IllegalArgumentException("ttl out of range: " + ttl);
+        this.defaultTtl = ttl;
+    }
+
+    public void setMaxJitterMillis(long maxJitterMillis) {
+        this.maxJitterMillis = maxJitterMillis;
+    }
+
+    /**
+     * Limits relays to {@code perSecond} on average with bursts of up to {@code burst}.
+     */
+    public void setRateLimit(int perSecond, int burst) {
+        this.relaysPerSecond = perSecond;
+        this.relayBurst = burst;
+        this.tokens = Math.min(tokens, burst);
+    }
+
+    /**
+     * A pending relay is dropped once this many neighbours have been heard repeating it;
+     * zero disables suppression.
+     */
+    public void setSuppressionThreshold(int threshold) {
+        this.suppressionThreshold = threshold;
+    }
+
+    /**
+     * Service data bytes one advertisement may carry: {@link MeshPacket#LEGACY_MAX_LENGTH}
+     * unless extended advertising is available.
+     */
+    public void setMaxPacketLength(int maxPacketLength) {
+        if (maxPacketLength <= MeshPacket.HEADER_LENGTH || maxPacketLength > MeshPacket.EXTENDED_MAX_LENGTH) {
+            throw new IllegalArgumentException("maxPacketLength out of range: " + maxPacketLength);
+        }
+        this.maxPacketLength = maxPacketLength;
+    }
+
+    public int getMaxChunkLength() {
+        return maxPacketLength - MeshPacket.HEADER_LENGTH;
+    }
+
+    public int getMaxPayloadLength() {
+        return Math.min(reassembler.getMaxMessageLength(), MeshPacket.MAX_FRAGMENTS * getMaxChunkLength());
+    }
+
+    public Reassembler getReassembler() {
+        return reassembler;
+    }
+
+    /**
+     * Floods {@code payload} with the default TTL, in as many chunks as it takes, and
+     * returns its id.
+     */
+    public long send(byte[] payload) {
+        if (payload.length > getMaxPayloadLength()) {
+            throw new IllegalArgumentException("payload of " + payload.length + " bytes exceeds " + getMaxPayloadLength());
+        }
+        int chunk = getMaxChunkLength();
+        int count = Math.max(1, (payload.length + chunk - 1) / chunk);
+        long id = MessageIds.next();
+        for (int index = 0; index < count; index++) {
+            int offset = index * chunk;
+            int length = Math.min(chunk, payload.length - offset);
+            seen.add(MeshPacket.fragmentKey(id, index));
+            radio.transmit(MeshPacket.encode(id, defaultTtl, index, count, payload, offset, length));
+        }
+        return id;
+    }
+
+    public void onPacket(byte[] packet) {
+        onPacket(packet, packet != null ? packet.length : 0, UNKNOWN_SOURCE);
+    }
+
+    /**
+     * Handles a received packet. {@code source} identifies the transmitter, e.g. its
+     * advertising address, and is only used to tell neighbours apart.
+     */
+    public void onPacket(byte[] packet, int length, long source) {
+        if (!MeshPacket.isValid(packet, length)) {
+            malformedCount++;
+            return;
+        }
+        long id = MeshPacket.getId(packet);
+        int index = MeshPacket.getIndex(packet);
+        long key = MeshPacket.fragmentKey(id, index);
+        if (!seen.add(key)) {
+            // The common case: the same advertisement heard again. Nothing is allocated here.
+            duplicateCount++;
+            int slot = pendingSlot(key);
+            if (slot >= 0) pendingRelays[slot].hear(source);
+            return;
+        }
+
+        int ttl = MeshPacket.getTtl(packet);
+        if (ttl > 1) scheduleRelay(key, MeshPacket.withTtl(packet, length, ttl - 1));
+
+        byte[] message = reassembler.accept(id, index, MeshPacket.getCount(packet), packet,
+                MeshPacket.HEADER_LENGTH, length - MeshPacket.HEADER_LENGTH, scheduler.nowMillis());
+        if (message != null) {
+            deliveredCount++;
+            listener.onMeshMessage(id, message);
+        }
+    }
+
+    public long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    public long getRelayedCount() {
+        return relayedCount;
+    }
+
+    public long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    public long getRateLimitedCount() {
+        return rateLimitedCount;
+    }
+
+    public long getMalformedCount() {
+        return malformedCount;
+    }
+
+    private void scheduleRelay(final long key, byte[] packet) {
+        if (pendingCount == MAX_PENDING_RELAYS) {
+            rateLimitedCount++;
+            return;
+        }
+        pendingKeys[pendingCount] = key;
+        pendingRelays[pendingCount++] = new PendingRelay(packet, suppressionThreshold);
+        long delay = maxJitterMillis > 0 ? (long) (random.nextDouble() * maxJitterMillis) : 0;
+        scheduler.schedule(() -> relay(key), delay);
+    }
+
+    private void relay(long key) {
+        int slot = pendingSlot(key);
+        if (slot < 0) return;
+        PendingRelay relay = pendingRelays[slot];
+        // Order does not matter, so the last entry fills the hole.
+        pendingCount--;
+        pendingKeys[slot] = pendingKeys[pendingCount];
+        pendingRelays[slot] = pendingRelays[pendingCount];
+        pendingRelays[pendingCount] = null;
+        if (suppressionThreshold > 0 && relay.heard >= suppressionThreshold) {
+            suppressedCount++;
+        } else if (!takeToken()) {
+            rateLimitedCount++;
+            if (ChatLog.isLoggable(ChatLog.DEBUG)) ChatLog.d(TAG, "Relay rate limit hit, dropping " + Long.toHexString(key));
+        } else {
+            relayedCount++;
+            radio.transmit(relay.packet);
+        }
+    }
+
+    private int pendingSlot(long key) {
+        for (int i = 0; i < pendingCount; i++) {
+            if (pendingKeys[i] == key) return i;
+        }
+        return -1;
+    }
+
+    private boolean takeToken() {
+        long now = scheduler.nowMillis();
+        tokens = Math.min(relayBurst, tokens + (now - lastRefillMillis) * relaysPerSecond / 1000.0);
+        lastRefillMillis = now;
+        if (tokens < 1) return false;
+        tokens--;
+        return true;
+    }
+}
@@ -0,0 +1,104 @@
+package io.github.udayhe.nonetchat.mesh;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded hand-off of received packets from the scan callback thread to the thread that
+ * runs the relay. {@link #offer} copies into a preallocated slot and never blocks or
+ * allocates; when the consumer falls behind, new packets are dropped and counted, which
+ * the mesh tolerates because every packet is advertised repeatedly.
+ * <p>
+ * One producer thread and one consumer thread.
+ */
+public class PacketHandoff {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    public interface Sink {
+        /** {@code packet} is a reused slot, valid only for the duration of the call. */
+        void onPacket(byte[] packet, int length, long source);
+    }
+
+    private final byte[][] slots;
+    private final int[] lengths;
+    private final long[] sources;
+    private final int mask;
+    private final MeshRelay.Scheduler consumer;
+    private final Sink sink;
+    private final Runnable drain = this::drain;
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicBoolean drainScheduled = new AtomicBoolean();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile long handedOffCount;
+
+    public PacketHandoff(MeshRelay.Scheduler consumer, Sink sink) {
+        this(consumer, sink, DEFAULT_CAPACITY, MeshPacket.EXTENDED_MAX_LENGTH);
+    }
+
+    /**
+     * @param consumer runs the drain on the consumer thread
+     * @param capacity rounded up to a power of two
+     */
+    public PacketHandoff(MeshRelay.Scheduler consumer, Sink sink, int capacity, int maxPacketLength) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.slots = new byte[size][maxPacketLength];
+        this.lengths = new int[size];
+        this.sources = new long[size];
+        this.mask = size - 1;
+        this.consumer = consumer;
+        this.sink = sink;
+    }
+
+    /**
+     * Copies {@code data[offset, offset + length)} into the queue. Returns false if the
+     * packet is too long or the queue is full.
+     */
+    public boolean offer(byte[] data, int offset, int length, long source) {
+        if (length > slots[0].length) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        long t = tail.get();
+        if (t - head.get() >= slots.length) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        int slot = (int) t & mask;
+        System.arraycopy(data, offset, slots[slot], 0, length);
+        lengths[slot] = length;
+        sources[slot] = source;
+        tail.lazySet(t + 1);
+        if (drainScheduled.compareAndSet(false, true)) consumer.schedule(drain, 0);
+        return true;
+    }
+
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getHandedOffCount() {
+        return handedOffCount;
+    }
+
+    /** Hands every queued packet to the sink on the consumer thread. */
+    public void drain() {
+        // Cleared before reading the tail, so an offer racing with the end of this drain
+        // schedules another one instead of being stranded.
+        drainScheduled.set(false);
+        long start = head.get();
+        long t = tail.get();
+        for (long h = start; h < t; h++) {
+            int slot = (int) h & mask;
+            sink.onPacket(slots[slot], lengths[slot], sources[slot]);
+            // Publish each freed slot at once so the producer is not held off for the batch.
+            head.lazySet(h + 1);
+        }
+        handedOffCount += t - start;
+    }
+}
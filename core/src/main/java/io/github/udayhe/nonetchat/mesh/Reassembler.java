@@ -0,0 +1,204 @@
+package io.github.udayhe.nonetchat.mesh;
+
+/**
+ * Rebuilds fragmented mesh messages in a fixed set of preallocated slots. Chunks are
+ * appended to their slot's buffer in arrival order and stitched together once the last
+ * one arrives, so the only allocation is the finished message. Slots are reclaimed when
+ * a message times out or, if all are busy, from the oldest message.
+ * <p>
+ * Not thread-safe; owned by a {@link MeshRelay}.
+ */
+public class Reassembler {
+
+    public static final int DEFAULT_MAX_MESSAGES = 16;
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 2048;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 10_000;
+
+    private static final class Slot {
+        final byte[] data;
+        final short[] offsets = new short[MeshPacket.MAX_FRAGMENTS];
+        final short[] lengths = new short[MeshPacket.MAX_FRAGMENTS];
+        final long[] received = new long[4];
+        boolean active;
+        long id;
+        int count;
+        int receivedCount;
+        int used;
+        long startedMillis;
+
+        Slot(int maxMessageLength) {
+            data = new byte[maxMessageLength];
+        }
+
+        boolean has(int index) {
+            return (received[index >>> 6] & (1L << index)) != 0;
+        }
+
+        void mark(int index) {
+            received[index >>> 6] |= 1L << index;
+        }
+
+        void reset() {
+            active = false;
+            receivedCount = 0;
+            used = 0;
+            received[0] = received[1] = received[2] = received[3] = 0;
+        }
+    }
+
+    private final Slot[] slots;
+    private final int maxMessageLength;
+    private final long timeoutMillis;
+
+    private long startedCount;
+    private long completedCount;
+    private long expiredCount;
+    private long evictedCount;
+    private long rejectedCount;
+    private long totalLatencyMillis;
+    private long maxLatencyMillis;
+
+    public Reassembler() {
+        this(DEFAULT_MAX_MESSAGES, DEFAULT_MAX_MESSAGE_LENGTH, DEFAULT_TIMEOUT_MILLIS);
+    }
+
+    public Reassembler(int maxMessages, int maxMessageLength, long timeoutMillis) {
+        if (maxMessageLength > Short.MAX_VALUE) throw new IllegalArgumentException("maxMessageLength too large: " + maxMessageLength);
+        this.slots = new Slot[maxMessages];
+        for (int i = 0; i < maxMessages; i++) slots[i] = new Slot(maxMessageLength);
+        this.maxMessageLength = maxMessageLength;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public int getMaxMessageLength() {
+        return maxMessageLength;
+    }
+
+    /**
+     * Adds chunk {@code index} of {@code count} for message {@code id}. Returns the whole
+     * message once every chunk is in, otherwise null.
+     */
+    public byte[] accept(long id, int index, int count, byte[] chunk, int offset, int length, long nowMillis) {
+        expire(nowMillis);
+        if (count == 1) {
+            startedCount++;
+            completedCount++;
+            byte[] message = new byte[length];
+            System.arraycopy(chunk, offset, message, 0, length);
+            return message;
+        }
+
+        Slot slot = find(id);
+        if (slot == null) {
+            slot = claim();
+            slot.active = true;
+            slot.id = id;
+            slot.count = count;
+            slot.startedMillis = nowMillis;
+            startedCount++;
+        }
+        if (slot.count != count || index >= count) {
+            rejectedCount++;
+            return null;
+        }
+        if (slot.has(index)) return null;
+        if (slot.used + length > slot.data.length) {
+            rejectedCount++;
+            slot.reset();
+            return null;
+        }
+
+        System.arraycopy(chunk, offset, slot.data, slot.used, length);
+        slot.offsets[index] = (short) slot.used;
+        slot.lengths[index] = (short) length;
+        slot.used += length;
+        slot.mark(index);
+        if (++slot.receivedCount < count) return null;
+
+        byte[] message = new byte[slot.used];
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(slot.data, slot.offsets[i], message, position, slot.lengths[i]);
+            position += slot.lengths[i];
+        }
+        long latency = nowMillis - slot.startedMillis;
+        completedCount++;
+        totalLatencyMillis += latency;
+        if (latency > maxLatencyMillis) maxLatencyMillis = latency;
+        slot.reset();
+        return message;
+    }
+
+    public int getPendingCount() {
+        int pending = 0;
+        for (Slot slot : slots) {
+            if (slot.active) pending++;
+        }
+        return pending;
+    }
+
+    public long getStartedCount() {
+        return startedCount;
+    }
+
+    public long getCompletedCount() {
+        return completedCount;
+    }
+
+    public long getExpiredCount() {
+        return expiredCount;
+    }
+
+    public long getEvictedCount() {
+        return evictedCount;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    /**
+     * Share of started messages that were completed; in-flight messages count as incomplete.
+     */
+    public double getCompletionRate() {
+        return startedCount == 0 ? 1.0 : (double) completedCount / startedCount;
+    }
+
+    /**
+     * Mean time from a message's first chunk to its last, single-chunk messages included.
+     */
+    public double getAverageLatencyMillis() {
+        return completedCount == 0 ? 0 : (double) totalLatencyMillis / completedCount;
+    }
+
+    public long getMaxLatencyMillis() {
+        return maxLatencyMillis;
+    }
+
+    private void expire(long nowMillis) {
+        for (Slot slot : slots) {
+            if (slot.active && nowMillis - slot.startedMillis > timeoutMillis) {
+                expiredCount++;
+                slot.reset();
+            }
+        }
+    }
+
+    private Slot find(long id) {
+        for (Slot slot : slots) {
+            if (slot.active && slot.id == id) return slot;
+        }
+        return null;
+    }
+
+    private Slot claim() {
+        Slot oldest = null;
+        for (Slot slot : slots) {
+            if (!slot.active) return slot;
+            if (oldest == null || slot.startedMillis < oldest.startedMillis) oldest = slot;
+        }
+        evictedCount++;
+        oldest.reset();
+        return oldest;
+    }
+}
@@ -0,0 +1,89 @@
+package io.github.udayhe.nonetchat.mesh;
+
+/**
+ * Fixed-size set of the most recently seen 64-bit message ids. Ids are kept in arrival
+ * order in a ring and indexed by an open-addressed table, so lookups and inserts never
+ * allocate and the oldest id is forgotten once the ring is full.
+ */
+public class SeenCache {
+
+    private static final long EMPTY = 0;
+
+    private final long[] ring;
+    private final long[] table;
+    private final int mask;
+    private int next;
+    private int size;
+    private boolean hasZero;
+
+    public SeenCache(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        ring = new long[capacity];
+        // At most half full keeps linear probe chains short.
+        int tableSize = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        table = new long[tableSize];
+        mask = tableSize - 1;
+    }
+
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(long id) {
+        if (id == EMPTY) return hasZero;
+        for (int i = slot(id); table[i] != EMPTY; i = (i + 1) & mask) {
+            if (table[i] == id) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records {@code id}. Returns false if it was already present.
+     */
+    public boolean add(long id) {
+        if (contains(id)) return false;
+        if (size == ring.length) {
+            forget(ring[next]);
+        } else {
+            size++;
+        }
+        ring[next] = id;
+        next = (next + 1) % ring.length;
+        if (id == EMPTY) {
+            hasZero = true;
+        } else {
+            int i = slot(id);
+            while (table[i] != EMPTY) i = (i + 1) & mask;
+            table[i] = id;
+        }
+        return true;
+    }
+
+    private void forget(long id) {
+        if (id == EMPTY) {
+            hasZero = false;
+            return;
+        }
+        int i = slot(id);
+        while (table[i] != id) i = (i + 1) & mask;
+        // Backward-shift deletion keeps every remaining id reachable from its home slot.
+        int hole = i;
+        for (int j = (hole + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask) {
+            int home = slot(table[j]);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                table[hole] = table[j];
+                hole = j;
+            }
+        }
+        table[hole] = EMPTY;
+    }
+
+    private int slot(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+}
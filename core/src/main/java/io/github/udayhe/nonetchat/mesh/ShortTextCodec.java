@@ -0,0 +1,179 @@
+package io.github.udayhe.nonetchat.mesh;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Static-dictionary codec for the short texts carried over the BLE mesh, where deflate
+ * has no history to work from and its headers eat the savings. Common chat words and
+ * English letter groups become one byte each; anything else is copied as a literal:
+ * <pre>
+ * payload := 0x00 codec:u8 code*      (encoded; codec is {@link #CODEC_DICTIONARY_1})
+ *          | utf8                     (anything else, as older nodes send it)
+ * code    := 0..253                   (dictionary entry)
+ *          | 254 byte                 (one literal byte)
+ *          | 255 length:u8 byte*      (a run of literal bytes)
+ * </pre>
+ * The dictionary is part of the wire format and must never change; a different one needs
+ * a new codec id. Ids 2 and 3 are taken by the frames and presence announcements of
+ * {@link io.github.udayhe.nonetchat.transport.MeshTransport}, which sees payloads first.
+ */
+public final class ShortTextCodec {
+
+    public static final int CODEC_DICTIONARY_1 = 1;
+
+    private static final int MARKER = 0;
+    private static final int HEADER_LENGTH = 2;
+    private static final int LITERAL = 254;
+    private static final int LITERAL_RUN = 255;
+    private static final int MAX_RUN = 255;
+
+    private static final String[] WORDS = {
+            " ", "e", "t", "a", "o", "i", "n", "s", "h", "r", "d", "l", "u", "c", "m", "w", "y", "f", "g", "p",
+            "b", "v", "k", "j", "x", "q", "z", ".", ",", "?", "!", "'", ":", "-", "(", ")", "/", "\n",
+            "0", "1", "2", "3", "4", "5", "6", "7", "8", "9",
+            "A", "B", "C", "D", "E", "F", "G", "H", "I", "K", "L", "M", "N", "O", "P", "R", "S", "T", "U",
+            "V", "W", "Y",
+            "th", "he", "in", "er", "an", "re", "on", "at", "en", "nd", "ti", "es", "or", "te", "of", "ed",
+            "is", "it", "al", "ar", "st", "to", "nt", "ng", "se", "ha", "as", "ou", "io", "le", "ve", "co",
+            "me", "de", "hi", "ri", "ro", "ic", "ne", "ea", "ra", "ce", "li", "ch", "ll", "be", "ma", "si",
+            "om", "ur", "e ", "s ", "t ", "d ", "n ", "y ", "r ", "o ", ". ", ", ", "? ", "! ",
+            " the ", "the ", " the", " a ", " I ", " to ", " and ", " of ", " in ", " is ", " it ",
+            " you", "you ", " me", " we ", " my ", " on ", " at ", " for ", " that ", " this ", " with ",
+            " are ", " be ", " have ", " not ", " can ", " will ", " just ", " get ", " go ", " so ",
+            " do ", " what ", " where ", " when ", " how ", " here", " there", " now", " ok", "ok", "OK",
+            "lol", "haha", "yes", "yeah", " no", "hey", "Hey", "Hi ", "hello", "thanks", " please",
+            "sorry", " meet", " see ", " come", " coming", " going", " back", " soon", " min", " time",
+            " today", " tonight", " tomorrow", " later", " stage", " gate", " entrance", " exit", " tent",
+            " bar", " food", " water", " phone", " battery", " signal", " lost", " find", " near",
+            " left", " right", " front", " behind", " wait", " call", "ing ", "ing", "ion", "tion",
+            "ment", "ould", "ight", "ere", "ent", "and", "for", "are", "all", "not", "but", "out", "ter",
+            "est", "ver", "ly ", "'s ", "'m ", "'ll ", "n't ", "I'm ", " up", " u ", " pls", " btw",
+            " gonna", " wanna", "where are you", " on my way", " see you",
+    };
+
+    private static final byte[][] ENTRIES = new byte[WORDS.length][];
+    // Entries by first byte, longest first, for the greedy match.
+    private static final int[][] BY_FIRST_BYTE = new int[256][];
+
+    static {
+        if (WORDS.length > LITERAL) throw new IllegalStateException(WORDS.length + " dictionary entries");
+        List<List<Integer>> byFirst = new ArrayList<>();
+        for (int i = 0; i < 256; i++) byFirst.add(new ArrayList<Integer>());
+        for (int i = 0; i < WORDS.length; i++) {
+            ENTRIES[i] = WORDS[i].getBytes(StandardCharsets.US_ASCII);
+            byFirst.get(ENTRIES[i][0] & 0xFF).add(i);
+        }
+        for (int b = 0; b < 256; b++) {
+            List<Integer> codes = byFirst.get(b);
+            Integer[] sorted = codes.toArray(new Integer[0]);
+            Arrays.sort(sorted, (x, y) -> ENTRIES[y].length - ENTRIES[x].length);
+            BY_FIRST_BYTE[b] = new int[sorted.length];
+            for (int i = 0; i < sorted.length; i++) BY_FIRST_BYTE[b][i] = sorted[i];
+        }
+    }
+
+    private ShortTextCodec() {
+    }
+
+    /**
+     * Encodes UTF-8 {@code text}, or returns it unchanged when encoding would not make it
+     * shorter. Either way {@link #decode} turns the result back into {@code text}.
+     */
+    public static byte[] encode(byte[] text) {
+        // Worst case: single literals between matches, two bytes each.
+        byte[] out = new byte[HEADER_LENGTH + 2 * text.length];
+        out[0] = MARKER;
+        out[1] = CODEC_DICTIONARY_1;
+        int n = HEADER_LENGTH;
+        int runStart = -1;
+        int i = 0;
+        while (i < text.length) {
+            int code = match(text, i);
+            if (code < 0) {
+                if (runStart < 0) runStart = i;
+                i++;
+                if (i - runStart == MAX_RUN) {
+                    n = putLiterals(out, n, text, runStart, i);
+                    runStart = -1;
+                }
+                continue;
+            }
+            if (runStart >= 0) {
+                n = putLiterals(out, n, text, runStart, i);
+                runStart = -1;
+            }
+            out[n++] = (byte) code;
+            i += ENTRIES[code].length;
+        }
+        if (runStart >= 0) n = putLiterals(out, n, text, runStart, i);
+
+        // Raw text starting with the marker byte would be misread, so it is always encoded.
+        if (n >= text.length && (text.length == 0 || text[0] != MARKER)) return text;
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Returns the UTF-8 text of a mesh {@code payload}: decoded if {@link #encode} encoded
+     * it, otherwise the payload itself.
+     *
+     * @throws IllegalArgumentException if an encoded payload is corrupt
+     */
+    public static byte[] decode(byte[] payload) {
+        if (payload.length == 0 || payload[0] != MARKER) return payload;
+        if (payload.length < HEADER_LENGTH || payload[1] != CODEC_DICTIONARY_1) {
+            throw new IllegalArgumentException("Unknown text codec");
+        }
+        byte[] out = new byte[payload.length * 2];
+        int n = 0;
+        int i = HEADER_LENGTH;
+        while (i < payload.length) {
+            int code = payload[i++] & 0xFF;
+            int start;
+            int length;
+            byte[] source;
+            if (code < LITERAL) {
+                if (code >= ENTRIES.length) throw new IllegalArgumentException("Unknown dictionary code " + code);
+                source = ENTRIES[code];
+                start = 0;
+                length = source.length;
+            } else {
+                length = code == LITERAL ? 1 : (i < payload.length ? payload[i++] & 0xFF : -1);
+                if (length < 0 || i + length > payload.length) throw new IllegalArgumentException("Literal overruns payload");
+                source = payload;
+                start = i;
+                i += length;
+            }
+            if (n + length > out.length) out = Arrays.copyOf(out, Math.max(out.length * 2, n + length));
+            System.arraycopy(source, start, out, n, length);
+            n += length;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    private static int match(byte[] text, int index) {
+        int[] candidates = BY_FIRST_BYTE[text[index] & 0xFF];
+        for (int c = 0; c < candidates.length; c++) {
+            byte[] entry = ENTRIES[candidates[c]];
+            if (entry.length > text.length - index) continue;
+            int k = 1;
+            while (k < entry.length && text[index + k] == entry[k]) k++;
+            if (k == entry.length) return candidates[c];
+        }
+        return -1;
+    }
+
+    private static int putLiterals(byte[] out, int n, byte[] text, int from, int to) {
+        int length = to - from;
+        if (length == 1) {
+            out[n++] = (byte) LITERAL;
+        } else {
+            out[n++] = (byte) LITERAL_RUN;
+            out[n++] = (byte) length;
+        }
+        System.arraycopy(text, from, out, n, length);
+        return n + length;
+    }
+}
@@ -0,0 +1,104 @@
+package io.github.udayhe.nonetchat.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters, gauges, histograms and per-peer traffic. Components look their metrics
+ * up once and keep the returned objects, so recording never touches the maps; only
+ * {@link #dump()} walks them. Safe from any thread.
+ */
+public class MetricsRegistry {
+
+    public interface Gauge {
+        long get();
+    }
+
+    private static final MetricsRegistry DEFAULT = new MetricsRegistry();
+
+    private final long startNanos = System.nanoTime();
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, PeerMetrics> peers = new ConcurrentHashMap<>();
+
+    /** The process-wide registry the app reports into. */
+    public static MetricsRegistry getDefault() {
+        return DEFAULT;
+    }
+
+    public AtomicLong counter(String name) {
+        AtomicLong counter = counters.get(name);
+        if (counter != null) return counter;
+        AtomicLong created = new AtomicLong();
+        counter = counters.putIfAbsent(name, created);
+        return counter != null ? counter : created;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram != null) return histogram;
+        Histogram created = new Histogram();
+        histogram = histograms.putIfAbsent(name, created);
+        return histogram != null ? histogram : created;
+    }
+
+    public PeerMetrics peer(String name) {
+        PeerMetrics peer = peers.get(name);
+        if (peer != null) return peer;
+        PeerMetrics created = new PeerMetrics(name);
+        peer = peers.putIfAbsent(name, created);
+        return peer != null ? peer : created;
+    }
+
+    /** Registers {@code gauge} under {@code name}, replacing any earlier one. */
+    public void gauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    public long getUptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Renders every metric as text, sorted by name, for logs and the diagnostics screen.
+     * Counters also show their average rate per second since the registry was created.
+     */
+    public String dump() {
+        StringBuilder out = new StringBuilder(1024);
+        dump(out);
+        return out.toString();
+    }
+
+    public void dump(StringBuilder out) {
+        double seconds = Math.max(1, getUptimeMillis()) / 1000.0;
+        out.append(String.format(Locale.ROOT, "uptime %.1f s%n", seconds));
+        for (Map.Entry<String, AtomicLong> entry : new TreeMap<>(counters).entrySet()) {
+            long value = entry.getValue().get();
+            out.append(String.format(Locale.ROOT, "%s %d (%.2f/s)%n", entry.getKey(), value, value / seconds));
+        }
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(gauges).entrySet()) {
+            out.append(entry.getKey()).append(' ').append(entry.getValue().get()).append('\n');
+        }
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(histograms).entrySet()) {
+            Histogram h = entry.getValue();
+            out.append(String.format(Locale.ROOT, "%s n=%d mean=%.1f p50=%d p90=%d p99=%d p999=%d max=%d%n",
+                    entry.getKey(), h.getCount(), h.getMean(), h.getValueAtPercentile(50), h.getValueAtPercentile(90),
+                    h.getValueAtPercentile(99), h.getValueAtPercentile(99.9), h.getMax()));
+        }
+        for (PeerMetrics peer : new TreeMap<>(peers).values()) {
+            out.append(String.format(Locale.ROOT, "peer %s in=%d/%dB out=%d/%dB queue=%d%n", peer.getName(),
+                    peer.getMessagesIn(), peer.getBytesIn(), peer.getMessagesOut(), peer.getBytesOut(),
+                    peer.getQueueDepth()));
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package io.github.udayhe.nonetchat.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Traffic counters for one peer, kept across its reconnects.
+ */
+public final class PeerMetrics {
+
+    private final String name;
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong messagesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong messagesOut = new AtomicLong();
+    private volatile MetricsRegistry.Gauge queueDepth;
+
+    PeerMetrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** A frame of {@code bytes} bytes arrived from the peer. */
+    public void onReceived(int bytes) {
+        messagesIn.incrementAndGet();
+        bytesIn.addAndGet(bytes);
+    }
+
+    /** A frame of {@code bytes} bytes was handed to the socket for the peer. */
+    public void onSent(int bytes) {
+        messagesOut.incrementAndGet();
+        bytesOut.addAndGet(bytes);
+    }
+
+    /** Reports the depth of the peer's current outbound queue. */
+    public void setQueueDepth(MetricsRegistry.Gauge queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
+    public long getBytesIn() {
+        return bytesIn.get();
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.get();
+    }
+
+    public long getBytesOut() {
+        return bytesOut.get();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.get();
+    }
+
+    public long getQueueDepth() {
+        MetricsRegistry.Gauge gauge = queueDepth;
+        return gauge != null ? gauge.get() : 0;
+    }
+}
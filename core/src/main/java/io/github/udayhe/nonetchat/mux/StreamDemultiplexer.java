@@ -0,0 +1,161 @@
+package io.github.udayhe.nonetchat.mux;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+import io.github.udayhe.nonetchat.sender.PeerWriter;
+import io.github.udayhe.nonetchat.sender.Priority;
+
+/**
+ * Receiving half of stream multiplexing: reassembles STREAM chunks into messages and
+ * returns credit to the sender as chunks are taken in, in batches of half the initial
+ * credit. A grant the reply queue refuses is owed, not lost, and retried with the next
+ * frame of any type, so feed it every frame the connection reads; heartbeats keep coming
+ * even when the stream has stalled for want of that credit. A sender that runs past its
+ * credit is a protocol error.
+ * <p>
+ * A stream is forgotten when its sender closes it, and at most {@code maxStreams} may be
+ * open at once; more is a protocol error too. Not thread-safe; feed it from the
+ * connection's reader.
+ */
+public class StreamDemultiplexer {
+
+    public static final int DEFAULT_MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+    public static final int DEFAULT_MAX_STREAMS = 64;
+
+    private static final int INITIAL_BUFFER_LENGTH = 1024;
+    // A buffer grown past this for one large message is dropped once it is delivered.
+    private static final int RETAINED_BUFFER_LENGTH = 64 * 1024;
+
+    public interface Listener {
+        /**
+         * A complete message. {@code message} is only valid for the duration of the call.
+         */
+        void onStreamMessage(long streamId, ByteBuffer message);
+    }
+
+    private static final class InboundStream {
+        ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_LENGTH);
+        long window;
+        long ungranted;
+
+        InboundStream(long window) {
+            this.window = window;
+        }
+    }
+
+    private final PeerWriter replies;
+    private final Listener listener;
+    private final int initialCredit;
+    private final int maxMessageLength;
+    private final int maxStreams;
+    private final Map<Long, InboundStream> streams = new HashMap<>();
+
+    private boolean creditOwed;
+
+    private long messageCount;
+    private long creditFrames;
+
+    public StreamDemultiplexer(PeerWriter replies, Listener listener) {
+        this(replies, listener, StreamMultiplexer.DEFAULT_INITIAL_CREDIT, DEFAULT_MAX_MESSAGE_LENGTH);
+    }
+
+    public StreamDemultiplexer(PeerWriter replies, Listener listener, int initialCredit, int maxMessageLength) {
+        this(replies, listener, initialCredit, maxMessageLength, DEFAULT_MAX_STREAMS);
+    }
+
+    public StreamDemultiplexer(PeerWriter replies, Listener listener, int initialCredit, int maxMessageLength,
+                               int maxStreams) {
+        this.replies = replies;
+        this.listener = listener;
+        this.initialCredit = initialCredit;
+        this.maxMessageLength = maxMessageLength;
+        this.maxStreams = maxStreams;
+    }
+
+    public void onFrame(Frame frame) throws ProtocolException {
+        if (creditOwed) grantOwed();
+        if (frame.getType() != WireFormat.TYPE_STREAM) return;
+        long id = frame.getStreamId();
+        InboundStream stream = streams.get(id);
+        if (stream == null) {
+            if (frame.isStreamClose() && frame.getStreamDataLength() == 0) return;
+            if (streams.size() >= maxStreams) throw new ProtocolException("More than " + maxStreams + " open streams");
+            stream = new InboundStream(initialCredit);
+            streams.put(id, stream);
+        }
+
+        int length = frame.getStreamDataLength();
+        if (length > stream.window) throw new ProtocolException("Stream " + id + " overran its credit by " + (length - stream.window));
+        if (stream.buffer.position() + length > maxMessageLength) {
+            throw new ProtocolException("Stream " + id + " message exceeds " + maxMessageLength + " bytes");
+        }
+        stream.window -= length;
+        if (stream.buffer.remaining() < length) stream.buffer = grow(stream.buffer, stream.buffer.position() + length);
+        frame.getStreamData(stream.buffer);
+
+        stream.ungranted += length;
+        if (stream.ungranted >= initialCredit / 2 && !grant(id, stream)) creditOwed = true;
+
+        if (frame.isStreamEnd()) {
+            stream.buffer.flip();
+            messageCount++;
+            try {
+                listener.onStreamMessage(id, stream.buffer.asReadOnlyBuffer());
+            } finally {
+                stream.buffer.clear();
+                if (stream.buffer.capacity() > RETAINED_BUFFER_LENGTH) {
+                    stream.buffer = ByteBuffer.allocate(INITIAL_BUFFER_LENGTH);
+                }
+            }
+        }
+        if (frame.isStreamClose()) {
+            streams.remove(id);
+            if (stream.buffer.position() > 0) throw new ProtocolException("Stream " + id + " closed mid-message");
+        }
+    }
+
+    public long getMessageCount() {
+        return messageCount;
+    }
+
+    public long getCreditFrames() {
+        return creditFrames;
+    }
+
+    /** Streams opened by the sender and not yet closed. */
+    public int getStreamCount() {
+        return streams.size();
+    }
+
+    private void grantOwed() {
+        creditOwed = false;
+        for (Map.Entry<Long, InboundStream> entry : streams.entrySet()) {
+            InboundStream stream = entry.getValue();
+            if (stream.ungranted >= initialCredit / 2 && !grant(entry.getKey(), stream)) creditOwed = true;
+        }
+    }
+
+    /** Widens the window only once the CREDIT frame is queued for the sender. */
+    private boolean grant(long id, InboundStream stream) {
+        if (!replies.trySend(FrameEncoder.encodeCredit(id, stream.ungranted), null, Priority.CONTROL)) return false;
+        stream.window += stream.ungranted;
+        stream.ungranted = 0;
+        creditFrames++;
+        return true;
+    }
+
+    private ByteBuffer grow(ByteBuffer buffer, int needed) {
+        int capacity = buffer.capacity();
+        while (capacity < needed) capacity = Math.min(capacity * 2, maxMessageLength);
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+}
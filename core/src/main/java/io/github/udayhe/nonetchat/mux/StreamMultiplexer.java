@@ -0,0 +1,209 @@
+package io.github.udayhe.nonetchat.mux;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+import io.github.udayhe.nonetchat.sender.PeerWriter;
+import io.github.udayhe.nonetchat.sender.Priority;
+import io.github.udayhe.nonetchat.sender.SendCallback;
+
+/**
+ * Sending half of stream multiplexing over one peer connection. Messages written to a
+ * stream are cut into STREAM chunks and queued in the stream's {@link Priority} lane, so
+ * plain CHAT frames (implicitly stream 0, interactive) overtake queued bulk chunks.
+ * <p>
+ * Each stream may have at most its credit in unacknowledged bytes: it starts at
+ * {@link #DEFAULT_INITIAL_CREDIT} and grows with every CREDIT frame from the receiver.
+ * Chunks beyond that wait here, not in the peer's queue. A chunk the queue refuses is
+ * retried when more data, credit or a write completion arrives; one the queue drops
+ * resets the stream, since its receiver could never reassemble the message.
+ */
+public class StreamMultiplexer {
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    public static final int DEFAULT_INITIAL_CREDIT = 256 * 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private static final class Chunk {
+        final ByteBuffer frame;
+        final int length;
+
+        Chunk(ByteBuffer frame, int length) {
+            this.frame = frame;
+            this.length = length;
+        }
+    }
+
+    private final class OutboundStream implements SendCallback {
+        final long id;
+        final Priority priority;
+        final ArrayDeque<Chunk> pending = new ArrayDeque<>();
+        long credit = initialCredit;
+        boolean closing;
+        boolean reset;
+
+        OutboundStream(long id, Priority priority) {
+            this.id = id;
+            this.priority = priority;
+        }
+
+        @Override
+        public void onComplete(Outcome outcome) {
+            synchronized (StreamMultiplexer.this) {
+                if (outcome == Outcome.WRITTEN) {
+                    pump();
+                } else if (outcome == Outcome.DROPPED || outcome == Outcome.FAILED) {
+                    reset(this);
+                }
+            }
+        }
+    }
+
+    private final PeerWriter writer;
+    private final int chunkSize;
+    private final int initialCredit;
+    private final List<OutboundStream> streams = new ArrayList<>();
+    private long nextStreamId = 1;
+    private boolean pumping;
+
+    private long chunksSent;
+    private long stallCount;
+    private long resetCount;
+
+    public StreamMultiplexer(PeerWriter writer) {
+        this(writer, DEFAULT_CHUNK_SIZE, DEFAULT_INITIAL_CREDIT);
+    }
+
+    public StreamMultiplexer(PeerWriter writer, int chunkSize, int initialCredit) {
+        if (chunkSize <= 0 || initialCredit < chunkSize) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize + " or credit " + initialCredit);
+        }
+        this.writer = writer;
+        this.chunkSize = chunkSize;
+        this.initialCredit = initialCredit;
+    }
+
+    /**
+     * Opens a stream and returns its id. Ids are never reused on this connection.
+     */
+    public synchronized long open(Priority priority) {
+        OutboundStream stream = new OutboundStream(nextStreamId++, priority);
+        // Keep streams ordered by priority so pump() serves interactive ones first.
+        int index = streams.size();
+        while (index > 0 && streams.get(index - 1).priority.compareTo(priority) > 0) index--;
+        streams.add(index, stream);
+        return stream.id;
+    }
+
+    /**
+     * Queues {@code message} as the next message on {@code streamId}. Returns false if the
+     * stream is unknown, closed or was reset.
+     */
+    public synchronized boolean write(long streamId, ByteBuffer message) {
+        OutboundStream stream = find(streamId);
+        if (stream == null || stream.closing) return false;
+        ByteBuffer data = message.duplicate();
+        do {
+            int length = Math.min(chunkSize, data.remaining());
+            ByteBuffer chunk = data.duplicate();
+            chunk.limit(chunk.position() + length);
+            data.position(data.position() + length);
+            int flags = data.hasRemaining() ? 0 : WireFormat.STREAM_END;
+            stream.pending.add(new Chunk(FrameEncoder.encodeStream(streamId, flags, chunk), length));
+        } while (data.hasRemaining());
+        pump();
+        return true;
+    }
+
+    public synchronized void onCredit(long streamId, long bytes) {
+        OutboundStream stream = find(streamId);
+        if (stream == null || bytes <= 0) return;
+        stream.credit += bytes;
+        pump();
+    }
+
+    /**
+     * Closes {@code streamId} once everything already written to it has been queued, with
+     * an empty chunk that lets the receiver forget the stream.
+     */
+    public synchronized void close(long streamId) {
+        OutboundStream stream = find(streamId);
+        if (stream == null || stream.closing) return;
+        stream.closing = true;
+        stream.pending.add(new Chunk(FrameEncoder.encodeStream(streamId, WireFormat.STREAM_CLOSE, EMPTY), 0));
+        pump();
+    }
+
+    public synchronized boolean isOpen(long streamId) {
+        OutboundStream stream = find(streamId);
+        return stream != null && !stream.closing;
+    }
+
+    public synchronized long getCredit(long streamId) {
+        OutboundStream stream = find(streamId);
+        return stream != null ? stream.credit : 0;
+    }
+
+    public synchronized int getPendingChunks(long streamId) {
+        OutboundStream stream = find(streamId);
+        return stream != null ? stream.pending.size() : 0;
+    }
+
+    public synchronized long getChunksSent() {
+        return chunksSent;
+    }
+
+    /** Times a chunk had credit but the peer's queue had no room. */
+    public synchronized long getStallCount() {
+        return stallCount;
+    }
+
+    public synchronized long getResetCount() {
+        return resetCount;
+    }
+
+    private void pump() {
+        // Callbacks can fire inside trySend on this very thread; the outer pass carries on.
+        if (pumping) return;
+        pumping = true;
+        try {
+            for (int i = 0; i < streams.size(); i++) {
+                OutboundStream stream = streams.get(i);
+                while (!stream.reset && !stream.pending.isEmpty()) {
+                    Chunk chunk = stream.pending.peek();
+                    if (chunk.length > stream.credit) break;
+                    if (!writer.trySend(chunk.frame, stream, stream.priority)) {
+                        stallCount++;
+                        return;
+                    }
+                    stream.pending.poll();
+                    stream.credit -= chunk.length;
+                    chunksSent++;
+                }
+                if (stream.closing && stream.pending.isEmpty() && streams.remove(stream)) i--;
+            }
+        } finally {
+            pumping = false;
+        }
+    }
+
+    private void reset(OutboundStream stream) {
+        if (stream.reset) return;
+        stream.reset = true;
+        stream.pending.clear();
+        streams.remove(stream);
+        resetCount++;
+    }
+
+    private OutboundStream find(long streamId) {
+        for (int i = 0; i < streams.size(); i++) {
+            if (streams.get(i).id == streamId) return streams.get(i);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,71 @@
+package io.github.udayhe.nonetchat.payload;
+
+public class Message {
+
+    /** Progress of a message sent from this device, in the order it normally advances. */
+    public enum Status {
+        /** Waiting for room in the retransmit window, or for the recipient to appear. */
+        PENDING,
+        SENT,
+        DELIVERED,
+        READ,
+        /** Never acknowledged, even after every retransmission. */
+        FAILED
+    }
+
+    private final long id;
+    private final String sender;
+    private final String recipient;
+    private final String content;
+    private final long timestamp;
+    private final boolean local;
+
+    public Message(String sender, String recipient, String content, long timestamp) {
+        this(MessageIds.next(), sender, recipient, content, timestamp);
+    }
+
+    public Message(long id, String sender, String recipient, String content, long timestamp) {
+        this(id, sender, recipient, content, timestamp, false);
+    }
+
+    private Message(long id, String sender, String recipient, String content, long timestamp, boolean local) {
+        this.id = id;
+        this.sender = sender;
+        this.recipient = recipient;
+        this.content = content;
+        this.timestamp = timestamp;
+        this.local = local;
+    }
+
+    /**
+     * A line made up on this device for the conversation, e.g. transfer progress. Nobody
+     * sent it, so nobody is told it was read.
+     */
+    public static Message local(String sender, String recipient, String content, long timestamp) {
+        return new Message(MessageIds.next(), sender, recipient, content, timestamp, true);
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getRecipient() {
+        return recipient;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public boolean isLocal() {
+        return local;
+    }
+}
@@ -0,0 +1,21 @@
+package io.github.udayhe.nonetchat.payload;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 64-bit message ids: a random 32-bit prefix per process followed by a counter, so ids
+ * minted on different phones do not collide in practice.
+ */
+public final class MessageIds {
+
+    private static final long PREFIX = ((long) new SecureRandom().nextInt()) << 32;
+    private static final AtomicLong COUNTER = new AtomicLong();
+
+    private MessageIds() {
+    }
+
+    public static long next() {
+        return PREFIX | (COUNTER.incrementAndGet() & 0xFFFFFFFFL);
+    }
+}
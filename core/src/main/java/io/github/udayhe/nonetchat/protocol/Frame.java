@@ -0,0 +1,233 @@
+package io.github.udayhe.nonetchat.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.udayhe.nonetchat.payload.Message;
+
+/**
+ * Reusable view of the last decoded frame. String fields point into the decoder's input
+ * buffer and are only valid until that buffer is compacted or refilled.
+ */
+public final class Frame {
+
+    int type;
+    ByteBuffer buffer;
+    int offset;
+    int length;
+
+    long id;
+    boolean resume;
+    long timestamp;
+    int minVersion;
+    int maxVersion;
+    int rosterSize;
+    int rosterOffset;
+    long streamId;
+    int streamFlags;
+    int dataOffset;
+    int dataLength;
+    long credit;
+    int ackStatus;
+    int ackCount;
+    int ackOffset;
+    int handoverKind;
+    int port;
+    final Utf8Slice sender = new Utf8Slice();
+    final Utf8Slice recipient = new Utf8Slice();
+    final Utf8Slice content = new Utf8Slice();
+    private NameTable names;
+
+    /**
+     * Interns sender and recipient names through {@code names} from now on; null decodes
+     * them afresh each time.
+     */
+    public void setNameTable(NameTable names) {
+        this.names = names;
+    }
+
+    /** The sender as a String, interned if this frame has a {@link NameTable}. */
+    public String getSenderName() {
+        return names != null ? names.intern(sender) : sender.toString();
+    }
+
+    public String getRecipientName() {
+        return names != null ? names.intern(recipient) : recipient.toString();
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Copies the whole encoded frame, header included, e.g. to forward it unchanged.
+     */
+    public ByteBuffer copyEncoded() {
+        ByteBuffer copy = ByteBuffer.allocate(length);
+        ByteBuffer source = buffer.duplicate();
+        source.limit(offset + length).position(offset);
+        copy.put(source).flip();
+        return copy;
+    }
+
+    public int getEncodedLength() {
+        return length;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * Whether a HELLO asks to resume; {@link #getResumeId()} is then the last CHAT id the
+     * sender received over the earlier connection.
+     */
+    public boolean isResume() {
+        return resume;
+    }
+
+    public long getResumeId() {
+        return id;
+    }
+
+    /** Nonce of a PING or PONG. */
+    public long getNonce() {
+        return id;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public int getMinVersion() {
+        return minVersion;
+    }
+
+    public int getMaxVersion() {
+        return maxVersion;
+    }
+
+    public Utf8Slice getSender() {
+        return sender;
+    }
+
+    public Utf8Slice getRecipient() {
+        return recipient;
+    }
+
+    public Utf8Slice getContent() {
+        return content;
+    }
+
+    /** HELLO carries the peer's username in the sender slot. */
+    public Utf8Slice getUsername() {
+        return sender;
+    }
+
+    public int getRosterSize() {
+        return rosterSize;
+    }
+
+    /**
+     * Decodes the usernames of a ROSTER frame; rosters are rare enough to allocate.
+     */
+    public List<String> getRoster() {
+        if (type != WireFormat.TYPE_ROSTER) throw new IllegalStateException("Not a roster frame: " + type);
+        List<String> names = new ArrayList<>(rosterSize);
+        Utf8Slice name = new Utf8Slice();
+        int cursor = rosterOffset;
+        try {
+            for (int i = 0; i < rosterSize; i++) {
+                int length = (int) Varint.read(buffer, cursor, offset + this.length);
+                cursor += Varint.size(length);
+                name.set(buffer, cursor, length);
+                names.add(name.toString());
+                cursor += length;
+            }
+        } catch (ProtocolException e) {
+            throw new IllegalStateException("Roster changed after decoding", e);
+        }
+        return names;
+    }
+
+    public long getStreamId() {
+        return streamId;
+    }
+
+    public boolean isStreamEnd() {
+        return (streamFlags & WireFormat.STREAM_END) != 0;
+    }
+
+    public boolean isStreamClose() {
+        return (streamFlags & WireFormat.STREAM_CLOSE) != 0;
+    }
+
+    public int getStreamDataLength() {
+        return dataLength;
+    }
+
+    /**
+     * Copies the chunk carried by a STREAM frame into {@code out}.
+     */
+    public void getStreamData(ByteBuffer out) {
+        if (type != WireFormat.TYPE_STREAM) throw new IllegalStateException("Not a stream frame: " + type);
+        ByteBuffer source = buffer.duplicate();
+        source.limit(dataOffset + dataLength).position(dataOffset);
+        out.put(source);
+    }
+
+    /** Bytes granted by a CREDIT frame. */
+    public long getCredit() {
+        return credit;
+    }
+
+    /** {@link WireFormat#ACK_DELIVERED} or {@link WireFormat#ACK_READ}. */
+    public int getAckStatus() {
+        return ackStatus;
+    }
+
+    public int getAckCount() {
+        return ackCount;
+    }
+
+    /**
+     * The {@code index}th message id acknowledged by an ACK frame; the acknowledging user
+     * is {@link #getSender()} and the original sender {@link #getRecipient()}.
+     */
+    public long getAckId(int index) {
+        if (index < 0 || index >= ackCount) throw new IndexOutOfBoundsException("Ack " + index + " of " + ackCount);
+        return buffer.getLong(ackOffset + 8 * index);
+    }
+
+    /** One of the {@code WireFormat.HANDOVER_*} kinds. */
+    public int getHandoverKind() {
+        return handoverKind;
+    }
+
+    /**
+     * Port a CANDIDATE listens on, or the successor's port in a SUCCESSOR; the successor's
+     * name is then {@link #getSender()} and its host {@link #getRecipient()}.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /** Copies the CHAT frame carried by a HANDOVER REPLICA. */
+    public ByteBuffer copyReplica() {
+        if (type != WireFormat.TYPE_HANDOVER || handoverKind != WireFormat.HANDOVER_REPLICA) {
+            throw new IllegalStateException("Not a replica frame: " + type);
+        }
+        ByteBuffer copy = ByteBuffer.allocate(dataLength);
+        ByteBuffer source = buffer.duplicate();
+        source.limit(dataOffset + dataLength).position(dataOffset);
+        copy.put(source).flip();
+        return copy;
+    }
+
+    public Message toMessage() {
+        if (type != WireFormat.TYPE_CHAT) throw new IllegalStateException("Not a chat frame: " + type);
+        return new Message(id, getSenderName(), getRecipientName(), content.toString(), timestamp);
+    }
+}
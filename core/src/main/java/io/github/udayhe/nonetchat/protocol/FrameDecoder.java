@@ -0,0 +1,140 @@
+package io.github.udayhe.nonetchat.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+public class FrameDecoder {
+
+    private final int maxFrameLength;
+
+    public FrameDecoder() {
+        this(WireFormat.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public FrameDecoder(int maxFrameLength) {
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Decodes the frame at {@code in}'s position into {@code frame} and advances past it.
+     * Returns false, leaving the position untouched, when the frame is not fully buffered.
+     */
+    public boolean next(ByteBuffer in, Frame frame) throws ProtocolException {
+        int start = in.position();
+        long length = Varint.read(in, start, in.limit());
+        if (length == Varint.INCOMPLETE) return false;
+        if (length < 1 || length > maxFrameLength) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+
+        int bodyStart = start + Varint.size(length);
+        int end = bodyStart + (int) length;
+        if (end > in.limit()) return false;
+
+        frame.buffer = in;
+        frame.offset = start;
+        frame.length = end - start;
+        frame.type = in.get(bodyStart) & 0xFF;
+
+        int cursor = bodyStart + 1;
+        switch (frame.type) {
+            case WireFormat.TYPE_HELLO:
+                if (end - cursor < 4) throw new ProtocolException("Truncated HELLO");
+                int magic = ((in.get(cursor) & 0xFF) << 8) | (in.get(cursor + 1) & 0xFF);
+                if (magic != WireFormat.MAGIC) throw new ProtocolException("Bad magic " + Integer.toHexString(magic));
+                frame.minVersion = in.get(cursor + 2) & 0xFF;
+                frame.maxVersion = in.get(cursor + 3) & 0xFF;
+                cursor = readString(in, cursor + 4, end, frame.sender);
+                int flags = cursor < end ? in.get(cursor++) & 0xFF : 0;
+                frame.resume = (flags & WireFormat.HELLO_RESUME) != 0;
+                if (frame.resume && end - cursor < 8) throw new ProtocolException("Truncated HELLO");
+                frame.id = frame.resume ? in.getLong(cursor) : 0;
+                break;
+            case WireFormat.TYPE_CHAT:
+                if (end - cursor < 8) throw new ProtocolException("Truncated CHAT");
+                frame.id = in.getLong(cursor);
+                cursor += 8;
+                frame.timestamp = readVarint(in, cursor, end);
+                cursor += Varint.size(frame.timestamp);
+                cursor = readString(in, cursor, end, frame.sender);
+                cursor = readString(in, cursor, end, frame.recipient);
+                readString(in, cursor, end, frame.content);
+                break;
+            case WireFormat.TYPE_ROSTER:
+                long count = readVarint(in, cursor, end);
+                if (count > end - cursor) throw new ProtocolException("Roster count " + count + " overruns frame");
+                cursor += Varint.size(count);
+                frame.rosterSize = (int) count;
+                frame.rosterOffset = cursor;
+                for (int i = 0; i < count; i++) cursor = readString(in, cursor, end, frame.sender);
+                break;
+            case WireFormat.TYPE_STREAM:
+                frame.streamId = readVarint(in, cursor, end);
+                cursor += Varint.size(frame.streamId);
+                if (cursor >= end) throw new ProtocolException("Truncated STREAM");
+                frame.streamFlags = in.get(cursor++) & 0xFF;
+                frame.dataOffset = cursor;
+                frame.dataLength = end - cursor;
+                break;
+            case WireFormat.TYPE_CREDIT:
+                frame.streamId = readVarint(in, cursor, end);
+                cursor += Varint.size(frame.streamId);
+                frame.credit = readVarint(in, cursor, end);
+                break;
+            case WireFormat.TYPE_PING:
+            case WireFormat.TYPE_PONG:
+                frame.id = readVarint(in, cursor, end);
+                break;
+            case WireFormat.TYPE_ACK:
+                if (cursor >= end) throw new ProtocolException("Truncated ACK");
+                frame.ackStatus = in.get(cursor++) & 0xFF;
+                cursor = readString(in, cursor, end, frame.sender);
+                cursor = readString(in, cursor, end, frame.recipient);
+                long ids = readVarint(in, cursor, end);
+                cursor += Varint.size(ids);
+                if (ids > (end - cursor) / 8) throw new ProtocolException("ACK of " + ids + " ids overruns its frame");
+                frame.ackCount = (int) ids;
+                frame.ackOffset = cursor;
+                break;
+            case WireFormat.TYPE_COMPRESSED:
+                frame.dataOffset = cursor;
+                frame.dataLength = end - cursor;
+                break;
+            case WireFormat.TYPE_HANDOVER:
+                if (cursor >= end) throw new ProtocolException("Truncated HANDOVER");
+                frame.handoverKind = in.get(cursor++) & 0xFF;
+                if (frame.handoverKind == WireFormat.HANDOVER_SUCCESSOR) {
+                    cursor = readString(in, cursor, end, frame.sender);
+                    cursor = readString(in, cursor, end, frame.recipient);
+                }
+                if (frame.handoverKind == WireFormat.HANDOVER_CANDIDATE || frame.handoverKind == WireFormat.HANDOVER_SUCCESSOR) {
+                    long port = readVarint(in, cursor, end);
+                    if (port > 0xFFFF) throw new ProtocolException("Invalid port " + port);
+                    frame.port = (int) port;
+                }
+                frame.dataOffset = cursor;
+                frame.dataLength = end - cursor;
+                break;
+            default:
+                // Unknown types are handed up untouched so newer peers can extend the protocol.
+                break;
+        }
+
+        in.position(end);
+        return true;
+    }
+
+    private static long readVarint(ByteBuffer in, int index, int end) throws ProtocolException {
+        long value = Varint.read(in, index, end);
+        if (value == Varint.INCOMPLETE) throw new ProtocolException("Truncated varint");
+        return value;
+    }
+
+    private static int readString(ByteBuffer in, int index, int end, Utf8Slice slice) throws ProtocolException {
+        long length = readVarint(in, index, end);
+        int start = index + Varint.size(length);
+        if (length > end - start) throw new ProtocolException("String overruns frame");
+        slice.set(in, start, (int) length);
+        return start + (int) length;
+    }
+}
@@ -0,0 +1,152 @@
+package io.github.udayhe.nonetchat.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Sending half of per-connection compression, used once both sides agree on
+ * {@link WireFormat#VERSION_2}. Each frame worth compressing is deflated whole and
+ * sync-flushed into one COMPRESSED frame. The deflate window carries over between frames,
+ * so names and phrases the connection has already seen cost a few bits each.
+ * <p>
+ * HELLO and frames under {@link #DEFAULT_MIN_LENGTH} bytes go out unchanged. So do large
+ * frames of a type whose last large frame failed to shrink at all, for a back-off that
+ * doubles while that keeps happening. Already-compressed file chunks therefore cost little
+ * CPU, and text messages still compress.
+ * <p>
+ * Not thread-safe; the connection's writer owns it and must {@link #close()} it.
+ */
+public class FrameDeflater {
+
+    public static final int DEFAULT_MIN_LENGTH = 32;
+    private static final int MAX_BACKOFF = 64;
+    // Short text often fails to shrink until the window warms up, and costs little to try.
+    private static final int BACKOFF_MIN_LENGTH = 256;
+    private static final int TYPES = 16;
+
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final int minLength;
+    private final int[] backoff = new int[TYPES];
+    private final int[] skip = new int[TYPES];
+    private byte[] input = new byte[1024];
+    private byte[] output = new byte[1024];
+
+    private volatile long bytesIn;
+    private volatile long bytesOut;
+    private volatile long compressedCount;
+    private volatile long bypassedCount;
+    private volatile long nanos;
+
+    public FrameDeflater() {
+        this(DEFAULT_MIN_LENGTH);
+    }
+
+    public FrameDeflater(int minLength) {
+        this.minLength = minLength;
+    }
+
+    /**
+     * Returns {@code frame}'s remaining bytes as a COMPRESSED frame, or {@code frame} itself
+     * when it is not worth it. The caller's buffer is not moved.
+     */
+    public ByteBuffer compress(ByteBuffer frame) {
+        int length = frame.remaining();
+        int type = typeOf(frame);
+        if (length < minLength || type == WireFormat.TYPE_HELLO || type == WireFormat.TYPE_COMPRESSED || type < 0) {
+            bypassedCount++;
+            return frame;
+        }
+        int slot = type % TYPES;
+        if (skip[slot] > 0) {
+            skip[slot]--;
+            bypassedCount++;
+            return frame;
+        }
+
+        long start = System.nanoTime();
+        byte[] in;
+        int offset;
+        if (frame.hasArray()) {
+            in = frame.array();
+            offset = frame.arrayOffset() + frame.position();
+        } else {
+            if (input.length < length) input = new byte[Integer.highestOneBit(length) << 1];
+            frame.duplicate().get(input, 0, length);
+            in = input;
+            offset = 0;
+        }
+        deflater.setInput(in, offset, length);
+        int n = 0;
+        while (true) {
+            if (output.length - n < 64) output = grow(output, n);
+            int written = deflater.deflate(output, n, output.length - n, Deflater.SYNC_FLUSH);
+            n += written;
+            // SYNC_FLUSH is complete once deflate() leaves room to spare in the output.
+            if (n < output.length && deflater.needsInput()) break;
+        }
+
+        int body = 1 + n;
+        ByteBuffer out = ByteBuffer.allocate(Varint.size(body) + body);
+        Varint.write(out, body);
+        out.put((byte) WireFormat.TYPE_COMPRESSED);
+        out.put(output, 0, n);
+        out.flip();
+
+        if (out.remaining() >= length && length >= BACKOFF_MIN_LENGTH) {
+            backoff[slot] = Math.min(MAX_BACKOFF, Math.max(1, backoff[slot] * 2));
+            skip[slot] = backoff[slot];
+        } else {
+            backoff[slot] = 0;
+        }
+        bytesIn += length;
+        bytesOut += out.remaining();
+        compressedCount++;
+        nanos += System.nanoTime() - start;
+        return out;
+    }
+
+    /** Bytes of the frames that were compressed, before compression. */
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    /** Bytes of the COMPRESSED frames they became. */
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getCompressedCount() {
+        return compressedCount;
+    }
+
+    public long getBypassedCount() {
+        return bypassedCount;
+    }
+
+    public long getCompressNanos() {
+        return nanos;
+    }
+
+    /** Frees the native deflate state. */
+    public void close() {
+        deflater.end();
+    }
+
+    private static int typeOf(ByteBuffer frame) {
+        try {
+            long length = Varint.read(frame, frame.position(), frame.limit());
+            if (length == Varint.INCOMPLETE || length < 1) return -1;
+            int index = frame.position() + Varint.size(length);
+            return index < frame.limit() ? frame.get(index) & 0xFF : -1;
+        } catch (ProtocolException e) {
+            return -1;
+        }
+    }
+
+    private static byte[] grow(byte[] buffer, int used) {
+        byte[] grown = new byte[buffer.length * 2];
+        System.arraycopy(buffer, 0, grown, 0, used);
+        return grown;
+    }
+}
@@ -0,0 +1,194 @@
+package io.github.udayhe.nonetchat.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import io.github.udayhe.nonetchat.payload.Message;
+
+public final class FrameEncoder {
+
+    private FrameEncoder() {
+    }
+
+    public static ByteBuffer encodeHello(String username, int minVersion, int maxVersion) {
+        return encodeHello(username, minVersion, maxVersion, false, 0);
+    }
+
+    /**
+     * HELLO that, when {@code resume} is set, asks to resume after {@code lastReceivedId}.
+     */
+    public static ByteBuffer encodeHello(String username, int minVersion, int maxVersion, boolean resume, long lastReceivedId) {
+        int usernameLength = Utf8.encodedLength(username);
+        int body = 1 + 4 + Varint.size(usernameLength) + usernameLength + 1 + (resume ? 8 : 0);
+        ByteBuffer out = allocate(body);
+        out.put((byte) WireFormat.TYPE_HELLO);
+        out.putShort((short) WireFormat.MAGIC);
+        out.put((byte) minVersion);
+        out.put((byte) maxVersion);
+        putString(out, username, usernameLength);
+        out.put((byte) (resume ? WireFormat.HELLO_RESUME : 0));
+        if (resume) out.putLong(lastReceivedId);
+        out.flip();
+        return out;
+    }
+
+    public static ByteBuffer encodePing(long nonce) {
+        return encodeNonce(WireFormat.TYPE_PING, nonce);
+    }
+
+    public static ByteBuffer encodePong(long nonce) {
+        return encodeNonce(WireFormat.TYPE_PONG, nonce);
+    }
+
+    public static ByteBuffer encodeRoster(List<String> usernames) {
+        int body = 1 + Varint.size(usernames.size());
+        for (int i = 0; i < usernames.size(); i++) body += stringLength(usernames.get(i));
+        ByteBuffer out = allocate(body);
+        out.put((byte) WireFormat.TYPE_ROSTER);
+        Varint.write(out, usernames.size());
+        for (int i = 0; i < usernames.size(); i++) {
+            String name = usernames.get(i);
+            putString(out, name, Utf8.encodedLength(name));
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Wraps {@code data}'s remaining bytes as one chunk of stream {@code streamId}.
+     */
+    public static ByteBuffer encodeStream(long streamId, int flags, ByteBuffer data) {
+        int body = 1 + Varint.size(streamId) + 1 + data.remaining();
+        ByteBuffer out = allocate(body);
+        out.put((byte) WireFormat.TYPE_STREAM);
+        Varint.write(out, streamId);
+        out.put((byte) flags);
+        out.put(data.duplicate());
+        out.flip();
+        return out;
+    }
+
+    public static ByteBuffer encodeCredit(long streamId, long bytes) {
+        ByteBuffer out = allocate(1 + Varint.size(streamId) + Varint.size(bytes));
+        out.put((byte) WireFormat.TYPE_CREDIT);
+        Varint.write(out, streamId);
+        Varint.write(out, bytes);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Acknowledges {@code ids[0..count)}, sent to {@code recipient}, on behalf of {@code sender}.
+     */
+    public static ByteBuffer encodeAck(int status, String sender, String recipient, long[] ids, int count) {
+        ByteBuffer out = allocate(1 + 1 + stringLength(sender) + stringLength(recipient) + Varint.size(count) + 8 * count);
+        out.put((byte) WireFormat.TYPE_ACK);
+        out.put((byte) status);
+        putString(out, sender, Utf8.encodedLength(sender));
+        putString(out, recipient, Utf8.encodedLength(recipient));
+        Varint.write(out, count);
+        for (int i = 0; i < count; i++) out.putLong(ids[i]);
+        out.flip();
+        return out;
+    }
+
+    /** Offers to take over the group, accepting clients on {@code port}. */
+    public static ByteBuffer encodeCandidate(int port) {
+        ByteBuffer out = allocate(1 + 1 + Varint.size(port));
+        out.put((byte) WireFormat.TYPE_HANDOVER);
+        out.put((byte) WireFormat.HANDOVER_CANDIDATE);
+        Varint.write(out, port);
+        out.flip();
+        return out;
+    }
+
+    /** Names the client that takes over the group, and where to reach it, if the owner leaves. */
+    public static ByteBuffer encodeSuccessor(String name, String host, int port) {
+        ByteBuffer out = allocate(1 + 1 + stringLength(name) + stringLength(host) + Varint.size(port));
+        out.put((byte) WireFormat.TYPE_HANDOVER);
+        out.put((byte) WireFormat.HANDOVER_SUCCESSOR);
+        putString(out, name, Utf8.encodedLength(name));
+        putString(out, host, Utf8.encodedLength(host));
+        Varint.write(out, port);
+        out.flip();
+        return out;
+    }
+
+    /** Wraps a whole encoded CHAT frame, {@code frame}'s remaining bytes, for the successor. */
+    public static ByteBuffer encodeReplica(ByteBuffer frame) {
+        ByteBuffer out = allocate(1 + 1 + frame.remaining());
+        out.put((byte) WireFormat.TYPE_HANDOVER);
+        out.put((byte) WireFormat.HANDOVER_REPLICA);
+        out.put(frame.duplicate());
+        out.flip();
+        return out;
+    }
+
+    public static ByteBuffer encodeResign() {
+        ByteBuffer out = allocate(1 + 1);
+        out.put((byte) WireFormat.TYPE_HANDOVER);
+        out.put((byte) WireFormat.HANDOVER_RESIGN);
+        out.flip();
+        return out;
+    }
+
+    private static ByteBuffer encodeNonce(int type, long nonce) {
+        ByteBuffer out = allocate(1 + Varint.size(nonce));
+        out.put((byte) type);
+        Varint.write(out, nonce);
+        out.flip();
+        return out;
+    }
+
+    public static ByteBuffer encodeChat(Message message) {
+        ByteBuffer out = allocate(chatBodyLength(message));
+        writeChatBody(out, message);
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Appends a CHAT frame to {@code out}, which must have {@link #chatFrameLength} bytes free.
+     */
+    public static void writeChat(ByteBuffer out, Message message) {
+        Varint.write(out, chatBodyLength(message));
+        writeChatBody(out, message);
+    }
+
+    public static int chatFrameLength(Message message) {
+        int body = chatBodyLength(message);
+        return Varint.size(body) + body;
+    }
+
+    private static int chatBodyLength(Message message) {
+        return 1 + 8 + Varint.size(message.getTimestamp())
+                + stringLength(message.getSender())
+                + stringLength(message.getRecipient())
+                + stringLength(message.getContent());
+    }
+
+    private static void writeChatBody(ByteBuffer out, Message message) {
+        out.put((byte) WireFormat.TYPE_CHAT);
+        out.putLong(message.getId());
+        Varint.write(out, message.getTimestamp());
+        putString(out, message.getSender(), Utf8.encodedLength(message.getSender()));
+        putString(out, message.getRecipient(), Utf8.encodedLength(message.getRecipient()));
+        putString(out, message.getContent(), Utf8.encodedLength(message.getContent()));
+    }
+
+    private static ByteBuffer allocate(int bodyLength) {
+        ByteBuffer out = ByteBuffer.allocate(Varint.size(bodyLength) + bodyLength);
+        Varint.write(out, bodyLength);
+        return out;
+    }
+
+    private static int stringLength(String s) {
+        int length = Utf8.encodedLength(s);
+        return Varint.size(length) + length;
+    }
+
+    private static void putString(ByteBuffer out, String s, int encodedLength) {
+        Varint.write(out, encodedLength);
+        Utf8.encode(s, out);
+    }
+}
@@ -0,0 +1,80 @@
+package io.github.udayhe.nonetchat.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Receiving half of per-connection compression: inflates COMPRESSED frames with one
+ * inflate stream kept across the connection, mirroring the peer's {@link FrameDeflater}.
+ * <p>
+ * Not thread-safe; the connection's reader owns it and must {@link #close()} it.
+ */
+public class FrameInflater {
+
+    private final Inflater inflater = new Inflater(true);
+    private final int maxLength;
+    private byte[] input = new byte[1024];
+    private ByteBuffer output = ByteBuffer.allocate(4096);
+
+    public FrameInflater() {
+        this(WireFormat.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    /**
+     * @param maxLength frames inflating past this many bytes are rejected, as the
+     *                  decoder would reject an uncompressed frame that long
+     */
+    public FrameInflater(int maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Inflates a COMPRESSED {@code frame} and returns the frames it carried, ready for a
+     * {@link FrameDecoder}. The buffer is reused by the next call.
+     */
+    public ByteBuffer inflate(Frame frame) throws ProtocolException {
+        if (frame.type != WireFormat.TYPE_COMPRESSED) throw new IllegalStateException("Not a compressed frame: " + frame.type);
+        int length = frame.dataLength;
+        if (frame.buffer.hasArray()) {
+            inflater.setInput(frame.buffer.array(), frame.buffer.arrayOffset() + frame.dataOffset, length);
+        } else {
+            if (input.length < length) input = new byte[Integer.highestOneBit(length) << 1];
+            ByteBuffer source = frame.buffer.duplicate();
+            source.limit(frame.dataOffset + length).position(frame.dataOffset);
+            source.get(input, 0, length);
+            inflater.setInput(input, 0, length);
+        }
+
+        output.clear();
+        try {
+            while (true) {
+                if (!output.hasRemaining()) grow();
+                int n = inflater.inflate(output.array(), output.position(), output.remaining());
+                output.position(output.position() + n);
+                if (inflater.needsInput() && output.hasRemaining()) break;
+                if (inflater.finished()) throw new ProtocolException("Deflate stream ended");
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt COMPRESSED frame: " + e.getMessage());
+        }
+        output.flip();
+        return output;
+    }
+
+    /** Frees the native inflate state. */
+    public void close() {
+        inflater.end();
+    }
+
+    private void grow() throws ProtocolException {
+        // Whole frames plus their headers; anything bigger is a decompression bomb.
+        int limit = maxLength + 5;
+        if (output.capacity() >= limit) throw new ProtocolException("COMPRESSED frame inflates past " + limit + " bytes");
+        ByteBuffer grown = ByteBuffer.allocate(Math.min(output.capacity() * 2, limit));
+        output.flip();
+        grown.put(output);
+        output = grown;
+    }
+}
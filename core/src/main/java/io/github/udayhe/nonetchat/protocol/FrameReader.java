@@ -0,0 +1,94 @@
+package io.github.udayhe.nonetchat.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Pulls frames off a blocking stream, e.g. the client side of a chat socket.
+ */
+public class FrameReader {
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+    private final InputStream in;
+    private final FrameDecoder decoder;
+    private final int maxFrameLength;
+    private ByteBuffer buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private FrameInflater inflater;
+    private ByteBuffer inflated;
+
+    public FrameReader(InputStream in) {
+        this(in, WireFormat.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public FrameReader(InputStream in, int maxFrameLength) {
+        this.in = in;
+        this.maxFrameLength = maxFrameLength;
+        this.decoder = new FrameDecoder(maxFrameLength);
+        buffer.flip();
+    }
+
+    /**
+     * Unwraps COMPRESSED frames through {@code inflater} from now on, so {@link #read}
+     * only returns the frames they carry.
+     */
+    public void setInflater(FrameInflater inflater) {
+        this.inflater = inflater;
+    }
+
+    /**
+     * Blocks until the next frame is decoded into {@code frame}. Returns false on a clean
+     * end of stream; a stream that ends mid-frame throws {@link EOFException}. A read
+     * timeout leaves partial input buffered, so the call can simply be repeated.
+     */
+    public boolean read(Frame frame) throws IOException {
+        while (true) {
+            if (inflated != null) {
+                if (decoder.next(inflated, frame)) {
+                    if (frame.type == WireFormat.TYPE_COMPRESSED) throw new ProtocolException("Nested COMPRESSED frame");
+                    return true;
+                }
+                if (inflated.hasRemaining()) throw new ProtocolException("COMPRESSED frame ends inside a frame");
+                inflated = null;
+            }
+            if (!readFrame(frame)) return false;
+            if (frame.type != WireFormat.TYPE_COMPRESSED || inflater == null) return true;
+            inflated = inflater.inflate(frame);
+        }
+    }
+
+    private boolean readFrame(Frame frame) throws IOException {
+        while (!decoder.next(buffer, frame)) {
+            buffer.compact();
+            if (!buffer.hasRemaining()) grow();
+            int n;
+            try {
+                n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } catch (InterruptedIOException e) {
+                buffer.flip();
+                throw e;
+            }
+            if (n > 0) buffer.position(buffer.position() + n);
+            buffer.flip();
+            if (n < 0) {
+                if (buffer.hasRemaining()) throw new EOFException("Stream ended inside a frame");
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grow() {
+        // A frame needs at most its length plus a 5 byte header.
+        int capacity = Math.min(buffer.capacity() * 2, maxFrameLength + 5);
+        if (capacity <= buffer.capacity()) throw new IllegalStateException("Frame exceeds buffer");
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+    }
+}
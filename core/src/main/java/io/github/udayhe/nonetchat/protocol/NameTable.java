@@ -0,0 +1,63 @@
+package io.github.udayhe.nonetchat.protocol;
+
+/**
+ * Interns the usernames that appear in frames, keyed by their encoded bytes, so decoding
+ * the sender and recipient of a message allocates nothing once each name has been seen.
+ * Sized for a roster: when full, further names are decoded afresh every time instead of
+ * being added.
+ * <p>
+ * Not thread-safe; each reader thread owns one, like its {@link Frame}.
+ */
+public final class NameTable {
+
+    public static final int DEFAULT_CAPACITY = 64;
+
+    private final byte[][] keys;
+    private final String[] names;
+    private final int[] hashes;
+    private final int capacity;
+    private int size;
+    private long missCount;
+
+    public NameTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public NameTable(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        int slots = Integer.highestOneBit(capacity * 2 - 1) << 1;
+        this.keys = new byte[slots][];
+        this.names = new String[slots];
+        this.hashes = new int[slots];
+        this.capacity = capacity;
+    }
+
+    public String intern(Utf8Slice slice) {
+        int hash = slice.contentHash();
+        int mask = keys.length - 1;
+        for (int i = hash & mask; ; i = (i + 1) & mask) {
+            byte[] key = keys[i];
+            if (key == null) {
+                missCount++;
+                String name = slice.toString();
+                if (size < capacity) {
+                    keys[i] = slice.toBytes();
+                    names[i] = name;
+                    hashes[i] = hash;
+                    size++;
+                }
+                return name;
+            }
+            if (hashes[i] == hash && slice.contentEquals(key)) return names[i];
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Lookups that had to decode the name. */
+    public long getMissCount() {
+        return missCount;
+    }
+}
@@ -0,0 +1,66 @@
+package io.github.udayhe.nonetchat.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A UTF-8 string field still sitting in the receive buffer. Only {@link #toString()}
+ * allocates; comparisons and copies work on the raw bytes.
+ */
+public final class Utf8Slice {
+
+    private ByteBuffer buffer;
+    private int offset;
+    private int length;
+
+    void set(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public byte byteAt(int index) {
+        return buffer.get(offset + index);
+    }
+
+    public boolean contentEquals(byte[] utf8) {
+        if (utf8.length != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + i) != utf8[i]) return false;
+        }
+        return true;
+    }
+
+    /** Hash of the encoded bytes, the same for equal content wherever it sits. */
+    public int contentHash() {
+        int hash = 0;
+        for (int i = 0; i < length; i++) hash = 31 * hash + buffer.get(offset + i);
+        return hash ^ (hash >>> 16);
+    }
+
+    public void copyTo(byte[] dest, int destOffset) {
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + offset, dest, destOffset, length);
+        } else {
+            for (int i = 0; i < length; i++) dest[destOffset + i] = buffer.get(offset + i);
+        }
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[length];
+        copyTo(bytes, 0);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        return new String(toBytes(), StandardCharsets.UTF_8);
+    }
+}
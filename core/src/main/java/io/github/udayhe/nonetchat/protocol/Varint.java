@@ -0,0 +1,52 @@
+package io.github.udayhe.nonetchat.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned LEB128 varints, read with absolute indexes so callers control the cursor.
+ */
+public final class Varint {
+
+    /** Returned by {@link #read} when the buffer ends inside a varint. */
+    public static final long INCOMPLETE = -1;
+
+    private Varint() {
+    }
+
+    public static int size(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    public static void write(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * Reads the varint starting at {@code index}, not reading at or past {@code limit}.
+     * Returns the value, or {@link #INCOMPLETE}; the encoded size is {@link #size} of the value.
+     * Only non-negative 63-bit values are accepted.
+     */
+    public static long read(ByteBuffer in, int index, int limit) throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            if (index >= limit) return INCOMPLETE;
+            byte b = in.get(index++);
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                if (shift > 0 && b == 0) throw new ProtocolException("Non-canonical varint");
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint too long");
+    }
+}
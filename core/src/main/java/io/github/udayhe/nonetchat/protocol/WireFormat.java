@@ -0,0 +1,92 @@
+package io.github.udayhe.nonetchat.protocol;
+
+/**
+ * Frame layout shared by every peer:
+ * <pre>
+ * frame := length:varint type:u8 body        (length counts type + body)
+ * HELLO := magic:u16 minVersion:u8 maxVersion:u8 username:str [flags:u8 [lastReceivedId:u64]]
+ * CHAT  := id:u64 timestamp:varint sender:str recipient:str content:str
+ * ROSTER := count:varint username:str*      (group owner first, then every client)
+ * STREAM := streamId:varint flags:u8 data    (one chunk of a multiplexed stream message)
+ * CREDIT := streamId:varint bytes:varint     (receiver lets the sender put more on a stream)
+ * PING  := nonce:varint                      (answered by a PONG echoing the nonce)
+ * PONG  := nonce:varint
+ * ACK   := status:u8 sender:str recipient:str count:varint id:u64*   (receipts for recipient's CHATs)
+ * COMPRESSED := deflated                     (version 2: one whole frame, raw deflate, sync-flushed)
+ * HANDOVER := kind:u8 fields                 (group-owner succession, see below)
+ * str   := length:varint utf8-bytes
+ * </pre>
+ * A HELLO with {@link #HELLO_RESUME} set asks to resume an earlier session: its
+ * {@code lastReceivedId} names the last CHAT received from the other side, which then
+ * replays whatever followed it. A HELLO without flags is a fresh session.
+ * Decoders skip frame types they do not know and ignore trailing bytes in a known body,
+ * so newer peers may append fields without breaking older ones. Anything that changes the
+ * meaning of existing bytes needs a new version, agreed through {@link #negotiate}.
+ * <p>
+ * Version 2 lets either side send COMPRESSED frames after the HELLOs. Each connection
+ * direction is one deflate stream, so a COMPRESSED frame can only be inflated after every
+ * one before it; see {@link FrameDeflater}.
+ * <p>
+ * HANDOVER frames let the group leave with its owner. A client able to host sends
+ * CANDIDATE {@code port:varint}; the owner names one of them to every client with
+ * SUCCESSOR {@code name:str host:str port:varint}, sends it REPLICA {@code frame} copies
+ * of the CHAT frames it does not otherwise see, and sends RESIGN when it leaves. The
+ * recent frames a newly named successor missed come on a stream instead, one REPLICA per
+ * stream message, and are older than every REPLICA sent outside it. Peers that predate
+ * them simply skip these frames.
+ */
+public final class WireFormat {
+
+    public static final int MAGIC = 0x4E43; // "NC"
+
+    public static final int VERSION_1 = 1;
+    public static final int MIN_VERSION = VERSION_1;
+    public static final int VERSION_2 = 2;
+    public static final int MAX_VERSION = VERSION_2;
+
+    public static final int TYPE_HELLO = 1;
+    public static final int TYPE_CHAT = 2;
+    public static final int TYPE_ROSTER = 3;
+    public static final int TYPE_STREAM = 4;
+    public static final int TYPE_CREDIT = 5;
+    public static final int TYPE_PING = 6;
+    public static final int TYPE_PONG = 7;
+    public static final int TYPE_ACK = 8;
+    public static final int TYPE_COMPRESSED = 9;
+    public static final int TYPE_HANDOVER = 10;
+
+    /** HANDOVER kinds. */
+    public static final int HANDOVER_CANDIDATE = 1;
+    public static final int HANDOVER_SUCCESSOR = 2;
+    public static final int HANDOVER_REPLICA = 3;
+    public static final int HANDOVER_RESIGN = 4;
+
+    /** ACK status: the messages reached the acknowledging user's device. */
+    public static final int ACK_DELIVERED = 1;
+    /** ACK status: the messages were shown to the acknowledging user. */
+    public static final int ACK_READ = 2;
+
+    /** HELLO flag asking to resume; {@code lastReceivedId} follows the flags. */
+    public static final int HELLO_RESUME = 0x01;
+
+    /** STREAM flag marking the last chunk of a message. */
+    public static final int STREAM_END = 0x01;
+    /** STREAM flag closing the stream: nothing more is sent on it and its id is spent. */
+    public static final int STREAM_CLOSE = 0x02;
+
+    /** CHAT recipient that the group owner relays to every member except the sender. */
+    public static final String RECIPIENT_ALL = "all";
+
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+
+    private WireFormat() {
+    }
+
+    /**
+     * Highest version both ranges support, or -1 when they do not overlap.
+     */
+    public static int negotiate(int localMin, int localMax, int remoteMin, int remoteMax) {
+        int version = Math.min(localMax, remoteMax);
+        return version >= Math.max(localMin, remoteMin) ? version : -1;
+    }
+}
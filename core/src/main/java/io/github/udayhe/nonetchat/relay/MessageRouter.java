@@ -0,0 +1,544 @@
+package io.github.udayhe.nonetchat.relay;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.udayhe.nonetchat.delivery.AckBatcher;
+import io.github.udayhe.nonetchat.log.ChatLog;
+import io.github.udayhe.nonetchat.mux.StreamMultiplexer;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.Utf8Slice;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+import io.github.udayhe.nonetchat.sender.MultiPeerChatSender;
+import io.github.udayhe.nonetchat.sender.PeerWriter;
+import io.github.udayhe.nonetchat.sender.Priority;
+import io.github.udayhe.nonetchat.server.ChatConnection;
+import io.github.udayhe.nonetchat.session.Replica;
+import io.github.udayhe.nonetchat.session.ReplayBuffer;
+import io.github.udayhe.nonetchat.session.Roster;
+import io.github.udayhe.nonetchat.session.RosterSnapshot;
+
+/**
+ * Routing on the group owner. Client CHAT frames are forwarded by comparing the encoded
+ * recipient against the roster and queueing the frame's own bytes, so relayed traffic is
+ * never turned into {@link Message}s; only frames for the owner reach the listener.
+ * <p>
+ * Every CHAT frame sent to a client is also kept in its {@link PeerSession}, which
+ * outlives the connection for {@link #DEFAULT_RESUME_WINDOW_MILLIS}. A client that
+ * reconnects within that window resumes: what it missed is replayed, and messages for it
+ * in the meantime are held instead of being dropped as unroutable.
+ * <p>
+ * ACK frames travel back to the original sender the same way, but are never held: a lost
+ * receipt is repaired by the sender retransmitting and the message being acked again.
+ * <p>
+ * Of the clients that offered to host, the earliest to join is named successor. It gets a
+ * copy of every CHAT frame routed here that it would not otherwise see, so if the owner
+ * leaves it can {@link #adopt} the group and let everyone else resume with it.
+ */
+public class MessageRouter {
+
+    private static final String TAG = "MessageRouter";
+    private static final byte[] ALL = WireFormat.RECIPIENT_ALL.getBytes(StandardCharsets.UTF_8);
+
+    public static final long DEFAULT_RESUME_WINDOW_MILLIS = 2 * 60 * 1000;
+
+    public interface Listener {
+        /**
+         * A CHAT frame addressed to the owner or to everyone, or an ACK for a message the
+         * owner sent. Runs on the I/O thread and the frame is only valid for the duration
+         * of the call.
+         */
+        void onMessage(Frame frame);
+
+        /** The owner first, then every client in join order. */
+        void onRosterChanged(List<String> roster);
+    }
+
+    private final String localName;
+    private final byte[] localNameBytes;
+    private final MultiPeerChatSender sender;
+    private final Listener listener;
+    private final Roster<PeerWriter> clients = new Roster<>();
+    private final ConcurrentMap<String, PeerSession> sessions = new ConcurrentHashMap<>();
+    private volatile long resumeWindowMillis = DEFAULT_RESUME_WINDOW_MILLIS;
+    private volatile AckBatcher ackBatcher;
+    private final Object publishLock = new Object();
+    private long publishedVersion;
+
+    private final AtomicLong relayedCount = new AtomicLong();
+    private final AtomicLong broadcastCount = new AtomicLong();
+    private final AtomicLong unroutableCount = new AtomicLong();
+    private final AtomicLong spoofedCount = new AtomicLong();
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private final AtomicLong replayedCount = new AtomicLong();
+    private final AtomicLong heldCount = new AtomicLong();
+
+    private final Map<String, InetSocketAddress> candidates = new ConcurrentHashMap<>();
+    private final ReplayBuffer recent = new ReplayBuffer(Replica.DEFAULT_CAPACITY);
+    private final Object handoverLock = new Object();
+    private volatile String successor;
+    private volatile ByteBuffer successorFrame;
+    private final AtomicLong replicatedCount = new AtomicLong();
+
+    public MessageRouter(String localName, MultiPeerChatSender sender, Listener listener) {
+        this.localName = localName;
+        this.localNameBytes = localName.getBytes(StandardCharsets.UTF_8);
+        this.sender = sender;
+        this.listener = listener;
+    }
+
+    public String getLocalName() {
+        return localName;
+    }
+
+    public void setResumeWindowMillis(long resumeWindowMillis) {
+        this.resumeWindowMillis = resumeWindowMillis;
+    }
+
+    /**
+     * Acknowledges, through {@code ackBatcher}, every CHAT frame for the owner or for
+     * everyone, retransmissions included. Null turns receipts off.
+     */
+    public void setAckBatcher(AckBatcher ackBatcher) {
+        this.ackBatcher = ackBatcher;
+    }
+
+    /**
+     * Sends an ACK frame to the client {@code username}; the owner's {@link AckBatcher.Sink}.
+     */
+    public boolean sendAck(String username, ByteBuffer frame) {
+        return sender.sendFrame(username, frame);
+    }
+
+    /**
+     * Adds a client under {@code username}, replacing any earlier connection with that name,
+     * and pushes the new roster to everyone. Returns false for the owner's name or "all".
+     */
+    public boolean join(String username, PeerWriter writer) {
+        return join(username, writer, false, 0);
+    }
+
+    /**
+     * Like {@link #join(String, PeerWriter)}, but with {@code resume} set and the client's
+     * session still resumable, first queues every CHAT frame sent to it after
+     * {@code lastReceivedId}.
+     */
+    public boolean join(String username, PeerWriter writer, boolean resume, long lastReceivedId) {
+        if (username.equals(localName) || username.equals(WireFormat.RECIPIENT_ALL)) return false;
+        PeerSession session = resume ? resumableSession(username) : null;
+        if (session == null) {
+            session = new PeerSession();
+            sessions.put(username, session);
+            resume = false;
+        }
+        synchronized (session) {
+            // Recording takes this lock too, so a frame is either replayed here or sent
+            // after the writer is registered; never neither.
+            if (resume) {
+                List<ByteBuffer> missed = session.replay.after(lastReceivedId);
+                for (int i = 0; i < missed.size(); i++) writer.send(missed.get(i));
+                replayedCount.addAndGet(missed.size());
+            }
+            session.writer = writer;
+            clients.put(username, writer);
+            sender.addPeer(username, writer);
+        }
+        publishRoster();
+        ByteBuffer announced = successorFrame;
+        if (announced != null) writer.trySend(announced, null, Priority.CONTROL);
+        return true;
+    }
+
+    /**
+     * Removes {@code username} if it is still served by {@code writer}. Its session is kept
+     * for the resume window.
+     */
+    public void leave(String username, PeerWriter writer) {
+        if (!clients.remove(username, writer)) return;
+        long now = now();
+        PeerSession session = sessions.get(username);
+        if (session != null) {
+            synchronized (session) {
+                if (session.writer == writer) {
+                    session.writer = null;
+                    session.departedAtMillis = now;
+                }
+            }
+        }
+        sender.removePeer(username, writer);
+        publishRoster();
+        if (candidates.remove(username) != null) elect();
+        for (Map.Entry<String, PeerSession> entry : sessions.entrySet()) {
+            if (entry.getValue().isExpired(now, resumeWindowMillis)) sessions.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Whether {@code username} has a session that a reconnect may resume; its last
+     * received CHAT id is then {@link #getLastReceivedId}.
+     */
+    public boolean canResume(String username) {
+        return resumableSession(username) != null;
+    }
+
+    public long getLastReceivedId(String username) {
+        PeerSession session = sessions.get(username);
+        return session != null ? session.getLastReceivedId() : 0;
+    }
+
+    /**
+     * Routes a frame received from the client registered as {@code from}. CREDIT frames
+     * feed the owner's stream multiplexer for that client.
+     */
+    public void route(String from, Frame frame) {
+        if (frame.getType() == WireFormat.TYPE_HANDOVER) {
+            if (frame.getHandoverKind() == WireFormat.HANDOVER_CANDIDATE) addCandidate(from, frame.getPort());
+            return;
+        }
+        if (frame.getType() == WireFormat.TYPE_CREDIT) {
+            sender.onCredit(from, frame.getStreamId(), frame.getCredit());
+            return;
+        }
+        if (frame.getType() != WireFormat.TYPE_CHAT && frame.getType() != WireFormat.TYPE_ACK) return;
+        RosterSnapshot<PeerWriter> current = clients.snapshot();
+        int origin = current.indexOf(from);
+        if (origin < 0 || current.indexOf(frame.getSender()) != origin) {
+            spoofedCount.incrementAndGet();
+            ChatLog.w(TAG, "Dropping frame from " + from + " claiming to be " + frame.getSender());
+            return;
+        }
+
+        Utf8Slice recipient = frame.getRecipient();
+        if (frame.getType() == WireFormat.TYPE_ACK) {
+            routeAck(from, current, frame);
+            return;
+        }
+
+        PeerSession session = sessions.get(from);
+        if (session != null && !session.accept(frame.getId())) {
+            duplicateCount.incrementAndGet();
+            redeliver(current, frame);
+            return;
+        }
+
+        if (recipient.contentEquals(ALL)) {
+            broadcastCount.incrementAndGet();
+            ByteBuffer copy = frame.copyEncoded().asReadOnlyBuffer();
+            recordForAll(frame.getId(), copy, from);
+            if (current.size() > 1) sender.broadcast(copy, from);
+            replicate(from, WireFormat.RECIPIENT_ALL, frame.getId(), copy);
+            acknowledge(frame);
+            listener.onMessage(frame);
+        } else if (recipient.contentEquals(localNameBytes)) {
+            // Only the sender's last id matters to a successor, but that needs the frame.
+            replicate(from, localName, frame.getId(), frame.copyEncoded());
+            acknowledge(frame);
+            listener.onMessage(frame);
+        } else {
+            int target = current.indexOf(recipient);
+            String name = target >= 0 ? current.nameAt(target) : recipient.toString();
+            ByteBuffer copy = frame.copyEncoded();
+            replicate(from, name, frame.getId(), copy);
+            if (deliver(name, frame.getId(), copy)) {
+                relayedCount.incrementAndGet();
+            } else {
+                unroutableCount.incrementAndGet();
+                if (ChatLog.isLoggable(ChatLog.DEBUG)) ChatLog.d(TAG, "No route from " + from + " to " + recipient);
+            }
+        }
+    }
+
+    /**
+     * Sends a message written on the owner itself.
+     */
+    public boolean send(Message message) {
+        if (WireFormat.RECIPIENT_ALL.equals(message.getRecipient())) {
+            ByteBuffer frame = FrameEncoder.encodeChat(message).asReadOnlyBuffer();
+            recordForAll(message.getId(), frame, null);
+            sender.broadcast(frame);
+            replicate(localName, WireFormat.RECIPIENT_ALL, message.getId(), frame);
+            return true;
+        }
+        ByteBuffer frame = FrameEncoder.encodeChat(message);
+        replicate(localName, message.getRecipient(), message.getId(), frame);
+        return deliver(message.getRecipient(), message.getId(), frame);
+    }
+
+    /** The client that takes over if this owner leaves, or null if none offered. */
+    public String getSuccessor() {
+        return successor;
+    }
+
+    /**
+     * Tells every client the owner is leaving, so they move to the successor at once
+     * instead of first retrying this owner. Call before closing the server.
+     */
+    public void resign() {
+        ChatLog.i(TAG, "Resigning" + (successor != null ? " to " + successor : " with no successor"));
+        sender.broadcast(FrameEncoder.encodeResign().asReadOnlyBuffer(), null, Priority.CONTROL);
+    }
+
+    /**
+     * Takes over the group {@code formerOwner} left, as its successor: every other member
+     * the replica saw gets a resumable session, holding the replicated frames
+     * addressed to it, so reconnecting clients resume as they would with the old owner.
+     * Call before serving.
+     */
+    public void adopt(Replica replica, String formerOwner) {
+        long now = now();
+        List<String> members = replica.getMembers();
+        for (String name : members) {
+            if (name.equals(localName) || name.equals(formerOwner) || name.equals(WireFormat.RECIPIENT_ALL)) continue;
+            PeerSession session = new PeerSession();
+            session.departedAtMillis = now;
+            sessions.putIfAbsent(name, session);
+        }
+        FrameDecoder decoder = new FrameDecoder();
+        Frame frame = new Frame();
+        List<ByteBuffer> frames = replica.getFrames();
+        for (int i = 0; i < frames.size(); i++) {
+            ByteBuffer encoded = frames.get(i);
+            try {
+                if (!decoder.next(encoded.duplicate(), frame) || frame.getType() != WireFormat.TYPE_CHAT) continue;
+            } catch (ProtocolException e) {
+                ChatLog.w(TAG, "Skipping corrupt replica frame", e);
+                continue;
+            }
+            String from = frame.getSenderName();
+            PeerSession origin = sessions.get(from);
+            if (origin != null) origin.accept(frame.getId());
+            if (frame.getRecipient().contentEquals(ALL)) {
+                recordForAll(frame.getId(), encoded, from);
+            } else {
+                PeerSession target = sessions.get(frame.getRecipientName());
+                if (target != null) {
+                    synchronized (target) {
+                        target.replay.add(frame.getId(), encoded);
+                    }
+                }
+            }
+            recent.add(frame.getId(), encoded);
+        }
+        ChatLog.i(TAG, "Adopted group of " + formerOwner + ": " + members.size() + " members, "
+                + frames.size() + " recent frames");
+    }
+
+    /** CHAT frames copied to the successor. */
+    public long getReplicatedCount() {
+        return replicatedCount.get();
+    }
+
+    /**
+     * Address a client connected from, for side channels such as file transfers.
+     */
+    public InetAddress getRemoteAddress(String username) {
+        PeerWriter writer = clients.snapshot().get(username);
+        if (!(writer instanceof ChatConnection)) return null;
+        SocketAddress address = ((ChatConnection) writer).getRemoteAddress();
+        return address instanceof InetSocketAddress ? ((InetSocketAddress) address).getAddress() : null;
+    }
+
+    public List<String> getRoster() {
+        return rosterOf(clients.snapshot());
+    }
+
+    public long getRelayedCount() {
+        return relayedCount.get();
+    }
+
+    public long getBroadcastCount() {
+        return broadcastCount.get();
+    }
+
+    public long getUnroutableCount() {
+        return unroutableCount.get();
+    }
+
+    public long getSpoofedCount() {
+        return spoofedCount.get();
+    }
+
+    /**
+     * CHAT frames a client sent again, after resuming or retransmitting. They are acked or
+     * passed on for their recipient to ack, but neither shown nor replayed twice.
+     */
+    public long getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+    public long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    /** Frames kept for a disconnected client to collect when it resumes. */
+    public long getHeldCount() {
+        return heldCount.get();
+    }
+
+    /**
+     * Sends a CHAT frame to {@code username}, keeping it for replay. A client that is away
+     * but still resumable gets it on its return.
+     */
+    private boolean deliver(String username, long id, ByteBuffer frame) {
+        PeerSession session = sessions.get(username);
+        if (session == null) return sender.sendFrame(username, frame);
+        boolean connected;
+        synchronized (session) {
+            session.replay.add(id, frame);
+            connected = session.writer != null;
+        }
+        if (connected && sender.sendFrame(username, frame)) return true;
+        if (session.isExpired(now(), resumeWindowMillis)) return false;
+        heldCount.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * A duplicate's first copy was delivered, but its receipt may have been lost. Frames
+     * the owner acknowledges are acked again; others go to their recipient, which acks
+     * them, and are not recorded for replay a second time.
+     */
+    private void redeliver(RosterSnapshot<PeerWriter> current, Frame frame) {
+        Utf8Slice recipient = frame.getRecipient();
+        if (recipient.contentEquals(ALL) || recipient.contentEquals(localNameBytes)) {
+            acknowledge(frame);
+            return;
+        }
+        int target = current.indexOf(recipient);
+        if (target >= 0) sender.sendFrame(current.nameAt(target), frame.copyEncoded());
+    }
+
+    private void routeAck(String from, RosterSnapshot<PeerWriter> current, Frame frame) {
+        Utf8Slice recipient = frame.getRecipient();
+        if (recipient.contentEquals(localNameBytes)) {
+            listener.onMessage(frame);
+            return;
+        }
+        int target = current.indexOf(recipient);
+        if (target < 0 || !sender.sendFrame(current.nameAt(target), frame.copyEncoded())) {
+            unroutableCount.incrementAndGet();
+            if (ChatLog.isLoggable(ChatLog.DEBUG)) ChatLog.d(TAG, "No route for receipts from " + from + " to " + recipient);
+        }
+    }
+
+    private void acknowledge(Frame frame) {
+        AckBatcher batcher = ackBatcher;
+        if (batcher != null) batcher.add(frame.getSenderName(), frame.getId(), WireFormat.ACK_DELIVERED);
+    }
+
+    private void recordForAll(long id, ByteBuffer frame, String excluded) {
+        for (Map.Entry<String, PeerSession> entry : sessions.entrySet()) {
+            if (entry.getKey().equals(excluded)) continue;
+            PeerSession session = entry.getValue();
+            synchronized (session) {
+                session.replay.add(id, frame);
+            }
+        }
+    }
+
+    private void addCandidate(String username, int port) {
+        InetAddress address = getRemoteAddress(username);
+        if (address == null || port <= 0) return;
+        candidates.put(username, new InetSocketAddress(address, port));
+        elect();
+    }
+
+    /**
+     * Names the earliest-joined candidate successor, announcing any change to everyone and
+     * catching a new successor up on the recent frames. The catch-up can run to hundreds of
+     * frames, so it goes on a BULK stream that yields to the chat routed meanwhile. Joins
+     * never change the choice.
+     * Running out of candidates is not announced: clients keep the last successor, which
+     * they fall back from if it does not answer, and a closing server dropping its clients
+     * one by one cannot clear it before the last of them is gone.
+     */
+    private void elect() {
+        synchronized (handoverLock) {
+            String chosen = null;
+            List<String> names = clients.snapshot().getNames();
+            for (int i = 0; i < names.size() && chosen == null; i++) {
+                if (candidates.containsKey(names.get(i))) chosen = names.get(i);
+            }
+            if (chosen == null ? successor == null : chosen.equals(successor)) return;
+            successor = chosen;
+            if (chosen == null) {
+                successorFrame = null;
+                ChatLog.i(TAG, "No successor left");
+                return;
+            }
+
+            InetSocketAddress address = candidates.get(chosen);
+            successorFrame = FrameEncoder.encodeSuccessor(chosen, address.getAddress().getHostAddress(),
+                    address.getPort()).asReadOnlyBuffer();
+            ChatLog.i(TAG, "Successor is now " + chosen + " at " + address);
+            sender.broadcast(successorFrame, null, Priority.CONTROL);
+            List<ByteBuffer> backlog = recent.after(0);
+            StreamMultiplexer mux = sender.getMultiplexer(chosen);
+            if (backlog.isEmpty() || mux == null) return;
+            long stream = mux.open(Priority.BULK);
+            for (int i = 0; i < backlog.size(); i++) {
+                if (mux.write(stream, FrameEncoder.encodeReplica(backlog.get(i)))) replicatedCount.incrementAndGet();
+            }
+            mux.close(stream);
+        }
+    }
+
+    /**
+     * Keeps a CHAT frame for a future successor and copies it to the current one, unless
+     * routing already sends it there.
+     */
+    private void replicate(String from, String to, long id, ByteBuffer frame) {
+        recent.add(id, frame);
+        String heir = successor;
+        if (heir == null || heir.equals(to) || to.equals(WireFormat.RECIPIENT_ALL) && !heir.equals(from)) return;
+        if (sender.sendFrame(heir, FrameEncoder.encodeReplica(frame))) replicatedCount.incrementAndGet();
+    }
+
+    private PeerSession resumableSession(String username) {
+        PeerSession session = sessions.get(username);
+        if (session == null || !session.isExpired(now(), resumeWindowMillis)) return session;
+        sessions.remove(username, session);
+        return null;
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Announces the latest roster. Concurrent joins and leaves may call this out of order,
+     * so each call re-reads the current snapshot and older versions are never sent last.
+     */
+    private void publishRoster() {
+        synchronized (publishLock) {
+            RosterSnapshot<PeerWriter> snapshot = clients.snapshot();
+            if (snapshot.getVersion() <= publishedVersion) return;
+            publishedVersion = snapshot.getVersion();
+            List<String> roster = rosterOf(snapshot);
+            sender.broadcast(FrameEncoder.encodeRoster(roster).asReadOnlyBuffer(), null, Priority.CONTROL);
+            listener.onRosterChanged(roster);
+        }
+    }
+
+    private List<String> rosterOf(RosterSnapshot<PeerWriter> snapshot) {
+        List<String> roster = new ArrayList<>(snapshot.size() + 1);
+        roster.add(localName);
+        roster.addAll(snapshot.getNames());
+        return Collections.unmodifiableList(roster);
+    }
+}
@@ -0,0 +1,38 @@
+package io.github.udayhe.nonetchat.relay;
+
+import io.github.udayhe.nonetchat.mesh.SeenCache;
+import io.github.udayhe.nonetchat.sender.PeerWriter;
+import io.github.udayhe.nonetchat.session.ReplayBuffer;
+
+/**
+ * What the group owner keeps about one client across reconnects: the CHAT frames sent
+ * to it for replay, and the ids received from it to answer a resume and drop replayed
+ * duplicates. Guarded by its own monitor.
+ */
+final class PeerSession {
+
+    private static final int SEEN_CAPACITY = 1024;
+
+    final ReplayBuffer replay = new ReplayBuffer();
+    private final SeenCache seen = new SeenCache(SEEN_CAPACITY);
+    PeerWriter writer;
+    long departedAtMillis;
+    long lastReceivedId;
+
+    /**
+     * Records a CHAT id from the client; false if it was already received.
+     */
+    synchronized boolean accept(long id) {
+        if (!seen.add(id)) return false;
+        lastReceivedId = id;
+        return true;
+    }
+
+    synchronized long getLastReceivedId() {
+        return lastReceivedId;
+    }
+
+    synchronized boolean isExpired(long nowMillis, long windowMillis) {
+        return writer == null && nowMillis - departedAtMillis > windowMillis;
+    }
+}
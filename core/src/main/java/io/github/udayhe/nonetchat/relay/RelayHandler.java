@@ -0,0 +1,143 @@
+package io.github.udayhe.nonetchat.relay;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import io.github.udayhe.nonetchat.log.ChatLog;
+import io.github.udayhe.nonetchat.metrics.MetricsRegistry;
+import io.github.udayhe.nonetchat.metrics.PeerMetrics;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.FrameDeflater;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.FrameInflater;
+import io.github.udayhe.nonetchat.protocol.NameTable;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+import io.github.udayhe.nonetchat.sender.OutboundQueue;
+import io.github.udayhe.nonetchat.sender.Priority;
+import io.github.udayhe.nonetchat.server.ChatConnection;
+import io.github.udayhe.nonetchat.server.ChatServer;
+
+/**
+ * Group-owner side of the protocol: expects HELLO first, answers it, then answers PINGs
+ * and hands every other frame to the {@link MessageRouter}.
+ */
+public class RelayHandler implements ChatServer.Handler {
+
+    private static final String TAG = "RelayHandler";
+
+    private final MessageRouter router;
+    private final FrameDecoder decoder;
+    private final int maxFrameLength;
+    private final Frame frame = new Frame();
+    private volatile MetricsRegistry metrics;
+    private volatile boolean compression = true;
+
+    public RelayHandler(MessageRouter router) {
+        this(router, WireFormat.DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public RelayHandler(MessageRouter router, int maxFrameLength) {
+        this.router = router;
+        this.decoder = new FrameDecoder(maxFrameLength);
+        this.maxFrameLength = maxFrameLength;
+        frame.setNameTable(new NameTable());
+    }
+
+    /**
+     * Whether to compress what is sent to clients that speak {@link WireFormat#VERSION_2};
+     * on by default. Their compressed frames are inflated either way.
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /** Reports each client's traffic and queue waits into {@code metrics}. */
+    public void setMetrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void onOpen(ChatConnection connection) {
+        ChatLog.d(TAG, "Client connected: " + connection.getRemoteAddress());
+    }
+
+    @Override
+    public void onRead(ChatConnection connection, ByteBuffer in) throws IOException {
+        while (decoder.next(in, frame)) {
+            PeerMetrics peer = connection.getMetrics();
+            if (peer != null) peer.onReceived(frame.getEncodedLength());
+            FrameInflater inflater = connection.getInflater();
+            if (frame.getType() == WireFormat.TYPE_COMPRESSED && inflater != null) {
+                ByteBuffer inflated = inflater.inflate(frame);
+                while (decoder.next(inflated, frame)) {
+                    if (frame.getType() == WireFormat.TYPE_COMPRESSED) throw new ProtocolException("Nested COMPRESSED frame");
+                    handle(connection, frame);
+                    if (connection.isClosed()) return;
+                }
+                if (inflated.hasRemaining()) throw new ProtocolException("COMPRESSED frame ends inside a frame");
+            } else {
+                handle(connection, frame);
+                if (connection.isClosed()) return;
+            }
+        }
+    }
+
+    private void handle(ChatConnection connection, Frame frame) throws ProtocolException {
+        String username = (String) connection.getAttachment();
+        if (username == null) {
+            register(connection, frame);
+        } else if (frame.getType() == WireFormat.TYPE_PING) {
+            connection.trySend(FrameEncoder.encodePong(frame.getNonce()), null, Priority.CONTROL);
+        } else if (frame.getType() != WireFormat.TYPE_PONG) {
+            router.route(username, frame);
+        }
+    }
+
+    @Override
+    public void onClose(ChatConnection connection, IOException cause) {
+        String username = (String) connection.getAttachment();
+        if (username == null) return;
+        ChatLog.w(TAG, "Client disconnected: " + username);
+        router.leave(username, connection);
+    }
+
+    private void register(ChatConnection connection, Frame hello) throws ProtocolException {
+        if (hello.getType() != WireFormat.TYPE_HELLO) {
+            throw new ProtocolException("Expected HELLO, got frame type " + hello.getType());
+        }
+        int version = WireFormat.negotiate(WireFormat.MIN_VERSION, WireFormat.MAX_VERSION,
+                hello.getMinVersion(), hello.getMaxVersion());
+        if (version < 0) {
+            throw new ProtocolException("No common protocol version with " + connection.getRemoteAddress());
+        }
+        String username = hello.getUsername().toString();
+        if (username.trim().isEmpty()) {
+            ChatLog.w(TAG, "Username is null or empty. Skipping client.");
+            connection.close();
+            return;
+        }
+
+        ChatLog.d(TAG, "Received username: " + username + (hello.isResume() ? " (resuming)" : ""));
+        boolean resume = hello.isResume() && router.canResume(username);
+        connection.send(FrameEncoder.encodeHello(router.getLocalName(), version, version,
+                resume, resume ? router.getLastReceivedId(username) : 0));
+        connection.setAttachment(username);
+        if (version >= WireFormat.VERSION_2) {
+            // After our HELLO, which the deflater never compresses anyway.
+            connection.setCompression(compression ? new FrameDeflater() : null, new FrameInflater(maxFrameLength));
+        }
+        MetricsRegistry registry = metrics;
+        if (registry != null) {
+            // Before joining, so frames replayed on resume are counted too.
+            connection.setMetrics(registry.peer(username));
+            connection.getQueue().setWaitHistogram(registry.histogram(OutboundQueue.WAIT_METRIC));
+        }
+        if (!router.join(username, connection, resume, hello.getResumeId())) {
+            ChatLog.w(TAG, "Username " + username + " is reserved. Closing client.");
+            connection.setAttachment(null);
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package io.github.udayhe.nonetchat.sender;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Per-peer outcome of one {@link MultiPeerChatSender#broadcast}. Settles once every peer
+ * that was connected at broadcast time has written, dropped or failed the frame.
+ */
+public class BroadcastResult {
+
+    public interface Listener {
+        void onComplete(BroadcastResult result);
+    }
+
+    private final String[] peers;
+    private final AtomicReferenceArray<SendCallback.Outcome> outcomes;
+    private final AtomicInteger remaining;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final long startNanos = System.nanoTime();
+    private volatile long completedNanos;
+    private final AtomicReference<Listener> listener = new AtomicReference<>();
+
+    BroadcastResult(String[] peers) {
+        this.peers = peers;
+        this.outcomes = new AtomicReferenceArray<>(peers.length);
+        this.remaining = new AtomicInteger(peers.length);
+        if (peers.length == 0) settle();
+    }
+
+    SendCallback callbackFor(final int index) {
+        return outcome -> {
+            if (outcomes.compareAndSet(index, null, outcome) && remaining.decrementAndGet() == 0) settle();
+        };
+    }
+
+    /**
+     * Runs {@code listener} once the result settles, immediately if it already has.
+     */
+    public void setListener(Listener listener) {
+        this.listener.set(listener);
+        if (isDone()) notifyListener();
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    public int getPeerCount() {
+        return peers.length;
+    }
+
+    public int count(SendCallback.Outcome outcome) {
+        int n = 0;
+        for (int i = 0; i < peers.length; i++) {
+            if (outcomes.get(i) == outcome) n++;
+        }
+        return n;
+    }
+
+    /**
+     * Snapshot of outcomes so far; peers still in flight map to null.
+     */
+    public Map<String, SendCallback.Outcome> getOutcomes() {
+        Map<String, SendCallback.Outcome> snapshot = new LinkedHashMap<>();
+        for (int i = 0; i < peers.length; i++) snapshot.put(peers[i], outcomes.get(i));
+        return snapshot;
+    }
+
+    /**
+     * Nanoseconds from the broadcast call until the last peer settled, or -1 while pending.
+     */
+    public long getElapsedNanos() {
+        return isDone() ? completedNanos - startNanos : -1;
+    }
+
+    private void settle() {
+        completedNanos = System.nanoTime();
+        done.countDown();
+        notifyListener();
+    }
+
+    private void notifyListener() {
+        Listener l = listener.getAndSet(null);
+        if (l != null) l.onComplete(this);
+    }
+}
@@ -0,0 +1,202 @@
+package io.github.udayhe.nonetchat.sender;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import io.github.udayhe.nonetchat.exec.ConnectionExecutor;
+import io.github.udayhe.nonetchat.log.ChatLog;
+import io.github.udayhe.nonetchat.mux.StreamMultiplexer;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+
+public class MultiPeerChatSender {
+
+    private static final String TAG = "MultiPeerChatSender";
+
+    private final ConcurrentMap<String, PeerWriter> peers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<PeerWriter, StreamMultiplexer> multiplexers = new ConcurrentHashMap<>();
+    private final int queueCapacity;
+    private final OutboundQueue.Policy queuePolicy;
+    private volatile ConnectionExecutor executor;
+
+    public MultiPeerChatSender() {
+        this(OutboundQueue.DEFAULT_CAPACITY, OutboundQueue.Policy.DISCONNECT);
+    }
+
+    public MultiPeerChatSender(int queueCapacity, OutboundQueue.Policy queuePolicy) {
+        this.queueCapacity = queueCapacity;
+        this.queuePolicy = queuePolicy;
+    }
+
+    /**
+     * Runs the writer loops of streams added afterwards on {@code executor} instead of
+     * threads of their own.
+     */
+    public void setExecutor(ConnectionExecutor executor) {
+        this.executor = executor;
+    }
+
+    public void addPeer(String username, PeerWriter writer) {
+        PeerWriter previous = peers.put(username, writer);
+        if (previous != null && previous != writer) close(previous);
+        ChatLog.d(TAG, "Writer added for: " + username);
+    }
+
+    public void addUserStream(String username, OutputStream out) {
+        addPeer(username, new StreamPeerWriter(username, out, newQueue(), executor));
+    }
+
+    public OutboundQueue newQueue() {
+        return new OutboundQueue(queueCapacity, queuePolicy);
+    }
+
+    public void removeUser(String username) {
+        PeerWriter writer = peers.remove(username);
+        if (writer != null) {
+            close(writer);
+            ChatLog.d(TAG, "Writer removed for: " + username);
+        }
+    }
+
+    /**
+     * Removes {@code username} only while it is still bound to {@code writer}, so a stale
+     * connection closing late cannot evict the peer that replaced it.
+     */
+    public boolean removePeer(String username, PeerWriter writer) {
+        if (!peers.remove(username, writer)) return false;
+        close(writer);
+        ChatLog.d(TAG, "Writer removed for: " + username);
+        return true;
+    }
+
+    public boolean hasPeer(String username) {
+        return peers.containsKey(username);
+    }
+
+    /**
+     * Multiplexer for opening streams to {@code username}, created on first use and
+     * discarded with the peer's connection. Null if the peer is not connected.
+     */
+    public StreamMultiplexer getMultiplexer(String username) {
+        PeerWriter writer = peers.get(username);
+        if (writer == null || writer.isClosed()) return null;
+        StreamMultiplexer mux = multiplexers.get(writer);
+        if (mux == null) {
+            StreamMultiplexer created = new StreamMultiplexer(writer);
+            mux = multiplexers.putIfAbsent(writer, created);
+            if (mux == null) mux = created;
+        }
+        return mux;
+    }
+
+    /**
+     * Applies a CREDIT frame received from {@code username}.
+     */
+    public void onCredit(String username, long streamId, long bytes) {
+        PeerWriter writer = peers.get(username);
+        StreamMultiplexer mux = writer != null ? multiplexers.get(writer) : null;
+        if (mux != null) mux.onCredit(streamId, bytes);
+    }
+
+    public boolean sendToUser(String username, Message message) {
+        PeerWriter writer = peers.get(username);
+        if (writer == null) return false;
+        return send(username, writer, FrameEncoder.encodeChat(message));
+    }
+
+    /**
+     * Queues an already encoded frame for {@code username}, e.g. one being relayed.
+     */
+    public boolean sendFrame(String username, ByteBuffer frame) {
+        PeerWriter writer = peers.get(username);
+        if (writer == null) return false;
+        return send(username, writer, frame);
+    }
+
+    /**
+     * Encodes {@code message} once and queues the same read-only frame for every peer
+     * without waiting on any of them; slow peers are settled by their own queue policy.
+     */
+    public BroadcastResult broadcast(Message message) {
+        return broadcast(FrameEncoder.encodeChat(message).asReadOnlyBuffer());
+    }
+
+    public BroadcastResult broadcast(ByteBuffer frame) {
+        return broadcast(frame, null);
+    }
+
+    /**
+     * Broadcasts to every peer except {@code excluded}, typically the peer that sent it.
+     */
+    public BroadcastResult broadcast(ByteBuffer frame, String excluded) {
+        return broadcast(frame, excluded, Priority.INTERACTIVE);
+    }
+
+    public BroadcastResult broadcast(ByteBuffer frame, String excluded, Priority priority) {
+        Map.Entry<String, PeerWriter>[] entries = snapshot();
+        int count = 0;
+        for (Map.Entry<String, PeerWriter> entry : entries) {
+            if (!entry.getKey().equals(excluded)) entries[count++] = entry;
+        }
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) names[i] = entries[i].getKey();
+
+        BroadcastResult result = new BroadcastResult(names);
+        for (int i = 0; i < count; i++) {
+            PeerWriter writer = entries[i].getValue();
+            if (!writer.trySend(frame, result.callbackFor(i), priority) && writer.isClosed()
+                    && peers.remove(names[i], writer)) {
+                multiplexers.remove(writer);
+            }
+        }
+        return result;
+    }
+
+    public int getQueueDepth(String username) {
+        PeerWriter writer = peers.get(username);
+        return writer != null ? writer.getQueue().getDepth() : 0;
+    }
+
+    public int getTotalQueueDepth() {
+        int total = 0;
+        for (PeerWriter writer : peers.values()) total += writer.getQueue().getDepth();
+        return total;
+    }
+
+    public long getDroppedCount() {
+        long total = 0;
+        for (PeerWriter writer : peers.values()) {
+            OutboundQueue queue = writer.getQueue();
+            total += queue.getDroppedCount() + queue.getRejectedCount();
+        }
+        return total;
+    }
+
+    public void shutdown() {
+        for (PeerWriter writer : peers.values()) {
+            writer.close();
+        }
+        peers.clear();
+        multiplexers.clear();
+    }
+
+    private void close(PeerWriter writer) {
+        multiplexers.remove(writer);
+        writer.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map.Entry<String, PeerWriter>[] snapshot() {
+        return (Map.Entry<String, PeerWriter>[]) peers.entrySet().toArray(new Map.Entry<?, ?>[0]);
+    }
+
+    private boolean send(String username, PeerWriter writer, ByteBuffer frame) {
+        if (writer.send(frame)) return true;
+        if (writer.isClosed() && peers.remove(username, writer)) multiplexers.remove(writer);
+        ChatLog.w(TAG, "Failed to send to " + username);
+        return false;
+    }
+}
@@ -0,0 +1,291 @@
+package io.github.udayhe.nonetchat.sender;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import io.github.udayhe.nonetchat.metrics.Histogram;
+
+/**
+ * Bounded queue of encoded frames waiting for one peer, with one FIFO lane per
+ * {@link Priority}. Any thread may offer; a single consumer drains the highest lanes first,
+ * so chat queued after bulk data still goes out ahead of it. Capacity is shared by all lanes.
+ */
+public class OutboundQueue {
+
+    public enum Policy {
+        /** Producers wait for space, up to the configured timeout. */
+        BLOCK,
+        /** The oldest queued frame is discarded to make room. */
+        DROP_OLDEST,
+        /** The offer fails and the owner is expected to disconnect the peer. */
+        DISCONNECT
+    }
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final long DEFAULT_BLOCK_TIMEOUT_MILLIS = 2000;
+    /**
+     * A drain stops once it holds this many bytes, so a consumer never commits to a long
+     * run of bulk frames while chat may arrive behind it.
+     */
+    public static final int DRAIN_BYTE_BUDGET = 64 * 1024;
+
+    /** Registry name of the histogram that queues report their wait times into. */
+    public static final String WAIT_METRIC = "send.queue_wait_us";
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final int capacity;
+    private final ByteBuffer[][] rings;
+    private final SendCallback[][] callbacks;
+    private final long[][] offeredAt;
+    private final int[] heads;
+    private final int[] sizes;
+    private final Policy policy;
+    private final long blockTimeoutNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private int size;
+    private boolean closed;
+    private volatile Histogram waitHistogram;
+
+    private volatile int depth;
+    private volatile int highWatermark;
+    private volatile long enqueuedCount;
+    private volatile long droppedCount;
+    private volatile long rejectedCount;
+
+    public OutboundQueue(int capacity, Policy policy) {
+        this(capacity, policy, DEFAULT_BLOCK_TIMEOUT_MILLIS);
+    }
+
+    public OutboundQueue(int capacity, Policy policy, long blockTimeoutMillis) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        this.rings = new ByteBuffer[PRIORITIES.length][capacity];
+        this.callbacks = new SendCallback[PRIORITIES.length][capacity];
+        this.offeredAt = new long[PRIORITIES.length][capacity];
+        this.heads = new int[PRIORITIES.length];
+        this.sizes = new int[PRIORITIES.length];
+        this.policy = policy;
+        this.blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMillis);
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Records, in microseconds, how long each frame offered from now on waits before it is
+     * drained. Null stops recording.
+     */
+    public void setWaitHistogram(Histogram waitHistogram) {
+        this.waitHistogram = waitHistogram;
+    }
+
+    /**
+     * Queues {@code frame}, applying the overflow policy when full. Returns false when the
+     * frame was not queued: the queue is closed, BLOCK timed out or may not wait, or the
+     * policy is DISCONNECT. {@code callback} is not invoked for a refused frame; it is
+     * told {@link SendCallback.Outcome#DROPPED} if the frame is later evicted. DROP_OLDEST
+     * evicts from the lowest non-empty lane, never from a lane above {@code priority}.
+     */
+    public boolean offer(ByteBuffer frame, SendCallback callback, boolean mayBlock, Priority priority) {
+        SendCallback evicted = null;
+        int lane = priority.ordinal();
+        lock.lock();
+        try {
+            if (closed) return false;
+            if (size == capacity) {
+                int victim = policy == Policy.DROP_OLDEST ? lowestNonEmptyLane(lane) : -1;
+                if (victim >= 0) {
+                    evicted = callbacks[victim][heads[victim]];
+                    take(victim);
+                    droppedCount++;
+                } else if (policy == Policy.BLOCK && mayBlock && awaitSpace()) {
+                    // Space was made by the consumer.
+                } else {
+                    rejectedCount++;
+                    return false;
+                }
+            }
+            int tail = (heads[lane] + sizes[lane]) % capacity;
+            rings[lane][tail] = frame;
+            callbacks[lane][tail] = callback;
+            offeredAt[lane][tail] = waitHistogram != null ? System.nanoTime() : 0;
+            sizes[lane]++;
+            size++;
+            enqueuedCount++;
+            depth = size;
+            if (size > highWatermark) highWatermark = size;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (evicted != null) evicted.onComplete(SendCallback.Outcome.DROPPED);
+        return true;
+    }
+
+    public boolean offer(ByteBuffer frame, SendCallback callback, boolean mayBlock) {
+        return offer(frame, callback, mayBlock, Priority.INTERACTIVE);
+    }
+
+    public boolean offer(ByteBuffer frame, boolean mayBlock) {
+        return offer(frame, null, mayBlock);
+    }
+
+    public boolean offer(ByteBuffer frame) {
+        return offer(frame, null, true);
+    }
+
+    /**
+     * Moves up to {@code frames.length} queued frames, and their callbacks, into the given
+     * arrays without waiting.
+     */
+    public int drainTo(ByteBuffer[] frames, SendCallback[] callbacksOut) {
+        lock.lock();
+        try {
+            return drainLocked(frames, callbacksOut);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until something is queued, then drains like {@link #drainTo}. Returns -1 once
+     * the queue is closed and empty.
+     */
+    public int awaitAndDrain(ByteBuffer[] frames, SendCallback[] callbacksOut) throws InterruptedException {
+        lock.lock();
+        try {
+            while (size == 0) {
+                if (closed) return -1;
+                notEmpty.await();
+            }
+            return drainLocked(frames, callbacksOut);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return depth == 0;
+    }
+
+    /**
+     * Refuses further offers and discards whatever is still queued, failing its callbacks.
+     */
+    public void close() {
+        SendCallback[] pending;
+        lock.lock();
+        try {
+            if (closed) return;
+            closed = true;
+            pending = new SendCallback[size];
+            int n = 0;
+            for (int lane = 0; lane < PRIORITIES.length; lane++) {
+                while (sizes[lane] > 0) {
+                    SendCallback callback = callbacks[lane][heads[lane]];
+                    take(lane);
+                    if (callback != null) pending[n++] = callback;
+                }
+            }
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        for (SendCallback callback : pending) {
+            if (callback != null) callback.onComplete(SendCallback.Outcome.FAILED);
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public int getHighWatermark() {
+        return highWatermark;
+    }
+
+    public long getEnqueuedCount() {
+        return enqueuedCount;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    private boolean awaitSpace() {
+        long remaining = blockTimeoutNanos;
+        try {
+            while (size == capacity && !closed) {
+                if (remaining <= 0) return false;
+                remaining = notFull.awaitNanos(remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !closed;
+    }
+
+    private int drainLocked(ByteBuffer[] frames, SendCallback[] callbacksOut) {
+        int n = 0;
+        int bytes = 0;
+        Histogram waits = waitHistogram;
+        long now = waits != null ? System.nanoTime() : 0;
+        for (int lane = 0; lane < PRIORITIES.length; lane++) {
+            while (sizes[lane] > 0 && n < frames.length) {
+                ByteBuffer next = rings[lane][heads[lane]];
+                if (n > 0 && bytes + next.remaining() > DRAIN_BYTE_BUDGET) return n;
+                long offered = offeredAt[lane][heads[lane]];
+                if (waits != null && offered != 0) waits.record(TimeUnit.NANOSECONDS.toMicros(now - offered));
+                callbacksOut[n] = callbacks[lane][heads[lane]];
+                frames[n++] = take(lane);
+                bytes += next.remaining();
+            }
+        }
+        return n;
+    }
+
+    private int lowestNonEmptyLane(int floor) {
+        for (int lane = PRIORITIES.length - 1; lane >= floor; lane--) {
+            if (sizes[lane] > 0) return lane;
+        }
+        return -1;
+    }
+
+    private ByteBuffer take(int lane) {
+        int head = heads[lane];
+        ByteBuffer frame = rings[lane][head];
+        rings[lane][head] = null;
+        callbacks[lane][head] = null;
+        heads[lane] = (head + 1) % capacity;
+        sizes[lane]--;
+        size--;
+        depth = size;
+        notFull.signal();
+        return frame;
+    }
+}
@@ -0,0 +1,33 @@
+package io.github.udayhe.nonetchat.sender;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Outbound side of one peer. Implementations own a bounded {@link OutboundQueue} and
+ * write whatever is pending in batches on their own consumer thread.
+ */
+public interface PeerWriter {
+
+    /**
+     * Queues an encoded frame without modifying {@code frame}'s position. Returns false if
+     * the peer is closed or refused the frame under its overflow policy.
+     */
+    boolean send(ByteBuffer frame);
+
+    /**
+     * Like {@link #send} but never waits for queue space, and reports the frame's fate to
+     * {@code callback}, including {@link SendCallback.Outcome#REJECTED} when it returns false.
+     */
+    boolean trySend(ByteBuffer frame, SendCallback callback);
+
+    /**
+     * Like {@link #trySend(ByteBuffer, SendCallback)} in the given lane of the queue.
+     */
+    boolean trySend(ByteBuffer frame, SendCallback callback, Priority priority);
+
+    OutboundQueue getQueue();
+
+    boolean isClosed();
+
+    void close();
+}
@@ -0,0 +1,14 @@
+package io.github.udayhe.nonetchat.sender;
+
+/**
+ * Scheduling class of an outbound frame. A writer always sends everything queued at a
+ * higher priority before anything at a lower one.
+ */
+public enum Priority {
+    /** Chat typed by a person; latency matters most. */
+    INTERACTIVE,
+    /** Small protocol traffic such as rosters and flow-control credits. */
+    CONTROL,
+    /** History sync, files and anything else that can wait behind chat. */
+    BULK
+}
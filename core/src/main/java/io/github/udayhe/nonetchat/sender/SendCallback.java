@@ -0,0 +1,21 @@
+package io.github.udayhe.nonetchat.sender;
+
+/**
+ * Told what became of one queued frame. Runs on whichever thread settled the frame,
+ * usually the peer's writer or the server's I/O thread, so it must not block.
+ */
+public interface SendCallback {
+
+    enum Outcome {
+        /** Handed to the socket. */
+        WRITTEN,
+        /** Evicted from a full DROP_OLDEST queue. */
+        DROPPED,
+        /** Refused by a full queue or a closed peer. */
+        REJECTED,
+        /** Still queued or half written when the peer went away. */
+        FAILED
+    }
+
+    void onComplete(Outcome outcome);
+}
@@ -0,0 +1,188 @@
+package io.github.udayhe.nonetchat.sender;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.udayhe.nonetchat.exec.ConnectionExecutor;
+import io.github.udayhe.nonetchat.log.ChatLog;
+import io.github.udayhe.nonetchat.metrics.PeerMetrics;
+import io.github.udayhe.nonetchat.protocol.FrameDeflater;
+
+/**
+ * Feeds a blocking stream from a bounded queue. The writer thread takes everything queued
+ * since its last pass, writes it into the buffered stream and flushes once.
+ */
+public class StreamPeerWriter implements PeerWriter {
+
+    private static final String TAG = "StreamPeerWriter";
+    private static final int MAX_BATCH = 64;
+
+    private final String name;
+    private final OutputStream raw;
+    private final OutputStream out;
+    private final OutboundQueue queue;
+    private volatile Thread thread;
+    private final byte[] scratch = new byte[4096];
+    private volatile boolean closed;
+    private volatile PeerMetrics metrics;
+    private volatile FrameDeflater deflater;
+
+    public StreamPeerWriter(String name, OutputStream out, OutboundQueue queue) {
+        this(name, out, queue, null);
+    }
+
+    /**
+     * Runs the writer loop on {@code executor}, or on a thread of its own when null.
+     */
+    public StreamPeerWriter(String name, OutputStream out, OutboundQueue queue, ConnectionExecutor executor) {
+        this.name = name;
+        this.raw = out;
+        this.out = out instanceof BufferedOutputStream ? out : new BufferedOutputStream(out);
+        this.queue = queue;
+        if (executor != null) {
+            executor.execute("PeerWriter-" + name, this::writeLoop, this::close);
+        } else {
+            Thread thread = new Thread(this::writeLoop, "PeerWriter-" + name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    @Override
+    public boolean send(ByteBuffer frame) {
+        return enqueue(frame, null, !isWriterThread(), Priority.INTERACTIVE);
+    }
+
+    @Override
+    public boolean trySend(ByteBuffer frame, SendCallback callback) {
+        return trySend(frame, callback, Priority.INTERACTIVE);
+    }
+
+    @Override
+    public boolean trySend(ByteBuffer frame, SendCallback callback, Priority priority) {
+        if (enqueue(frame, callback, false, priority)) return true;
+        if (callback != null) callback.onComplete(SendCallback.Outcome.REJECTED);
+        return false;
+    }
+
+    private boolean enqueue(ByteBuffer frame, SendCallback callback, boolean mayBlock, Priority priority) {
+        if (closed) return false;
+        if (queue.offer(frame.duplicate(), callback, mayBlock, priority)) return true;
+        if (queue.getPolicy() == OutboundQueue.Policy.DISCONNECT) {
+            ChatLog.w(TAG, "Disconnecting slow peer " + name + " at queue depth " + queue.getDepth());
+            close();
+        }
+        return false;
+    }
+
+    /** Counts every frame written from now on against {@code metrics}. */
+    public void setMetrics(PeerMetrics metrics) {
+        this.metrics = metrics;
+        if (metrics != null) metrics.setQueueDepth(queue::getDepth);
+    }
+
+    /**
+     * Compresses every frame written from now on through {@code deflater}, which the writer
+     * closes when it stops. Set it before anything is queued that must be compressed.
+     */
+    public void setDeflater(FrameDeflater deflater) {
+        this.deflater = deflater;
+    }
+
+    private boolean isWriterThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    @Override
+    public OutboundQueue getQueue() {
+        return queue;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        queue.close();
+        synchronized (this) {
+            if (thread != null) thread.interrupt();
+        }
+        try {
+            // Close underneath the buffer: flushing could block on the very peer being dropped.
+            raw.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void writeLoop() {
+        synchronized (this) {
+            thread = Thread.currentThread();
+        }
+        ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+        SendCallback[] callbacks = new SendCallback[MAX_BATCH];
+        List<SendCallback> unflushed = new ArrayList<>();
+        int n = 0;
+        int written = 0;
+        try {
+            while ((n = queue.awaitAndDrain(batch, callbacks)) > 0) {
+                for (written = 0; written < n; written++) {
+                    write(batch[written]);
+                    batch[written] = null;
+                    if (callbacks[written] != null) unflushed.add(callbacks[written]);
+                    callbacks[written] = null;
+                }
+                if (queue.isEmpty()) {
+                    out.flush();
+                    complete(unflushed, SendCallback.Outcome.WRITTEN);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (!closed) ChatLog.w(TAG, "Write to " + name + " failed", e);
+        } finally {
+            close();
+            complete(unflushed, SendCallback.Outcome.FAILED);
+            for (int i = written; i < n; i++) {
+                if (callbacks[i] != null) callbacks[i].onComplete(SendCallback.Outcome.FAILED);
+            }
+            FrameDeflater d = deflater;
+            if (d != null) d.close();
+            synchronized (this) {
+                // An executor may reuse this thread; it must not receive our interrupts.
+                thread = null;
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private static void complete(List<SendCallback> callbacks, SendCallback.Outcome outcome) {
+        for (int i = 0; i < callbacks.size(); i++) callbacks.get(i).onComplete(outcome);
+        callbacks.clear();
+    }
+
+    private void write(ByteBuffer frame) throws IOException {
+        FrameDeflater d = deflater;
+        if (d != null) frame = d.compress(frame);
+        PeerMetrics peer = metrics;
+        if (peer != null) peer.onSent(frame.remaining());
+        if (frame.hasArray()) {
+            out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            return;
+        }
+        // Read-only or direct frames (e.g. shared broadcasts) are copied through a scratch array.
+        while (frame.hasRemaining()) {
+            int n = Math.min(frame.remaining(), scratch.length);
+            frame.get(scratch, 0, n);
+            out.write(scratch, 0, n);
+        }
+    }
+}
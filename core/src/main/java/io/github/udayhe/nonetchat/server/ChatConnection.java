@@ -0,0 +1,253 @@
+package io.github.udayhe.nonetchat.server;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import io.github.udayhe.nonetchat.metrics.PeerMetrics;
+import io.github.udayhe.nonetchat.protocol.FrameDeflater;
+import io.github.udayhe.nonetchat.protocol.FrameInflater;
+import io.github.udayhe.nonetchat.sender.OutboundQueue;
+import io.github.udayhe.nonetchat.sender.PeerWriter;
+import io.github.udayhe.nonetchat.sender.Priority;
+import io.github.udayhe.nonetchat.sender.SendCallback;
+import io.github.udayhe.nonetchat.session.Heartbeat;
+
+public class ChatConnection implements PeerWriter {
+
+    private static final int MAX_BATCH = 64;
+
+    private final ChatServer server;
+    private final SocketChannel channel;
+    private final int id;
+    private final ByteBuffer writeBuffer;
+    private final OutboundQueue writeQueue;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+    private final SendCallback[] batchCallbacks = new SendCallback[MAX_BATCH];
+    private final List<SendCallback> unflushed = new ArrayList<>();
+    private int batchIndex;
+    private int batchSize;
+
+    private ByteBuffer readBuffer;
+    private SelectionKey key;
+    private volatile Object attachment;
+    private volatile PeerMetrics metrics;
+    private FrameDeflater deflater;
+    private FrameInflater inflater;
+    Heartbeat heartbeat;
+
+    ChatConnection(ChatServer server, SocketChannel channel, int id, int bufferSize, OutboundQueue writeQueue) {
+        this.server = server;
+        this.channel = channel;
+        this.id = id;
+        this.writeQueue = writeQueue;
+        this.readBuffer = ByteBuffer.allocate(bufferSize);
+        this.writeBuffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return channel.socket().getRemoteSocketAddress();
+    }
+
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    public PeerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /** Counts every frame written from now on against {@code metrics}. */
+    public void setMetrics(PeerMetrics metrics) {
+        this.metrics = metrics;
+        if (metrics != null) metrics.setQueueDepth(writeQueue::getDepth);
+    }
+
+    /**
+     * Compresses frames written from now on through {@code deflater}, and lets the handler
+     * inflate with {@link #getInflater()}; either may be null. Call on the I/O thread, e.g.
+     * from the handler once the HELLOs agree on it. Both are closed with the connection.
+     */
+    public void setCompression(FrameDeflater deflater, FrameInflater inflater) {
+        this.deflater = deflater;
+        this.inflater = inflater;
+    }
+
+    public FrameDeflater getDeflater() {
+        return deflater;
+    }
+
+    public FrameInflater getInflater() {
+        return inflater;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed.get();
+    }
+
+    @Override
+    public OutboundQueue getQueue() {
+        return writeQueue;
+    }
+
+    /**
+     * Queues {@code data} for delivery; safe to call from any thread. The bytes between
+     * position and limit are sent without moving the caller's position, and must not be
+     * modified afterwards, so one buffer can be handed to several connections. The I/O
+     * thread never waits for queue space, so there a full BLOCK queue refuses the frame.
+     * Only a DISCONNECT queue closes the connection when full.
+     */
+    @Override
+    public boolean send(ByteBuffer data) {
+        return enqueue(data, null, !server.isIoThread(), Priority.INTERACTIVE);
+    }
+
+    @Override
+    public boolean trySend(ByteBuffer data, SendCallback callback) {
+        return trySend(data, callback, Priority.INTERACTIVE);
+    }
+
+    @Override
+    public boolean trySend(ByteBuffer data, SendCallback callback, Priority priority) {
+        if (enqueue(data, callback, false, priority)) return true;
+        if (callback != null) callback.onComplete(SendCallback.Outcome.REJECTED);
+        return false;
+    }
+
+    private boolean enqueue(ByteBuffer data, SendCallback callback, boolean mayBlock, Priority priority) {
+        if (isClosed()) return false;
+
+        boolean ioThread = server.isIoThread();
+        if (!writeQueue.offer(data.duplicate(), callback, mayBlock && !ioThread, priority)) {
+            if (writeQueue.getPolicy() == OutboundQueue.Policy.DISCONNECT) {
+                server.close(this, new IOException("Outbound queue full for connection " + id));
+            }
+            return false;
+        }
+        if (ioThread) {
+            try {
+                flush();
+            } catch (IOException e) {
+                server.close(this, e);
+            }
+        } else if (flushRequested.compareAndSet(false, true)) {
+            server.requestFlush(this);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        server.close(this, null);
+    }
+
+    // Everything below runs on the server's I/O thread.
+
+    SocketChannel channel() {
+        return channel;
+    }
+
+    SelectionKey key() {
+        return key;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    boolean markClosed() {
+        if (!closed.compareAndSet(false, true)) return false;
+        writeQueue.close();
+        for (int i = batchIndex; i < batchSize; i++) {
+            if (batchCallbacks[i] != null) unflushed.add(batchCallbacks[i]);
+        }
+        batchIndex = batchSize = 0;
+        complete(SendCallback.Outcome.FAILED);
+        if (deflater != null) deflater.close();
+        if (inflater != null) inflater.close();
+        return true;
+    }
+
+    ByteBuffer readBuffer() {
+        return readBuffer;
+    }
+
+    void growReadBuffer(int capacity) {
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        readBuffer.flip();
+        grown.put(readBuffer);
+        readBuffer = grown;
+    }
+
+    void flush() throws IOException {
+        flushRequested.set(false);
+        while (true) {
+            fillWriteBuffer();
+            if (writeBuffer.position() == 0) break;
+
+            writeBuffer.flip();
+            channel.write(writeBuffer);
+            boolean drained = !writeBuffer.hasRemaining();
+            writeBuffer.compact();
+            if (!drained) break;
+            complete(SendCallback.Outcome.WRITTEN);
+        }
+
+        if (key == null || !key.isValid()) return;
+        boolean pending = writeBuffer.position() > 0 || batchIndex < batchSize || !writeQueue.isEmpty();
+        int ops = pending ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (key.interestOps() != ops) key.interestOps(ops);
+    }
+
+    private void fillWriteBuffer() {
+        PeerMetrics peer = metrics;
+        while (writeBuffer.hasRemaining()) {
+            if (batchIndex == batchSize) {
+                batchIndex = 0;
+                batchSize = writeQueue.drainTo(batch, batchCallbacks);
+                if (batchSize == 0) return;
+                if (deflater != null) {
+                    for (int i = 0; i < batchSize; i++) batch[i] = deflater.compress(batch[i]);
+                }
+                if (peer != null) {
+                    for (int i = 0; i < batchSize; i++) peer.onSent(batch[i].remaining());
+                }
+            }
+            ByteBuffer current = batch[batchIndex];
+            if (current.remaining() <= writeBuffer.remaining()) {
+                writeBuffer.put(current);
+                if (batchCallbacks[batchIndex] != null) unflushed.add(batchCallbacks[batchIndex]);
+                batch[batchIndex] = null;
+                batchCallbacks[batchIndex] = null;
+                batchIndex++;
+            } else {
+                ByteBuffer slice = current.duplicate();
+                slice.limit(slice.position() + writeBuffer.remaining());
+                writeBuffer.put(slice);
+                current.position(slice.position());
+            }
+        }
+    }
+
+    private void complete(SendCallback.Outcome outcome) {
+        for (int i = 0; i < unflushed.size(); i++) unflushed.get(i).onComplete(outcome);
+        unflushed.clear();
+    }
+}
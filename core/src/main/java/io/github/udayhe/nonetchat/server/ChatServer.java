@@ -0,0 +1,336 @@
+package io.github.udayhe.nonetchat.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.udayhe.nonetchat.exec.ConnectionExecutor;
+import io.github.udayhe.nonetchat.log.ChatLog;
+import io.github.udayhe.nonetchat.sender.OutboundQueue;
+import io.github.udayhe.nonetchat.sender.Priority;
+import io.github.udayhe.nonetchat.session.Heartbeat;
+
+/**
+ * Single-selector chat server. Accepts, reads and writes for every peer run on the
+ * thread that calls {@link #serve()}; handler callbacks run on that thread too and must not block.
+ */
+public class ChatServer implements Closeable {
+
+    private static final String TAG = "ChatServer";
+
+    public interface Handler {
+        void onOpen(ChatConnection connection);
+
+        /**
+         * {@code in} is in read mode. Consume every complete unit and leave the rest in
+         * place; unconsumed bytes are kept and handed back after the next read.
+         */
+        void onRead(ChatConnection connection, ByteBuffer in) throws IOException;
+
+        void onClose(ChatConnection connection, IOException cause);
+    }
+
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+    public static final int DEFAULT_MAX_READ_BUFFER_SIZE = 1024 * 1024;
+
+    private final Handler handler;
+    private final int bufferSize;
+    private final int maxReadBufferSize;
+    private final Queue<ChatConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final Queue<PendingClose> pendingCloses = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private volatile Thread ioThread;
+    private volatile boolean closed;
+    private int queueCapacity = OutboundQueue.DEFAULT_CAPACITY;
+    private OutboundQueue.Policy queuePolicy = OutboundQueue.Policy.DISCONNECT;
+    private long heartbeatIntervalMillis;
+    private long heartbeatTimeoutMillis;
+    private ByteBuffer ping;
+    private long nextSweepMillis;
+    private volatile long deadPeerCount;
+
+    public ChatServer(Handler handler) {
+        this(handler, DEFAULT_BUFFER_SIZE, DEFAULT_MAX_READ_BUFFER_SIZE);
+    }
+
+    public ChatServer(Handler handler, int bufferSize, int maxReadBufferSize) {
+        if (bufferSize <= 0 || maxReadBufferSize < bufferSize) {
+            throw new IllegalArgumentException("Invalid buffer sizes: " + bufferSize + "/" + maxReadBufferSize);
+        }
+        this.handler = handler;
+        this.bufferSize = bufferSize;
+        this.maxReadBufferSize = maxReadBufferSize;
+    }
+
+    /**
+     * Sizes the per-connection outbound queue; applies to connections accepted afterwards.
+     */
+    public void setOutboundQueue(int capacity, OutboundQueue.Policy policy) {
+        this.queueCapacity = capacity;
+        this.queuePolicy = policy;
+    }
+
+    /**
+     * Sends {@code ping} to connections silent for {@code intervalMillis} and closes those
+     * silent for {@code timeoutMillis}, so half-open peers are dropped without waiting for
+     * a write to fail. Applies to connections accepted afterwards.
+     */
+    public void setHeartbeat(long intervalMillis, long timeoutMillis, ByteBuffer ping) {
+        new Heartbeat(intervalMillis, timeoutMillis, 0); // validates
+        this.ping = ping.asReadOnlyBuffer();
+        this.heartbeatTimeoutMillis = timeoutMillis;
+        this.heartbeatIntervalMillis = intervalMillis;
+    }
+
+    /** Connections closed by the heartbeat. */
+    public long getDeadPeerCount() {
+        return deadPeerCount;
+    }
+
+    public synchronized void bind(int port) throws IOException {
+        bind(new InetSocketAddress(port));
+    }
+
+    public synchronized void bind(InetSocketAddress address) throws IOException {
+        if (serverChannel != null) throw new IllegalStateException("Already bound");
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public int getLocalPort() {
+        return serverChannel != null ? serverChannel.socket().getLocalPort() : -1;
+    }
+
+    /**
+     * Runs the event loop as a single loop of {@code executor}: one thread for every peer.
+     * Shutting the executor down closes the server.
+     */
+    public void start(ConnectionExecutor executor) {
+        if (selector == null) throw new IllegalStateException("Not bound");
+        executor.execute("ChatServer:" + getLocalPort(), () -> {
+            try {
+                serve();
+            } catch (IOException e) {
+                ChatLog.e(TAG, "Event loop failed", e);
+            }
+        }, this);
+    }
+
+    /**
+     * Runs the event loop on the calling thread until {@link #close()} is called.
+     */
+    public void serve() throws IOException {
+        if (selector == null) throw new IllegalStateException("Not bound");
+        ioThread = Thread.currentThread();
+        try {
+            while (!closed) {
+                selector.select(sweepIntervalMillis());
+                processPendingCloses();
+                processPendingWrites();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) continue;
+
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    ChatConnection connection = (ChatConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) read(connection);
+                        if (key.isValid() && key.isWritable()) connection.flush();
+                    } catch (IOException e) {
+                        close(connection, e);
+                    }
+                }
+                if (heartbeatIntervalMillis > 0) sweepSilentConnections();
+            }
+        } catch (ClosedSelectorException e) {
+            if (!closed) throw new IOException("Selector closed unexpectedly", e);
+        } finally {
+            shutdownConnections();
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    boolean isIoThread() {
+        return Thread.currentThread() == ioThread;
+    }
+
+    void requestFlush(ChatConnection connection) {
+        pendingWrites.add(connection);
+        Selector s = selector;
+        if (s != null) s.wakeup();
+    }
+
+    void close(ChatConnection connection, IOException cause) {
+        if (!isIoThread() && ioThread != null && !closed) {
+            pendingCloses.add(new PendingClose(connection, cause));
+            selector.wakeup();
+            return;
+        }
+        if (!connection.markClosed()) return;
+        SelectionKey key = connection.key();
+        if (key != null) key.cancel();
+        try {
+            connection.channel().close();
+        } catch (IOException ignored) {
+        }
+        handler.onClose(connection, cause);
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            ChatConnection connection = new ChatConnection(this, channel, nextId.incrementAndGet(), bufferSize,
+                    new OutboundQueue(queueCapacity, queuePolicy));
+            if (heartbeatIntervalMillis > 0) {
+                connection.heartbeat = new Heartbeat(heartbeatIntervalMillis, heartbeatTimeoutMillis, now());
+            }
+            connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+            handler.onOpen(connection);
+        }
+    }
+
+    private void read(ChatConnection connection) throws IOException {
+        ByteBuffer in = connection.readBuffer();
+        int n = connection.channel().read(in);
+        if (n < 0) {
+            close(connection, null);
+            return;
+        }
+        if (n == 0) return;
+        if (connection.heartbeat != null) connection.heartbeat.onReceived(now());
+
+        in.flip();
+        handler.onRead(connection, in);
+        in.compact();
+
+        if (!in.hasRemaining()) {
+            if (in.capacity() >= maxReadBufferSize) {
+                throw new IOException("Inbound unit exceeds " + maxReadBufferSize + " bytes");
+            }
+            connection.growReadBuffer(Math.min(in.capacity() * 2, maxReadBufferSize));
+        }
+    }
+
+    private long sweepIntervalMillis() {
+        // select(0) waits indefinitely, which is right when there is nothing to sweep.
+        return heartbeatIntervalMillis > 0 ? Math.max(1, heartbeatIntervalMillis / 4) : 0;
+    }
+
+    private void sweepSilentConnections() {
+        long now = now();
+        if (now < nextSweepMillis) return;
+        nextSweepMillis = now + sweepIntervalMillis();
+        for (SelectionKey key : selector.keys()) {
+            Object attachment = key.attachment();
+            if (!(attachment instanceof ChatConnection)) continue;
+            ChatConnection connection = (ChatConnection) attachment;
+            if (connection.heartbeat == null) continue;
+            switch (connection.heartbeat.check(now)) {
+                case PING:
+                    connection.trySend(ping, null, Priority.CONTROL);
+                    break;
+                case DEAD:
+                    deadPeerCount++;
+                    long silent = connection.heartbeat.getSilentMillis(now);
+                    ChatLog.w(TAG, "Dropping connection " + connection.getId() + ", silent for " + silent + " ms");
+                    close(connection, new SocketTimeoutException("No traffic for " + silent + " ms"));
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private void processPendingCloses() {
+        PendingClose pending;
+        while ((pending = pendingCloses.poll()) != null) {
+            close(pending.connection, pending.cause);
+        }
+    }
+
+    private void processPendingWrites() {
+        ChatConnection connection;
+        while ((connection = pendingWrites.poll()) != null) {
+            if (connection.isClosed()) continue;
+            try {
+                connection.flush();
+            } catch (IOException e) {
+                close(connection, e);
+            }
+        }
+    }
+
+    private void shutdownConnections() {
+        if (selector == null) return;
+        try {
+            for (SelectionKey key : selector.keys().toArray(new SelectionKey[0])) {
+                Object attachment = key.attachment();
+                if (attachment instanceof ChatConnection) close((ChatConnection) attachment, null);
+            }
+        } catch (ClosedSelectorException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            if (serverChannel != null) serverChannel.close();
+        } catch (IOException ignored) {
+        }
+        Selector s = selector;
+        if (s != null) {
+            s.wakeup();
+            if (ioThread == null) {
+                try {
+                    s.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    private static final class PendingClose {
+        final ChatConnection connection;
+        final IOException cause;
+
+        PendingClose(ChatConnection connection, IOException cause) {
+            this.connection = connection;
+            this.cause = cause;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package io.github.udayhe.nonetchat.session;
+
+import java.util.Random;
+
+/**
+ * Exponential reconnect delays with jitter, so clients dropped together by the same
+ * group owner do not all come back in the same instant. Not thread-safe.
+ */
+public class Backoff {
+
+    public static final long DEFAULT_INITIAL_MILLIS = 250;
+    public static final long DEFAULT_MAX_MILLIS = 30_000;
+    public static final double DEFAULT_JITTER = 0.2;
+
+    private final long initialMillis;
+    private final long maxMillis;
+    private final double jitter;
+    private final Random random;
+    private int attempts;
+
+    public Backoff() {
+        this(DEFAULT_INITIAL_MILLIS, DEFAULT_MAX_MILLIS, DEFAULT_JITTER, new Random());
+    }
+
+    public Backoff(long initialMillis, long maxMillis, double jitter, Random random) {
+        if (initialMillis <= 0 || maxMillis < initialMillis || jitter < 0 || jitter >= 1) {
+            throw new IllegalArgumentException("Invalid backoff " + initialMillis + "/" + maxMillis + "/" + jitter);
+        }
+        this.initialMillis = initialMillis;
+        this.maxMillis = maxMillis;
+        this.jitter = jitter;
+        this.random = random;
+    }
+
+    /**
+     * Delay before the next attempt: doubles per consecutive failure up to the maximum,
+     * then spread by up to {@code jitter} either way.
+     */
+    public long nextDelayMillis() {
+        long base = initialMillis << Math.min(attempts, 30);
+        if (base <= 0 || base > maxMillis) base = maxMillis;
+        attempts++;
+        double spread = 1 + jitter * (2 * random.nextDouble() - 1);
+        return Math.max(1, (long) (base * spread));
+    }
+
+    public void reset() {
+        attempts = 0;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+}
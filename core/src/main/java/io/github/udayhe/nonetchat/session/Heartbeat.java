@@ -0,0 +1,86 @@
+package io.github.udayhe.nonetchat.session;
+
+/**
+ * Liveness of one connection. Anything received counts as a sign of life; after
+ * {@code intervalMillis} of silence the owner should send a PING, and after
+ * {@code timeoutMillis} the peer is presumed gone, which also catches half-open sockets
+ * that would otherwise only fail on a later write. Not thread-safe.
+ */
+public class Heartbeat {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 5_000;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 15_000;
+
+    public enum Action {
+        NONE,
+        /** Nothing heard for an interval and no PING sent since: send one now. */
+        PING,
+        /** Nothing heard for the timeout: close the connection. */
+        DEAD
+    }
+
+    private final long intervalMillis;
+    private final long timeoutMillis;
+    private long lastReceived;
+    private long lastPing;
+    private long nonce;
+    private long roundTripMillis = -1;
+    private long pingCount;
+
+    public Heartbeat(long intervalMillis, long timeoutMillis, long nowMillis) {
+        if (intervalMillis <= 0 || timeoutMillis <= intervalMillis) {
+            throw new IllegalArgumentException("Invalid heartbeat " + intervalMillis + "/" + timeoutMillis + " ms");
+        }
+        this.intervalMillis = intervalMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.lastReceived = nowMillis;
+        this.lastPing = nowMillis - intervalMillis;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public void onReceived(long nowMillis) {
+        lastReceived = nowMillis;
+    }
+
+    public Action check(long nowMillis) {
+        long silent = nowMillis - lastReceived;
+        if (silent >= timeoutMillis) return Action.DEAD;
+        if (silent >= intervalMillis && nowMillis - lastPing >= intervalMillis) {
+            lastPing = nowMillis;
+            nonce++;
+            pingCount++;
+            return Action.PING;
+        }
+        return Action.NONE;
+    }
+
+    /** Nonce to put in the PING that {@link #check} just asked for. */
+    public long getNonce() {
+        return nonce;
+    }
+
+    public void onPong(long nonce, long nowMillis) {
+        lastReceived = nowMillis;
+        if (nonce == this.nonce) roundTripMillis = nowMillis - lastPing;
+    }
+
+    /** Round trip of the last answered PING, or -1. */
+    public long getRoundTripMillis() {
+        return roundTripMillis;
+    }
+
+    public long getSilentMillis(long nowMillis) {
+        return nowMillis - lastReceived;
+    }
+
+    public long getPingCount() {
+        return pingCount;
+    }
+}
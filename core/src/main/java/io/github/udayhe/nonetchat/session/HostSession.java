@@ -0,0 +1,554 @@
+package io.github.udayhe.nonetchat.session;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import io.github.udayhe.nonetchat.delivery.AckBatcher;
+import io.github.udayhe.nonetchat.exec.ConnectionExecutor;
+import io.github.udayhe.nonetchat.log.ChatLog;
+import io.github.udayhe.nonetchat.mesh.SeenCache;
+import io.github.udayhe.nonetchat.metrics.MetricsRegistry;
+import io.github.udayhe.nonetchat.metrics.PeerMetrics;
+import io.github.udayhe.nonetchat.mux.StreamDemultiplexer;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.FrameDeflater;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.FrameInflater;
+import io.github.udayhe.nonetchat.protocol.FrameReader;
+import io.github.udayhe.nonetchat.protocol.NameTable;
+import io.github.udayhe.nonetchat.protocol.Utf8Slice;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+import io.github.udayhe.nonetchat.sender.OutboundQueue;
+import io.github.udayhe.nonetchat.sender.PeerWriter;
+import io.github.udayhe.nonetchat.sender.Priority;
+import io.github.udayhe.nonetchat.sender.StreamPeerWriter;
+
+/**
+ * Client side of a session with the group owner. Reads frames until the connection fails
+ * or the {@link Heartbeat} times out, then reconnects after a {@link Backoff} delay and
+ * resumes: each HELLO names the last CHAT received from the other side, which replays
+ * what followed it. Messages sent while disconnected are held and go out on resume, and
+ * replayed CHAT frames that were already seen are dropped by id.
+ * <p>
+ * When the host names a successor, losing the host moves the session there: at once if
+ * the host resigned, otherwise after one failed attempt to reach it again. Until one of
+ * them answers, the session alternates between the two. The successor itself, if it
+ * offered through {@link #setStandby}, is handed the {@link Replica} instead and the
+ * session ends.
+ */
+public class HostSession implements Closeable {
+
+    private static final String TAG = "HostSession";
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 8_000;
+    private static final int SEEN_CAPACITY = 1024;
+    private static final byte[] ALL = WireFormat.RECIPIENT_ALL.getBytes(StandardCharsets.UTF_8);
+
+    public interface Listener {
+        /**
+         * The handshake is done; {@code writer} reaches the host until the next disconnect.
+         */
+        void onConnected(String hostName, PeerWriter writer, boolean resumed);
+
+        /**
+         * Any frame but HELLO, PING and PONG. Runs on the reader thread and the frame is only
+         * valid for the duration of the call.
+         */
+        void onFrame(Frame frame);
+
+        /** The connection failed or was lost; the next attempt starts in {@code retryMillis}. */
+        void onDisconnected(IOException cause, long retryMillis);
+    }
+
+    public interface HandoverListener {
+        /**
+         * The host is gone and named this client successor: serve its group from
+         * {@code replica} on the standby port. Runs on the session thread, which then ends.
+         */
+        void onTakeover(Replica replica, String formerHost);
+    }
+
+    private final String username;
+    private final byte[] usernameBytes;
+    private volatile InetSocketAddress host;
+    private final Listener listener;
+    private final ReplayBuffer sent = new ReplayBuffer();
+    private final SeenCache seen = new SeenCache(SEEN_CAPACITY);
+    private final Object sendLock = new Object();
+    private final Object closeLock = new Object();
+
+    private long heartbeatIntervalMillis = Heartbeat.DEFAULT_INTERVAL_MILLIS;
+    private long heartbeatTimeoutMillis = Heartbeat.DEFAULT_TIMEOUT_MILLIS;
+    private int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private Backoff backoff = new Backoff();
+    private ConnectionExecutor executor;
+    private volatile AckBatcher ackBatcher;
+    private volatile MetricsRegistry metrics;
+    private volatile boolean compression = true;
+    private volatile int standbyPort;
+    private volatile HandoverListener handoverListener;
+    private final Replica replica = new Replica();
+
+    private volatile boolean closed;
+    private volatile Socket socket;
+    private volatile String hostName;
+    private PeerWriter writer; // guarded by sendLock
+    private long sentMark; // guarded by sendLock: our newest message when the last connection dropped
+
+    // Reader thread only.
+    private byte[] hostNameBytes = new byte[0];
+    private final NameTable names = new NameTable();
+    private boolean everConnected;
+    private long lastReceivedId;
+    private final FrameDecoder replicaDecoder = new FrameDecoder();
+    private final Frame replicaFrame = new Frame();
+    private final Frame catchUpFrame = new Frame();
+    // The owner catches its new successor up over a stream: one REPLICA frame per message.
+    private final StreamDemultiplexer.Listener catchUp = (streamId, message) -> {
+        try {
+            if (replicaDecoder.next(message, catchUpFrame) && catchUpFrame.getType() == WireFormat.TYPE_HANDOVER
+                    && catchUpFrame.getHandoverKind() == WireFormat.HANDOVER_REPLICA) {
+                addReplica(catchUpFrame, true);
+            }
+        } catch (ProtocolException e) {
+            ChatLog.w(TAG, "Dropping corrupt catch-up frame", e);
+        }
+    };
+    private volatile String successorName;
+    private volatile InetSocketAddress successorAddress;
+    private volatile boolean resigned;
+    private long lostAtMillis;
+    private InetSocketAddress formerHost;
+    private boolean failingOver;
+
+    private volatile long connectCount;
+    private volatile long timeoutCount;
+    private volatile long replayedCount;
+    private volatile long duplicateCount;
+    private volatile long failoverCount;
+    private volatile long lastFailoverMillis;
+
+    public HostSession(String username, InetSocketAddress host, Listener listener) {
+        this.username = username;
+        this.usernameBytes = username.getBytes(StandardCharsets.UTF_8);
+        this.host = host;
+        this.listener = listener;
+    }
+
+    public void setHeartbeat(long intervalMillis, long timeoutMillis) {
+        new Heartbeat(intervalMillis, timeoutMillis, 0); // validates
+        this.heartbeatIntervalMillis = intervalMillis;
+        this.heartbeatTimeoutMillis = timeoutMillis;
+    }
+
+    public void setBackoff(Backoff backoff) {
+        this.backoff = backoff;
+    }
+
+    public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * Acknowledges, through {@code ackBatcher}, every CHAT frame sent to this user, and
+     * broadcasts from the host, which has nobody else to ack them. Duplicates are acked
+     * again, since the first receipt may be what got lost.
+     */
+    public void setAckBatcher(AckBatcher ackBatcher) {
+        this.ackBatcher = ackBatcher;
+    }
+
+    /**
+     * Reports traffic with the host, queue waits, heartbeat round trips and reconnects
+     * into {@code metrics}; applies from the next connection.
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Whether to compress what is sent to a host that speaks {@link WireFormat#VERSION_2};
+     * on by default, applies from the next connection. The host's compressed frames are
+     * inflated either way.
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * Offers the host to take over its group, accepting clients on {@code port}, should it
+     * leave; {@code listener} is told if this client is its successor when it does. Applies
+     * from the next connection.
+     */
+    public void setStandby(int port, HandoverListener listener) {
+        this.handoverListener = listener;
+        this.standbyPort = port;
+    }
+
+    /**
+     * Runs the session as a loop of {@code executor}, along with the writer of each
+     * connection it makes. Shutting the executor down closes the session.
+     */
+    public void start(ConnectionExecutor executor) {
+        this.executor = executor;
+        executor.execute("HostSession-" + host.getPort(), this::run, this);
+    }
+
+    /**
+     * Queues {@code message} for the host, or holds it until the next connection resumes.
+     * Returns false only if the open connection refused it; it stays held for a resume.
+     */
+    public boolean send(Message message) {
+        ByteBuffer frame = FrameEncoder.encodeChat(message);
+        synchronized (sendLock) {
+            sent.add(message.getId(), frame);
+            return writer == null || writer.send(frame);
+        }
+    }
+
+    /**
+     * Sends a control frame such as an ACK if connected. Nothing is held: the frame is
+     * dropped, and false returned, while disconnected.
+     */
+    public boolean sendControl(ByteBuffer frame) {
+        synchronized (sendLock) {
+            return writer != null && writer.trySend(frame, null, Priority.CONTROL);
+        }
+    }
+
+    /**
+     * Connects and serves until {@link #close()}, reconnecting whenever the link is lost.
+     */
+    public void run() {
+        while (!closed) {
+            IOException cause;
+            long connects = connectCount;
+            try {
+                connectAndServe();
+                return;
+            } catch (IOException e) {
+                cause = e;
+            }
+            if (closed) break;
+            if (connectCount != connects) lostAtMillis = now();
+            InetSocketAddress lost = host;
+            long delay;
+            String heir = successorName;
+            if (heir != null && (resigned || connectCount == connects)) {
+                if (heir.equals(username)) {
+                    takeOver();
+                    return;
+                }
+                if (failingOver) {
+                    // The successor did not answer either; the old host may be back.
+                    host = formerHost;
+                    failingOver = false;
+                    delay = backoff.nextDelayMillis();
+                } else {
+                    formerHost = host;
+                    host = successorAddress;
+                    failingOver = true;
+                    delay = 0;
+                }
+            } else {
+                delay = backoff.nextDelayMillis();
+            }
+            ChatLog.w(TAG, "Connection to " + lost + " lost, retrying " + (lost == host ? "" : "at " + host + " ")
+                    + "in " + delay + " ms", cause);
+            listener.onDisconnected(cause, delay);
+            try {
+                synchronized (closeLock) {
+                    if (!closed && delay > 0) closeLock.wait(delay);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    public boolean isConnected() {
+        synchronized (sendLock) {
+            return writer != null;
+        }
+    }
+
+    public String getHostName() {
+        return hostName;
+    }
+
+    /** Where the session connects; changes when it moves to a successor. */
+    public InetSocketAddress getHost() {
+        return host;
+    }
+
+    /** The client the host named to take over, or null. */
+    public String getSuccessorName() {
+        return successorName;
+    }
+
+    /** Times the session moved to a successor after losing its host. */
+    public long getFailoverCount() {
+        return failoverCount;
+    }
+
+    /** From losing the old host to the handshake with its successor, for the last move. */
+    public long getLastFailoverMillis() {
+        return lastFailoverMillis;
+    }
+
+    public long getConnectCount() {
+        return connectCount;
+    }
+
+    /** Connections dropped because the host went silent for the heartbeat timeout. */
+    public long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+    public long getReplayedCount() {
+        return replayedCount;
+    }
+
+    public long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (closeLock) {
+            closeLock.notifyAll();
+        }
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Only returns by throwing: every connection ends in an error, a timeout or EOF.
+     */
+    private void connectAndServe() throws IOException {
+        Socket s = new Socket();
+        socket = s;
+        try {
+            if (closed) throw new EOFException("Closed");
+            s.connect(host, connectTimeoutMillis);
+            resigned = false;
+            s.setTcpNoDelay(true);
+            s.setSoTimeout((int) heartbeatTimeoutMillis);
+
+            OutputStream out = s.getOutputStream();
+            ByteBuffer hello = FrameEncoder.encodeHello(username, WireFormat.MIN_VERSION, WireFormat.MAX_VERSION,
+                    everConnected, lastReceivedId);
+            out.write(hello.array(), hello.arrayOffset() + hello.position(), hello.remaining());
+            out.flush();
+
+            FrameReader reader = new FrameReader(s.getInputStream());
+            Frame frame = new Frame();
+            frame.setNameTable(names);
+            if (!reader.read(frame) || frame.getType() != WireFormat.TYPE_HELLO) {
+                throw new ProtocolException("Host did not answer HELLO");
+            }
+            int version = WireFormat.negotiate(WireFormat.MIN_VERSION, WireFormat.MAX_VERSION,
+                    frame.getMinVersion(), frame.getMaxVersion());
+            if (version < 0) {
+                throw new ProtocolException("Host speaks protocol " + frame.getMaxVersion());
+            }
+            hostName = frame.getUsername().toString();
+            hostNameBytes = frame.getUsername().toBytes();
+            boolean resumed = frame.isResume();
+
+            OutboundQueue queue = new OutboundQueue(OutboundQueue.DEFAULT_CAPACITY, OutboundQueue.Policy.DISCONNECT);
+            StreamPeerWriter writer;
+            try {
+                writer = new StreamPeerWriter(hostName, out, queue, executor);
+            } catch (RejectedExecutionException e) {
+                // Out of threads for now; back off and retry like any failed connection.
+                throw new IOException("No thread to write to " + hostName, e);
+            }
+            StreamDemultiplexer demux = new StreamDemultiplexer(writer, catchUp);
+            FrameInflater inflater = null;
+            if (version >= WireFormat.VERSION_2) {
+                inflater = new FrameInflater();
+                reader.setInflater(inflater);
+                if (compression) writer.setDeflater(new FrameDeflater());
+            }
+            MetricsRegistry registry = metrics;
+            PeerMetrics peer = null;
+            if (registry != null) {
+                peer = registry.peer(hostName);
+                writer.setMetrics(peer);
+                queue.setWaitHistogram(registry.histogram(OutboundQueue.WAIT_METRIC));
+                if (everConnected) registry.counter("session.reconnects").incrementAndGet();
+            }
+            // Whoever answers announces its own successor, if any.
+            successorName = null;
+            replica.clear();
+            int port = standbyPort;
+            if (port > 0) writer.trySend(FrameEncoder.encodeCandidate(port), null, Priority.CONTROL);
+            synchronized (sendLock) {
+                // A host that lost our session only gets what was held since the drop.
+                List<ByteBuffer> replay = sent.after(resumed ? frame.getResumeId() : sentMark);
+                for (int i = 0; i < replay.size(); i++) writer.send(replay.get(i));
+                replayedCount += replay.size();
+                this.writer = writer;
+            }
+            everConnected = true;
+            connectCount++;
+            backoff.reset();
+            if (failingOver) {
+                failingOver = false;
+                failoverCount++;
+                lastFailoverMillis = now() - lostAtMillis;
+                if (registry != null) registry.histogram("session.failover_ms").record(lastFailoverMillis);
+            }
+            ChatLog.d(TAG, (resumed ? "Resumed" : "Started") + " session with " + hostName);
+            listener.onConnected(hostName, writer, resumed);
+
+            try {
+                serve(s, reader, frame, writer, demux, registry, peer);
+            } finally {
+                synchronized (sendLock) {
+                    this.writer = null;
+                    sentMark = sent.lastId();
+                }
+                writer.close();
+                if (inflater != null) inflater.close();
+            }
+        } finally {
+            s.close();
+        }
+    }
+
+    private void serve(Socket s, FrameReader reader, Frame frame, PeerWriter writer, StreamDemultiplexer demux,
+                       MetricsRegistry registry, PeerMetrics peer) throws IOException {
+        Heartbeat heartbeat = new Heartbeat(heartbeatIntervalMillis, heartbeatTimeoutMillis, now());
+        // Wake up often enough to ping on time and to notice the timeout promptly.
+        s.setSoTimeout((int) Math.max(1, heartbeatIntervalMillis / 2));
+        while (true) {
+            try {
+                if (!reader.read(frame)) throw new EOFException("Host closed the connection");
+            } catch (SocketTimeoutException e) {
+                switch (heartbeat.check(now())) {
+                    case PING:
+                        writer.trySend(FrameEncoder.encodePing(heartbeat.getNonce()), null, Priority.CONTROL);
+                        break;
+                    case DEAD:
+                        timeoutCount++;
+                        if (registry != null) registry.counter("session.timeouts").incrementAndGet();
+                        throw new SocketTimeoutException("Host silent for " + heartbeat.getSilentMillis(now()) + " ms");
+                    default:
+                        break;
+                }
+                continue;
+            }
+            heartbeat.onReceived(now());
+            if (peer != null) peer.onReceived(frame.getEncodedLength());
+            // Every frame, so credit the writer had no room for goes out with the next one.
+            demux.onFrame(frame);
+
+            switch (frame.getType()) {
+                case WireFormat.TYPE_PING:
+                    writer.trySend(FrameEncoder.encodePong(frame.getNonce()), null, Priority.CONTROL);
+                    break;
+                case WireFormat.TYPE_PONG:
+                    heartbeat.onPong(frame.getNonce(), now());
+                    if (registry != null && frame.getNonce() == heartbeat.getNonce()) {
+                        registry.histogram("session.rtt_ms").record(heartbeat.getRoundTripMillis());
+                    }
+                    break;
+                case WireFormat.TYPE_CHAT:
+                    acknowledge(frame);
+                    if (!seen.add(frame.getId())) {
+                        duplicateCount++;
+                        break;
+                    }
+                    lastReceivedId = frame.getId();
+                    if (username.equals(successorName)) replica.add(frame.getId(), frame.copyEncoded());
+                    listener.onFrame(frame);
+                    break;
+                case WireFormat.TYPE_ROSTER:
+                    if (handoverListener != null) replica.addRoster(frame.getRoster());
+                    listener.onFrame(frame);
+                    break;
+                case WireFormat.TYPE_HANDOVER:
+                    onHandover(frame);
+                    break;
+                case WireFormat.TYPE_STREAM:
+                    break;
+                default:
+                    listener.onFrame(frame);
+                    break;
+            }
+        }
+    }
+
+    private void onHandover(Frame frame) throws IOException {
+        switch (frame.getHandoverKind()) {
+            case WireFormat.HANDOVER_SUCCESSOR:
+                successorAddress = new InetSocketAddress(frame.getRecipient().toString(), frame.getPort());
+                successorName = frame.getSender().toString();
+                if (!username.equals(successorName)) replica.clear();
+                ChatLog.d(TAG, "Successor: " + successorName + " at " + successorAddress);
+                break;
+            case WireFormat.HANDOVER_REPLICA:
+                addReplica(frame, false);
+                break;
+            case WireFormat.HANDOVER_RESIGN:
+                resigned = true;
+                throw new EOFException("Host resigned");
+            default:
+                break;
+        }
+    }
+
+    private void addReplica(Frame frame, boolean catchUp) throws ProtocolException {
+        if (!username.equals(successorName)) return;
+        ByteBuffer copy = frame.copyReplica();
+        if (!replicaDecoder.next(copy.duplicate(), replicaFrame)) return;
+        if (replicaFrame.getType() != WireFormat.TYPE_CHAT) return;
+        if (catchUp) replica.addEarlier(replicaFrame.getId(), copy);
+        else replica.add(replicaFrame.getId(), copy);
+    }
+
+    private void takeOver() {
+        HandoverListener handover = handoverListener;
+        ChatLog.i(TAG, "Taking over from " + hostName + " with " + replica.size() + " recent frames");
+        successorName = null;
+        failoverCount++;
+        lastFailoverMillis = now() - lostAtMillis;
+        if (handover != null) handover.onTakeover(replica, hostName);
+    }
+
+    private void acknowledge(Frame frame) {
+        AckBatcher batcher = ackBatcher;
+        if (batcher == null) return;
+        Utf8Slice recipient = frame.getRecipient();
+        if (recipient.contentEquals(usernameBytes)
+                || recipient.contentEquals(ALL) && frame.getSender().contentEquals(hostNameBytes)) {
+            batcher.add(frame.getSenderName(), frame.getId(), WireFormat.ACK_DELIVERED);
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+}
@@ -0,0 +1,74 @@
+package io.github.udayhe.nonetchat.session;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The most recent CHAT frames sent to one peer, kept so they can be sent again when the
+ * peer resumes after a reconnect. Frames are shared, never copied, and must not be
+ * modified once added.
+ */
+public class ReplayBuffer {
+
+    public static final int DEFAULT_CAPACITY = 128;
+
+    private final long[] ids;
+    private final ByteBuffer[] frames;
+    private int head;
+    private int size;
+    private long evictedCount;
+
+    public ReplayBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ReplayBuffer(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        this.ids = new long[capacity];
+        this.frames = new ByteBuffer[capacity];
+    }
+
+    public synchronized void add(long id, ByteBuffer frame) {
+        int tail = (head + size) % ids.length;
+        if (size == ids.length) {
+            head = (head + 1) % ids.length;
+            evictedCount++;
+        } else {
+            size++;
+        }
+        ids[tail] = id;
+        frames[tail] = frame;
+    }
+
+    /**
+     * Frames added after the one with id {@code lastId}, oldest first. If that id is no
+     * longer held, every held frame is returned: the peer may then see some twice, which
+     * beats a silent gap.
+     */
+    public synchronized List<ByteBuffer> after(long lastId) {
+        int start = 0;
+        for (int i = size - 1; i >= 0; i--) {
+            if (ids[(head + i) % ids.length] == lastId) {
+                start = i + 1;
+                break;
+            }
+        }
+        List<ByteBuffer> result = new ArrayList<>(size - start);
+        for (int i = start; i < size; i++) result.add(frames[(head + i) % ids.length].duplicate());
+        return result;
+    }
+
+    /** Id of the newest frame, or 0 when empty. */
+    public synchronized long lastId() {
+        return size == 0 ? 0 : ids[(head + size - 1) % ids.length];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+}
@@ -0,0 +1,91 @@
+package io.github.udayhe.nonetchat.session;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import io.github.udayhe.nonetchat.mesh.SeenCache;
+
+/**
+ * What the designated successor knows about the group it may have to take over: who has
+ * been in it and the most recent CHAT frames the owner routed, in the order it routed them.
+ * Frames arrive both as HANDOVER REPLICAs and as ordinary CHAT frames for the successor,
+ * so repeats are dropped by id. The owner's catch-up for a new successor trails the frames
+ * it routes meanwhile but is older than all of them, so it is kept {@link #addEarlier
+ * apart} and put first.
+ * <p>
+ * Thread-safe.
+ */
+public class Replica {
+
+    public static final int DEFAULT_CAPACITY = 512;
+
+    private final int capacity;
+    private ReplayBuffer earlier;
+    private ReplayBuffer frames;
+    private SeenCache seen;
+    private final Set<String> members = new LinkedHashSet<>();
+
+    public Replica() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public Replica(int capacity) {
+        this.capacity = capacity;
+        clear();
+    }
+
+    /**
+     * Adds a whole encoded CHAT frame with id {@code id}, which must not be modified
+     * afterwards. Returns false if it was already held.
+     */
+    public synchronized boolean add(long id, ByteBuffer frame) {
+        if (!seen.add(id)) return false;
+        frames.add(id, frame);
+        return true;
+    }
+
+    /**
+     * Like {@link #add}, for a frame the owner routed before any added there.
+     */
+    public synchronized boolean addEarlier(long id, ByteBuffer frame) {
+        if (!seen.add(id)) return false;
+        earlier.add(id, frame);
+        return true;
+    }
+
+    /**
+     * Adds everyone in {@code roster}. Members who left stay, as the owner keeps their
+     * sessions for a resume; an owner shutting down drops its clients one by one.
+     */
+    public synchronized void addRoster(List<String> roster) {
+        members.addAll(roster);
+    }
+
+    /** Everyone seen in a roster, in first-seen order. */
+    public synchronized List<String> getMembers() {
+        return new ArrayList<>(members);
+    }
+
+    /** Held frames, oldest first. */
+    public synchronized List<ByteBuffer> getFrames() {
+        // No frame has id 0 unless MessageIds wrapped, so these return all of them.
+        List<ByteBuffer> result = earlier.after(0);
+        result.addAll(frames.after(0));
+        if (result.size() <= capacity) return result;
+        return new ArrayList<>(result.subList(result.size() - capacity, result.size()));
+    }
+
+    public synchronized int size() {
+        return Math.min(earlier.size() + frames.size(), capacity);
+    }
+
+    /** Forgets every frame; the members stay. */
+    public synchronized void clear() {
+        earlier = new ReplayBuffer(capacity);
+        frames = new ReplayBuffer(capacity);
+        seen = new SeenCache(capacity);
+    }
+}
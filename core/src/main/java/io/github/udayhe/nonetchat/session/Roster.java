@@ -0,0 +1,110 @@
+package io.github.udayhe.nonetchat.session;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Members of a chat session, keyed by username. Every change swaps in a new immutable
+ * {@link RosterSnapshot} with a compare-and-set, so readers take a snapshot without
+ * locking and never see a half-applied change, and concurrent writers retry instead of
+ * losing each other's updates.
+ * <p>
+ * Listeners run on the writing thread after the swap. Two writers may notify out of
+ * order; compare {@link RosterSnapshot#getVersion()} to skip stale snapshots.
+ */
+public class Roster<T> {
+
+    public interface Listener<T> {
+        void onRosterChanged(RosterSnapshot<T> snapshot);
+    }
+
+    private final AtomicReference<RosterSnapshot<T>> current =
+            new AtomicReference<>(new RosterSnapshot<>(0, Roster.<T>newMembers(0)));
+    private final List<Listener<T>> listeners = new CopyOnWriteArrayList<>();
+
+    public RosterSnapshot<T> snapshot() {
+        return current.get();
+    }
+
+    public void addListener(Listener<T> listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener<T> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Adds {@code name} or replaces its value, keeping its place. Returns the value it
+     * replaced, or null if the name is new.
+     */
+    public T put(String name, T value) {
+        while (true) {
+            RosterSnapshot<T> snapshot = current.get();
+            RosterSnapshot.Member<T>[] members = snapshot.members();
+            int index = snapshot.indexOf(name);
+            RosterSnapshot.Member<T>[] next;
+            if (index >= 0) {
+                next = members.clone();
+            } else {
+                next = Arrays.copyOf(members, members.length + 1);
+                index = members.length;
+            }
+            next[index] = new RosterSnapshot.Member<>(name, value);
+            if (swap(snapshot, next)) return index < members.length ? members[index].value : null;
+        }
+    }
+
+    /**
+     * Removes {@code name} only while it still maps to {@code expected}, compared by
+     * identity, so a stale owner cannot remove a newer one.
+     */
+    public boolean remove(String name, T expected) {
+        while (true) {
+            RosterSnapshot<T> snapshot = current.get();
+            int index = snapshot.indexOf(name);
+            if (index < 0 || snapshot.valueAt(index) != expected) return false;
+            if (swap(snapshot, without(snapshot.members(), index))) return true;
+        }
+    }
+
+    public T remove(String name) {
+        while (true) {
+            RosterSnapshot<T> snapshot = current.get();
+            int index = snapshot.indexOf(name);
+            if (index < 0) return null;
+            if (swap(snapshot, without(snapshot.members(), index))) return snapshot.valueAt(index);
+        }
+    }
+
+    /**
+     * Replaces every member at once, e.g. with a roster announced by the group owner.
+     */
+    public void replaceAll(List<String> names, T value) {
+        RosterSnapshot.Member<T>[] next = newMembers(names.size());
+        for (int i = 0; i < next.length; i++) next[i] = new RosterSnapshot.Member<>(names.get(i), value);
+        while (!swap(current.get(), next)) {
+            // Retry against whichever snapshot won.
+        }
+    }
+
+    private boolean swap(RosterSnapshot<T> expected, RosterSnapshot.Member<T>[] members) {
+        RosterSnapshot<T> next = new RosterSnapshot<>(expected.getVersion() + 1, members);
+        if (!current.compareAndSet(expected, next)) return false;
+        for (Listener<T> listener : listeners) listener.onRosterChanged(next);
+        return true;
+    }
+
+    private static <T> RosterSnapshot.Member<T>[] without(RosterSnapshot.Member<T>[] members, int index) {
+        RosterSnapshot.Member<T>[] next = Arrays.copyOf(members, members.length - 1);
+        System.arraycopy(members, index + 1, next, index, next.length - index);
+        return next;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> RosterSnapshot.Member<T>[] newMembers(int length) {
+        return (RosterSnapshot.Member<T>[]) new RosterSnapshot.Member<?>[length];
+    }
+}
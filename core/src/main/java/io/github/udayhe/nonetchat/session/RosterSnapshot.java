@@ -0,0 +1,99 @@
+package io.github.udayhe.nonetchat.session;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.List;
+
+import io.github.udayhe.nonetchat.protocol.Utf8Slice;
+
+/**
+ * Immutable view of a {@link Roster} at one version. Members keep their join order and
+ * carry their name pre-encoded as UTF-8 so wire frames can be matched without decoding.
+ */
+public final class RosterSnapshot<T> {
+
+    static final class Member<T> {
+        final String name;
+        final byte[] utf8;
+        final T value;
+
+        Member(String name, T value) {
+            this.name = name;
+            this.utf8 = name.getBytes(StandardCharsets.UTF_8);
+            this.value = value;
+        }
+    }
+
+    private final long version;
+    private final Member<T>[] members;
+    private final List<String> names = new AbstractList<String>() {
+        @Override
+        public String get(int index) {
+            return members[index].name;
+        }
+
+        @Override
+        public int size() {
+            return members.length;
+        }
+    };
+
+    RosterSnapshot(long version, Member<T>[] members) {
+        this.version = version;
+        this.members = members;
+    }
+
+    /** Increases with every change; a newer snapshot always has a larger version. */
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    public String nameAt(int index) {
+        return members[index].name;
+    }
+
+    public T valueAt(int index) {
+        return members[index].value;
+    }
+
+    /** Read-only list of member names, backed by this snapshot. */
+    public List<String> getNames() {
+        return names;
+    }
+
+    public int indexOf(String name) {
+        for (int i = 0; i < members.length; i++) {
+            if (members[i].name.equals(name)) return i;
+        }
+        return -1;
+    }
+
+    public int indexOf(Utf8Slice name) {
+        for (int i = 0; i < members.length; i++) {
+            if (name.contentEquals(members[i].utf8)) return i;
+        }
+        return -1;
+    }
+
+    public boolean contains(String name) {
+        return indexOf(name) >= 0;
+    }
+
+    public T get(String name) {
+        int index = indexOf(name);
+        return index >= 0 ? members[index].value : null;
+    }
+
+    Member<T>[] members() {
+        return members;
+    }
+
+    @Override
+    public String toString() {
+        return "v" + version + names;
+    }
+}
@@ -0,0 +1,186 @@
+package io.github.udayhe.nonetchat.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import io.github.udayhe.nonetchat.log.ChatLog;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.NameTable;
+
+/**
+ * Append-only chat history on disk, split into {@link Segment} files named after the index
+ * of their first message. Messages are addressed by their position in the log; only
+ * per-record offsets and timestamps stay in memory. Each message is stored as its CHAT
+ * frame, so the log shares the wire codec.
+ * <p>
+ * Thread-safe. Appends are written but not forced to disk until {@link #sync()} or
+ * {@link #close()}.
+ */
+public class MessageLog implements Closeable {
+
+    private static final String TAG = "MessageLog";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+
+    private final File dir;
+    private final int segmentSize;
+    private final List<Segment> segments = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final Frame frame = new Frame();
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private long size;
+    private boolean closed;
+
+    public MessageLog(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public MessageLog(File dir, int segmentSize) throws IOException {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        frame.setNameTable(new NameTable());
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        open();
+    }
+
+    private void open() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(Segment.LOG_SUFFIX));
+        if (files == null) throw new IOException("Cannot list " + dir);
+        Arrays.sort(files);
+        try {
+            for (int i = 0; i < files.length; i++) {
+                String name = files[i].getName();
+                long baseIndex = Long.parseLong(name.substring(0, name.length() - Segment.LOG_SUFFIX.length()));
+                if (baseIndex != size) {
+                    // An earlier segment lost its tail, so these messages can no longer be addressed.
+                    discard(files, i);
+                    break;
+                }
+                Segment segment = Segment.open(files[i], baseIndex, buffer);
+                segments.add(segment);
+                size += segment.getCount();
+            }
+        } catch (IOException | NumberFormatException e) {
+            closeSegments();
+            throw e instanceof IOException ? (IOException) e : new IOException("Bad segment name in " + dir, e);
+        }
+        if (segments.isEmpty()) segments.add(Segment.create(dir, 0));
+    }
+
+    public synchronized long append(Message message) throws IOException {
+        ensureOpen();
+        int frameLength = FrameEncoder.chatFrameLength(message);
+        int recordLength = Segment.RECORD_HEADER + frameLength;
+        Segment tail = segments.get(segments.size() - 1);
+        if (tail.getCount() > 0 && tail.getLength() + recordLength > segmentSize) {
+            tail.seal();
+            tail = Segment.create(dir, size);
+            segments.add(tail);
+        }
+
+        if (buffer.capacity() < recordLength) buffer = ByteBuffer.allocate(recordLength);
+        buffer.clear().position(Segment.RECORD_HEADER);
+        FrameEncoder.writeChat(buffer, message);
+        buffer.flip();
+        tail.append(buffer, message.getTimestamp(), crc);
+        return size++;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    public synchronized Message get(long index) throws IOException {
+        ensureOpen();
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("index " + index + " of " + size);
+        Segment segment = segmentFor(index);
+        buffer = segment.readFrame((int) (index - segment.baseIndex), buffer);
+        if (!decoder.next(buffer, frame)) throw new IOException("Truncated record " + index);
+        return frame.toMessage();
+    }
+
+    /**
+     * Reads up to {@code count} messages starting at {@code from} into {@code out}.
+     * Returns how many were read.
+     */
+    public synchronized int read(long from, Message[] out, int offset, int count) throws IOException {
+        int n = (int) Math.max(0, Math.min(count, size - from));
+        for (int i = 0; i < n; i++) out[offset + i] = get(from + i);
+        return n;
+    }
+
+    /**
+     * Index of the first message at or after which the log has reached {@code timestamp},
+     * or {@link #size()} if it never does. Exact for logs appended in time order.
+     */
+    public synchronized long indexOfTimestamp(long timestamp) {
+        for (Segment segment : segments) {
+            if (segment.getMaxTimestamp() >= timestamp) return segment.baseIndex + segment.search(timestamp);
+        }
+        return size;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized void sync() throws IOException {
+        ensureOpen();
+        segments.get(segments.size() - 1).sync();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            segments.get(segments.size() - 1).sync();
+        } finally {
+            closeSegments();
+        }
+    }
+
+    private static void discard(File[] files, int from) throws IOException {
+        for (int i = from; i < files.length; i++) {
+            ChatLog.w(TAG, "Discarding unreachable segment " + files[i].getName());
+            Segment.deleteFiles(files[i]);
+        }
+    }
+
+    private void closeSegments() throws IOException {
+        IOException failure = null;
+        for (Segment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private Segment segmentFor(long index) {
+        int lo = 0;
+        int hi = segments.size() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (segments.get(mid).baseIndex <= index) lo = mid;
+            else hi = mid - 1;
+        }
+        return segments.get(lo);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Message log closed");
+    }
+}
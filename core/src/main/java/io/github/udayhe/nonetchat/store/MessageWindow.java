@@ -0,0 +1,79 @@
+package io.github.udayhe.nonetchat.store;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import io.github.udayhe.nonetchat.payload.Message;
+
+/**
+ * Bounded in-memory view of a {@link MessageLog} for a scrolling list. Holds at most
+ * {@code capacity} consecutive messages; asking for one outside them pages in a new window
+ * centred on it. Appends go to the log and, if the window covers the tail, slide it along.
+ * <p>
+ * Not thread-safe; meant for the UI thread.
+ */
+public class MessageWindow {
+
+    public static final int DEFAULT_CAPACITY = 200;
+
+    private final MessageLog log;
+    private final Message[] ring;
+    private long start;
+    private int head;
+    private int count;
+    private long loadCount;
+
+    public MessageWindow(MessageLog log) {
+        this(log, DEFAULT_CAPACITY);
+    }
+
+    public MessageWindow(MessageLog log, int capacity) {
+        this.log = log;
+        this.ring = new Message[capacity];
+    }
+
+    public long size() {
+        return log.size();
+    }
+
+    public Message get(long index) throws IOException {
+        if (index < start || index >= start + count) load(index);
+        return ring[(head + (int) (index - start)) % ring.length];
+    }
+
+    public long append(Message message) throws IOException {
+        long index = log.append(message);
+        if (index == start + count) {
+            if (count == ring.length) {
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                start++;
+                count--;
+            }
+            ring[(head + count) % ring.length] = message;
+            count++;
+        }
+        return index;
+    }
+
+    public int getCachedCount() {
+        return count;
+    }
+
+    /** Pages read from the log so far. */
+    public long getLoadCount() {
+        return loadCount;
+    }
+
+    private void load(long index) throws IOException {
+        long size = log.size();
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("index " + index + " of " + size);
+        long from = Math.max(0, Math.min(index - ring.length / 2, size - ring.length));
+        Arrays.fill(ring, null);
+        head = 0;
+        start = from;
+        count = 0;
+        count = log.read(from, ring, 0, ring.length);
+        loadCount++;
+    }
+}
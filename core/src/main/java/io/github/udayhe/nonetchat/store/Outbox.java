@@ -0,0 +1,459 @@
+package io.github.udayhe.nonetchat.store;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import io.github.udayhe.nonetchat.log.ChatLog;
+import io.github.udayhe.nonetchat.metrics.Histogram;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.NameTable;
+
+/**
+ * Messages waiting to be delivered, one append-only file per recipient so they survive a
+ * restart:
+ * <pre>
+ * outbox := record*
+ * record := length:u32 crc32:u32 queuedAt:u64 frame   (frame is an encoded CHAT frame)
+ * </pre>
+ * A message stays until {@link #remove} confirms its delivery, {@link #getTtlMillis()}
+ * passes, or a recipient's queue outgrows its message or byte cap, which drops the oldest.
+ * {@link #take} hands messages out without removing them; {@link #release} makes one
+ * available again. Removed records stay in the file until it is more dead than alive, or
+ * until {@link #sync()}; a torn or corrupt tail is cut off when the outbox is opened.
+ * <p>
+ * Thread-safe. Appends are written but not forced to disk until {@link #sync()} or
+ * {@link #close()}.
+ */
+public class Outbox implements Closeable {
+
+    private static final String TAG = "Outbox";
+
+    public static final long DEFAULT_TTL_MILLIS = 24 * 60 * 60 * 1000L;
+    public static final int DEFAULT_MAX_MESSAGES = 500;
+    public static final int DEFAULT_MAX_BYTES = 256 * 1024;
+
+    static final String SUFFIX = ".outbox";
+    private static final int RECORD_HEADER = 16;
+
+    private static final class Entry {
+        final Message message;
+        final long queuedAt;
+        final int length;
+        boolean taken;
+        boolean takenBefore;
+
+        Entry(Message message, long queuedAt, int length) {
+            this.message = message;
+            this.queuedAt = queuedAt;
+            this.length = length;
+        }
+    }
+
+    private static final class Queue {
+        final File file;
+        FileChannel channel;
+        // Removals by id may come in any order, though mostly from the front.
+        final LinkedList<Entry> entries = new LinkedList<>();
+        long bytes;
+        long fileLength;
+        int deadRecords;
+
+        Queue(File file) throws IOException {
+            this.file = file;
+            this.channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+    }
+
+    private final File dir;
+    private final long ttlMillis;
+    private final int maxMessages;
+    private final int maxBytes;
+    private final Map<String, Queue> queues = new HashMap<>();
+    private final Map<Long, String> recipients = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final Frame frame = new Frame();
+    private ByteBuffer buffer = ByteBuffer.allocate(4096);
+    private volatile Histogram ageHistogram;
+    private long droppedCount;
+    private long expiredCount;
+    private boolean closed;
+
+    public Outbox(File dir) throws IOException {
+        this(dir, DEFAULT_TTL_MILLIS, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_BYTES);
+    }
+
+    public Outbox(File dir, long ttlMillis, int maxMessages, int maxBytes) throws IOException {
+        if (ttlMillis <= 0 || maxMessages <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Invalid limits " + ttlMillis + "/" + maxMessages + "/" + maxBytes);
+        }
+        this.dir = dir;
+        this.ttlMillis = ttlMillis;
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        frame.setNameTable(new NameTable());
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+        open();
+    }
+
+    private void open() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) throw new IOException("Cannot list " + dir);
+        try {
+            for (File file : files) {
+                String name = file.getName();
+                if (file.length() == 0) {
+                    // Everything in it was delivered; nothing to recover.
+                    if (!file.delete()) ChatLog.w(TAG, "Cannot delete " + name);
+                    continue;
+                }
+                String recipient = decodeName(name.substring(0, name.length() - SUFFIX.length()));
+                if (recipient == null) {
+                    ChatLog.w(TAG, "Ignoring " + name);
+                    continue;
+                }
+                Queue queue = new Queue(file);
+                queues.put(recipient, queue);
+                recover(recipient, queue);
+            }
+        } catch (IOException e) {
+            closeQueues();
+            throw e;
+        }
+    }
+
+    /**
+     * Records, in milliseconds, how long each message waited between being queued and
+     * first taken. Null stops recording.
+     */
+    public void setAgeHistogram(Histogram ageHistogram) {
+        this.ageHistogram = ageHistogram;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * Queues {@code message} for its recipient at {@code nowMillis}, dropping that
+     * recipient's oldest messages if it no longer fits. Returns false, keeping nothing, if
+     * the message alone is over the byte cap.
+     */
+    public synchronized boolean offer(Message message, long nowMillis) throws IOException {
+        ensureOpen();
+        int length = RECORD_HEADER + FrameEncoder.chatFrameLength(message);
+        if (length > maxBytes) {
+            droppedCount++;
+            return false;
+        }
+        String recipient = message.getRecipient();
+        Queue queue = queues.get(recipient);
+        if (queue == null) {
+            queue = new Queue(new File(dir, encodeName(recipient) + SUFFIX));
+            queues.put(recipient, queue);
+        }
+        expire(queue, nowMillis);
+        while (!queue.entries.isEmpty() && (queue.entries.size() >= maxMessages || queue.bytes + length > maxBytes)) {
+            Entry oldest = queue.entries.removeFirst();
+            forget(queue, oldest);
+            droppedCount++;
+            ChatLog.w(TAG, "Outbox for " + recipient + " full, dropped message " + oldest.message.getId());
+        }
+
+        Entry entry = new Entry(message, nowMillis, length);
+        queue.fileLength = write(queue.channel, entry, queue.fileLength);
+        queue.entries.add(entry);
+        queue.bytes += length;
+        recipients.put(message.getId(), recipient);
+        compactIfMostlyDead(queue);
+        return true;
+    }
+
+    /**
+     * Hands out up to {@code max} of {@code recipient}'s messages that are not already out,
+     * oldest first, after dropping expired ones. They stay queued until removed or released.
+     */
+    public synchronized List<Message> take(String recipient, int max, long nowMillis) throws IOException {
+        ensureOpen();
+        Queue queue = queues.get(recipient);
+        if (queue == null) return new ArrayList<>(0);
+        expire(queue, nowMillis);
+        List<Message> taken = new ArrayList<>(Math.min(max, queue.entries.size()));
+        Histogram ages = ageHistogram;
+        for (Iterator<Entry> it = queue.entries.iterator(); it.hasNext() && taken.size() < max; ) {
+            Entry entry = it.next();
+            if (entry.taken) continue;
+            entry.taken = true;
+            taken.add(entry.message);
+            if (ages != null && !entry.takenBefore) ages.record(nowMillis - entry.queuedAt);
+            entry.takenBefore = true;
+        }
+        return taken;
+    }
+
+    /** Forgets message {@code id}, e.g. once it is delivered. Returns false if it was not queued. */
+    public synchronized boolean remove(long id) throws IOException {
+        ensureOpen();
+        Queue queue = queueOf(id);
+        if (queue == null) return false;
+        for (Iterator<Entry> it = queue.entries.iterator(); it.hasNext(); ) {
+            Entry entry = it.next();
+            if (entry.message.getId() != id) continue;
+            it.remove();
+            forget(queue, entry);
+            compactIfMostlyDead(queue);
+            return true;
+        }
+        return false;
+    }
+
+    /** Makes taken message {@code id} available to {@link #take} again, e.g. after it failed. */
+    public synchronized boolean release(long id) {
+        Queue queue = queueOf(id);
+        if (queue == null) return false;
+        for (Entry entry : queue.entries) {
+            if (entry.message.getId() == id) {
+                entry.taken = false;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Messages queued for {@code recipient} that {@link #take} would hand out. */
+    public synchronized int getAvailable(String recipient) {
+        Queue queue = queues.get(recipient);
+        if (queue == null) return 0;
+        int available = 0;
+        for (Entry entry : queue.entries) {
+            if (!entry.taken) available++;
+        }
+        return available;
+    }
+
+    public synchronized int size(String recipient) {
+        Queue queue = queues.get(recipient);
+        return queue != null ? queue.entries.size() : 0;
+    }
+
+    public synchronized int size() {
+        return recipients.size();
+    }
+
+    /** Recipients with queued messages. */
+    public synchronized List<String> getRecipients() {
+        List<String> names = new ArrayList<>();
+        for (Map.Entry<String, Queue> entry : queues.entrySet()) {
+            if (!entry.getValue().entries.isEmpty()) names.add(entry.getKey());
+        }
+        return names;
+    }
+
+    /** How long the oldest queued message has waited, or 0 if none is. */
+    public synchronized long getOldestAgeMillis(long nowMillis) {
+        long oldest = nowMillis;
+        for (Queue queue : queues.values()) {
+            if (!queue.entries.isEmpty()) oldest = Math.min(oldest, queue.entries.getFirst().queuedAt);
+        }
+        return nowMillis - oldest;
+    }
+
+    /** Messages dropped because their recipient's queue was full. */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+
+    /** Drops every message past its TTL. Returns how many. */
+    public synchronized int expire(long nowMillis) throws IOException {
+        ensureOpen();
+        int expired = 0;
+        for (Queue queue : queues.values()) expired += expire(queue, nowMillis);
+        return expired;
+    }
+
+    /** Rewrites files holding removed records and forces everything to disk. */
+    public synchronized void sync() throws IOException {
+        ensureOpen();
+        for (Queue queue : queues.values()) {
+            if (queue.deadRecords > 0) compact(queue);
+            queue.channel.force(false);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        try {
+            sync();
+        } finally {
+            closed = true;
+            closeQueues();
+        }
+    }
+
+    private int expire(Queue queue, long nowMillis) throws IOException {
+        int expired = 0;
+        while (!queue.entries.isEmpty() && nowMillis - queue.entries.getFirst().queuedAt > ttlMillis) {
+            forget(queue, queue.entries.removeFirst());
+            expired++;
+        }
+        if (expired > 0) {
+            expiredCount += expired;
+            compactIfMostlyDead(queue);
+        }
+        return expired;
+    }
+
+    private void forget(Queue queue, Entry entry) {
+        queue.bytes -= entry.length;
+        queue.deadRecords++;
+        recipients.remove(entry.message.getId());
+    }
+
+    private Queue queueOf(long id) {
+        String recipient = recipients.get(id);
+        return recipient != null ? queues.get(recipient) : null;
+    }
+
+    private void compactIfMostlyDead(Queue queue) throws IOException {
+        if (queue.deadRecords > queue.entries.size()) compact(queue);
+    }
+
+    /**
+     * Rewrites {@code queue}'s file with only its live records, through a temporary file
+     * renamed into place so a crash leaves either the old file or the new one.
+     */
+    private void compact(Queue queue) throws IOException {
+        File tmp = new File(queue.file.getPath() + ".tmp");
+        FileChannel channel = new RandomAccessFile(tmp, "rw").getChannel();
+        long position = 0;
+        try {
+            channel.truncate(0);
+            for (Entry entry : queue.entries) position = write(channel, entry, position);
+            channel.force(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        if (!tmp.renameTo(queue.file)) {
+            channel.close();
+            throw new IOException("Cannot replace " + queue.file);
+        }
+        queue.channel.close();
+        queue.channel = channel;
+        queue.fileLength = position;
+        queue.deadRecords = 0;
+    }
+
+    /** Writes {@code entry}'s record at {@code position}; returns the position after it. */
+    private long write(FileChannel channel, Entry entry, long position) throws IOException {
+        if (buffer.capacity() < entry.length) buffer = ByteBuffer.allocate(entry.length);
+        buffer.clear().position(8);
+        buffer.putLong(entry.queuedAt);
+        FrameEncoder.writeChat(buffer, entry.message);
+        buffer.flip();
+        crc.reset();
+        crc.update(buffer.array(), 8, entry.length - 8);
+        buffer.putInt(0, entry.length - RECORD_HEADER);
+        buffer.putInt(4, (int) crc.getValue());
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+        return position;
+    }
+
+    private void recover(String recipient, Queue queue) throws IOException {
+        long length = queue.channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(8);
+        while (position + RECORD_HEADER <= length) {
+            header.clear();
+            readFully(queue.channel, header, position);
+            int frameLength = header.getInt(0);
+            int checksum = header.getInt(4);
+            int recordLength = RECORD_HEADER + frameLength;
+            if (frameLength <= 0 || recordLength > maxBytes || position + recordLength > length) break;
+            if (buffer.capacity() < recordLength - 8) buffer = ByteBuffer.allocate(recordLength - 8);
+            buffer.clear().limit(recordLength - 8);
+            readFully(queue.channel, buffer, position + 8);
+            crc.reset();
+            crc.update(buffer.array(), 0, recordLength - 8);
+            if ((int) crc.getValue() != checksum) break;
+            long queuedAt = buffer.getLong(0);
+            buffer.position(8);
+            if (!decoder.next(buffer, frame)) break;
+            Message message = frame.toMessage();
+            queue.entries.add(new Entry(message, queuedAt, recordLength));
+            queue.bytes += recordLength;
+            recipients.put(message.getId(), recipient);
+            position += recordLength;
+        }
+        queue.fileLength = position;
+        if (position < length) {
+            ChatLog.w(TAG, "Cut " + (length - position) + " torn bytes off the outbox for " + recipient);
+            queue.channel.truncate(position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) throw new IOException("Unexpected end of outbox file");
+            position += n;
+        }
+        buffer.flip();
+    }
+
+    /** Hex of the UTF-8 name, so any username makes a safe file name. */
+    static String encodeName(String recipient) {
+        byte[] bytes = recipient.getBytes(StandardCharsets.UTF_8);
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
+
+    static String decodeName(String hex) {
+        if (hex.isEmpty() || hex.length() % 2 != 0) return null;
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) return null;
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void closeQueues() throws IOException {
+        IOException failure = null;
+        for (Queue queue : queues.values()) {
+            try {
+                queue.channel.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) throw new IOException("Outbox closed");
+    }
+}
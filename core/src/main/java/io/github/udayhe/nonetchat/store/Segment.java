@@ -0,0 +1,261 @@
+package io.github.udayhe.nonetchat.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+import io.github.udayhe.nonetchat.log.ChatLog;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+
+/**
+ * One append-only file of the {@link MessageLog}:
+ * <pre>
+ * segment := record*
+ * record  := length:u32 crc32:u32 frame       (frame is an encoded CHAT frame)
+ * </pre>
+ * Offsets and timestamps of every record are held in memory. A sealed segment also gets a
+ * {@code .idx} sidecar so reopening it does not have to rescan the records:
+ * <pre>
+ * index := segmentLength:u64 count:u32 (offset:u32 maxTimestamp:u64)* crc32:u32
+ * </pre>
+ */
+final class Segment {
+
+    private static final String TAG = "Segment";
+
+    static final int RECORD_HEADER = 8;
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".idx";
+
+    final long baseIndex;
+    final File file;
+    private final FileChannel channel;
+    private int[] offsets = new int[64];
+    // Running maximum, so lookups by time can binary search even if clocks disagree.
+    private long[] maxTimestamps = new long[64];
+    private int count;
+    private long length;
+
+    private Segment(long baseIndex, File file, FileChannel channel) {
+        this.baseIndex = baseIndex;
+        this.file = file;
+        this.channel = channel;
+    }
+
+    static File logFile(File dir, long baseIndex) {
+        return new File(dir, String.format("%020d%s", baseIndex, LOG_SUFFIX));
+    }
+
+    static Segment create(File dir, long baseIndex) throws IOException {
+        File file = logFile(dir, baseIndex);
+        return new Segment(baseIndex, file, new RandomAccessFile(file, "rw").getChannel());
+    }
+
+    /**
+     * Opens an existing segment, trusting its index if one matches and otherwise scanning
+     * the records. A torn or corrupt tail is cut off at the last intact record.
+     */
+    static Segment open(File file, long baseIndex, ByteBuffer scratch) throws IOException {
+        Segment segment = new Segment(baseIndex, file, new RandomAccessFile(file, "rw").getChannel());
+        try {
+            if (!segment.loadIndex()) segment.recover(scratch);
+        } catch (IOException e) {
+            segment.close();
+            throw e;
+        }
+        return segment;
+    }
+
+    int getCount() {
+        return count;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    long getLastIndex() {
+        return baseIndex + count - 1;
+    }
+
+    long getMaxTimestamp() {
+        return count == 0 ? Long.MIN_VALUE : maxTimestamps[count - 1];
+    }
+
+    /**
+     * Appends the frame between {@code record}'s position and limit, which must start
+     * with {@link #RECORD_HEADER} free bytes for the header.
+     */
+    void append(ByteBuffer record, long timestamp, CRC32 crc) throws IOException {
+        int frameLength = record.remaining() - RECORD_HEADER;
+        crc.reset();
+        crc.update(record.array(), record.arrayOffset() + record.position() + RECORD_HEADER, frameLength);
+        record.putInt(record.position(), frameLength);
+        record.putInt(record.position() + 4, (int) crc.getValue());
+
+        long position = length;
+        while (record.hasRemaining()) position += channel.write(record, position);
+        track((int) length, Math.max(timestamp, getMaxTimestamp()));
+        length = position;
+    }
+
+    /**
+     * Reads the frame of record {@code i} into {@code buffer}, growing it if needed, and
+     * returns the buffer flipped for reading.
+     */
+    ByteBuffer readFrame(int i, ByteBuffer buffer) throws IOException {
+        long start = offsets[i];
+        long end = i + 1 < count ? offsets[i + 1] : length;
+        int frameLength = (int) (end - start - RECORD_HEADER);
+        if (buffer.capacity() < frameLength) buffer = ByteBuffer.allocate(frameLength);
+        buffer.clear().limit(frameLength);
+        readFully(buffer, start + RECORD_HEADER);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * First record whose running maximum timestamp reaches {@code timestamp}, or
+     * {@link #getCount()} if none does.
+     */
+    int search(long timestamp) {
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (maxTimestamps[mid] < timestamp) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    void sync() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Flushes the segment and writes its index; no more appends follow.
+     */
+    void seal() throws IOException {
+        channel.force(false);
+        ByteBuffer index = ByteBuffer.allocate(8 + 4 + count * 12 + 4);
+        index.putLong(length).putInt(count);
+        for (int i = 0; i < count; i++) index.putInt(offsets[i]).putLong(maxTimestamps[i]);
+        CRC32 crc = new CRC32();
+        crc.update(index.array(), 0, index.position());
+        index.putInt((int) crc.getValue()).flip();
+
+        File tmp = new File(indexFile().getPath() + ".tmp");
+        try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+            out.setLength(0);
+            out.write(index.array(), 0, index.limit());
+            out.getFD().sync();
+        }
+        if (!tmp.renameTo(indexFile())) throw new IOException("Cannot write " + indexFile());
+    }
+
+    void close() throws IOException {
+        channel.close();
+    }
+
+    static void deleteFiles(File logFile) throws IOException {
+        File index = indexFile(logFile);
+        if (!logFile.delete() || (index.exists() && !index.delete())) {
+            throw new IOException("Cannot delete " + logFile);
+        }
+    }
+
+    private File indexFile() {
+        return indexFile(file);
+    }
+
+    private static File indexFile(File logFile) {
+        String name = logFile.getName();
+        return new File(logFile.getParentFile(), name.substring(0, name.length() - LOG_SUFFIX.length()) + INDEX_SUFFIX);
+    }
+
+    private boolean loadIndex() throws IOException {
+        File indexFile = indexFile();
+        if (!indexFile.isFile() || indexFile.length() < 16 || indexFile.length() > Integer.MAX_VALUE) return false;
+        byte[] bytes = new byte[(int) indexFile.length()];
+        try (RandomAccessFile in = new RandomAccessFile(indexFile, "r")) {
+            in.readFully(bytes);
+        }
+        ByteBuffer index = ByteBuffer.wrap(bytes);
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length - 4);
+        long indexedLength = index.getLong();
+        int indexedCount = index.getInt();
+        if ((int) crc.getValue() != index.getInt(bytes.length - 4)
+                || indexedLength != channel.size()
+                || bytes.length != 16 + indexedCount * 12L) {
+            ChatLog.w(TAG, "Ignoring stale index for " + file.getName());
+            return false;
+        }
+        for (int i = 0; i < indexedCount; i++) track(index.getInt(), index.getLong());
+        length = indexedLength;
+        return true;
+    }
+
+    private void recover(ByteBuffer scratch) throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        CRC32 crc = new CRC32();
+        FrameDecoder decoder = new FrameDecoder();
+        Frame frame = new Frame();
+        long position = 0;
+        while (position + RECORD_HEADER <= size) {
+            header.clear();
+            readFully(header, position);
+            int frameLength = header.getInt(0);
+            if (frameLength <= 0 || position + RECORD_HEADER + frameLength > size) break;
+            if (scratch.capacity() < frameLength) scratch = ByteBuffer.allocate(frameLength);
+            scratch.clear().limit(frameLength);
+            readFully(scratch, position + RECORD_HEADER);
+            scratch.flip();
+            crc.reset();
+            crc.update(scratch.array(), 0, frameLength);
+            if ((int) crc.getValue() != header.getInt(4) || !decodeChat(decoder, scratch, frame)) break;
+            track((int) position, Math.max(frame.getTimestamp(), getMaxTimestamp()));
+            position += RECORD_HEADER + frameLength;
+        }
+        length = position;
+        if (position < size) {
+            ChatLog.w(TAG, "Truncating " + file.getName() + " from " + size + " to " + position + " bytes");
+            channel.truncate(position);
+        }
+    }
+
+    private static boolean decodeChat(FrameDecoder decoder, ByteBuffer record, Frame frame) {
+        try {
+            return decoder.next(record, frame) && frame.getType() == WireFormat.TYPE_CHAT && !record.hasRemaining();
+        } catch (ProtocolException e) {
+            return false;
+        }
+    }
+
+    private void track(int offset, long maxTimestamp) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            maxTimestamps = Arrays.copyOf(maxTimestamps, count * 2);
+        }
+        offsets[count] = offset;
+        maxTimestamps[count] = maxTimestamp;
+        count++;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) throw new IOException("Unexpected end of " + file.getName());
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package io.github.udayhe.nonetchat.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import io.github.udayhe.nonetchat.exec.ConnectionExecutor;
+import io.github.udayhe.nonetchat.log.ChatLog;
+
+/**
+ * Accepts file transfers into a directory, one connection loop per transfer. A transfer
+ * is written to {@code <id>.part} and renamed once the last chunk is verified, so a
+ * transfer offered again under the same id resumes where the previous attempt stopped.
+ */
+public class FileReceiver implements Closeable {
+
+    private static final String TAG = "FileReceiver";
+
+    public interface Listener {
+        /** Return false to refuse the transfer. */
+        boolean onOffer(Transfer transfer, long resumeOffset);
+
+        void onProgress(Transfer transfer, long received);
+
+        void onComplete(Transfer transfer, File file);
+
+        void onFailed(Transfer transfer, IOException cause);
+    }
+
+    private final File directory;
+    private final Listener listener;
+    private final ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    public FileReceiver(File directory, Listener listener) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) throw new IOException("Cannot create " + directory);
+        this.directory = directory;
+        this.listener = listener;
+        this.serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+    }
+
+    public void bind(InetSocketAddress address) throws IOException {
+        serverSocket.bind(address);
+    }
+
+    public int getLocalPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts on {@code executor} and runs every incoming transfer as a loop of its own.
+     */
+    public void start(ConnectionExecutor executor) {
+        executor.execute("FileReceiver:" + getLocalPort(), () -> acceptLoop(executor), this);
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+    }
+
+    private void acceptLoop(ConnectionExecutor executor) {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!closed) ChatLog.e(TAG, "Accept failed", e);
+                return;
+            }
+            try {
+                executor.execute("Transfer-" + socket.getRemoteSocketAddress(), () -> receive(socket), socket);
+            } catch (RuntimeException e) {
+                ChatLog.w(TAG, "No thread for transfer from " + socket.getRemoteSocketAddress());
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    /**
+     * Serves one transfer on an accepted socket until it completes or fails.
+     */
+    public void receive(Socket socket) {
+        Transfer transfer = null;
+        try (Socket s = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+            transfer = TransferFormat.readOffer(in);
+            File part = new File(directory, Long.toHexString(transfer.getId()) + ".part");
+            long offset = Math.min(part.length(), transfer.getSize());
+            if (!listener.onOffer(transfer, offset)) {
+                out.writeLong(TransferFormat.REFUSED);
+                return;
+            }
+            out.writeLong(offset);
+            out.flush();
+
+            try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+                file.setLength(offset);
+                receiveChunks(in, out, file.getChannel(), transfer, offset);
+                file.getChannel().force(false);
+            }
+            File target = uniqueTarget(transfer.getName());
+            if (!part.renameTo(target)) throw new IOException("Cannot move " + part + " to " + target);
+            listener.onComplete(transfer, target);
+        } catch (IOException e) {
+            if (transfer == null) {
+                ChatLog.w(TAG, "Bad transfer request: " + e);
+            } else {
+                if (!(e instanceof SocketException) || !closed) ChatLog.w(TAG, "Transfer " + transfer + " stopped: " + e);
+                listener.onFailed(transfer, e);
+            }
+        }
+    }
+
+    private void receiveChunks(DataInputStream in, DataOutputStream out, FileChannel file, Transfer transfer,
+                               long offset) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[0];
+        long received = offset;
+        while (received < transfer.getSize()) {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length <= 0 || length > TransferFormat.MAX_CHUNK_SIZE || length > transfer.getSize() - received) {
+                throw new ProtocolException("Bad chunk length " + length + " at " + received);
+            }
+            if (chunk.length < length) chunk = new byte[length];
+            in.readFully(chunk, 0, length);
+            crc.reset();
+            crc.update(chunk, 0, length);
+            if ((int) crc.getValue() != checksum) throw new ProtocolException("Checksum mismatch at " + received);
+
+            ByteBuffer data = ByteBuffer.wrap(chunk, 0, length);
+            while (data.hasRemaining()) file.write(data, received + data.position());
+            received += length;
+            out.writeLong(received);
+            out.flush();
+            listener.onProgress(transfer, received);
+        }
+    }
+
+    private File uniqueTarget(String name) {
+        // Only the last path segment of the sender's name is trusted.
+        String safe = new File(name).getName();
+        if (safe.isEmpty() || safe.equals(".") || safe.equals("..")) safe = "file";
+        File target = new File(directory, safe);
+        int dot = safe.lastIndexOf('.');
+        String stem = dot > 0 ? safe.substring(0, dot) : safe;
+        String extension = dot > 0 ? safe.substring(dot) : "";
+        for (int i = 1; target.exists(); i++) target = new File(directory, stem + " (" + i + ")" + extension);
+        return target;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
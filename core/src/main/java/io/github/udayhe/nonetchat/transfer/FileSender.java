@@ -0,0 +1,112 @@
+package io.github.udayhe.nonetchat.transfer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Sends one file over its own connection. Chunk bodies go from the file to the socket
+ * with {@link FileChannel#transferTo}, so the kernel moves the bytes; the file is read
+ * into user space only to checksum each chunk. At most {@code window} chunks are in
+ * flight before the sender waits for an ACK. Not thread-safe; use one per transfer.
+ */
+public class FileSender {
+
+    public interface Listener {
+        /** {@code acked} bytes of the file are verified on the receiver. */
+        void onProgress(Transfer transfer, long acked);
+    }
+
+    private final int chunkSize;
+    private final int window;
+    private final byte[] scratch;
+    private final ByteBuffer header = ByteBuffer.allocate(TransferFormat.CHUNK_HEADER_LENGTH);
+    private final CRC32 crc = new CRC32();
+
+    public FileSender() {
+        this(TransferFormat.DEFAULT_CHUNK_SIZE, TransferFormat.DEFAULT_WINDOW);
+    }
+
+    public FileSender(int chunkSize, int window) {
+        if (chunkSize <= 0 || chunkSize > TransferFormat.MAX_CHUNK_SIZE || window <= 0) {
+            throw new IllegalArgumentException("Invalid chunk size " + chunkSize + " or window " + window);
+        }
+        this.chunkSize = chunkSize;
+        this.window = window;
+        this.scratch = new byte[Math.min(chunkSize, 64 * 1024)];
+    }
+
+    public void send(InetSocketAddress receiver, Transfer transfer, FileChannel file, Listener listener) throws IOException {
+        try (SocketChannel channel = SocketChannel.open()) {
+            channel.socket().connect(receiver, 8000);
+            send(channel, transfer, file, listener);
+        }
+    }
+
+    /**
+     * Offers {@code transfer} on a connected, blocking channel and streams the file from
+     * wherever the receiver says it left off. Returns once the whole file is acknowledged.
+     */
+    public void send(SocketChannel channel, Transfer transfer, FileChannel file, Listener listener) throws IOException {
+        DataInputStream in = new DataInputStream(channel.socket().getInputStream());
+        writeFully(channel, TransferFormat.encodeOffer(transfer));
+        long offset = in.readLong();
+        if (offset == TransferFormat.REFUSED) throw new IOException("Receiver refused " + transfer);
+        if (offset < 0 || offset > transfer.getSize()) throw new ProtocolException("Bad resume offset " + offset);
+
+        long size = transfer.getSize();
+        long acked = offset;
+        long sent = offset;
+        if (listener != null) listener.onProgress(transfer, acked);
+        while (acked < size) {
+            if (sent < size && (sent - acked) < (long) window * chunkSize) {
+                int length = (int) Math.min(chunkSize, size - sent);
+                sendChunk(channel, file, sent, length);
+                sent += length;
+                // Pick up ACKs that already arrived without stalling the pipeline.
+                while (in.available() >= TransferFormat.ACK_LENGTH) acked = readAck(in, acked, sent, transfer, listener);
+            } else {
+                acked = readAck(in, acked, sent, transfer, listener);
+            }
+        }
+    }
+
+    private long readAck(DataInputStream in, long acked, long sent, Transfer transfer, Listener listener) throws IOException {
+        long offset = in.readLong();
+        if (offset < acked || offset > sent) throw new ProtocolException("ACK " + offset + " outside " + acked + ".." + sent);
+        if (listener != null) listener.onProgress(transfer, offset);
+        return offset;
+    }
+
+    private void sendChunk(SocketChannel channel, FileChannel file, long position, int length) throws IOException {
+        crc.reset();
+        ByteBuffer read = ByteBuffer.wrap(scratch);
+        for (long at = position, end = position + length; at < end; ) {
+            read.clear();
+            read.limit((int) Math.min(scratch.length, end - at));
+            int n = file.read(read, at);
+            if (n < 0) throw new IOException("File shorter than announced at " + at);
+            crc.update(scratch, 0, n);
+            at += n;
+        }
+        header.clear();
+        header.putInt(length).putInt((int) crc.getValue()).flip();
+        writeFully(channel, header);
+
+        long done = 0;
+        while (done < length) {
+            long n = file.transferTo(position + done, length - done, channel);
+            if (n <= 0 && file.size() <= position + done) throw new IOException("File shrank during transfer");
+            done += n;
+        }
+    }
+
+    private static void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+}
@@ -0,0 +1,62 @@
+package io.github.udayhe.nonetchat.transfer;
+
+import java.util.Locale;
+
+import io.github.udayhe.nonetchat.payload.Message;
+
+/**
+ * What is being sent: a file name and size under an id that stays the same across resumes.
+ */
+public final class Transfer {
+
+    private final long id;
+    private final String sender;
+    private final String name;
+    private final long size;
+
+    public Transfer(long id, String sender, String name, long size) {
+        this.id = id;
+        this.sender = sender;
+        this.name = name;
+        this.size = size;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * A chat line describing this transfer at {@code transferred} bytes, so progress shows
+     * up in the conversation like any other message.
+     */
+    public Message toMessage(String recipient, long transferred, long timestamp) {
+        String state;
+        if (transferred >= size) state = "done";
+        else if (transferred < 0) state = "failed";
+        else state = (size == 0 ? 100 : transferred * 100 / size) + "%";
+        return Message.local(sender, recipient, "\uD83D\uDCCE " + name + " (" + formatSize(size) + ") " + state, timestamp);
+    }
+
+    public static String formatSize(long bytes) {
+        if (bytes < 1024) return bytes + " B";
+        if (bytes < 1024 * 1024) return String.format(Locale.ROOT, "%.1f KB", bytes / 1024.0);
+        return String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    @Override
+    public String toString() {
+        return name + "#" + Long.toHexString(id);
+    }
+}
@@ -0,0 +1,64 @@
+package io.github.udayhe.nonetchat.transfer;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * File transfers run on their own TCP connection so a large file never sits in front of
+ * chat frames. The sender connects to the receiver and the two exchange:
+ * <pre>
+ * OFFER  (sender)   magic:u16 id:u64 size:u64 sender:str name:str   str := length:u16 utf8
+ * ACCEPT (receiver) offset:i64          bytes already held; -1 refuses
+ * CHUNK  (sender)   length:u32 crc32:u32 bytes                       from the accepted offset on
+ * ACK    (receiver) offset:u64          after each chunk is verified and written
+ * </pre>
+ * The transfer is done when an ACK reaches the file size. A receiver only keeps chunks
+ * whose checksum matched, so a broken connection resumes from its last ACK.
+ */
+public final class TransferFormat {
+
+    public static final int MAGIC = 0x4E46; // "NF"
+
+    public static final int DEFAULT_PORT = 8889;
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+    public static final int DEFAULT_WINDOW = 4;
+    public static final int MAX_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    static final int CHUNK_HEADER_LENGTH = 8;
+    static final int ACK_LENGTH = 8;
+    static final long REFUSED = -1;
+
+    private TransferFormat() {
+    }
+
+    static ByteBuffer encodeOffer(Transfer transfer) {
+        byte[] sender = transfer.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] name = transfer.getName().getBytes(StandardCharsets.UTF_8);
+        if (sender.length > 0xFFFF || name.length > 0xFFFF) throw new IllegalArgumentException("Name too long");
+        ByteBuffer out = ByteBuffer.allocate(2 + 8 + 8 + 2 + sender.length + 2 + name.length);
+        out.putShort((short) MAGIC).putLong(transfer.getId()).putLong(transfer.getSize());
+        out.putShort((short) sender.length).put(sender);
+        out.putShort((short) name.length).put(name);
+        out.flip();
+        return out;
+    }
+
+    static Transfer readOffer(DataInputStream in) throws IOException {
+        if (in.readUnsignedShort() != MAGIC) throw new ProtocolException("Not a file transfer");
+        long id = in.readLong();
+        long size = in.readLong();
+        if (size < 0) throw new ProtocolException("Negative size " + size);
+        String sender = readString(in);
+        String name = readString(in);
+        return new Transfer(id, sender, name, size);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedShort()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
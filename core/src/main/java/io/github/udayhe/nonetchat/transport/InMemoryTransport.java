@@ -0,0 +1,156 @@
+package io.github.udayhe.nonetchat.transport;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.github.udayhe.nonetchat.mesh.MeshRelay;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+
+/**
+ * A transport between objects in one process, for tests and simulations. Each frame
+ * arrives after the one-way delay plus its length over the link's throughput, behind
+ * whatever the link is still sending, as scheduled by the {@link MeshRelay.Scheduler}.
+ * Links are two-way and made with {@link #link}.
+ */
+public class InMemoryTransport implements Transport {
+
+    private final String name;
+    private final String localName;
+    private final MeshRelay.Scheduler scheduler;
+    private final long delayMillis;
+    private final long bytesPerSecond;
+    private final int maxFrameLength;
+    private final Map<String, InMemoryTransport> links = new ConcurrentHashMap<>();
+    private final Map<String, Long> busyUntil = new ConcurrentHashMap<>();
+    private final FrameDecoder decoder = new FrameDecoder(Integer.MAX_VALUE);
+    private final Frame frame = new Frame();
+    private volatile Receiver receiver;
+    private volatile long nominalRoundTripMillis;
+    private volatile long nominalBytesPerSecond;
+    private volatile long sentCount;
+
+    public InMemoryTransport(String name, String localName, MeshRelay.Scheduler scheduler,
+                             long delayMillis, long bytesPerSecond, int maxFrameLength) {
+        this.name = name;
+        this.localName = localName;
+        this.scheduler = scheduler;
+        this.delayMillis = delayMillis;
+        this.bytesPerSecond = bytesPerSecond;
+        this.maxFrameLength = maxFrameLength;
+        this.nominalRoundTripMillis = 2 * delayMillis;
+        this.nominalBytesPerSecond = bytesPerSecond;
+    }
+
+    /** Connects this transport and {@code other}, of another user, both ways. */
+    public void link(InMemoryTransport other) {
+        links.put(other.localName, other);
+        other.links.put(localName, this);
+        notifyPeers();
+        other.notifyPeers();
+    }
+
+    public void unlink(InMemoryTransport other) {
+        links.remove(other.localName);
+        other.links.remove(localName);
+        notifyPeers();
+        other.notifyPeers();
+    }
+
+    /** What a router assumes before measuring; by default the link's real figures. */
+    public void setNominal(long roundTripMillis, long bytesPerSecond) {
+        this.nominalRoundTripMillis = roundTripMillis;
+        this.nominalBytesPerSecond = bytesPerSecond;
+    }
+
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public List<String> getPeers() {
+        return new ArrayList<>(links.keySet());
+    }
+
+    @Override
+    public int getMaxFrameLength() {
+        return maxFrameLength;
+    }
+
+    @Override
+    public long getNominalRoundTripMillis() {
+        return nominalRoundTripMillis;
+    }
+
+    @Override
+    public long getNominalBytesPerSecond() {
+        return nominalBytesPerSecond;
+    }
+
+    @Override
+    public boolean send(Message message) {
+        ByteBuffer encoded = FrameEncoder.encodeChat(message);
+        if (!message.getRecipient().equals(WireFormat.RECIPIENT_ALL)) return sendFrame(message.getRecipient(), encoded);
+        boolean any = false;
+        for (String peer : links.keySet()) any |= sendFrame(peer, encoded.duplicate());
+        return any;
+    }
+
+    @Override
+    public boolean sendAck(String recipient, ByteBuffer frame) {
+        return sendFrame(recipient, frame.duplicate());
+    }
+
+    private boolean sendFrame(String peer, ByteBuffer encoded) {
+        InMemoryTransport other = links.get(peer);
+        if (other == null || encoded.remaining() > maxFrameLength) return false;
+        long now = scheduler.nowMillis();
+        synchronized (busyUntil) {
+            Long busy = busyUntil.get(peer);
+            long start = busy != null ? Math.max(now, busy) : now;
+            long done = start + encoded.remaining() * 1000L / bytesPerSecond;
+            busyUntil.put(peer, done);
+            scheduler.schedule(() -> {
+                // A link cut while the frame was on its way loses it.
+                if (other.links.get(localName) == this) other.deliver(encoded);
+            }, done + delayMillis - now);
+        }
+        sentCount++;
+        return true;
+    }
+
+    private void deliver(ByteBuffer encoded) {
+        Receiver r = receiver;
+        if (r == null) return;
+        synchronized (frame) {
+            try {
+                if (!decoder.next(encoded, frame)) return;
+            } catch (ProtocolException e) {
+                throw new IllegalStateException(e);
+            }
+            r.onFrame(this, frame);
+        }
+    }
+
+    private void notifyPeers() {
+        Receiver r = receiver;
+        if (r != null) r.onPeersChanged(this);
+    }
+}
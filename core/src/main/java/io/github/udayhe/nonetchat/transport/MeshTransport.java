@@ -0,0 +1,219 @@
+package io.github.udayhe.nonetchat.transport;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.github.udayhe.nonetchat.delivery.AckBatcher;
+import io.github.udayhe.nonetchat.log.ChatLog;
+import io.github.udayhe.nonetchat.mesh.MeshRelay;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+
+/**
+ * The BLE mesh as a {@link Transport}. Mesh payloads are flooded to every node, so
+ * addressing is done here: CHAT and ACK frames travel whole inside a payload and nodes
+ * keep what is for them. Who is reachable is learned from presence announcements, sent
+ * every {@link #DEFAULT_ANNOUNCE_MILLIS}, and from the senders of frames heard; a peer not
+ * heard from for {@link #EXPIRY_ANNOUNCEMENTS} announcements is gone. Payloads use codec
+ * ids next to {@link io.github.udayhe.nonetchat.mesh.ShortTextCodec}'s, so older nodes
+ * drop them as unknown:
+ * <pre>
+ * payload := 0x00 0x02 frame          (a CHAT or ACK frame)
+ *          | 0x00 0x03 utf8           (presence of the named user)
+ * </pre>
+ */
+public class MeshTransport implements Transport {
+
+    private static final String TAG = "MeshTransport";
+
+    public interface Mesh {
+        /** Floods {@code payload}; returns false if it cannot. */
+        boolean send(byte[] payload);
+
+        int getMaxPayloadLength();
+    }
+
+    public static final int CODEC_FRAME = 2;
+    public static final int CODEC_PRESENCE = 3;
+    // Longer than the duty cycle's idle timeout, so announcements alone never keep the radio busy.
+    public static final long DEFAULT_ANNOUNCE_MILLIS = 3 * 60_000;
+    public static final int EXPIRY_ANNOUNCEMENTS = 3;
+    // Advertising rotates through queued chunks a few hundred ms each, and every hop adds jitter.
+    public static final long NOMINAL_ROUND_TRIP_MILLIS = 3_000;
+    public static final long NOMINAL_BYTES_PER_SECOND = 200;
+
+    private static final int MARKER = 0;
+    private static final int HEADER_LENGTH = 2;
+
+    private final Mesh mesh;
+    private final String localName;
+    private final MeshRelay.Scheduler scheduler;
+    private final long announceMillis;
+    private final Map<String, Long> lastHeard = new ConcurrentHashMap<>();
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final Frame frame = new Frame();
+    private volatile Receiver receiver;
+    private volatile AckBatcher ackBatcher;
+    private volatile boolean started;
+
+    public MeshTransport(Mesh mesh, String localName, MeshRelay.Scheduler scheduler) {
+        this(mesh, localName, scheduler, DEFAULT_ANNOUNCE_MILLIS);
+    }
+
+    public MeshTransport(Mesh mesh, String localName, MeshRelay.Scheduler scheduler, long announceMillis) {
+        this.mesh = mesh;
+        this.localName = localName;
+        this.scheduler = scheduler;
+        this.announceMillis = announceMillis;
+    }
+
+    /**
+     * Acknowledges, through {@code ackBatcher}, every CHAT frame for this user or for
+     * everyone, repeats included. Null turns receipts off.
+     */
+    public void setAckBatcher(AckBatcher ackBatcher) {
+        this.ackBatcher = ackBatcher;
+    }
+
+    /** Announces this user now and every interval, and expires peers gone quiet. */
+    public void start() {
+        if (started) return;
+        started = true;
+        announce();
+    }
+
+    public void stop() {
+        started = false;
+    }
+
+    private void announce() {
+        if (!started) return;
+        mesh.send(payload(CODEC_PRESENCE, ByteBuffer.wrap(localName.getBytes(StandardCharsets.UTF_8))));
+        expire();
+        scheduler.schedule(this::announce, announceMillis);
+    }
+
+    private void expire() {
+        long cutoff = scheduler.nowMillis() - EXPIRY_ANNOUNCEMENTS * announceMillis;
+        boolean changed = false;
+        for (Iterator<Long> it = lastHeard.values().iterator(); it.hasNext(); ) {
+            if (it.next() < cutoff) {
+                it.remove();
+                changed = true;
+            }
+        }
+        if (changed) notifyPeers();
+    }
+
+    /**
+     * Handles a payload from the mesh. Returns false if it is not one of this transport's,
+     * e.g. plain text, for the caller to handle.
+     */
+    public boolean onPayload(byte[] payload) {
+        if (payload.length < HEADER_LENGTH || payload[0] != MARKER) return false;
+        int codec = payload[1];
+        if (codec == CODEC_PRESENCE) {
+            heard(new String(payload, HEADER_LENGTH, payload.length - HEADER_LENGTH, StandardCharsets.UTF_8));
+            return true;
+        }
+        if (codec != CODEC_FRAME) return false;
+        ByteBuffer in = ByteBuffer.wrap(payload, HEADER_LENGTH, payload.length - HEADER_LENGTH).slice();
+        synchronized (frame) {
+            try {
+                if (!decoder.next(in, frame)) throw new ProtocolException("Truncated frame");
+            } catch (ProtocolException e) {
+                ChatLog.w(TAG, "Dropping mesh frame: " + e.getMessage());
+                return true;
+            }
+            int type = frame.getType();
+            if (type != WireFormat.TYPE_CHAT && type != WireFormat.TYPE_ACK) return true;
+            String sender = frame.getSenderName();
+            if (sender.equals(localName)) return true;
+            heard(sender);
+            String recipient = frame.getRecipientName();
+            boolean forUs = recipient.equals(localName)
+                    || (type == WireFormat.TYPE_CHAT && recipient.equals(WireFormat.RECIPIENT_ALL));
+            if (!forUs) return true;
+            AckBatcher acks = ackBatcher;
+            if (type == WireFormat.TYPE_CHAT && acks != null) acks.add(sender, frame.getId(), WireFormat.ACK_DELIVERED);
+            Receiver r = receiver;
+            if (r != null) r.onFrame(this, frame);
+        }
+        return true;
+    }
+
+    private void heard(String name) {
+        if (name.isEmpty() || name.equals(localName)) return;
+        if (lastHeard.put(name, scheduler.nowMillis()) == null) {
+            ChatLog.d(TAG, "Heard " + name + " on the mesh");
+            notifyPeers();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "ble";
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public List<String> getPeers() {
+        long cutoff = scheduler.nowMillis() - EXPIRY_ANNOUNCEMENTS * announceMillis;
+        List<String> peers = new ArrayList<>();
+        for (Map.Entry<String, Long> entry : lastHeard.entrySet()) {
+            if (entry.getValue() >= cutoff) peers.add(entry.getKey());
+        }
+        return peers;
+    }
+
+    @Override
+    public int getMaxFrameLength() {
+        return mesh.getMaxPayloadLength() - HEADER_LENGTH;
+    }
+
+    @Override
+    public long getNominalRoundTripMillis() {
+        return NOMINAL_ROUND_TRIP_MILLIS;
+    }
+
+    @Override
+    public long getNominalBytesPerSecond() {
+        return NOMINAL_BYTES_PER_SECOND;
+    }
+
+    @Override
+    public boolean send(Message message) {
+        return mesh.send(payload(CODEC_FRAME, FrameEncoder.encodeChat(message)));
+    }
+
+    @Override
+    public boolean sendAck(String recipient, ByteBuffer frame) {
+        return mesh.send(payload(CODEC_FRAME, frame.duplicate()));
+    }
+
+    private static byte[] payload(int codec, ByteBuffer body) {
+        byte[] payload = new byte[HEADER_LENGTH + body.remaining()];
+        payload[0] = MARKER;
+        payload[1] = (byte) codec;
+        body.get(payload, HEADER_LENGTH, body.remaining());
+        return payload;
+    }
+
+    private void notifyPeers() {
+        Receiver r = receiver;
+        if (r != null) r.onPeersChanged(this);
+    }
+}
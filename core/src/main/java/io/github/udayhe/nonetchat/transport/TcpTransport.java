@@ -0,0 +1,107 @@
+package io.github.udayhe.nonetchat.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+import io.github.udayhe.nonetchat.relay.MessageRouter;
+import io.github.udayhe.nonetchat.session.HostSession;
+
+/**
+ * The Wi-Fi Direct group as a {@link Transport}: sends through the {@link MessageRouter}
+ * on the group owner, or the {@link HostSession} on a client. The owner of those feeds
+ * it what they receive, through {@link #setRoster} and {@link #deliver}; everyone on the
+ * group's roster is reachable, clients through the owner.
+ */
+public class TcpTransport implements Transport {
+
+    // A LAN round trip through the owner, and a conservative share of a Wi-Fi Direct link.
+    public static final long NOMINAL_ROUND_TRIP_MILLIS = 20;
+    public static final long NOMINAL_BYTES_PER_SECOND = 1024 * 1024;
+
+    private final String localName;
+    private volatile MessageRouter router;
+    private volatile HostSession session;
+    private volatile List<String> roster = Collections.emptyList();
+    private volatile Receiver receiver;
+
+    public TcpTransport(String localName) {
+        this.localName = localName;
+    }
+
+    /** Sends through {@code router} from now on, as the group owner. */
+    public void setRouter(MessageRouter router) {
+        this.router = router;
+    }
+
+    /** Sends through {@code session} while there is no router, as a client. */
+    public void setSession(HostSession session) {
+        this.session = session;
+    }
+
+    /** The group's roster, or an empty list while not in a group. */
+    public void setRoster(List<String> names) {
+        List<String> peers = new ArrayList<>(names);
+        peers.remove(localName);
+        if (peers.equals(roster)) return;
+        roster = Collections.unmodifiableList(peers);
+        Receiver r = receiver;
+        if (r != null) r.onPeersChanged(this);
+    }
+
+    /** Hands a CHAT or ACK frame received from the group to the router. */
+    public void deliver(Frame frame) {
+        Receiver r = receiver;
+        if (r != null) r.onFrame(this, frame);
+    }
+
+    @Override
+    public String getName() {
+        return "tcp";
+    }
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public List<String> getPeers() {
+        return roster;
+    }
+
+    @Override
+    public int getMaxFrameLength() {
+        return WireFormat.DEFAULT_MAX_FRAME_LENGTH;
+    }
+
+    @Override
+    public long getNominalRoundTripMillis() {
+        return NOMINAL_ROUND_TRIP_MILLIS;
+    }
+
+    @Override
+    public long getNominalBytesPerSecond() {
+        return NOMINAL_BYTES_PER_SECOND;
+    }
+
+    @Override
+    public boolean send(Message message) {
+        MessageRouter r = router;
+        if (r != null) return r.send(message);
+        HostSession s = session;
+        return s != null && s.send(message);
+    }
+
+    @Override
+    public boolean sendAck(String recipient, ByteBuffer frame) {
+        MessageRouter r = router;
+        if (r != null) return r.sendAck(recipient, frame);
+        HostSession s = session;
+        return s != null && s.sendControl(frame);
+    }
+}
@@ -0,0 +1,44 @@
+package io.github.udayhe.nonetchat.transport;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+
+/**
+ * One way of reaching other users, e.g. the Wi-Fi Direct group or the BLE mesh. Carries
+ * CHAT and ACK frames; a {@link TransportRouter} picks which transport each one takes.
+ */
+public interface Transport {
+
+    interface Receiver {
+        /** A CHAT or ACK frame for this user or everyone; only valid during the call. */
+        void onFrame(Transport transport, Frame frame);
+
+        void onPeersChanged(Transport transport);
+    }
+
+    /** Short and stable, e.g. "tcp"; used in logs and metric names. */
+    String getName();
+
+    void setReceiver(Receiver receiver);
+
+    /** Users reachable right now, not including this one. */
+    List<String> getPeers();
+
+    /** Longest encoded frame it can carry. */
+    int getMaxFrameLength();
+
+    /** Expected time from sending a small message to its receipt, before any is measured. */
+    long getNominalRoundTripMillis();
+
+    /** Expected throughput, before any is measured. */
+    long getNominalBytesPerSecond();
+
+    /** Sends {@code message} to its recipient, or to everyone. Returns false if it could not be queued. */
+    boolean send(Message message);
+
+    /** Sends an encoded ACK frame to {@code recipient}. */
+    boolean sendAck(String recipient, ByteBuffer frame);
+}
@@ -0,0 +1,274 @@
+package io.github.udayhe.nonetchat.transport;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import io.github.udayhe.nonetchat.delivery.AckBatcher;
+import io.github.udayhe.nonetchat.delivery.RetransmitWindow;
+import io.github.udayhe.nonetchat.log.ChatLog;
+import io.github.udayhe.nonetchat.mesh.MeshRelay;
+import io.github.udayhe.nonetchat.mesh.SeenCache;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+
+/**
+ * Sends each message over the cheapest {@link Transport} that reaches its recipient and
+ * can carry it. The cost of a path is its estimated time to a receipt for a message of
+ * that length: round trip plus length over throughput, per transport and peer. Estimates
+ * start from the transport's nominal figures and follow the receipts of messages sent
+ * once, the round trip from short messages and the throughput from long ones. Long
+ * messages thereby end up on a transport that carries them, and short ones take a slower
+ * one when it is all that reaches their recipient. Broadcasts go out on every transport
+ * with anyone on it; receivers drop the copies by id.
+ * <p>
+ * Thread-safe. Transports and the listener are called without the lock held.
+ */
+public class TransportRouter implements RetransmitWindow.Transport, AckBatcher.Sink {
+
+    private static final String TAG = "TransportRouter";
+
+    /** Messages up to this long measure the round trip; longer ones the throughput. */
+    public static final int SHORT_MESSAGE_LENGTH = 256;
+    private static final int REMEMBERED_SENDS = 1024;
+
+    public interface Listener {
+        /** A CHAT frame seen for the first time, or an ACK frame; only valid during the call. */
+        void onFrame(Frame frame);
+
+        /** Everyone reachable on any transport, in the order first seen. */
+        void onPeersChanged(List<String> peers);
+    }
+
+    /** Current estimate for one transport and peer. */
+    public static final class Link {
+        long roundTripMillis;
+        long bytesPerSecond;
+        int roundTripSamples;
+        int throughputSamples;
+
+        Link(Transport transport) {
+            roundTripMillis = transport.getNominalRoundTripMillis();
+            bytesPerSecond = Math.max(1, transport.getNominalBytesPerSecond());
+        }
+
+        public long getRoundTripMillis() {
+            return roundTripMillis;
+        }
+
+        public long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /** Receipts measured so far. */
+        public int getSamples() {
+            return roundTripSamples + throughputSamples;
+        }
+
+        long estimateMillis(int length) {
+            return roundTripMillis + length * 1000L / bytesPerSecond;
+        }
+    }
+
+    private static final class Sent {
+        final Transport transport;
+        final String peer;
+        final int length;
+        final long sentAt;
+        boolean again;
+
+        Sent(Transport transport, String peer, int length, long sentAt) {
+            this.transport = transport;
+            this.peer = peer;
+            this.length = length;
+            this.sentAt = sentAt;
+        }
+    }
+
+    private final String localName;
+    private final Listener listener;
+    private final MeshRelay.Scheduler clock;
+    private final List<Transport> transports = new CopyOnWriteArrayList<>();
+    private final Map<Transport, Map<String, Link>> links = new HashMap<>();
+    private final Map<Long, Sent> sent = new LinkedHashMap<Long, Sent>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Sent> eldest) {
+            return size() > REMEMBERED_SENDS;
+        }
+    };
+    private final SeenCache seen = new SeenCache(REMEMBERED_SENDS);
+    private List<String> peers = new ArrayList<>();
+    private long unroutableCount;
+
+    private final Transport.Receiver receiver = new Transport.Receiver() {
+        @Override
+        public void onFrame(Transport transport, Frame frame) {
+            receive(frame);
+        }
+
+        @Override
+        public void onPeersChanged(Transport transport) {
+            updatePeers();
+        }
+    };
+
+    public TransportRouter(String localName, Listener listener, MeshRelay.Scheduler clock) {
+        this.localName = localName;
+        this.listener = listener;
+        this.clock = clock;
+    }
+
+    /** Adds a transport; on equal cost, earlier ones are preferred. */
+    public void add(Transport transport) {
+        synchronized (this) {
+            links.put(transport, new HashMap<String, Link>());
+        }
+        transports.add(transport);
+        transport.setReceiver(receiver);
+        updatePeers();
+    }
+
+    public List<Transport> getTransports() {
+        return new ArrayList<>(transports);
+    }
+
+    /** Everyone reachable on any transport. */
+    public synchronized List<String> getPeers() {
+        return peers;
+    }
+
+    @Override
+    public void transmit(Message message) {
+        send(message);
+    }
+
+    /**
+     * Sends {@code message} on the cheapest transport reaching its recipient, or a
+     * broadcast on every transport with peers. Returns false if none could take it.
+     */
+    public boolean send(Message message) {
+        int length = FrameEncoder.chatFrameLength(message);
+        if (message.getRecipient().equals(WireFormat.RECIPIENT_ALL)) {
+            boolean any = false;
+            for (Transport transport : transports) {
+                if (length <= transport.getMaxFrameLength() && !transport.getPeers().isEmpty()) {
+                    any |= transport.send(message);
+                }
+            }
+            return any;
+        }
+        Transport transport = choose(message.getRecipient(), length);
+        if (transport == null) {
+            synchronized (this) {
+                unroutableCount++;
+            }
+            ChatLog.d(TAG, "No path to " + message.getRecipient() + " for " + length + " bytes");
+            return false;
+        }
+        synchronized (this) {
+            Sent previous = sent.get(message.getId());
+            Sent now = new Sent(transport, message.getRecipient(), length, clock.nowMillis());
+            // As in TCP, a receipt for a message sent twice cannot tell which copy it answers.
+            now.again = previous != null;
+            sent.put(message.getId(), now);
+        }
+        return transport.send(message);
+    }
+
+    /** Sends a receipt by the cheapest transport back to the original sender. */
+    @Override
+    public void sendAck(String recipient, ByteBuffer frame) {
+        Transport transport = choose(recipient, frame.remaining());
+        if (transport != null) transport.sendAck(recipient, frame);
+    }
+
+    /** The transport {@link #send} would use for {@code length} bytes to {@code recipient}, or null. */
+    public Transport choose(String recipient, int length) {
+        Transport best = null;
+        long bestCost = Long.MAX_VALUE;
+        for (Transport transport : transports) {
+            if (length > transport.getMaxFrameLength() || !transport.getPeers().contains(recipient)) continue;
+            long cost;
+            synchronized (this) {
+                cost = link(transport, recipient).estimateMillis(length);
+            }
+            if (cost < bestCost) {
+                best = transport;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /** Current estimate for {@code peer} over {@code transport}. */
+    public synchronized Link getLink(Transport transport, String peer) {
+        return link(transport, peer);
+    }
+
+    public synchronized long getUnroutableCount() {
+        return unroutableCount;
+    }
+
+    private void receive(Frame frame) {
+        int type = frame.getType();
+        if (type == WireFormat.TYPE_CHAT) {
+            synchronized (this) {
+                // The same message may arrive over more than one transport.
+                if (!seen.add(frame.getId())) return;
+            }
+        } else if (type == WireFormat.TYPE_ACK) {
+            if (frame.getAckStatus() == WireFormat.ACK_DELIVERED) measure(frame);
+        } else {
+            return;
+        }
+        listener.onFrame(frame);
+    }
+
+    private synchronized void measure(Frame ack) {
+        long now = clock.nowMillis();
+        for (int i = 0; i < ack.getAckCount(); i++) {
+            Sent entry = sent.remove(ack.getAckId(i));
+            if (entry == null || entry.again) continue;
+            Link link = link(entry.transport, entry.peer);
+            long elapsed = Math.max(1, now - entry.sentAt);
+            if (entry.length <= SHORT_MESSAGE_LENGTH) {
+                link.roundTripMillis = link.roundTripSamples++ == 0 ? elapsed : (7 * link.roundTripMillis + elapsed) / 8;
+            } else {
+                long transfer = Math.max(1, elapsed - link.roundTripMillis);
+                long rate = Math.max(1, entry.length * 1000L / transfer);
+                link.bytesPerSecond = link.throughputSamples++ == 0 ? rate : (3 * link.bytesPerSecond + rate) / 4;
+            }
+        }
+    }
+
+    private Link link(Transport transport, String peer) {
+        Map<String, Link> byPeer = links.get(transport);
+        Link link = byPeer.get(peer);
+        if (link == null) {
+            link = new Link(transport);
+            byPeer.put(peer, link);
+        }
+        return link;
+    }
+
+    private void updatePeers() {
+        List<String> current;
+        synchronized (this) {
+            Set<String> union = new LinkedHashSet<>();
+            for (Transport transport : transports) union.addAll(transport.getPeers());
+            union.remove(localName);
+            current = new ArrayList<>(union);
+            if (current.equals(peers)) return;
+            peers = current;
+        }
+        listener.onPeersChanged(current);
+    }
+}
@@ -0,0 +1,68 @@
+package io.github.udayhe.nonetchat.delivery;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AckBatcherTest {
+
+    private static final int MESSAGES = 200;
+    private static final long SPACING_MILLIS = 5;
+
+    @Test
+    public void batchingCutsAckPacketsOnALossyLink() {
+        // A busy one-way chat over a link with 20 ms latency and 5% loss each way.
+        long single = ackPackets(0);
+        long batched = ackPackets(AckBatcher.DEFAULT_DELAY_MILLIS);
+        assertTrue("batched " + batched + " vs " + single, batched * 4 < single);
+    }
+
+    private static long ackPackets(long delayMillis) {
+        RetransmitWindowTest.Clock clock = new RetransmitWindowTest.Clock();
+        Random random = new Random(11);
+        Map<Long, Message.Status> statuses = new HashMap<>();
+        long[] ackPackets = new long[1];
+        FrameDecoder decoder = new FrameDecoder();
+        Frame frame = new Frame();
+        RetransmitWindow[] alice = new RetransmitWindow[1];
+
+        AckBatcher bob = new AckBatcher("bob", (recipient, ack) -> {
+            ackPackets[0]++;
+            if (random.nextInt(20) == 0) return;
+            ByteBuffer copy = ack.duplicate();
+            clock.schedule(() -> {
+                try {
+                    if (!decoder.next(copy, frame)) throw new AssertionError("Partial ACK");
+                } catch (ProtocolException e) {
+                    throw new AssertionError(e);
+                }
+                for (int i = 0; i < frame.getAckCount(); i++) alice[0].onAck(frame.getAckId(i), frame.getAckStatus());
+            }, 20);
+        }, clock, delayMillis, AckBatcher.DEFAULT_MAX_BATCH);
+        alice[0] = new RetransmitWindow(message -> {
+            if (random.nextInt(20) == 0) return;
+            clock.schedule(() -> bob.add(message.getSender(), message.getId(), WireFormat.ACK_DELIVERED), 20);
+        }, statuses::put, clock);
+
+        for (int i = 1; i <= MESSAGES; i++) {
+            alice[0].send(new Message(i, "alice", "bob", "m" + i, i));
+            clock.advance(SPACING_MILLIS);
+        }
+        clock.advance(60_000);
+
+        for (long id = 1; id <= MESSAGES; id++) assertEquals(Message.Status.DELIVERED, statuses.get(id));
+        return ackPackets[0];
+    }
+}
@@ -0,0 +1,126 @@
+package io.github.udayhe.nonetchat.delivery;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import io.github.udayhe.nonetchat.mesh.MeshRelay;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RetransmitWindowTest {
+
+    private final Clock clock = new Clock();
+    private final List<Message> transmitted = new ArrayList<>();
+    private final Map<Long, Message.Status> statuses = new HashMap<>();
+    private final RetransmitWindow window = new RetransmitWindow(transmitted::add, statuses::put, clock, 2, 3);
+
+    @Test
+    public void windowHoldsBackExtraMessagesUntilAcked() {
+        for (int i = 1; i <= 3; i++) window.send(message(i, "bob"));
+        assertEquals(2, transmitted.size());
+        assertEquals(Message.Status.PENDING, statuses.get(3L));
+
+        clock.advance(50);
+        window.onAck(1, WireFormat.ACK_DELIVERED);
+        assertEquals(Message.Status.DELIVERED, statuses.get(1L));
+        assertEquals(3, transmitted.size());
+        assertEquals(Message.Status.SENT, statuses.get(3L));
+
+        window.onAck(1, WireFormat.ACK_READ);
+        assertEquals(Message.Status.READ, statuses.get(1L));
+        window.onAck(1, WireFormat.ACK_DELIVERED); // late duplicate changes nothing
+        assertEquals(Message.Status.READ, statuses.get(1L));
+    }
+
+    @Test
+    public void windowsArePerRecipient() {
+        window.send(message(1, "bob"));
+        window.send(message(2, "bob"));
+        window.send(message(3, "carol"));
+        assertEquals(3, transmitted.size());
+        assertEquals(2, window.getInFlight("bob"));
+        assertEquals(1, window.getInFlight("carol"));
+    }
+
+    @Test
+    public void timeoutFollowsMeasuredRoundTrip() {
+        assertEquals(RetransmitWindow.INITIAL_RTO_MILLIS, window.getRtoMillis("bob"));
+        for (int i = 1; i <= 20; i++) {
+            window.send(message(i, "bob"));
+            clock.advance(30);
+            window.onAck(i, WireFormat.ACK_DELIVERED);
+        }
+        // A steady 30 ms round trip drives the estimate to its floor.
+        assertEquals(RetransmitWindow.MIN_RTO_MILLIS, window.getRtoMillis("bob"));
+        assertEquals(0, window.getRetransmitCount());
+    }
+
+    @Test
+    public void retransmitsWithBackoffThenFails() {
+        window.send(message(1, "bob"));
+        clock.advance(999);
+        assertEquals(1, transmitted.size());
+        clock.advance(1);
+        assertEquals(2, transmitted.size());
+        clock.advance(1_999);
+        assertEquals(2, transmitted.size());
+        clock.advance(1);
+        assertEquals(3, transmitted.size());
+        clock.advance(4_000);
+        assertEquals(3, transmitted.size());
+        assertEquals(Message.Status.FAILED, statuses.get(1L));
+        assertEquals(1, window.getFailedCount());
+        assertEquals(0, window.getInFlight("bob"));
+    }
+
+    @Test
+    public void ackOfRetransmittedMessageIsNotSampled() {
+        window.send(message(1, "bob"));
+        clock.advance(1_000);
+        assertEquals(1, window.getRetransmitCount());
+        clock.advance(10);
+        window.onAck(1, WireFormat.ACK_DELIVERED);
+        // The ack may answer either copy, so Karn's rule keeps the initial estimate.
+        assertEquals(RetransmitWindow.INITIAL_RTO_MILLIS, window.getRtoMillis("bob"));
+        assertTrue(statuses.get(1L) == Message.Status.DELIVERED);
+    }
+
+    private static Message message(long id, String recipient) {
+        return new Message(id, "alice", recipient, "m" + id, id);
+    }
+
+    static final class Clock implements MeshRelay.Scheduler {
+        private final PriorityQueue<long[]> order = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        private final List<Runnable> tasks = new ArrayList<>();
+        private long now;
+
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            order.add(new long[]{now + delayMillis, tasks.size()});
+            tasks.add(task);
+        }
+
+        void advance(long millis) {
+            long until = now + millis;
+            while (!order.isEmpty() && order.peek()[0] <= until) {
+                long[] next = order.poll();
+                now = next[0];
+                tasks.get((int) next[1]).run();
+            }
+            now = until;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package io.github.udayhe.nonetchat.delivery;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+import io.github.udayhe.nonetchat.store.Outbox;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StoreAndForwardTest {
+
+    private final RetransmitWindowTest.Clock clock = new RetransmitWindowTest.Clock();
+    private final List<Message> transmitted = new ArrayList<>();
+    private File dir;
+    private Outbox outbox;
+    private StoreAndForward forward;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("outbox", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        outbox = new Outbox(dir);
+        forward = new StoreAndForward(outbox, transmitted::add, clock, 4, 100);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        outbox.close();
+        File[] files = dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void holdsMessagesUntilTheRecipientAppears() {
+        forward.setPresent(Arrays.asList("me", "carol"));
+        forward.send(message(1, "carol"));
+        forward.send(message(2, WireFormat.RECIPIENT_ALL));
+        assertEquals(2, transmitted.size());
+
+        for (int i = 3; i <= 12; i++) forward.send(message(i, "bob"));
+        clock.advance(1000);
+        assertEquals(2, transmitted.size());
+        assertEquals(10, outbox.size("bob"));
+
+        // Bob reconnects: one batch at once, then one per interval.
+        forward.setPresent(Arrays.asList("me", "carol", "bob"));
+        clock.advance(0);
+        assertEquals(6, transmitted.size());
+        forward.send(message(13, "bob")); // behind the backlog
+        assertEquals(6, transmitted.size());
+        clock.advance(100);
+        assertEquals(10, transmitted.size());
+        clock.advance(100);
+        assertEquals(13, transmitted.size());
+        for (int i = 0; i < 11; i++) assertEquals(3 + i, transmitted.get(2 + i).getId());
+        assertEquals(11, forward.getForwardedCount());
+
+        for (long id = 3; id <= 13; id++) assertFalse(forward.onStatusChanged(id, Message.Status.DELIVERED));
+        assertEquals(0, outbox.size("bob"));
+    }
+
+    @Test
+    public void failedMessagesGoOutWithTheNextBatch() {
+        forward.setPresent(Collections.singletonList("bob"));
+        forward.send(message(1, "bob"));
+        assertEquals(1, transmitted.size());
+        assertTrue(forward.onStatusChanged(1, Message.Status.FAILED));
+
+        forward.setPresent(Collections.<String>emptyList());
+        forward.send(message(2, "bob"));
+        forward.setPresent(Collections.singletonList("bob"));
+        clock.advance(0);
+        assertEquals(Arrays.asList(1L, 1L, 2L), ids(transmitted));
+    }
+
+    private static Message message(long id, String to) {
+        return new Message(id, "me", to, "text " + id, id);
+    }
+
+    private static List<Long> ids(List<Message> messages) {
+        List<Long> ids = new ArrayList<>();
+        for (Message message : messages) ids.add(message.getId());
+        return ids;
+    }
+}
@@ -0,0 +1,150 @@
+package io.github.udayhe.nonetchat.discovery;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PeerCacheTest {
+
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    @Test
+    public void prefersPeersThatConnectedRecently() {
+        PeerCache cache = new PeerCache();
+        long now = 10 * HOUR;
+        cache.onSeen("aa", "Reliable", now - HOUR);
+        for (int i = 0; i < 4; i++) {
+            cache.onConnectAttempt("aa");
+            cache.onConnected("aa", true, now - HOUR);
+        }
+        cache.onSeen("bb", "Flaky", now);
+        for (int i = 0; i < 4; i++) cache.onConnectAttempt("bb");
+        cache.onConnected("bb", false, now);
+        cache.onSeen("cc", "Stale", now - 9 * HOUR);
+        cache.onConnectAttempt("cc");
+        cache.onConnected("cc", false, now - 9 * HOUR);
+
+        List<PeerCache.Peer> ranked = cache.ranked(now);
+        assertEquals("aa", ranked.get(0).getAddress());
+        assertEquals(1.0, ranked.get(0).getOwnerRate(), 0);
+        assertEquals("bb", cache.mostLikely(Arrays.asList("bb", "cc"), 0, now).getAddress());
+        assertNull(cache.mostLikely(Arrays.asList("bb", "cc", "zz"), 0.7, now));
+        assertEquals("aa", cache.mostLikely(Arrays.asList("aa", "bb", "cc"), 0.7, now).getAddress());
+    }
+
+    @Test
+    public void forgetsLeastRecentlySeenWhenFull() {
+        PeerCache cache = new PeerCache(2, HOUR);
+        cache.onSeen("aa", "A", 1);
+        cache.onSeen("bb", "B", 2);
+        cache.onSeen("aa", null, 3);
+        cache.onSeen("cc", "C", 4);
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("bb"));
+        assertEquals("A", cache.get("aa").getName());
+    }
+
+    @Test
+    public void survivesSaveAndLoad() throws IOException {
+        PeerCache cache = new PeerCache();
+        cache.onSeen("02:00:00:00:00:01", "Pixel ☕", 1234);
+        cache.onConnectAttempt("02:00:00:00:00:01");
+        cache.onConnectAttempt("02:00:00:00:00:01");
+        cache.onConnected("02:00:00:00:00:01", true, 5678);
+
+        File file = File.createTempFile("peers", ".bin");
+        try {
+            cache.save(file);
+            PeerCache loaded = new PeerCache();
+            loaded.load(file);
+            PeerCache.Peer peer = loaded.get("02:00:00:00:00:01");
+            assertEquals("Pixel ☕", peer.getName());
+            assertEquals(5678, peer.getLastSeenMillis());
+            assertEquals(2, peer.getAttempts());
+            assertEquals(1, peer.getSuccesses());
+            assertEquals(1, peer.getOwnerCount());
+
+            assertTrue(file.delete());
+            loaded.load(file);
+            assertEquals(0, loaded.size());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        PeerCache cache = new PeerCache();
+        cache.onSeen("aa", "A", 1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cache.writeTo(out);
+        byte[] bytes = Arrays.copyOf(out.toByteArray(), out.size() - 3);
+
+        PeerCache loaded = new PeerCache();
+        loaded.onSeen("bb", "B", 1);
+        try {
+            loaded.readFrom(new ByteArrayInputStream(bytes));
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals("B", loaded.get("bb").getName());
+    }
+
+    @Test
+    public void diffTurnsOneListIntoAnother() {
+        Random random = new Random(7);
+        for (int round = 0; round < 500; round++) {
+            List<Integer> current = randomList(random);
+            List<Integer> target = randomList(random);
+            final List<Integer> applied = new ArrayList<>(current);
+            int edits = ListDiff.apply(current, target, new ListDiff.Listener<Integer>() {
+                @Override
+                public void onRemoved(int index, Integer item) {
+                    assertEquals(item, applied.remove(index));
+                }
+
+                @Override
+                public void onInserted(int index, Integer item) {
+                    applied.add(index, item);
+                }
+            });
+            assertEquals(target, applied);
+            if (current.equals(target)) assertEquals(0, edits);
+        }
+
+        List<Integer> before = Arrays.asList(1, 2, 3, 4);
+        assertEquals(1, ListDiff.apply(before, Arrays.asList(1, 2, 4), new IgnoringListener()));
+        assertEquals(1, ListDiff.apply(before, Arrays.asList(1, 2, 5, 3, 4), new IgnoringListener()));
+    }
+
+    private static List<Integer> randomList(Random random) {
+        List<Integer> pool = new ArrayList<>();
+        for (int i = 0; i < 10; i++) pool.add(i);
+        Collections.shuffle(pool, random);
+        return new ArrayList<>(pool.subList(0, random.nextInt(pool.size() + 1)));
+    }
+
+    private static class IgnoringListener implements ListDiff.Listener<Integer> {
+        @Override
+        public void onRemoved(int index, Integer item) {
+        }
+
+        @Override
+        public void onInserted(int index, Integer item) {
+        }
+    }
+}
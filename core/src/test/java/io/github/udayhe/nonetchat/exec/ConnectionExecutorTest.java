@@ -0,0 +1,133 @@
+package io.github.udayhe.nonetchat.exec;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionExecutorTest {
+
+    @Test
+    public void threadsCarryTheLoopName() throws Exception {
+        ConnectionExecutor executor = ConnectionExecutor.platform("chat", 2);
+        AtomicReference<String> seen = new AtomicReference<>();
+        CountDownLatch ran = new CountDownLatch(1);
+        executor.execute("reader-alice", () -> {
+            seen.set(Thread.currentThread().getName());
+            ran.countDown();
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals("chat/reader-alice", seen.get());
+        assertTrue(executor.shutdown(1000));
+    }
+
+    @Test
+    public void boundedPoolRejectsInsteadOfQueueing() throws Exception {
+        ConnectionExecutor executor = ConnectionExecutor.platform("chat", 2);
+        CountDownLatch release = new CountDownLatch(1);
+        executor.execute("a", () -> awaitQuietly(release));
+        executor.execute("b", () -> awaitQuietly(release));
+        try {
+            executor.execute("c", () -> { });
+            fail("Third loop should not fit");
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(Arrays.asList("a", "b"), executor.getTaskNames());
+        assertEquals(1, executor.getRejectedCount());
+        release.countDown();
+        assertTrue(executor.shutdown(1000));
+    }
+
+    @Test
+    public void slotIsFreeAsSoonAsItsLoopReturns() throws Exception {
+        ConnectionExecutor executor = ConnectionExecutor.platform("chat", 1);
+        for (int i = 0; i < 1000; i++) {
+            // The pooled thread may still be on its way back; the slot must not wait for it.
+            executor.execute("loop-" + i, () -> { });
+            long deadline = System.currentTimeMillis() + 5000;
+            while (executor.getActiveCount() > 0) {
+                if (System.currentTimeMillis() > deadline) throw new AssertionError("Timed out");
+                Thread.yield();
+            }
+        }
+        assertEquals(0, executor.getRejectedCount());
+        assertTrue(executor.shutdown(1000));
+    }
+
+    @Test
+    public void shutdownUnblocksSocketReadsAndWaitsForEveryLoop() throws Exception {
+        ConnectionExecutor executor = ConnectionExecutor.platform("chat", 16);
+        List<Socket> clients = new ArrayList<>();
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            for (int i = 0; i < 10; i++) {
+                clients.add(new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+                Socket accepted = server.accept();
+                // Blocked in read(): only closing the socket can release it.
+                executor.execute("reader-" + i, () -> {
+                    try (InputStream in = accepted.getInputStream()) {
+                        while (in.read() >= 0) {
+                        }
+                    } catch (Exception ignored) {
+                    }
+                }, accepted);
+            }
+            waitForActive(executor, 10);
+            long start = System.nanoTime();
+            assertTrue(executor.shutdown(2000));
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+            assertEquals(0, executor.getActiveCount());
+        } finally {
+            for (Socket s : clients) s.close();
+        }
+        try {
+            executor.execute("late", () -> { });
+            fail("Shut down executors refuse new loops");
+        } catch (RejectedExecutionException expected) {
+        }
+    }
+
+    @Test
+    public void virtualThreadsAreNamedPerLoop() throws Exception {
+        Assume.assumeTrue(ConnectionExecutor.isVirtualAvailable());
+        ConnectionExecutor executor = ConnectionExecutor.virtual("chat");
+        AtomicReference<String> seen = new AtomicReference<>();
+        CountDownLatch ran = new CountDownLatch(1);
+        executor.execute("reader-bob", () -> {
+            seen.set(Thread.currentThread().getName());
+            ran.countDown();
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        assertEquals("chat/reader-bob", seen.get());
+        assertTrue(executor.shutdown(1000));
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitForActive(ConnectionExecutor executor, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getActiveCount() < count) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("Timed out");
+            Thread.sleep(1);
+        }
+    }
+}
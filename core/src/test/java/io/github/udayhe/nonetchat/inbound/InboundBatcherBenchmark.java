@@ -0,0 +1,79 @@
+package io.github.udayhe.nonetchat.inbound;
+
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.udayhe.nonetchat.payload.Message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Four reader threads deliver bursts to a simulated main thread with a 16 ms frame clock.
+ * Compares main-thread posts per 1,000 inbound messages against one post per message.
+ */
+public class InboundBatcherBenchmark {
+
+    private static final int READERS = 4;
+    private static final int MESSAGES = 10_000;
+    private static final long FRAME_MILLIS = 16;
+
+    @Test
+    public void mainThreadPostsPerThousandMessages() throws Exception {
+        ScheduledExecutorService main = Executors.newSingleThreadScheduledExecutor();
+        try {
+            // Frame callbacks run on the next 16 ms boundary, like Choreographer.
+            long epoch = System.nanoTime();
+            InboundBatcher.FrameScheduler vsync = task -> {
+                long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - epoch);
+                main.schedule(task, FRAME_MILLIS - elapsed % FRAME_MILLIS, TimeUnit.MILLISECONDS);
+            };
+
+            AtomicInteger delivered = new AtomicInteger();
+            CountDownLatch done = new CountDownLatch(1);
+            InboundBatcher batcher = new InboundBatcher(vsync, (batch, burst) -> {
+                if (delivered.addAndGet(batch.size()) == MESSAGES) done.countDown();
+            });
+
+            long start = System.nanoTime();
+            Thread[] readers = new Thread[READERS];
+            for (int r = 0; r < READERS; r++) {
+                final int reader = r;
+                readers[r] = new Thread(() -> {
+                    for (int i = 0; i < MESSAGES / READERS; i++) {
+                        batcher.offer(new Message(i, "peer" + reader, "me", "burst", i));
+                        // Bursts of 50 with a pause, roughly a busy group chat over Wi-Fi.
+                        if (i % 50 == 49) sleep(5);
+                    }
+                }, "reader-" + r);
+                readers[r].start();
+            }
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            for (Thread reader : readers) reader.join();
+
+            double batchedPerThousand = batcher.getPostCount() * 1000.0 / MESSAGES;
+            System.out.println(String.format(Locale.ROOT,
+                    "inbound: %d messages in %d ms, posts/1000 msgs: per-message 1000.0, batched %.1f (largest batch %d)",
+                    MESSAGES, elapsedMillis, batchedPerThousand, batcher.getLargestBatch()));
+            assertEquals(MESSAGES, delivered.get());
+            assertTrue(batchedPerThousand < 100);
+        } finally {
+            main.shutdownNow();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
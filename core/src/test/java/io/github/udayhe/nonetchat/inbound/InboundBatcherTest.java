@@ -0,0 +1,112 @@
+package io.github.udayhe.nonetchat.inbound;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import io.github.udayhe.nonetchat.payload.Message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class InboundBatcherTest {
+
+    private final List<Runnable> frames = new ArrayList<>();
+    private final List<Integer> batchSizes = new ArrayList<>();
+    private final List<Boolean> bursts = new ArrayList<>();
+    private final List<String> delivered = new ArrayList<>();
+
+    private final InboundBatcher batcher = new InboundBatcher(frames::add, (batch, burst) -> {
+        batchSizes.add(batch.size());
+        bursts.add(burst);
+        for (Message message : batch) delivered.add(message.getContent());
+    }, 3, 100);
+
+    @Test
+    public void coalescesOffersUntilTheNextFrame() {
+        for (int i = 0; i < 5; i++) batcher.offer(message(i));
+        assertEquals(1, frames.size());
+        runFrames();
+
+        assertEquals("[5]", batchSizes.toString());
+        assertEquals("[true]", bursts.toString());
+        assertEquals("[m0, m1, m2, m3, m4]", delivered.toString());
+
+        batcher.offer(message(5));
+        runFrames();
+        assertEquals("[5, 1]", batchSizes.toString());
+        assertFalse(bursts.get(1));
+        assertEquals(2, batcher.getPostCount());
+    }
+
+    @Test
+    public void splitsHugeBurstsAcrossFrames() {
+        for (int i = 0; i < 250; i++) batcher.offer(message(i));
+        runFrames();
+        assertEquals("[100, 100, 50]", batchSizes.toString());
+        assertEquals(250, delivered.size());
+        assertEquals(3, batcher.getPostCount());
+    }
+
+    @Test
+    public void offersDuringDeliveryScheduleAnotherFrame() {
+        InboundBatcher[] self = new InboundBatcher[1];
+        self[0] = new InboundBatcher(frames::add, (batch, burst) -> {
+            delivered.add(batch.get(0).getContent());
+            if (delivered.size() == 1) self[0].offer(message(99));
+        });
+        self[0].offer(message(0));
+        runFrames();
+        assertEquals("[m0, m99]", delivered.toString());
+    }
+
+    @Test
+    public void mpscQueueKeepsEachProducersOrder() throws Exception {
+        MpscQueue<long[]> queue = new MpscQueue<>();
+        int producers = 4;
+        int perProducer = 200_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) queue.offer(new long[]{producer, i});
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+
+        long[] next = new long[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            long[] item = queue.poll();
+            if (item == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[(int) item[0]]++, item[1]);
+            received++;
+        }
+        for (Thread thread : threads) thread.join();
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    private void runFrames() {
+        while (!frames.isEmpty()) frames.remove(0).run();
+    }
+
+    private static Message message(int i) {
+        return new Message(i, "peer", "me", "m" + i, i);
+    }
+}
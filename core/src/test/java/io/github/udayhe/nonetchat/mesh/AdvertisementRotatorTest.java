@@ -0,0 +1,51 @@
+package io.github.udayhe.nonetchat.mesh;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class AdvertisementRotatorTest {
+
+    private final List<String> onAir = new ArrayList<>();
+    private final List<Runnable> timers = new ArrayList<>();
+    private boolean stopped;
+
+    private final AdvertisementRotator rotator = new AdvertisementRotator(new AdvertisementRotator.Advertiser() {
+        @Override
+        public void advertise(byte[] packet) {
+            onAir.add(String.valueOf((char) packet[0]));
+            stopped = false;
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+    }, new MeshRelay.Scheduler() {
+        @Override
+        public long nowMillis() {
+            return 0;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            timers.add(task);
+        }
+    }, 100, 2, 8);
+
+    @Test
+    public void cyclesChunksRoundRobinThenStops() {
+        rotator.transmit(new byte[]{'a'});
+        rotator.transmit(new byte[]{'b'});
+        rotator.transmit(new byte[]{'c'});
+        while (!timers.isEmpty()) timers.remove(0).run();
+
+        assertEquals("[a, b, c, a, b, c]", onAir.toString());
+        assertTrue(stopped);
+        assertEquals(0, rotator.getQueuedCount());
+    }
+}
@@ -0,0 +1,93 @@
+package io.github.udayhe.nonetchat.mesh;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import io.github.udayhe.nonetchat.mesh.DutyCycleScheduler.Profile;
+
+import static org.junit.Assert.assertEquals;
+
+public class DutyCycleSchedulerTest {
+
+    private final List<Profile> changes = new ArrayList<>();
+    private final PriorityQueue<Object[]> timers = new PriorityQueue<>((a, b) -> Long.compare((Long) a[0], (Long) b[0]));
+    private long now;
+
+    private final DutyCycleScheduler duty = new DutyCycleScheduler(new MeshRelay.Scheduler() {
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            timers.add(new Object[]{now + delayMillis, task});
+        }
+    }, changes::add, 1_000, 10_000);
+
+    @Test
+    public void trafficStepsUpAtOnceAndDownAfterQuietPeriods() {
+        duty.start();
+        assertEquals(Profile.LOW_POWER, duty.getProfile());
+
+        duty.onTraffic();
+        assertEquals(Profile.LOW_LATENCY, duty.getProfile());
+        advance(500);
+        duty.onTraffic(); // a lull shorter than the active period keeps the radio up
+        advance(900);
+        assertEquals(Profile.LOW_LATENCY, duty.getProfile());
+        advance(200);
+        assertEquals(Profile.BALANCED, duty.getProfile());
+        advance(10_000);
+        assertEquals(Profile.LOW_POWER, duty.getProfile());
+        assertEquals("[LOW_POWER, LOW_LATENCY, BALANCED, LOW_POWER]", changes.toString());
+    }
+
+    @Test
+    public void backgroundCapsAtBalancedAndIdlesSooner() {
+        duty.start();
+        duty.setForeground(false);
+        duty.onTraffic();
+        assertEquals(Profile.BALANCED, duty.getProfile());
+        advance(1_000);
+        assertEquals(Profile.LOW_POWER, duty.getProfile());
+
+        duty.onTraffic();
+        duty.setForeground(true);
+        assertEquals(Profile.LOW_LATENCY, duty.getProfile());
+    }
+
+    @Test
+    public void discoveryLatencyIsKeptPerProfileWithTimeWeightedDutyCycle() {
+        duty.start();
+        duty.onScanStarted();
+        advance(4_000);
+        duty.onPacketHeard();
+        assertEquals(Profile.LOW_LATENCY, duty.getProfile());
+        duty.onScanStarted();
+        advance(40);
+        duty.onPacketHeard();
+
+        assertEquals(1, duty.getDiscoveryLatency(Profile.LOW_POWER).getCount());
+        assertEquals(4_000, duty.getDiscoveryLatency(Profile.LOW_POWER).getMax(), 4_000 / 32);
+        assertEquals(1, duty.getDiscoveryLatency(Profile.LOW_LATENCY).getCount());
+        assertEquals(40, duty.getDiscoveryLatency(Profile.LOW_LATENCY).getMax());
+
+        assertEquals(4_000, duty.getTimeIn(Profile.LOW_POWER));
+        assertEquals(40, duty.getTimeIn(Profile.LOW_LATENCY));
+        assertEquals((4_000 * 10 + 40 * 100) / 4_040.0, duty.getAverageDutyPercent(), 0.01);
+    }
+
+    private void advance(long millis) {
+        long until = now + millis;
+        while (!timers.isEmpty() && (Long) timers.peek()[0] <= until) {
+            Object[] next = timers.poll();
+            now = (Long) next[0];
+            ((Runnable) next[1]).run();
+        }
+        now = until;
+    }
+}
@@ -0,0 +1,226 @@
+package io.github.udayhe.nonetchat.mesh;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link MeshRelay} on a simulated radio: every transmission is repeated a few times,
+ * like an advertisement left running, and reaches each neighbour after a short delay.
+ */
+public class MeshSimulationTest {
+
+    @Test
+    public void lineTopologyStopsAtTtl() {
+        Network network = new Network(10, 1);
+        for (int i = 0; i + 1 < 10; i++) network.link(i, i + 1);
+        network.node(0).send(new byte[]{42});
+        network.run();
+
+        // TTL 5 reaches five hops; the fifth node receives with TTL 1 and stays quiet.
+        for (int i = 1; i <= 5; i++) assertEquals("node " + i, 1, network.delivered[i]);
+        for (int i = 6; i < 10; i++) assertEquals("node " + i, 0, network.delivered[i]);
+        assertEquals(4, network.relays());
+    }
+
+    @Test
+    public void gridDeliversExactlyOnceDespiteRepeatedAdvertisements() {
+        int side = 6;
+        Network network = new Network(side * side, 5);
+        for (int r = 0; r < side; r++) {
+            for (int c = 0; c < side; c++) {
+                if (c + 1 < side) network.link(r * side + c, r * side + c + 1);
+                if (r + 1 < side) network.link(r * side + c, (r + 1) * side + c);
+            }
+        }
+        for (int i = 0; i < network.size(); i++) network.node(i).setDefaultTtl(2 * side);
+        network.node(0).send(new byte[]{1, 2, 3});
+        network.run();
+
+        for (int i = 1; i < network.size(); i++) assertEquals("node " + i, 1, network.delivered[i]);
+        assertTrue("relays: " + network.relays(), network.relays() < network.size());
+        assertTrue(network.duplicates() > network.size());
+    }
+
+    @Test
+    public void fragmentedMessageIsReassembledAcrossHops() {
+        int side = 4;
+        Network network = new Network(side * side, 3);
+        for (int r = 0; r < side; r++) {
+            for (int c = 0; c < side; c++) {
+                if (c + 1 < side) network.link(r * side + c, r * side + c + 1);
+                if (r + 1 < side) network.link(r * side + c, (r + 1) * side + c);
+            }
+        }
+        byte[] text = "Fragmented across several legacy advertisements: ünïcödé counts in bytes"
+                .getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < network.size(); i++) network.node(i).setDefaultTtl(2 * side);
+        assertTrue(text.length > network.node(0).getMaxChunkLength() * 5);
+        network.node(0).send(text);
+        network.run();
+
+        for (int i = 1; i < network.size(); i++) {
+            assertEquals("node " + i, 1, network.delivered[i]);
+            assertArrayEquals(text, network.lastPayload[i]);
+            assertEquals(1.0, network.node(i).getReassembler().getCompletionRate(), 0);
+        }
+    }
+
+    @Test
+    public void suppressionThinsRelaysInADenseCluster() {
+        long withoutSuppression = denseClusterRelays(0);
+        long withSuppression = denseClusterRelays(MeshRelay.DEFAULT_SUPPRESSION_THRESHOLD);
+        assertTrue(withSuppression + " vs " + withoutSuppression, withSuppression * 2 < withoutSuppression);
+    }
+
+    @Test
+    public void rateLimitCapsRelaysDuringAStorm() {
+        Network network = new Network(2, 1);
+        network.link(0, 1);
+        MeshRelay relay = network.node(1);
+        relay.setRateLimit(10, 5);
+        relay.setMaxJitterMillis(0);
+        for (int i = 0; i < 50; i++) {
+            relay.onPacket(MeshPacket.encode(1000 + i, 3, 0, 1, new byte[0], 0, 0));
+        }
+        network.run();
+
+        assertEquals(50, network.delivered[1]);
+        assertEquals(5, relay.getRelayedCount());
+        assertTrue(relay.getRateLimitedCount() >= 45 - MeshRelay.MAX_PENDING_RELAYS);
+    }
+
+    @Test
+    public void ignoresMalformedPackets() {
+        Network network = new Network(1, 1);
+        MeshRelay relay = network.node(0);
+        relay.onPacket(new byte[4]);
+        relay.onPacket(null);
+        assertEquals(2, relay.getMalformedCount());
+        assertEquals(0, network.delivered[0]);
+    }
+
+    private static long denseClusterRelays(int threshold) {
+        int n = 30;
+        Network network = new Network(n, 3);
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) network.link(i, j);
+            network.node(i).setSuppressionThreshold(threshold);
+        }
+        network.node(0).send(new byte[]{7});
+        network.run();
+        for (int i = 1; i < n; i++) assertEquals(1, network.delivered[i]);
+        return network.relays();
+    }
+
+    private static final class Network {
+        private final List<List<Integer>> neighbours = new ArrayList<>();
+        private final List<MeshRelay> nodes = new ArrayList<>();
+        private final PriorityQueue<Event> events = new PriorityQueue<>();
+        private final Random random = new Random(3);
+        private final int repeats;
+        final int[] delivered;
+        final byte[][] lastPayload;
+        private long now;
+        private long sequence;
+
+        Network(int size, int repeats) {
+            this.repeats = repeats;
+            this.delivered = new int[size];
+            this.lastPayload = new byte[size][];
+            for (int i = 0; i < size; i++) {
+                final int index = i;
+                neighbours.add(new ArrayList<>());
+                MeshRelay.Scheduler scheduler = new MeshRelay.Scheduler() {
+                    @Override
+                    public long nowMillis() {
+                        return now;
+                    }
+
+                    @Override
+                    public void schedule(Runnable task, long delayMillis) {
+                        at(now + delayMillis, task);
+                    }
+                };
+                nodes.add(new MeshRelay(packet -> transmit(index, packet), scheduler,
+                        (id, payload) -> {
+                            delivered[index]++;
+                            lastPayload[index] = payload;
+                        }, new Random(random.nextLong()), 256, new Reassembler()));
+            }
+        }
+
+        int size() {
+            return nodes.size();
+        }
+
+        MeshRelay node(int index) {
+            return nodes.get(index);
+        }
+
+        void link(int a, int b) {
+            neighbours.get(a).add(b);
+            neighbours.get(b).add(a);
+        }
+
+        void run() {
+            Event event;
+            while ((event = events.poll()) != null) {
+                now = event.time;
+                event.task.run();
+            }
+        }
+
+        long relays() {
+            long total = 0;
+            for (MeshRelay node : nodes) total += node.getRelayedCount();
+            return total;
+        }
+
+        long duplicates() {
+            long total = 0;
+            for (MeshRelay node : nodes) total += node.getDuplicateCount();
+            return total;
+        }
+
+        private void transmit(int from, byte[] packet) {
+            for (int r = 0; r < repeats; r++) {
+                long sent = now + r * 20L;
+                for (int to : neighbours.get(from)) {
+                    final MeshRelay receiver = nodes.get(to);
+                    at(sent + 1 + random.nextInt(5), () -> receiver.onPacket(packet.clone(), packet.length, from + 1));
+                }
+            }
+        }
+
+        private void at(long time, Runnable task) {
+            events.add(new Event(time, sequence++, task));
+        }
+    }
+
+    private static final class Event implements Comparable<Event> {
+        final long time;
+        final long sequence;
+        final Runnable task;
+
+        Event(long time, long sequence, Runnable task) {
+            this.time = time;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            if (time != o.time) return time < o.time ? -1 : 1;
+            return Long.compare(sequence, o.sequence);
+        }
+    }
+}
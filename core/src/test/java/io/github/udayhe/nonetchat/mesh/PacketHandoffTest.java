@@ -0,0 +1,72 @@
+package io.github.udayhe.nonetchat.mesh;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PacketHandoffTest {
+
+    private final List<Runnable> posted = new ArrayList<>();
+    private final List<String> received = new ArrayList<>();
+
+    private final PacketHandoff handoff = new PacketHandoff(new MeshRelay.Scheduler() {
+        @Override
+        public long nowMillis() {
+            return 0;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            posted.add(task);
+        }
+    }, (packet, length, source) -> received.add(new String(packet, 0, length) + "@" + source), 4, 8);
+
+    @Test
+    public void handsOffInOrderWithOneDrainPerBurst() {
+        assertTrue(handoff.offer("xxab".getBytes(), 2, 2, 1));
+        assertTrue(handoff.offer("cd".getBytes(), 0, 2, 2));
+        assertEquals(1, posted.size());
+        assertEquals(2, handoff.size());
+
+        posted.remove(0).run();
+        assertEquals("[ab@1, cd@2]", received.toString());
+        assertEquals(0, handoff.size());
+        assertEquals(2, handoff.getHandedOffCount());
+
+        handoff.offer("ef".getBytes(), 0, 2, 3);
+        assertEquals(1, posted.size());
+    }
+
+    @Test
+    public void dropsWhenFullOrTooLong() {
+        for (int i = 0; i < 4; i++) assertTrue(handoff.offer(new byte[]{'a'}, 0, 1, i));
+        assertFalse(handoff.offer(new byte[]{'b'}, 0, 1, 4));
+        assertFalse(handoff.offer(new byte[9], 0, 9, 5));
+        assertEquals(2, handoff.getDroppedCount());
+
+        posted.remove(0).run();
+        assertEquals(4, received.size());
+        assertTrue(handoff.offer(new byte[]{'c'}, 0, 1, 6));
+    }
+
+    @Test
+    public void findsServiceDataInRawRecords() {
+        byte[] record = {
+                0x02, 0x01, 0x06,                       // flags
+                0x05, 0x16, 0x0D, 0x18, 0x11, 0x22,     // service data of another UUID
+                0x05, 0x16, (byte) 0xED, (byte) 0xFE, 'h', 'i',
+                0x00, 0x00};                            // legacy padding
+        int offset = MeshPacket.findServiceData(record, record.length, 0xFEED);
+        assertEquals(13, offset);
+        assertEquals(2, MeshPacket.serviceDataLength(record, offset));
+
+        assertEquals(-1, MeshPacket.findServiceData(record, record.length, 0xBEEF));
+        assertEquals(-1, MeshPacket.findServiceData(record, 12, 0xFEED)); // field overruns the record
+        assertEquals(-1, MeshPacket.findServiceData(null, 0, 0xFEED));
+    }
+}
@@ -0,0 +1,76 @@
+package io.github.udayhe.nonetchat.mesh;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ReassemblerTest {
+
+    private final Reassembler reassembler = new Reassembler(2, 64, 1000);
+
+    @Test
+    public void joinsChunksArrivingOutOfOrder() {
+        assertNull(accept(1, 2, 3, "ghi", 10));
+        assertNull(accept(1, 0, 3, "abc", 20));
+        assertNull(accept(1, 0, 3, "abc", 25));
+        assertArrayEquals(bytes("abcdefghi"), accept(1, 1, 3, "def", 40));
+
+        assertEquals(1, reassembler.getCompletedCount());
+        assertEquals(30, reassembler.getMaxLatencyMillis());
+        assertEquals(0, reassembler.getPendingCount());
+    }
+
+    @Test
+    public void keepsInterleavedMessagesApart() {
+        accept(1, 0, 2, "a1", 0);
+        accept(2, 1, 2, "b2", 0);
+        assertArrayEquals(bytes("b1b2"), accept(2, 0, 2, "b1", 1));
+        assertArrayEquals(bytes("a1a2"), accept(1, 1, 2, "a2", 2));
+    }
+
+    @Test
+    public void expiresStaleMessages() {
+        accept(1, 0, 2, "x", 0);
+        accept(2, 0, 1, "single", 2000);
+
+        assertEquals(1, reassembler.getExpiredCount());
+        assertNull(accept(1, 1, 2, "y", 2001));
+        assertEquals(1, reassembler.getPendingCount());
+        assertEquals(1.0 / 3, reassembler.getCompletionRate(), 1e-9);
+    }
+
+    @Test
+    public void evictsTheOldestWhenFull() {
+        accept(1, 0, 2, "a", 0);
+        accept(2, 0, 2, "b", 1);
+        accept(3, 0, 2, "c", 2);
+
+        assertEquals(1, reassembler.getEvictedCount());
+        assertNull(accept(1, 1, 2, "a", 3));
+        assertArrayEquals(bytes("cc"), accept(3, 1, 2, "c", 3));
+    }
+
+    @Test
+    public void rejectsOversizedAndInconsistentMessages() {
+        byte[] big = new byte[40];
+        reassembler.accept(1, 0, 2, big, 0, big.length, 0);
+        assertNull(reassembler.accept(1, 1, 2, big, 0, big.length, 0));
+        accept(2, 0, 2, "x", 0);
+        assertNull(accept(2, 1, 3, "y", 0));
+
+        assertEquals(2, reassembler.getRejectedCount());
+    }
+
+    private byte[] accept(long id, int index, int count, String chunk, long now) {
+        byte[] data = bytes("##" + chunk);
+        return reassembler.accept(id, index, count, data, 2, data.length - 2, now);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
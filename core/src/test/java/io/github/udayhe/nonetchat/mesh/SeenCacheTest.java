@@ -0,0 +1,60 @@
+package io.github.udayhe.nonetchat.mesh;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SeenCacheTest {
+
+    @Test
+    public void rejectsRepeatsAndForgetsOldest() {
+        SeenCache cache = new SeenCache(3);
+        assertTrue(cache.add(1));
+        assertTrue(cache.add(2));
+        assertFalse(cache.add(1));
+        assertTrue(cache.add(3));
+        assertTrue(cache.add(4));
+
+        assertFalse(cache.contains(1));
+        assertTrue(cache.contains(2));
+        assertTrue(cache.contains(4));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void zeroIsAnOrdinaryId() {
+        SeenCache cache = new SeenCache(2);
+        assertFalse(cache.contains(0));
+        assertTrue(cache.add(0));
+        assertFalse(cache.add(0));
+        cache.add(5);
+        cache.add(6);
+        assertFalse(cache.contains(0));
+    }
+
+    @Test
+    public void matchesAReferenceFifoSet() {
+        Random random = new Random(11);
+        SeenCache cache = new SeenCache(100);
+        ArrayDeque<Long> order = new ArrayDeque<>();
+        Set<Long> reference = new HashSet<>();
+        for (int i = 0; i < 200_000; i++) {
+            // A small id space forces plenty of repeats, collisions and evictions.
+            long id = random.nextInt(400) * 0x1_0000_0001L;
+            boolean added = reference.add(id);
+            if (added) {
+                order.addLast(id);
+                if (order.size() > 100) reference.remove(order.removeFirst());
+            }
+            assertEquals("op " + i, added, cache.add(id));
+        }
+        for (long id : reference) assertTrue(cache.contains(id));
+    }
+}
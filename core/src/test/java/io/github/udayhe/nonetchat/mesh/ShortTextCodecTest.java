@@ -0,0 +1,63 @@
+package io.github.udayhe.nonetchat.mesh;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ShortTextCodecTest {
+
+    @Test
+    public void chatTextShrinksAndRoundTrips() {
+        byte[] text = bytes("hey where are you? I'm at the main stage, near the food tent");
+        byte[] encoded = ShortTextCodec.encode(text);
+        assertTrue(encoded.length + " of " + text.length, encoded.length * 2 < text.length);
+        assertArrayEquals(text, ShortTextCodec.decode(encoded));
+    }
+
+    @Test
+    public void incompressibleTextIsSentAsIs() {
+        byte[] text = bytes("नमस्ते दोस्त");
+        assertSame(text, ShortTextCodec.encode(text));
+        assertSame(text, ShortTextCodec.decode(text));
+        byte[] tiny = bytes("k");
+        assertSame(tiny, ShortTextCodec.encode(tiny));
+    }
+
+    @Test
+    public void anyBytesRoundTrip() {
+        Random random = new Random(3);
+        for (int round = 0; round < 500; round++) {
+            byte[] text = new byte[random.nextInt(700)];
+            random.nextBytes(text);
+            if (round % 2 == 0) {
+                // Mix in dictionary hits so literal runs get broken up at every length.
+                for (int i = 0; i < text.length; i += 1 + random.nextInt(8)) text[i] = 'e';
+            }
+            byte[] encoded = ShortTextCodec.encode(text);
+            assertArrayEquals(text, ShortTextCodec.decode(encoded));
+            if (text.length > 0) assertTrue(encoded.length <= text.length || text[0] == 0);
+        }
+        byte[] marker = {0, 'h', 'i'};
+        assertArrayEquals(marker, ShortTextCodec.decode(ShortTextCodec.encode(marker)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncatedLiteralIsRejected() {
+        ShortTextCodec.decode(new byte[]{0, ShortTextCodec.CODEC_DICTIONARY_1, (byte) 255, 5, 'a'});
+    }
+
+    @Test
+    public void emptyTextRoundTrips() {
+        assertEquals(0, ShortTextCodec.decode(ShortTextCodec.encode(new byte[0])).length);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
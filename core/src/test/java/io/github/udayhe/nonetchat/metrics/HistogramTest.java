@@ -0,0 +1,70 @@
+package io.github.udayhe.nonetchat.metrics;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 50; i++) histogram.record(i);
+        assertEquals(25, histogram.getValueAtPercentile(50));
+        assertEquals(50, histogram.getValueAtPercentile(100));
+        assertEquals(25.5, histogram.getMean(), 1e-9);
+        assertEquals(50, histogram.getMax());
+    }
+
+    @Test
+    public void percentilesStayWithinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        Random random = new Random(5);
+        long[] values = new long[100_000];
+        for (int i = 0; i < values.length; i++) {
+            // Spread over nine orders of magnitude, like latencies in nanoseconds.
+            values[i] = (long) Math.pow(10, 9 * random.nextDouble());
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        for (double p : new double[]{50, 90, 99, 99.9}) {
+            long exact = values[(int) Math.ceil(p / 100 * values.length) - 1];
+            long reported = histogram.getValueAtPercentile(p);
+            assertTrue(p + ": " + reported + " vs " + exact, reported >= exact && reported <= exact * 1.04 + 1);
+        }
+        assertEquals(values[values.length - 1], histogram.getMax());
+    }
+
+    @Test
+    public void indexCoversTheWholeRange() {
+        long[] samples = {0, 63, 64, 65, 1000, Integer.MAX_VALUE, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for (long value : samples) {
+            long top = Histogram.highestEquivalent(Histogram.indexOf(value));
+            assertTrue(value + " -> " + top, top >= value && top - value <= value / 32);
+        }
+        Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-5);
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+        assertEquals(0, histogram.getValueAtPercentile(50));
+    }
+
+    @Test
+    public void concurrentRecordingLosesNothing() throws Exception {
+        Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 50_000; i++) histogram.record(i % 1000);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) thread.join();
+        assertEquals(200_000, histogram.getCount());
+        assertEquals(999, histogram.getMax());
+    }
+}
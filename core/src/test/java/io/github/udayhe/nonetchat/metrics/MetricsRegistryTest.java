@@ -0,0 +1,36 @@
+package io.github.udayhe.nonetchat.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void lookupsReturnTheSameMetric() {
+        MetricsRegistry registry = new MetricsRegistry();
+        assertSame(registry.counter("a"), registry.counter("a"));
+        assertSame(registry.histogram("h"), registry.histogram("h"));
+        assertSame(registry.peer("bob"), registry.peer("bob"));
+    }
+
+    @Test
+    public void dumpListsEveryKind() {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("session.reconnects").addAndGet(3);
+        registry.gauge("sender.queue_depth", () -> 7);
+        registry.histogram("send.queue_wait_us").record(120);
+        PeerMetrics bob = registry.peer("bob");
+        bob.onReceived(10);
+        bob.onSent(20);
+        bob.onSent(5);
+        bob.setQueueDepth(() -> 2);
+
+        String dump = registry.dump();
+        assertTrue(dump, dump.contains("session.reconnects 3 ("));
+        assertTrue(dump, dump.contains("sender.queue_depth 7"));
+        assertTrue(dump, dump.contains("send.queue_wait_us n=1 "));
+        assertTrue(dump, dump.contains("peer bob in=1/10B out=2/25B queue=2"));
+    }
+}
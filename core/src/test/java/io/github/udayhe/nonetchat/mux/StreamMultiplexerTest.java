@@ -0,0 +1,278 @@
+package io.github.udayhe.nonetchat.mux;
+
+import org.junit.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+import io.github.udayhe.nonetchat.sender.OutboundQueue;
+import io.github.udayhe.nonetchat.sender.PeerWriter;
+import io.github.udayhe.nonetchat.sender.Priority;
+import io.github.udayhe.nonetchat.sender.SendCallback;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class StreamMultiplexerTest {
+
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final Frame frame = new Frame();
+
+    @Test
+    public void creditBoundsBytesInFlightUntilTheReceiverGrantsMore() throws Exception {
+        CapturingWriter toReceiver = new CapturingWriter(Integer.MAX_VALUE);
+        CapturingWriter toSender = new CapturingWriter(Integer.MAX_VALUE);
+        StreamMultiplexer mux = new StreamMultiplexer(toReceiver, 4, 8);
+        List<byte[]> received = new ArrayList<>();
+        StreamDemultiplexer demux = new StreamDemultiplexer(toSender, (id, message) -> {
+            byte[] bytes = new byte[message.remaining()];
+            message.get(bytes);
+            received.add(bytes);
+        }, 8, 1024);
+
+        byte[] message = new byte[21];
+        for (int i = 0; i < message.length; i++) message[i] = (byte) i;
+        long id = mux.open(Priority.BULK);
+        assertTrue(mux.write(id, ByteBuffer.wrap(message)));
+        assertEquals(2, toReceiver.frames.size());
+        assertEquals(0, mux.getCredit(id));
+        assertEquals(4, mux.getPendingChunks(id));
+
+        while (!toReceiver.frames.isEmpty()) {
+            assertTrue(decoder.next(toReceiver.frames.remove(0), frame));
+            demux.onFrame(frame);
+            while (!toSender.frames.isEmpty()) {
+                assertTrue(decoder.next(toSender.frames.remove(0), frame));
+                assertEquals(WireFormat.TYPE_CREDIT, frame.getType());
+                mux.onCredit(frame.getStreamId(), frame.getCredit());
+            }
+        }
+        assertEquals(1, received.size());
+        assertArrayEquals(message, received.get(0));
+        assertEquals(6, mux.getChunksSent());
+    }
+
+    @Test
+    public void creditTheQueueRefusedIsGrantedWithALaterFrame() throws Exception {
+        CapturingWriter toReceiver = new CapturingWriter(Integer.MAX_VALUE);
+        CapturingWriter toSender = new CapturingWriter(0);
+        StreamMultiplexer mux = new StreamMultiplexer(toReceiver, 4, 8);
+        List<byte[]> received = new ArrayList<>();
+        StreamDemultiplexer demux = new StreamDemultiplexer(toSender,
+                (id, message) -> received.add(new byte[message.remaining()]), 8, 1024);
+
+        long id = mux.open(Priority.BULK);
+        mux.write(id, ByteBuffer.allocate(12));
+        // Both grants are refused; the sender has spent its credit and has nothing in flight.
+        while (!toReceiver.frames.isEmpty()) {
+            assertTrue(decoder.next(toReceiver.frames.remove(0), frame));
+            demux.onFrame(frame);
+        }
+        assertEquals(0, demux.getCreditFrames());
+        assertEquals(0, mux.getCredit(id));
+        assertEquals(1, mux.getPendingChunks(id));
+
+        toSender.room = Integer.MAX_VALUE;
+        assertTrue(decoder.next(FrameEncoder.encodePing(1), frame));
+        demux.onFrame(frame);
+        assertEquals(1, toSender.frames.size());
+        assertTrue(decoder.next(toSender.frames.remove(0), frame));
+        mux.onCredit(frame.getStreamId(), frame.getCredit());
+        assertTrue(decoder.next(toReceiver.frames.remove(0), frame));
+        demux.onFrame(frame);
+        assertEquals(1, received.size());
+        assertEquals(12, received.get(0).length);
+    }
+
+    @Test
+    public void closedStreamsAreForgotten() throws Exception {
+        CapturingWriter toReceiver = new CapturingWriter(Integer.MAX_VALUE);
+        StreamMultiplexer mux = new StreamMultiplexer(toReceiver, 4, 64);
+        List<Long> received = new ArrayList<>();
+        StreamDemultiplexer demux = new StreamDemultiplexer(new CapturingWriter(Integer.MAX_VALUE),
+                (id, message) -> received.add(id), 64, 1024, 2);
+
+        for (int i = 0; i < 10; i++) {
+            long id = mux.open(Priority.BULK);
+            mux.write(id, ByteBuffer.allocate(6));
+            mux.close(id);
+            assertFalse(mux.isOpen(id));
+            while (!toReceiver.frames.isEmpty()) {
+                assertTrue(decoder.next(toReceiver.frames.remove(0), frame));
+                demux.onFrame(frame);
+            }
+            assertEquals(0, demux.getStreamCount());
+        }
+        assertEquals(10, received.size());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void openingTooManyStreamsIsAProtocolError() throws Exception {
+        StreamDemultiplexer demux = new StreamDemultiplexer(new CapturingWriter(Integer.MAX_VALUE), (id, message) -> {
+        }, 64, 1024, 2);
+        for (long id = 1; id <= 3; id++) {
+            assertTrue(decoder.next(FrameEncoder.encodeStream(id, 0, ByteBuffer.allocate(1)), frame));
+            demux.onFrame(frame);
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void senderOverrunningItsCreditIsAProtocolError() throws Exception {
+        StreamDemultiplexer demux = new StreamDemultiplexer(new CapturingWriter(0), (id, message) -> {
+        }, 8, 1024);
+        assertTrue(decoder.next(FrameEncoder.encodeStream(1, 0, ByteBuffer.allocate(12)), frame));
+        demux.onFrame(frame);
+    }
+
+    @Test
+    public void fullQueueStallsUntilAChunkIsWritten() {
+        CapturingWriter writer = new CapturingWriter(2);
+        StreamMultiplexer mux = new StreamMultiplexer(writer, 4, 64);
+        long id = mux.open(Priority.BULK);
+        mux.write(id, ByteBuffer.allocate(16));
+        assertEquals(2, writer.frames.size());
+        assertEquals(1, mux.getStallCount());
+
+        writer.complete(0, SendCallback.Outcome.WRITTEN);
+        assertEquals(3, writer.frames.size());
+    }
+
+    @Test
+    public void droppedChunkResetsTheStream() {
+        CapturingWriter writer = new CapturingWriter(Integer.MAX_VALUE);
+        StreamMultiplexer mux = new StreamMultiplexer(writer, 4, 64);
+        long id = mux.open(Priority.BULK);
+        long other = mux.open(Priority.BULK);
+        mux.write(id, ByteBuffer.allocate(8));
+
+        writer.complete(0, SendCallback.Outcome.DROPPED);
+        assertFalse(mux.isOpen(id));
+        assertTrue(mux.isOpen(other));
+        assertFalse(mux.write(id, ByteBuffer.allocate(1)));
+        assertEquals(1, mux.getResetCount());
+    }
+
+    @Test
+    public void chatDoesNotWaitBehindBulkOnAStream() {
+        ByteBuffer bulk = FrameEncoder.encodeChat(new Message(-1, "bulk", "peer", new String(new char[4096]), 0));
+        ByteBuffer chat = FrameEncoder.encodeChat(new Message(1, "ping", "peer", "ping", 0));
+
+        QueueWriter fifo = new QueueWriter();
+        fifo.send(bulk.duplicate());
+        fifo.send(chat.duplicate());
+        int fifoBytesAhead = fifo.bytesAheadOf(chat);
+
+        QueueWriter muxed = new QueueWriter();
+        StreamMultiplexer mux = new StreamMultiplexer(muxed, 256, 1024);
+        long id = mux.open(Priority.BULK);
+        assertTrue(mux.write(id, ByteBuffer.allocate(4096)));
+        muxed.send(chat.duplicate());
+        // Credit holds back all but four chunks; the chat still goes out first.
+        assertEquals(4 + 1, muxed.queue.getDepth());
+        assertEquals(0, muxed.bytesAheadOf(chat));
+        assertTrue(fifoBytesAhead > 4096);
+    }
+
+    private static class CapturingWriter implements PeerWriter {
+        final List<ByteBuffer> frames = new ArrayList<>();
+        final List<SendCallback> callbacks = new ArrayList<>();
+        int room;
+
+        CapturingWriter(int room) {
+            this.room = room;
+        }
+
+        void complete(int index, SendCallback.Outcome outcome) {
+            room++;
+            callbacks.get(index).onComplete(outcome);
+        }
+
+        @Override
+        public boolean send(ByteBuffer frame) {
+            return trySend(frame, null, Priority.INTERACTIVE);
+        }
+
+        @Override
+        public boolean trySend(ByteBuffer frame, SendCallback callback) {
+            return trySend(frame, callback, Priority.INTERACTIVE);
+        }
+
+        @Override
+        public boolean trySend(ByteBuffer frame, SendCallback callback, Priority priority) {
+            if (room == 0) {
+                if (callback != null) callback.onComplete(SendCallback.Outcome.REJECTED);
+                return false;
+            }
+            room--;
+            frames.add(frame.duplicate());
+            callbacks.add(callback);
+            return true;
+        }
+
+        @Override
+        public OutboundQueue getQueue() {
+            return new OutboundQueue(1, OutboundQueue.Policy.DISCONNECT);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Queues into a real {@link OutboundQueue} with nothing draining it. */
+    private static class QueueWriter implements PeerWriter {
+        final OutboundQueue queue = new OutboundQueue(64, OutboundQueue.Policy.DISCONNECT);
+
+        int bytesAheadOf(ByteBuffer frame) {
+            ByteBuffer[] frames = new ByteBuffer[64];
+            int n = queue.drainTo(frames, new SendCallback[64]);
+            int bytes = 0;
+            for (int i = 0; i < n && !frames[i].equals(frame); i++) bytes += frames[i].remaining();
+            return bytes;
+        }
+
+        @Override
+        public boolean send(ByteBuffer frame) {
+            return trySend(frame, null, Priority.INTERACTIVE);
+        }
+
+        @Override
+        public boolean trySend(ByteBuffer frame, SendCallback callback) {
+            return trySend(frame, callback, Priority.INTERACTIVE);
+        }
+
+        @Override
+        public boolean trySend(ByteBuffer frame, SendCallback callback, Priority priority) {
+            return queue.offer(frame, callback, false, priority);
+        }
+
+        @Override
+        public OutboundQueue getQueue() {
+            return queue;
+        }
+
+        @Override
+        public boolean isClosed() {
+            return queue.isClosed();
+        }
+
+        @Override
+        public void close() {
+            queue.close();
+        }
+    }
+}
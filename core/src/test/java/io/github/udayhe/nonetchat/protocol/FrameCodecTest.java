@@ -0,0 +1,285 @@
+package io.github.udayhe.nonetchat.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import io.github.udayhe.nonetchat.payload.Message;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameCodecTest {
+
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final Frame frame = new Frame();
+
+    @Test
+    public void chatRoundTripKeepsEveryField() throws Exception {
+        Message sent = new Message(0x1234_5678_9ABC_DEF0L, "ånna", "bob", "line one\nline two 😀", 1_700_000_000_123L);
+
+        ByteBuffer in = FrameEncoder.encodeChat(sent);
+        assertEquals(FrameEncoder.chatFrameLength(sent), in.remaining());
+        assertTrue(decoder.next(in, frame));
+        assertFalse(in.hasRemaining());
+
+        Message received = frame.toMessage();
+        assertEquals(sent.getId(), received.getId());
+        assertEquals(sent.getSender(), received.getSender());
+        assertEquals(sent.getRecipient(), received.getRecipient());
+        assertEquals(sent.getContent(), received.getContent());
+        assertEquals(sent.getTimestamp(), received.getTimestamp());
+    }
+
+    @Test
+    public void stringFieldsStayInTheBufferUntilAsked() throws Exception {
+        ByteBuffer in = FrameEncoder.encodeChat(new Message(1, "alice", "all", "hi", 5));
+        assertTrue(decoder.next(in, frame));
+        assertTrue(frame.getRecipient().contentEquals("all".getBytes(StandardCharsets.UTF_8)));
+        assertFalse(frame.getSender().contentEquals("bob".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(2, frame.getContent().length());
+    }
+
+    @Test
+    public void utf8EncoderMatchesJdk() {
+        String[] samples = {"", "ascii", "ünïcödé", "日本語", "😀👍", "lone \uD800 surrogate"};
+        for (String s : samples) {
+            byte[] expected = s.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer out = ByteBuffer.allocate(Utf8.encodedLength(s));
+            Utf8.encode(s, out);
+            assertArrayEquals(s, expected, out.array());
+        }
+    }
+
+    @Test
+    public void decodesFramesSplitAtEveryOffset() throws Exception {
+        ByteBuffer a = FrameEncoder.encodeChat(new Message(7, "a", "b", "first", 1));
+        ByteBuffer b = FrameEncoder.encodeChat(new Message(8, "a", "b", "second", 2));
+        ByteBuffer joined = ByteBuffer.allocate(a.remaining() + b.remaining());
+        joined.put(a).put(b).flip();
+        byte[] wire = joined.array();
+
+        for (int split = 0; split <= wire.length; split++) {
+            ByteBuffer in = ByteBuffer.allocate(wire.length);
+            in.put(wire, 0, split).flip();
+            int decoded = 0;
+            while (decoder.next(in, frame)) decoded++;
+            in.compact();
+            in.put(wire, split, wire.length - split).flip();
+            while (decoder.next(in, frame)) {
+                decoded++;
+                if (decoded == 2) assertEquals("second", frame.getContent().toString());
+            }
+            assertEquals(2, decoded);
+            assertFalse(in.hasRemaining());
+        }
+    }
+
+    @Test
+    public void skipsUnknownTypesAndIgnoresTrailingFields() throws Exception {
+        ByteBuffer chat = FrameEncoder.encodeChat(new Message(9, "a", "b", "c", 3));
+        frameLengthTweak(chat, 2);
+
+        ByteBuffer in = ByteBuffer.allocate(64);
+        in.put((byte) 3).put((byte) 0x7F).put((byte) 1).put((byte) 2);
+        in.put(chat);
+        in.put((byte) 0).put((byte) 0);
+        in.flip();
+
+        assertTrue(decoder.next(in, frame));
+        assertEquals(0x7F, frame.getType());
+        assertTrue(decoder.next(in, frame));
+        assertEquals(WireFormat.TYPE_CHAT, frame.getType());
+        assertEquals("c", frame.getContent().toString());
+        assertFalse(in.hasRemaining());
+    }
+
+    @Test
+    public void negotiatesHighestCommonVersion() throws Exception {
+        assertEquals(2, WireFormat.negotiate(1, 3, 2, 2));
+        assertEquals(3, WireFormat.negotiate(1, 3, 1, 5));
+        assertEquals(-1, WireFormat.negotiate(1, 1, 2, 4));
+
+        ByteBuffer in = FrameEncoder.encodeHello("carol", 1, 4);
+        assertTrue(decoder.next(in, frame));
+        assertEquals(WireFormat.TYPE_HELLO, frame.getType());
+        assertEquals(1, frame.getMinVersion());
+        assertEquals(4, frame.getMaxVersion());
+        assertEquals("carol", frame.getUsername().toString());
+    }
+
+    @Test
+    public void helloCarriesResumeIdOnlyWhenResuming() throws Exception {
+        assertTrue(decoder.next(FrameEncoder.encodeHello("dave", 1, 1), frame));
+        assertFalse(frame.isResume());
+        assertTrue(decoder.next(FrameEncoder.encodeHello("dave", 1, 1, true, -42L), frame));
+        assertTrue(frame.isResume());
+        assertEquals(-42L, frame.getResumeId());
+        assertEquals("dave", frame.getUsername().toString());
+
+        assertTrue(decoder.next(FrameEncoder.encodePong(99), frame));
+        assertEquals(WireFormat.TYPE_PONG, frame.getType());
+        assertEquals(99, frame.getNonce());
+    }
+
+    @Test
+    public void helloResumesOnlyWhenFlagged() throws Exception {
+        // No flags at all, as the first version sends it.
+        assertTrue(decoder.next(ByteBuffer.wrap(new byte[]{7, WireFormat.TYPE_HELLO, 0x4E, 0x43, 1, 1, 1, 'e'}), frame));
+        assertFalse(frame.isResume());
+        // Fields a newer peer appended must not read as a resume id.
+        byte[] hello = {16, WireFormat.TYPE_HELLO, 0x4E, 0x43, 1, 1, 1, 'e', 0, 1, 2, 3, 4, 5, 6, 7, 8};
+        assertTrue(decoder.next(ByteBuffer.wrap(hello), frame));
+        assertFalse(frame.isResume());
+        assertEquals("e", frame.getUsername().toString());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsResumeHelloWithoutId() throws Exception {
+        decoder.next(ByteBuffer.wrap(new byte[]{8, WireFormat.TYPE_HELLO, 0x4E, 0x43, 1, 1, 1, 'e', WireFormat.HELLO_RESUME}), frame);
+    }
+
+    @Test
+    public void ackRoundTrip() throws Exception {
+        long[] ids = {7L, -1L, Long.MIN_VALUE};
+        assertTrue(decoder.next(FrameEncoder.encodeAck(WireFormat.ACK_READ, "bob", "ånna", ids, 3), frame));
+        assertEquals(WireFormat.TYPE_ACK, frame.getType());
+        assertEquals(WireFormat.ACK_READ, frame.getAckStatus());
+        assertEquals("bob", frame.getSender().toString());
+        assertEquals("ånna", frame.getRecipient().toString());
+        assertEquals(3, frame.getAckCount());
+        for (int i = 0; i < ids.length; i++) assertEquals(ids[i], frame.getAckId(i));
+    }
+
+    @Test
+    public void rosterRoundTrip() throws Exception {
+        List<String> roster = Arrays.asList("host", "ånna", "bob");
+        assertTrue(decoder.next(FrameEncoder.encodeRoster(roster), frame));
+        assertEquals(WireFormat.TYPE_ROSTER, frame.getType());
+        assertEquals(3, frame.getRosterSize());
+        assertEquals(roster, frame.getRoster());
+    }
+
+    @Test
+    public void streamAndCreditRoundTrip() throws Exception {
+        byte[] data = "chunk of a bulk message".getBytes(StandardCharsets.UTF_8);
+        assertTrue(decoder.next(FrameEncoder.encodeStream(300, WireFormat.STREAM_END, ByteBuffer.wrap(data)), frame));
+        assertEquals(WireFormat.TYPE_STREAM, frame.getType());
+        assertEquals(300, frame.getStreamId());
+        assertTrue(frame.isStreamEnd());
+        assertEquals(data.length, frame.getStreamDataLength());
+        ByteBuffer out = ByteBuffer.allocate(data.length);
+        frame.getStreamData(out);
+        assertArrayEquals(data, out.array());
+
+        assertTrue(decoder.next(FrameEncoder.encodeCredit(300, 1L << 40), frame));
+        assertEquals(WireFormat.TYPE_CREDIT, frame.getType());
+        assertEquals(300, frame.getStreamId());
+        assertEquals(1L << 40, frame.getCredit());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsRosterOverrunningItsFrame() throws Exception {
+        decoder.next(ByteBuffer.wrap(new byte[]{4, WireFormat.TYPE_ROSTER, 2, 1, 'a'}), frame);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsHelloWithoutMagic() throws Exception {
+        decoder.next(ByteBuffer.wrap(new byte[]{6, WireFormat.TYPE_HELLO, 'X', 'Y', 1, 1, 0}), frame);
+    }
+
+    @Test
+    public void frameReaderStopsCleanlyAtEndOfStream() throws Exception {
+        ByteBuffer a = FrameEncoder.encodeChat(new Message(1, "a", "b", "x", 1));
+        ByteBuffer b = FrameEncoder.encodeChat(new Message(2, "a", "b", "y", 2));
+        byte[] wire = new byte[a.remaining() + b.remaining()];
+        ByteBuffer.wrap(wire).put(a).put(b);
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(wire));
+        assertTrue(reader.read(frame));
+        assertEquals(1, frame.getId());
+        assertTrue(reader.read(frame));
+        assertEquals(2, frame.getId());
+        assertFalse(reader.read(frame));
+    }
+
+    @Test
+    public void randomMessagesRoundTrip() throws Exception {
+        Random random = new Random(42);
+        for (int i = 0; i < 2_000; i++) {
+            Message sent = new Message(random.nextLong(), randomText(random, 12), randomText(random, 12),
+                    randomText(random, 300), random.nextLong() & Long.MAX_VALUE);
+            assertTrue(decoder.next(FrameEncoder.encodeChat(sent), frame));
+            Message received = frame.toMessage();
+            assertEquals(sent.getId(), received.getId());
+            assertEquals(sent.getTimestamp(), received.getTimestamp());
+            assertEquals(new String(sent.getContent().getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8),
+                    received.getContent());
+        }
+    }
+
+    @Test
+    public void fuzzedInputOnlyEverFailsWithProtocolException() {
+        Random random = new Random(7);
+        FrameDecoder small = new FrameDecoder(4096);
+        for (int i = 0; i < 20_000; i++) {
+            byte[] bytes;
+            if (random.nextBoolean()) {
+                bytes = new byte[random.nextInt(64)];
+                random.nextBytes(bytes);
+            } else {
+                ByteBuffer valid = FrameEncoder.encodeChat(new Message(random.nextLong(), "s", "r", randomText(random, 20), 1));
+                bytes = valid.array().clone();
+                for (int flips = random.nextInt(4) + 1; flips > 0; flips--) {
+                    bytes[random.nextInt(bytes.length)] = (byte) random.nextInt(256);
+                }
+            }
+            ByteBuffer in = ByteBuffer.wrap(bytes);
+            try {
+                while (small.next(in, frame)) {
+                    if (frame.getType() == WireFormat.TYPE_CHAT) frame.toMessage();
+                }
+            } catch (ProtocolException expected) {
+                // Malformed input must surface as a protocol error, never anything else.
+            } catch (RuntimeException e) {
+                fail("Unexpected " + e + " for input #" + i);
+            }
+        }
+    }
+
+    private static void frameLengthTweak(ByteBuffer frame, int extraBytes) {
+        // Small frames have a one byte length header; grow it to cover appended bytes.
+        frame.put(0, (byte) (frame.get(0) + extraBytes));
+    }
+
+    private static String randomText(Random random, int maxLength) {
+        StringBuilder sb = new StringBuilder();
+        int length = random.nextInt(maxLength + 1);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    sb.append((char) (0x20 + random.nextInt(0x5F)));
+                    break;
+                case 1:
+                    sb.append((char) (0xA0 + random.nextInt(0x700)));
+                    break;
+                case 2:
+                    sb.append((char) (0x3040 + random.nextInt(0x1000)));
+                    break;
+                default:
+                    sb.appendCodePoint(0x1F600 + random.nextInt(0x50));
+                    break;
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,167 @@
+package io.github.udayhe.nonetchat.protocol;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import io.github.udayhe.nonetchat.payload.Message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameCompressionTest {
+
+    private final FrameDeflater deflater = new FrameDeflater();
+    private final FrameInflater inflater = new FrameInflater();
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final Frame frame = new Frame();
+
+    @Test
+    public void contextCarriesAcrossFrames() throws Exception {
+        int first = 0;
+        int last = 0;
+        for (int i = 0; i < 50; i++) {
+            Message sent = new Message(i, "alice", "bob", "are you still at the north gate? we're by the big tent", i);
+            ByteBuffer raw = FrameEncoder.encodeChat(sent);
+            ByteBuffer compressed = deflater.compress(raw);
+            assertEquals(WireFormat.TYPE_COMPRESSED, typeOf(compressed));
+            if (i == 0) first = compressed.remaining();
+            last = compressed.remaining();
+
+            Message received = inflateOne(compressed).toMessage();
+            assertEquals(sent.getId(), received.getId());
+            assertEquals(sent.getContent(), received.getContent());
+        }
+        // The repeated message costs a handful of bytes once the window holds it.
+        assertTrue(first + " then " + last, last * 4 < first);
+        assertEquals(50, deflater.getCompressedCount());
+        assertTrue(deflater.getBytesOut() < deflater.getBytesIn());
+    }
+
+    @Test
+    public void streamSavesMoreThanDeflatingEachMessageOnItsOwn() {
+        String[] phrases = {"where are you", "I'm at the main stage", "near the food tent", "on my way",
+                "meet at the north gate", "see you in 10 min", "lol", "ok", "lost the others, are you with them?"};
+        String[] names = {"alice", "bob", "carol"};
+        Random random = new Random(21);
+        long in = 0;
+        long streamed = 0;
+        long each = 0;
+        byte[] out = new byte[1024];
+        for (int i = 0; i < 200; i++) {
+            String text = phrases[random.nextInt(phrases.length)] + ", " + phrases[random.nextInt(phrases.length)];
+            ByteBuffer raw = FrameEncoder.encodeChat(new Message(random.nextLong(), names[random.nextInt(3)],
+                    names[random.nextInt(3)], text, 1_700_000_000_000L + i * 7_000L));
+            in += raw.remaining();
+            Deflater alone = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            alone.setInput(raw.array(), 0, raw.remaining());
+            alone.finish();
+            // Sent raw when deflate does not help, plus the COMPRESSED frame header when it does.
+            each += Math.min(raw.remaining(), alone.deflate(out) + 2);
+            alone.end();
+            streamed += deflater.compress(raw).remaining();
+        }
+        assertTrue(streamed + " of " + in, streamed < in * 0.65);
+        assertTrue(streamed + " vs " + each, streamed < each);
+    }
+
+    @Test
+    public void tinyFramesAndHelloGoOutAsTheyAre() {
+        ByteBuffer ping = FrameEncoder.encodePing(7);
+        assertSame(ping, deflater.compress(ping));
+        ByteBuffer hello = FrameEncoder.encodeHello(longName(), 1, 2);
+        assertSame(hello, deflater.compress(hello));
+        assertEquals(2, deflater.getBypassedCount());
+    }
+
+    @Test
+    public void incompressibleTypesBackOffWithoutStoppingText() throws Exception {
+        Random random = new Random(5);
+        byte[] noise = new byte[2048];
+        int bypassed = 0;
+        for (int i = 0; i < 20; i++) {
+            random.nextBytes(noise);
+            ByteBuffer chunk = FrameEncoder.encodeStream(1, 0, ByteBuffer.wrap(noise));
+            ByteBuffer out = deflater.compress(chunk);
+            if (out == chunk) {
+                bypassed++;
+            } else {
+                inflateOne(out);
+            }
+            ByteBuffer chat = FrameEncoder.encodeChat(new Message(i, "alice", "bob", "photo coming up, hold on a sec", i));
+            ByteBuffer compressed = deflater.compress(chat);
+            assertEquals(WireFormat.TYPE_COMPRESSED, typeOf(compressed));
+            inflateOne(compressed);
+            // Bypassed frames leave the stream in step: the next compressed one still inflates.
+            inflateOne(deflater.compress(FrameEncoder.encodeChat(new Message(100 + i, "bob", "alice", "ok, I am waiting right here by the gate for it", i))));
+        }
+        assertTrue(bypassed + " bypassed", bypassed >= 14);
+    }
+
+    @Test
+    public void readerUnwrapsCompressedFramesBetweenPlainOnes() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        write(stream, FrameEncoder.encodeHello("host", 1, 2));
+        for (int i = 0; i < 20; i++) {
+            write(stream, deflater.compress(FrameEncoder.encodeChat(new Message(i, "host", "all", "message number " + i + " to everyone here", i))));
+            write(stream, deflater.compress(FrameEncoder.encodePong(i)));
+        }
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(stream.toByteArray()));
+        reader.setInflater(inflater);
+        assertTrue(reader.read(frame));
+        assertEquals(WireFormat.TYPE_HELLO, frame.getType());
+        for (int i = 0; i < 20; i++) {
+            assertTrue(reader.read(frame));
+            assertEquals(WireFormat.TYPE_CHAT, frame.getType());
+            assertEquals(i, frame.getId());
+            assertTrue(reader.read(frame));
+            assertEquals(WireFormat.TYPE_PONG, frame.getType());
+        }
+        assertFalse(reader.read(frame));
+    }
+
+    @Test
+    public void inflatingPastTheFrameLimitIsRejected() throws Exception {
+        FrameInflater small = new FrameInflater(1024);
+        ByteBuffer big = FrameEncoder.encodeChat(new Message(1, "a", "b", new String(new char[8192]).replace('\0', 'z'), 1));
+        ByteBuffer compressed = deflater.compress(big);
+        assertTrue(decoder.next(compressed, frame));
+        try {
+            small.inflate(frame);
+            fail();
+        } catch (ProtocolException expected) {
+        } finally {
+            small.close();
+        }
+    }
+
+    private Frame inflateOne(ByteBuffer compressed) throws ProtocolException {
+        ByteBuffer in = compressed.duplicate();
+        assertTrue(decoder.next(in, frame));
+        ByteBuffer inner = inflater.inflate(frame);
+        assertTrue(decoder.next(inner, frame));
+        assertFalse(inner.hasRemaining());
+        return frame;
+    }
+
+    private static int typeOf(ByteBuffer frame) throws ProtocolException {
+        long length = Varint.read(frame, frame.position(), frame.limit());
+        return frame.get(frame.position() + Varint.size(length)) & 0xFF;
+    }
+
+    private static String longName() {
+        return new String(new char[80]).replace('\0', 'n');
+    }
+
+    private static void write(ByteArrayOutputStream out, ByteBuffer frame) {
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+}
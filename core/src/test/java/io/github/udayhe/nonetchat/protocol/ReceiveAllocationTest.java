@@ -0,0 +1,101 @@
+package io.github.udayhe.nonetchat.protocol;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import io.github.udayhe.nonetchat.payload.Message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Guards the bytes allocated per 10k received messages. Decoding a frame and resolving
+ * its names must allocate nothing; turning it into a {@link Message} may allocate only
+ * the message and its content.
+ */
+public class ReceiveAllocationTest {
+
+    private static final int MESSAGES = 10_000;
+    private static final String[] SENDERS = {"alice", "bob", "carol", "dave"};
+
+    private static final long DECODE_BUDGET = 16 * 1024;
+    private static final long MESSAGE_BUDGET_PER_MESSAGE = 160;
+
+    private final byte[] stream = encode();
+
+    @Test
+    public void decodingAllocatesNothing() throws Exception {
+        com.sun.management.ThreadMXBean threads = threadBean();
+        NameTable names = new NameTable();
+        decode(names, false); // warm up the JIT, the table and the read buffer
+
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        long checksum = decode(names, false);
+        long allocated = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        System.out.println("decode: " + allocated + " bytes per " + MESSAGES + " messages");
+        assertEquals(MESSAGES, checksum);
+        assertTrue(allocated + " bytes", allocated < DECODE_BUDGET);
+        assertEquals(SENDERS.length + 1, names.size());
+    }
+
+    @Test
+    public void messagesAllocateOnlyThemselvesAndTheirContent() throws Exception {
+        com.sun.management.ThreadMXBean threads = threadBean();
+        NameTable names = new NameTable();
+        decode(names, true);
+        decode(null, true);
+
+        long before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        decode(names, true);
+        long interned = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+        before = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+        decode(null, true);
+        long plain = threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - before;
+
+        System.out.println("toMessage: " + interned + " bytes per " + MESSAGES + " messages interned, "
+                + plain + " without a name table");
+        assertTrue(interned + " bytes", interned < MESSAGE_BUDGET_PER_MESSAGE * MESSAGES);
+        assertTrue(interned < plain);
+    }
+
+    private long decode(NameTable names, boolean materialize) throws Exception {
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(stream));
+        Frame frame = new Frame();
+        frame.setNameTable(names);
+        long count = 0;
+        while (reader.read(frame)) {
+            if (materialize) {
+                Message message = frame.toMessage();
+                if (message.getId() >= 0) count++;
+            } else if (frame.getSenderName() != null && frame.getRecipientName() != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] encode() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < MESSAGES; i++) {
+            String sender = SENDERS[i % SENDERS.length];
+            ByteBuffer frame = FrameEncoder.encodeChat(
+                    new Message(i, sender, WireFormat.RECIPIENT_ALL, "message number " + i, 1_700_000_000_000L + i));
+            out.write(frame.array(), frame.arrayOffset(), frame.limit());
+        }
+        return out.toByteArray();
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        return threads;
+    }
+}
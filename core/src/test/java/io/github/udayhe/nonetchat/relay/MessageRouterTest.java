@@ -0,0 +1,173 @@
+package io.github.udayhe.nonetchat.relay;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+import io.github.udayhe.nonetchat.sender.MultiPeerChatSender;
+import io.github.udayhe.nonetchat.sender.OutboundQueue;
+import io.github.udayhe.nonetchat.sender.PeerWriter;
+import io.github.udayhe.nonetchat.sender.Priority;
+import io.github.udayhe.nonetchat.sender.SendCallback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageRouterTest {
+
+    private final List<String> local = new ArrayList<>();
+    private final List<List<String>> rosters = new ArrayList<>();
+    private final MessageRouter router = new MessageRouter("host", new MultiPeerChatSender(), new MessageRouter.Listener() {
+        @Override
+        public void onMessage(Frame frame) {
+            local.add(frame.getContent().toString());
+        }
+
+        @Override
+        public void onRosterChanged(List<String> roster) {
+            rosters.add(roster);
+        }
+    });
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final Frame frame = new Frame();
+
+    @Test
+    public void forwardsDirectMessagesByteForByte() throws Exception {
+        RecordingWriter alice = join("alice");
+        RecordingWriter bob = join("bob");
+        bob.frames.clear();
+
+        ByteBuffer sent = FrameEncoder.encodeChat(new Message(42, "alice", "bob", "hi bob", 1));
+        route("alice", sent.duplicate());
+
+        assertEquals(1, bob.frames.size());
+        assertEquals(sent, bob.frames.get(0));
+        assertTrue(local.isEmpty());
+        assertEquals(1, router.getRelayedCount());
+        assertEquals(0, alice.chatFrames());
+    }
+
+    @Test
+    public void allReachesEveryoneButTheSender() throws Exception {
+        RecordingWriter alice = join("alice");
+        RecordingWriter bob = join("bob");
+        RecordingWriter carol = join("carol");
+
+        route("bob", FrameEncoder.encodeChat(new Message(1, "bob", WireFormat.RECIPIENT_ALL, "hello all", 1)));
+
+        assertEquals(1, alice.chatFrames());
+        assertEquals(0, bob.chatFrames());
+        assertEquals(1, carol.chatFrames());
+        assertEquals(Arrays.asList("hello all"), local);
+    }
+
+    @Test
+    public void ownerMessagesStayLocalAndUnknownRecipientsAreCounted() throws Exception {
+        join("alice");
+        route("alice", FrameEncoder.encodeChat(new Message(1, "alice", "host", "to host", 1)));
+        route("alice", FrameEncoder.encodeChat(new Message(2, "alice", "nobody", "lost", 1)));
+
+        assertEquals(Arrays.asList("to host"), local);
+        assertEquals(1, router.getUnroutableCount());
+    }
+
+    @Test
+    public void dropsFramesWithAForgedSender() throws Exception {
+        join("alice");
+        RecordingWriter bob = join("bob");
+        bob.frames.clear();
+
+        route("alice", FrameEncoder.encodeChat(new Message(1, "carol", "bob", "not really carol", 1)));
+
+        assertEquals(0, bob.chatFrames());
+        assertEquals(1, router.getSpoofedCount());
+    }
+
+    @Test
+    public void rosterFollowsJoinsAndLeaves() throws Exception {
+        RecordingWriter alice = join("alice");
+        RecordingWriter bob = join("bob");
+        assertEquals(Arrays.asList("host", "alice", "bob"), rosters.get(rosters.size() - 1));
+
+        RecordingWriter staleBob = bob;
+        RecordingWriter newBob = join("bob");
+        router.leave("bob", staleBob);
+        assertEquals(Arrays.asList("host", "alice", "bob"), router.getRoster());
+
+        router.leave("bob", newBob);
+        assertEquals(Arrays.asList("host", "alice"), router.getRoster());
+        assertTrue(decoder.next(alice.frames.get(alice.frames.size() - 1).duplicate(), frame));
+        assertEquals(Arrays.asList("host", "alice"), frame.getRoster());
+        assertFalse(router.join("host", new RecordingWriter()));
+        assertFalse(router.join(WireFormat.RECIPIENT_ALL, new RecordingWriter()));
+    }
+
+    private RecordingWriter join(String username) {
+        RecordingWriter writer = new RecordingWriter();
+        assertTrue(router.join(username, writer));
+        return writer;
+    }
+
+    private void route(String from, ByteBuffer encoded) throws Exception {
+        assertTrue(decoder.next(encoded, frame));
+        router.route(from, frame);
+    }
+
+    private static class RecordingWriter implements PeerWriter {
+        final List<ByteBuffer> frames = new ArrayList<>();
+        boolean closed;
+
+        int chatFrames() throws Exception {
+            FrameDecoder decoder = new FrameDecoder();
+            Frame frame = new Frame();
+            int count = 0;
+            for (ByteBuffer buffer : frames) {
+                decoder.next(buffer.duplicate(), frame);
+                if (frame.getType() == WireFormat.TYPE_CHAT) count++;
+            }
+            return count;
+        }
+
+        @Override
+        public boolean send(ByteBuffer frame) {
+            frames.add(frame.duplicate());
+            return true;
+        }
+
+        @Override
+        public boolean trySend(ByteBuffer frame, SendCallback callback) {
+            return trySend(frame, callback, Priority.INTERACTIVE);
+        }
+
+        @Override
+        public boolean trySend(ByteBuffer frame, SendCallback callback, Priority priority) {
+            frames.add(frame.duplicate());
+            if (callback != null) callback.onComplete(SendCallback.Outcome.WRITTEN);
+            return true;
+        }
+
+        @Override
+        public OutboundQueue getQueue() {
+            return new OutboundQueue(1, OutboundQueue.Policy.DISCONNECT);
+        }
+
+        @Override
+        public boolean isClosed() {
+            return closed;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package io.github.udayhe.nonetchat.relay;
+
+import org.junit.Test;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.FrameInflater;
+import io.github.udayhe.nonetchat.protocol.FrameReader;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+import io.github.udayhe.nonetchat.sender.MultiPeerChatSender;
+import io.github.udayhe.nonetchat.sender.OutboundQueue;
+import io.github.udayhe.nonetchat.server.ChatServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loopback clients talking through a {@link RelayHandler}. Prints how many relayed
+ * messages per second reach their recipients for direct and "all" traffic.
+ */
+public class RelayThroughputBenchmark {
+
+    private static final int CLIENTS = 8;
+
+    @Test
+    public void directRelayThroughput() throws Exception {
+        int perClient = 10_000;
+        // Client i writes to client i + 1, so every client receives perClient messages.
+        double rate = run(perClient, perClient, false);
+        System.out.println(String.format(Locale.ROOT, "relay direct: %d clients, %,.0f msg/s", CLIENTS, rate));
+    }
+
+    @Test
+    public void allRelayThroughput() throws Exception {
+        int perClient = 1_000;
+        double rate = run(perClient, perClient * (CLIENTS - 1), true);
+        System.out.println(String.format(Locale.ROOT, "relay all:    %d clients, %,.0f msg/s delivered", CLIENTS, rate));
+    }
+
+    private static double run(int perClient, int expectedPerClient, boolean toAll) throws Exception {
+        MultiPeerChatSender sender = new MultiPeerChatSender();
+        AtomicLong local = new AtomicLong();
+        MessageRouter router = new MessageRouter("host", sender, new MessageRouter.Listener() {
+            @Override
+            public void onMessage(Frame frame) {
+                local.incrementAndGet();
+            }
+
+            @Override
+            public void onRosterChanged(List<String> roster) {
+            }
+        });
+        ChatServer server = new ChatServer(new RelayHandler(router));
+        server.setOutboundQueue(1 << 16, OutboundQueue.Policy.DISCONNECT);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, "ChatServer-bench");
+        serverThread.start();
+
+        List<Socket> sockets = new ArrayList<>();
+        List<OutputStream> outs = new ArrayList<>();
+        CountDownLatch joined = new CountDownLatch(CLIENTS);
+        CountDownLatch received = new CountDownLatch(CLIENTS);
+        try {
+            for (int i = 0; i < CLIENTS; i++) {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+                OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                write(out, FrameEncoder.encodeHello("client" + i, WireFormat.MIN_VERSION, WireFormat.MAX_VERSION));
+                out.flush();
+                sockets.add(socket);
+                outs.add(out);
+                Thread reader = new Thread(() -> readLoop(socket, expectedPerClient, joined, received), "reader-" + i);
+                reader.setDaemon(true);
+                reader.start();
+            }
+            assertTrue(joined.await(5, TimeUnit.SECONDS));
+
+            List<ByteBuffer[]> batches = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                String recipient = toAll ? WireFormat.RECIPIENT_ALL : "client" + ((i + 1) % CLIENTS);
+                ByteBuffer[] frames = new ByteBuffer[perClient];
+                for (int m = 0; m < perClient; m++) {
+                    frames[m] = FrameEncoder.encodeChat(new Message(m, "client" + i, recipient, "relay payload " + m, m));
+                }
+                batches.add(frames);
+            }
+
+            long start = System.nanoTime();
+            List<Thread> writers = new ArrayList<>();
+            for (int i = 0; i < CLIENTS; i++) {
+                final OutputStream out = outs.get(i);
+                final ByteBuffer[] frames = batches.get(i);
+                Thread writer = new Thread(() -> {
+                    try {
+                        for (ByteBuffer frame : frames) write(out, frame);
+                        out.flush();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }, "writer-" + i);
+                writer.start();
+                writers.add(writer);
+            }
+            assertTrue("relay stalled", received.await(30, TimeUnit.SECONDS));
+            long elapsed = System.nanoTime() - start;
+            for (Thread writer : writers) writer.join();
+
+            assertEquals(CLIENTS + 1, router.getRoster().size());
+            assertEquals(0, sender.getDroppedCount());
+            if (toAll) {
+                // The owner's own copy is delivered after the relayed ones are queued.
+                long deadline = System.currentTimeMillis() + 5000;
+                while (local.get() < CLIENTS * perClient && System.currentTimeMillis() < deadline) Thread.sleep(1);
+                assertEquals(CLIENTS * perClient, local.get());
+            }
+            return (double) CLIENTS * expectedPerClient / (elapsed / 1e9);
+        } finally {
+            for (Socket socket : sockets) socket.close();
+            server.close();
+            serverThread.join(5000);
+        }
+    }
+
+    private static void readLoop(Socket socket, int expected, CountDownLatch joined, CountDownLatch received) {
+        try {
+            FrameReader reader = new FrameReader(socket.getInputStream());
+            // The owner compresses for clients that offer VERSION_2.
+            reader.setInflater(new FrameInflater());
+            Frame frame = new Frame();
+            int chats = 0;
+            boolean fullRoster = false;
+            while (reader.read(frame)) {
+                if (frame.getType() == WireFormat.TYPE_ROSTER && !fullRoster && frame.getRosterSize() == CLIENTS + 1) {
+                    fullRoster = true;
+                    joined.countDown();
+                } else if (frame.getType() == WireFormat.TYPE_CHAT && ++chats == expected) {
+                    received.countDown();
+                }
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void write(OutputStream out, ByteBuffer frame) throws IOException {
+        out.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+    }
+}
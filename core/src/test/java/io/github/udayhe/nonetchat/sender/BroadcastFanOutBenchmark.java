@@ -0,0 +1,192 @@
+package io.github.udayhe.nonetchat.sender;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameReader;
+import io.github.udayhe.nonetchat.server.ChatConnection;
+import io.github.udayhe.nonetchat.server.ChatServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Loopback fan-out from the group owner to 2, 8 and 32 peers. Prints the time the caller
+ * spends in broadcast() and the time until the last peer has read the frame.
+ */
+public class BroadcastFanOutBenchmark {
+
+    private static final int WARMUP = 200;
+    private static final int MESSAGES = 1000;
+
+    @Test
+    public void fanOutLatencyByPeerCount() throws Exception {
+        System.out.println("peers  call-p50(us)  call-p99(us)  last-peer-p50(us)  last-peer-p99(us)");
+        for (int peers : new int[]{2, 8, 32}) {
+            long[][] result = run(peers);
+            System.out.println(String.format(Locale.ROOT, "%5d  %12.1f  %12.1f  %17.1f  %17.1f", peers,
+                    percentile(result[0], 50), percentile(result[0], 99),
+                    percentile(result[1], 50), percentile(result[1], 99)));
+        }
+    }
+
+    @Test
+    public void stalledPeerDoesNotHoldUpTheOthers() throws Exception {
+        try (Harness harness = new Harness(4, 16, OutboundQueue.Policy.DROP_OLDEST)) {
+            harness.readers.get(0).interrupt(); // never reads again
+            harness.sockets.get(0).setReceiveBufferSize(1024);
+
+            byte[] big = new byte[64 * 1024];
+            Arrays.fill(big, (byte) 'x');
+            String payload = new String(big, "US-ASCII");
+            BroadcastResult last = null;
+            long start = System.nanoTime();
+            for (int i = 0; i < 200; i++) {
+                last = harness.sender.broadcast(new Message(i, "host", "all", payload, i));
+            }
+            long callMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertTrue(harness.awaitReceived(1, 199, 10));
+            assertTrue(harness.awaitReceived(3, 199, 10));
+            assertTrue("broadcast() blocked for " + callMillis + " ms", callMillis < 2000);
+            // WRITTEN fires once the server's write buffer drains, which can trail the reader.
+            long deadline = System.currentTimeMillis() + 5000;
+            while (last.count(SendCallback.Outcome.WRITTEN) < 3 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+            assertTrue(last.count(SendCallback.Outcome.WRITTEN) >= 3);
+        }
+    }
+
+    private static long[][] run(int peers) throws Exception {
+        try (Harness harness = new Harness(peers, OutboundQueue.DEFAULT_CAPACITY, OutboundQueue.Policy.BLOCK)) {
+            long[] call = new long[MESSAGES];
+            long[] complete = new long[MESSAGES];
+            for (int i = 0; i < WARMUP + MESSAGES; i++) {
+                Message message = new Message(i, "host", "all", "benchmark message " + i, i);
+                long start = System.nanoTime();
+                BroadcastResult result = harness.sender.broadcast(message);
+                long called = System.nanoTime();
+                for (int p = 0; p < peers; p++) assertTrue(harness.awaitReceived(p, i, 5));
+                long done = System.nanoTime();
+                assertTrue(result.await(5, TimeUnit.SECONDS));
+                assertEquals(peers, result.count(SendCallback.Outcome.WRITTEN));
+                if (i >= WARMUP) {
+                    call[i - WARMUP] = called - start;
+                    complete[i - WARMUP] = done - start;
+                }
+            }
+            return new long[][]{call, complete};
+        }
+    }
+
+    private static double percentile(long[] nanos, int percentile) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        int index = Math.min(sorted.length - 1, (int) Math.ceil(percentile / 100.0 * sorted.length) - 1);
+        return sorted[Math.max(index, 0)] / 1000.0;
+    }
+
+    static class Harness implements AutoCloseable {
+        final MultiPeerChatSender sender = new MultiPeerChatSender();
+        final ChatServer server;
+        final Thread serverThread;
+        final List<Socket> sockets = new ArrayList<>();
+        final List<Thread> readers = new ArrayList<>();
+        final long[] lastReceived;
+        final CountDownLatch connected;
+
+        Harness(int peers, int queueCapacity, OutboundQueue.Policy policy) throws Exception {
+            lastReceived = new long[peers];
+            Arrays.fill(lastReceived, -1);
+            connected = new CountDownLatch(peers);
+            server = new ChatServer(new ChatServer.Handler() {
+                @Override
+                public void onOpen(ChatConnection connection) {
+                    sender.addPeer("peer" + connection.getId(), connection);
+                    connected.countDown();
+                }
+
+                @Override
+                public void onRead(ChatConnection connection, ByteBuffer in) {
+                    in.position(in.limit());
+                }
+
+                @Override
+                public void onClose(ChatConnection connection, IOException cause) {
+                    sender.removeUser("peer" + connection.getId());
+                }
+            });
+            server.setOutboundQueue(queueCapacity, policy);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            serverThread = new Thread(() -> {
+                try {
+                    server.serve();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }, "ChatServer-bench");
+            serverThread.start();
+
+            for (int p = 0; p < peers; p++) {
+                Socket socket = new Socket();
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()));
+                sockets.add(socket);
+                final int index = p;
+                Thread reader = new Thread(() -> readLoop(socket, index), "reader-" + p);
+                reader.setDaemon(true);
+                reader.start();
+                readers.add(reader);
+            }
+            assertTrue(connected.await(5, TimeUnit.SECONDS));
+        }
+
+        private void readLoop(Socket socket, int index) {
+            try {
+                FrameReader reader = new FrameReader(socket.getInputStream());
+                Frame frame = new Frame();
+                while (!Thread.currentThread().isInterrupted() && reader.read(frame)) {
+                    synchronized (this) {
+                        lastReceived[index] = frame.getId();
+                        notifyAll();
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        synchronized boolean awaitReceived(int peer, long id, int timeoutSeconds) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeoutSeconds);
+            while (lastReceived[peer] < id) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Socket socket : sockets) socket.close();
+            sender.shutdown();
+            server.close();
+            try {
+                serverThread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package io.github.udayhe.nonetchat.sender;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.udayhe.nonetchat.metrics.Histogram;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundQueueTest {
+
+    @Test
+    public void waitHistogramRecordsTimeInQueue() throws Exception {
+        OutboundQueue queue = new OutboundQueue(8, OutboundQueue.Policy.DISCONNECT);
+        assertTrue(queue.offer(frame(0)));
+        Histogram waits = new Histogram();
+        queue.setWaitHistogram(waits);
+        assertTrue(queue.offer(frame(1)));
+        Thread.sleep(20);
+        assertEquals(2, queue.drainTo(new ByteBuffer[8], new SendCallback[8]));
+        // Only the frame offered after the histogram was set is counted.
+        assertEquals(1, waits.getCount());
+        assertTrue(waits.getMax() >= 20_000);
+    }
+
+    @Test
+    public void dropOldestKeepsNewestFrames() {
+        OutboundQueue queue = new OutboundQueue(3, OutboundQueue.Policy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) assertTrue(queue.offer(frame(i)));
+
+        assertEquals(3, queue.getDepth());
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(2, poll(queue).get(0));
+        assertEquals(3, poll(queue).get(0));
+        assertEquals(4, poll(queue).get(0));
+        assertNull(poll(queue));
+        assertEquals(3, queue.getHighWatermark());
+    }
+
+    @Test
+    public void disconnectPolicyRejectsWhenFull() {
+        OutboundQueue queue = new OutboundQueue(2, OutboundQueue.Policy.DISCONNECT);
+        assertTrue(queue.offer(frame(0)));
+        assertTrue(queue.offer(frame(1)));
+        assertFalse(queue.offer(frame(2)));
+        assertEquals(1, queue.getRejectedCount());
+    }
+
+    @Test
+    public void blockPolicyWaitsForTheConsumer() throws Exception {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.Policy.BLOCK, 5000);
+        assertTrue(queue.offer(frame(0)));
+        assertFalse(queue.offer(frame(1), false));
+
+        CountDownLatch offered = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            queue.offer(frame(1));
+            offered.countDown();
+        });
+        producer.start();
+        assertFalse(offered.await(50, TimeUnit.MILLISECONDS));
+        assertEquals(0, poll(queue).get(0));
+        assertTrue(offered.await(5, TimeUnit.SECONDS));
+        assertEquals(1, poll(queue).get(0));
+    }
+
+    @Test
+    public void blockPolicyGivesUpAfterTimeout() {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.Policy.BLOCK, 20);
+        assertTrue(queue.offer(frame(0)));
+        assertFalse(queue.offer(frame(1)));
+        assertEquals(1, queue.getRejectedCount());
+    }
+
+    @Test
+    public void writerCoalescesPendingFramesIntoOneFlush() throws Exception {
+        GatedStream stream = new GatedStream();
+        OutboundQueue queue = new OutboundQueue(1024, OutboundQueue.Policy.BLOCK);
+        StreamPeerWriter writer = new StreamPeerWriter("peer", stream, queue);
+
+        // The first frame parks the writer thread inside write(), so the rest pile up.
+        writer.send(frame(0));
+        waitFor(() -> stream.entered);
+        for (int i = 1; i < 500; i++) assertTrue(writer.send(frame(i)));
+        stream.release.countDown();
+        waitFor(() -> stream.size() == 500);
+        writer.close();
+
+        assertEquals(500, queue.getEnqueuedCount());
+        assertTrue("flushes: " + stream.flushes.get(), stream.flushes.get() <= 3);
+        byte[] written = stream.toByteArray();
+        for (int i = 0; i < 500; i++) assertEquals((byte) i, written[i]);
+    }
+
+    @Test
+    public void disconnectPolicyClosesSlowPeer() throws Exception {
+        GatedStream stream = new GatedStream();
+        StreamPeerWriter writer = new StreamPeerWriter("slow", stream, new OutboundQueue(4, OutboundQueue.Policy.DISCONNECT));
+        writer.send(frame(0));
+        waitFor(() -> stream.entered);
+
+        boolean accepted = true;
+        for (int i = 1; i < 10 && accepted; i++) accepted = writer.send(frame(i));
+        assertFalse(accepted);
+        assertTrue(writer.isClosed());
+        stream.release.countDown();
+    }
+
+    @Test
+    public void evictionAndCloseSettleCallbacks() {
+        OutboundQueue queue = new OutboundQueue(1, OutboundQueue.Policy.DROP_OLDEST);
+        List<SendCallback.Outcome> outcomes = new ArrayList<>();
+        queue.offer(frame(0), outcomes::add, false);
+        queue.offer(frame(1), outcomes::add, false);
+        queue.close();
+        assertEquals(Arrays.asList(SendCallback.Outcome.DROPPED, SendCallback.Outcome.FAILED), outcomes);
+        assertFalse(queue.offer(frame(2)));
+    }
+
+    @Test
+    public void higherLanesDrainFirstAndEvictionSparesThem() {
+        OutboundQueue queue = new OutboundQueue(3, OutboundQueue.Policy.DROP_OLDEST);
+        assertTrue(queue.offer(frame(0), null, false, Priority.BULK));
+        assertTrue(queue.offer(frame(1), null, false, Priority.CONTROL));
+        assertTrue(queue.offer(frame(2), null, false, Priority.INTERACTIVE));
+        // Full: a new chat frame evicts the bulk frame, a new bulk frame has nothing below it.
+        assertTrue(queue.offer(frame(3), null, false, Priority.INTERACTIVE));
+        assertFalse(queue.offer(frame(4), null, false, Priority.BULK));
+        assertEquals(1, queue.getDroppedCount());
+
+        assertEquals(2, poll(queue).get(0));
+        assertEquals(3, poll(queue).get(0));
+        assertEquals(1, poll(queue).get(0));
+        assertNull(poll(queue));
+    }
+
+    private static ByteBuffer poll(OutboundQueue queue) {
+        ByteBuffer[] frames = new ByteBuffer[1];
+        return queue.drainTo(frames, new SendCallback[1]) == 1 ? frames[0] : null;
+    }
+
+    private static ByteBuffer frame(int value) {
+        return ByteBuffer.wrap(new byte[]{(byte) value});
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.met()) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("Timed out");
+            Thread.sleep(1);
+        }
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    private static class GatedStream extends ByteArrayOutputStream {
+        final AtomicInteger flushes = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean entered;
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            entered = true;
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            synchronized (this) {
+                super.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() {
+            flushes.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package io.github.udayhe.nonetchat.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.FrameReader;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChatServerTest {
+
+    private final AtomicInteger opened = new AtomicInteger();
+    private final CountDownLatch closedLatch = new CountDownLatch(1);
+
+    private ChatServer server;
+    private Thread serverThread;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ChatServer(new ChatServer.Handler() {
+            private final FrameDecoder decoder = new FrameDecoder();
+            private final Frame frame = new Frame();
+
+            @Override
+            public void onOpen(ChatConnection connection) {
+                opened.incrementAndGet();
+            }
+
+            @Override
+            public void onRead(ChatConnection connection, ByteBuffer in) throws IOException {
+                while (decoder.next(in, frame)) {
+                    Message message = frame.toMessage();
+                    connection.send(FrameEncoder.encodeChat(new Message(message.getId(), "server",
+                            message.getSender(), "echo:" + message.getContent(), message.getTimestamp())));
+                }
+            }
+
+            @Override
+            public void onClose(ChatConnection connection, IOException cause) {
+                closedLatch.countDown();
+            }
+        }, 1024, 1024 * 1024);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        serverThread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, "ChatServer-test");
+        serverThread.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        server.close();
+        serverThread.join(5000);
+    }
+
+    @Test
+    public void servesManyPeersOnOneThread() throws Exception {
+        int peers = 64;
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < peers; i++) {
+            sockets.add(connect());
+        }
+        for (int i = 0; i < peers; i++) {
+            write(sockets.get(i), FrameEncoder.encodeChat(new Message("peer" + i, "server", "hi", i)));
+        }
+        for (int i = 0; i < peers; i++) {
+            Message echo = readMessage(new FrameReader(sockets.get(i).getInputStream()));
+            assertEquals("peer" + i, echo.getRecipient());
+            assertEquals("echo:hi", echo.getContent());
+        }
+        assertEquals(peers, opened.get());
+        for (Socket s : sockets) s.close();
+    }
+
+    @Test
+    public void reassemblesSplitFramesAndGrowsReadBuffer() throws Exception {
+        Socket socket = connect();
+        char[] big = new char[100_000];
+        Arrays.fill(big, 'x');
+        String payload = new String(big);
+
+        ByteBuffer first = FrameEncoder.encodeChat(new Message("peer", "server", "hello", 1));
+        ByteBuffer second = FrameEncoder.encodeChat(new Message("peer", "server", payload, 2));
+        ByteBuffer head = first.duplicate();
+        head.limit(3);
+        first.position(3);
+        write(socket, head);
+        Thread.sleep(20);
+        write(socket, first);
+        write(socket, second);
+
+        FrameReader reader = new FrameReader(socket.getInputStream());
+        assertEquals("echo:hello", readMessage(reader).getContent());
+        assertEquals("echo:" + payload, readMessage(reader).getContent());
+        socket.close();
+    }
+
+    @Test
+    public void reportsCloseWhenPeerHangsUp() throws Exception {
+        Socket socket = connect();
+        socket.close();
+        assertTrue(closedLatch.await(5, TimeUnit.SECONDS));
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getLocalPort()), 2000);
+        socket.setSoTimeout(5000);
+        return socket;
+    }
+
+    private static void write(Socket socket, ByteBuffer data) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        out.flush();
+    }
+
+    private static Message readMessage(FrameReader reader) throws IOException {
+        Frame frame = new Frame();
+        assertTrue(reader.read(frame));
+        return frame.toMessage();
+    }
+}
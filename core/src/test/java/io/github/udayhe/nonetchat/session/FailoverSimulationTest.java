@@ -0,0 +1,248 @@
+package io.github.udayhe.nonetchat.session;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import io.github.udayhe.nonetchat.exec.ConnectionExecutor;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+import io.github.udayhe.nonetchat.relay.MessageRouter;
+import io.github.udayhe.nonetchat.relay.RelayHandler;
+import io.github.udayhe.nonetchat.sender.MultiPeerChatSender;
+import io.github.udayhe.nonetchat.sender.PeerWriter;
+import io.github.udayhe.nonetchat.server.ChatServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * A group of one owner and four clients on loopback, two of them able to host. The owner
+ * resigns, then its successor crashes; every remaining client must end up with the next
+ * successor without losing or repeating a message.
+ */
+public class FailoverSimulationTest {
+
+    private static final long INTERVAL = 100;
+    private static final long TIMEOUT = 400;
+    private static final long WAIT_MILLIS = 10_000;
+
+    private final ConnectionExecutor executor = ConnectionExecutor.platform("FailoverSimulationTest", 16);
+    private final List<Node> nodes = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (Node node : nodes) node.close();
+        executor.shutdown(ConnectionExecutor.DEFAULT_SHUTDOWN_TIMEOUT_MILLIS);
+    }
+
+    @Test
+    public void groupSurvivesItsOwnerResigningAndItsSuccessorCrashing() throws Exception {
+        Node owner = new Node("owner", true);
+        owner.serve();
+        Node first = new Node("c1", true);
+        Node second = new Node("c2", true);
+        Node third = new Node("c3", false);
+        Node fourth = new Node("c4", false);
+        for (Node client : Arrays.asList(first, second, third, fourth)) {
+            client.join(owner.server.getLocalPort());
+            waitFor(() -> owner.router.getRoster().contains(client.name));
+        }
+        waitFor(() -> "c1".equals(owner.router.getSuccessor()) && "c1".equals(fourth.session.getSuccessorName()));
+
+        List<Message> sent = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            sent.add(second.send("c3", "dm " + i));
+            sent.add(third.send("c2", "reply " + i));
+            sent.add(fourth.send(WireFormat.RECIPIENT_ALL, "all " + i));
+            sent.add(owner.send("c4", "from owner " + i));
+        }
+        waitForDelivery(sent, owner, first, second, third, fourth);
+        assertTrue(owner.router.getReplicatedCount() > 0);
+
+        // The owner leaves on purpose; messages written meanwhile wait for the successor.
+        // Clients reach c1 within milliseconds, so count their disconnects instead of looking for them.
+        CountDownLatch left = expectDisconnects(second, third, fourth);
+        long resignedAt = System.nanoTime();
+        owner.router.resign();
+        sent.add(third.send("c4", "during handover"));
+        assertTrue("Clients still on the owner", left.await(WAIT_MILLIS, TimeUnit.MILLISECONDS));
+        owner.close();
+        waitFor(() -> first.tookOver && second.hostIs("c1") && third.hostIs("c1") && fourth.hostIs("c1"));
+        long resignFailover = System.nanoTime() - resignedAt;
+        waitFor(() -> first.router.getRoster().containsAll(Arrays.asList("c2", "c3", "c4")));
+        assertFalse(first.router.getRoster().contains("owner"));
+
+        for (int i = 0; i < 3; i++) {
+            sent.add(second.send("c4", "after resign " + i));
+            sent.add(first.send(WireFormat.RECIPIENT_ALL, "new owner " + i));
+        }
+        waitForDelivery(sent, first, second, third, fourth);
+        waitFor(() -> "c2".equals(first.router.getSuccessor()) && "c2".equals(third.session.getSuccessorName()));
+        // c1 caught c2 up on what it adopted over a stream.
+        waitFor(() -> first.sender.getMultiplexer("c2").getChunksSent() > 0);
+        sent.add(fourth.send("c3", "before crash"));
+        waitForDelivery(sent, first, second, third, fourth);
+
+        // Now the new owner vanishes without a word.
+        long crashedAt = System.nanoTime();
+        first.close();
+        waitFor(() -> second.tookOver && third.hostIs("c2") && fourth.hostIs("c2"));
+        long crashFailover = System.nanoTime() - crashedAt;
+        sent.add(third.send("c4", "after crash"));
+        sent.add(fourth.send(WireFormat.RECIPIENT_ALL, "still here"));
+        waitForDelivery(sent, second, third, fourth);
+        Thread.sleep(2 * INTERVAL); // any late duplicate would show up by now
+
+        System.out.println(String.format("failover: resign %d ms, crash %d ms (client-measured %d ms)",
+                resignFailover / 1_000_000, crashFailover / 1_000_000, fourth.session.getLastFailoverMillis()));
+        for (Node node : Arrays.asList(second, third, fourth)) {
+            assertEquals(node.name, new HashSet<>(node.received).size(), node.received.size());
+        }
+        assertEquals(2, fourth.session.getFailoverCount());
+    }
+
+    private static CountDownLatch expectDisconnects(Node... clients) {
+        CountDownLatch latch = new CountDownLatch(clients.length);
+        for (Node client : clients) client.disconnected = latch;
+        return latch;
+    }
+
+    private void waitForDelivery(List<Message> sent, Node... live) throws InterruptedException {
+        for (Node node : live) {
+            List<Long> expected = new ArrayList<>();
+            for (Message message : sent) {
+                String to = message.getRecipient();
+                if (to.equals(node.name) || to.equals(WireFormat.RECIPIENT_ALL) && !message.getSender().equals(node.name)) {
+                    if (node.present(message.getSender())) expected.add(message.getId());
+                }
+            }
+            waitFor(() -> node.received.containsAll(expected));
+        }
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+        while (!condition.met()) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("Timed out");
+            Thread.sleep(1);
+        }
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    /** One phone: a standby server if it can host, and a session to the owner unless it is one. */
+    private class Node {
+        final String name;
+        final List<Long> received = Collections.synchronizedList(new ArrayList<Long>());
+        final MultiPeerChatSender sender = new MultiPeerChatSender();
+        final MessageRouter router;
+        final ChatServer server;
+        HostSession session;
+        // Counted down once, on the next disconnect.
+        volatile CountDownLatch disconnected;
+        volatile boolean serving;
+        volatile boolean tookOver;
+        volatile boolean closed;
+
+        Node(String name, boolean canHost) throws IOException {
+            this.name = name;
+            nodes.add(this);
+            router = new MessageRouter(name, sender, new MessageRouter.Listener() {
+                @Override
+                public void onMessage(Frame frame) {
+                    if (frame.getType() == WireFormat.TYPE_CHAT) received.add(frame.getId());
+                }
+
+                @Override
+                public void onRosterChanged(List<String> roster) {
+                }
+            });
+            if (canHost) {
+                server = new ChatServer(new RelayHandler(router));
+                server.setHeartbeat(INTERVAL, TIMEOUT, FrameEncoder.encodePing(0));
+                server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            } else {
+                server = null;
+            }
+        }
+
+        void serve() {
+            serving = true;
+            server.start(executor);
+        }
+
+        void join(int port) {
+            session = new HostSession(name, new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                    new HostSession.Listener() {
+                        @Override
+                        public void onConnected(String hostName, PeerWriter writer, boolean resumed) {
+                        }
+
+                        @Override
+                        public void onFrame(Frame frame) {
+                            if (frame.getType() == WireFormat.TYPE_CHAT) received.add(frame.getId());
+                        }
+
+                        @Override
+                        public void onDisconnected(IOException cause, long retryMillis) {
+                            CountDownLatch latch = disconnected;
+                            disconnected = null;
+                            if (latch != null) latch.countDown();
+                        }
+                    });
+            session.setHeartbeat(INTERVAL, TIMEOUT);
+            session.setBackoff(new Backoff(50, 400, 0.2, new Random(1)));
+            session.setConnectTimeoutMillis(1000);
+            if (server != null) {
+                session.setStandby(server.getLocalPort(), (replica, formerHost) -> {
+                    router.adopt(replica, formerHost);
+                    serve();
+                    tookOver = true;
+                });
+            }
+            session.start(executor);
+        }
+
+        Message send(String to, String text) {
+            Message message = new Message(name, to, text, System.currentTimeMillis());
+            if (serving) router.send(message);
+            else session.send(message);
+            return message;
+        }
+
+        boolean hostIs(String owner) {
+            return session.isConnected() && owner.equals(session.getHostName());
+        }
+
+        /** Whether {@code sender} was still around, so its messages must arrive. */
+        boolean present(String sender) {
+            for (Node node : nodes) {
+                if (node.name.equals(sender)) return !node.closed;
+            }
+            return false;
+        }
+
+        void close() {
+            closed = true;
+            if (session != null) session.close();
+            if (server != null) server.close();
+        }
+    }
+}
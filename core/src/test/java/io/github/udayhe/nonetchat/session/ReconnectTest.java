@@ -0,0 +1,279 @@
+package io.github.udayhe.nonetchat.session;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import io.github.udayhe.nonetchat.exec.ConnectionExecutor;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+import io.github.udayhe.nonetchat.relay.MessageRouter;
+import io.github.udayhe.nonetchat.relay.RelayHandler;
+import io.github.udayhe.nonetchat.sender.MultiPeerChatSender;
+import io.github.udayhe.nonetchat.sender.PeerWriter;
+import io.github.udayhe.nonetchat.server.ChatServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReconnectTest {
+
+    private static final long INTERVAL = 100;
+    private static final long TIMEOUT = 400;
+
+    private final List<Long> hostReceived = Collections.synchronizedList(new ArrayList<Long>());
+    private final List<Long> clientReceived = Collections.synchronizedList(new ArrayList<Long>());
+    private final List<Long> connectedAt = Collections.synchronizedList(new ArrayList<Long>());
+    private final List<Long> disconnectedAt = Collections.synchronizedList(new ArrayList<Long>());
+
+    private MessageRouter router;
+    private ChatServer server;
+    private Thread serverThread;
+    private StallingProxy proxy;
+    private HostSession session;
+    private final ConnectionExecutor executor = ConnectionExecutor.platform("ReconnectTest", 4);
+
+    @Before
+    public void setUp() throws IOException {
+        router = new MessageRouter("host", new MultiPeerChatSender(), new MessageRouter.Listener() {
+            @Override
+            public void onMessage(Frame frame) {
+                hostReceived.add(frame.getId());
+            }
+
+            @Override
+            public void onRosterChanged(List<String> roster) {
+            }
+        });
+        server = new ChatServer(new RelayHandler(router));
+        server.setHeartbeat(INTERVAL, TIMEOUT, FrameEncoder.encodePing(0));
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        serverThread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, "ChatServer-test");
+        serverThread.start();
+        proxy = new StallingProxy(server.getLocalPort());
+
+        session = new HostSession("alice", new InetSocketAddress(InetAddress.getLoopbackAddress(), proxy.getPort()),
+                new HostSession.Listener() {
+                    @Override
+                    public void onConnected(String hostName, PeerWriter writer, boolean resumed) {
+                        connectedAt.add(System.nanoTime());
+                    }
+
+                    @Override
+                    public void onFrame(Frame frame) {
+                        if (frame.getType() == WireFormat.TYPE_CHAT) clientReceived.add(frame.getId());
+                    }
+
+                    @Override
+                    public void onDisconnected(IOException cause, long retryMillis) {
+                        disconnectedAt.add(System.nanoTime());
+                    }
+                });
+        session.setHeartbeat(INTERVAL, TIMEOUT);
+        session.setBackoff(new Backoff(50, 400, 0.2, new Random(1)));
+        session.setConnectTimeoutMillis(1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        session.close();
+        executor.shutdown(ConnectionExecutor.DEFAULT_SHUTDOWN_TIMEOUT_MILLIS);
+        proxy.close();
+        server.close();
+        serverThread.join(5000);
+    }
+
+    @Test
+    public void heartbeatPingsWhenSilentAndDeclaresDeathAfterTimeout() {
+        Heartbeat heartbeat = new Heartbeat(100, 300, 0);
+        assertEquals(Heartbeat.Action.NONE, heartbeat.check(50));
+        assertEquals(Heartbeat.Action.PING, heartbeat.check(100));
+        assertEquals(Heartbeat.Action.NONE, heartbeat.check(150));
+        heartbeat.onPong(heartbeat.getNonce(), 120);
+        assertEquals(20, heartbeat.getRoundTripMillis());
+        assertEquals(Heartbeat.Action.PING, heartbeat.check(250));
+        assertEquals(Heartbeat.Action.DEAD, heartbeat.check(420));
+    }
+
+    @Test
+    public void backoffDoublesUpToTheCapAndResets() {
+        Backoff backoff = new Backoff(100, 1000, 0, new Random(1));
+        long[] delays = new long[6];
+        for (int i = 0; i < delays.length; i++) delays[i] = backoff.nextDelayMillis();
+        assertEquals(Arrays.toString(delays), "[100, 200, 400, 800, 1000, 1000]");
+        backoff.reset();
+        assertEquals(100, backoff.nextDelayMillis());
+    }
+
+    @Test
+    public void replayBufferReplaysAfterTheLastSeenIdOrEverythingIfUnknown() {
+        ReplayBuffer buffer = new ReplayBuffer(3);
+        for (int id = 1; id <= 4; id++) buffer.add(id, ByteBuffer.wrap(new byte[]{(byte) id}));
+        assertEquals(1, buffer.after(3).size());
+        assertEquals(4, buffer.after(3).get(0).get(0));
+        assertEquals(3, buffer.after(1).size()); // evicted: everything held
+        assertEquals(0, buffer.after(4).size());
+    }
+
+    @Test
+    public void resumesAfterStallWithoutLossOrDuplicates() throws Exception {
+        session.start(executor);
+        waitFor(() -> connectedAt.size() == 1 && router.getRoster().contains("alice"));
+
+        List<Long> toClient = new ArrayList<>();
+        List<Long> toHost = new ArrayList<>();
+        exchange(toClient, toHost, 3);
+        waitFor(() -> clientReceived.size() == 3 && hostReceived.size() == 3);
+
+        long stalledAt = System.nanoTime();
+        proxy.stall();
+        exchange(toClient, toHost, 5);
+        waitFor(() -> disconnectedAt.size() >= 1);
+        long clientDetect = disconnectedAt.get(0) - stalledAt;
+        waitFor(() -> server.getDeadPeerCount() >= 1);
+        long serverDetect = System.nanoTime() - stalledAt;
+        exchange(toClient, toHost, 5); // while both sides know the link is down
+
+        long resumedAt = System.nanoTime();
+        proxy.resume();
+        waitFor(() -> clientReceived.size() >= toClient.size() && hostReceived.size() >= toHost.size());
+        long recovered = System.nanoTime() - resumedAt;
+        Thread.sleep(2 * INTERVAL); // any late duplicate would show up by now
+
+        System.out.println(String.format("detect: client %d ms, host %d ms; recover %d ms after %d reconnect attempts",
+                clientDetect / 1_000_000, serverDetect / 1_000_000, recovered / 1_000_000, disconnectedAt.size()));
+        assertEquals(toClient, new ArrayList<>(clientReceived));
+        assertEquals(toHost, new ArrayList<>(hostReceived));
+        assertTrue("client detect " + clientDetect / 1_000_000 + " ms", clientDetect < (TIMEOUT + 2 * INTERVAL) * 1_000_000);
+        assertTrue(router.getReplayedCount() > 0);
+        assertTrue(session.getReplayedCount() > 0);
+    }
+
+    private void exchange(List<Long> toClient, List<Long> toHost, int count) {
+        for (int i = 0; i < count; i++) {
+            Message down = new Message("host", "alice", "down " + i, System.currentTimeMillis());
+            router.send(down);
+            toClient.add(down.getId());
+            Message up = new Message("alice", "host", "up " + i, System.currentTimeMillis());
+            session.send(up);
+            toHost.add(up.getId());
+        }
+    }
+
+    private static void waitFor(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.met()) {
+            if (System.currentTimeMillis() > deadline) throw new AssertionError("Timed out");
+            Thread.sleep(1);
+        }
+    }
+
+    private interface Condition {
+        boolean met();
+    }
+
+    /**
+     * TCP relay that can stop forwarding in both directions, like a link that silently
+     * loses every packet. Resuming drops the connections that lived through the stall.
+     */
+    private static class StallingProxy implements Closeable {
+        final ServerSocket listener = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final List<Socket> sockets = new ArrayList<>();
+        final int targetPort;
+        volatile boolean stalled;
+
+        StallingProxy(int targetPort) throws IOException {
+            this.targetPort = targetPort;
+            Thread acceptor = new Thread(this::acceptLoop, "proxy-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int getPort() {
+            return listener.getLocalPort();
+        }
+
+        void stall() {
+            stalled = true;
+        }
+
+        void resume() throws IOException {
+            synchronized (sockets) {
+                for (Socket socket : sockets) socket.close();
+                sockets.clear();
+                stalled = false;
+            }
+        }
+
+        private void acceptLoop() {
+            try {
+                while (true) {
+                    Socket down = listener.accept();
+                    Socket up = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                    synchronized (sockets) {
+                        sockets.add(down);
+                        sockets.add(up);
+                    }
+                    pump(down, up);
+                    pump(up, down);
+                }
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void pump(Socket from, Socket to) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                try {
+                    InputStream in = from.getInputStream();
+                    OutputStream out = to.getOutputStream();
+                    while (true) {
+                        while (stalled) Thread.sleep(1);
+                        int n = in.read(buffer);
+                        if (n < 0) break;
+                        while (stalled) Thread.sleep(1);
+                        out.write(buffer, 0, n);
+                    }
+                } catch (IOException | InterruptedException ignored) {
+                } finally {
+                    try {
+                        from.close();
+                        to.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }, "proxy-pump");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void close() throws IOException {
+            listener.close();
+            resume();
+        }
+    }
+}
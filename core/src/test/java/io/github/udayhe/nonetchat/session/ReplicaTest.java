@@ -0,0 +1,40 @@
+package io.github.udayhe.nonetchat.session;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ReplicaTest {
+
+    @Test
+    public void catchUpGoesBeforeFramesThatOvertookIt() {
+        Replica replica = new Replica(4);
+        replica.add(10, frame(10));
+        replica.add(11, frame(11));
+        replica.addEarlier(1, frame(1));
+        assertFalse(replica.addEarlier(10, frame(10)));
+        replica.addEarlier(2, frame(2));
+        assertEquals(Arrays.asList(1, 2, 10, 11), ids(replica));
+
+        // Past capacity, the oldest go first.
+        replica.add(12, frame(12));
+        assertEquals(4, replica.size());
+        assertEquals(Arrays.asList(2, 10, 11, 12), ids(replica));
+    }
+
+    private static ByteBuffer frame(int id) {
+        return ByteBuffer.wrap(new byte[]{(byte) id});
+    }
+
+    private static List<Integer> ids(Replica replica) {
+        List<Integer> ids = new ArrayList<>();
+        for (ByteBuffer frame : replica.getFrames()) ids.add((int) frame.get(0));
+        return ids;
+    }
+}
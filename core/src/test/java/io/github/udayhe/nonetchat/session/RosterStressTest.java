@@ -0,0 +1,149 @@
+package io.github.udayhe.nonetchat.session;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RosterStressTest {
+
+    private static final int WRITERS = 8;
+    private static final int OPS_PER_WRITER = 5_000;
+
+    @Test
+    public void putReplacesInPlaceAndGuardedRemoveIgnoresStaleOwners() {
+        Roster<Object> roster = new Roster<>();
+        Object first = new Object();
+        Object second = new Object();
+        assertNull(roster.put("alice", first));
+        roster.put("bob", first);
+        assertSame(first, roster.put("alice", second));
+
+        RosterSnapshot<Object> before = roster.snapshot();
+        assertEquals(Arrays.asList("alice", "bob"), before.getNames());
+        assertFalse(roster.remove("alice", first));
+        assertTrue(roster.remove("alice", second));
+        assertEquals(Arrays.asList("bob"), roster.snapshot().getNames());
+        // Snapshots already handed out never change.
+        assertEquals(Arrays.asList("alice", "bob"), before.getNames());
+        assertEquals(4, roster.snapshot().getVersion());
+    }
+
+    @Test
+    public void noUpdatesAreLostUnderChurn() throws Exception {
+        Roster<Integer> roster = new Roster<>();
+        AtomicInteger notifications = new AtomicInteger();
+        roster.addListener(snapshot -> notifications.incrementAndGet());
+
+        List<Set<String>> expected = new ArrayList<>();
+        AtomicInteger changes = new AtomicInteger();
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int w = 0; w < WRITERS; w++) {
+            int writer = w;
+            Set<String> mine = new HashSet<>();
+            expected.add(mine);
+            threads.add(new Thread(() -> {
+                // Each writer owns its own names, so it knows exactly what must survive.
+                Random random = new Random(writer);
+                await(start);
+                for (int i = 0; i < OPS_PER_WRITER; i++) {
+                    String name = "w" + writer + "-" + random.nextInt(20);
+                    if (mine.remove(name)) {
+                        if (roster.remove(name) == null) failure.compareAndSet(null, new AssertionError("lost " + name));
+                    } else {
+                        roster.put(name, writer);
+                        mine.add(name);
+                    }
+                    changes.incrementAndGet();
+                }
+            }, "RosterWriter-" + w));
+        }
+        for (int r = 0; r < 2; r++) {
+            threads.add(new Thread(() -> {
+                await(start);
+                long lastVersion = -1;
+                while (!done.get()) {
+                    RosterSnapshot<Integer> snapshot = roster.snapshot();
+                    if (snapshot.getVersion() < lastVersion) failure.compareAndSet(null, new AssertionError("version went back"));
+                    lastVersion = snapshot.getVersion();
+                    Set<String> names = new HashSet<>(snapshot.getNames());
+                    if (names.size() != snapshot.size()) failure.compareAndSet(null, new AssertionError("duplicate in " + snapshot));
+                }
+            }, "RosterReader-" + r));
+        }
+
+        for (Thread t : threads) t.start();
+        long startNanos = System.nanoTime();
+        start.countDown();
+        for (int i = 0; i < WRITERS; i++) threads.get(i).join();
+        long elapsedNanos = System.nanoTime() - startNanos;
+        done.set(true);
+        for (Thread t : threads) t.join();
+
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        Set<String> all = new HashSet<>();
+        for (Set<String> names : expected) all.addAll(names);
+        RosterSnapshot<Integer> last = roster.snapshot();
+        assertEquals(all, new HashSet<>(last.getNames()));
+        assertEquals(all.size(), last.size());
+        assertEquals(changes.get(), last.getVersion());
+        assertEquals(changes.get(), notifications.get());
+
+        double perSecond = changes.get() / (elapsedNanos / 1e9);
+        System.out.printf("%d joins/leaves on %d threads: %.0f changes/s%n", changes.get(), WRITERS, perSecond);
+        assertTrue(perSecond > 1_000);
+    }
+
+    @Test
+    public void racingOwnersOfOneNameLeaveItConsistent() throws Exception {
+        Roster<Object> roster = new Roster<>();
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger successes = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            threads.add(new Thread(() -> {
+                await(start);
+                for (int i = 0; i < OPS_PER_WRITER; i++) {
+                    // Like a client reconnecting: join under a shared name, then leave as itself.
+                    Object connection = new Object();
+                    roster.put("shared", connection);
+                    successes.incrementAndGet();
+                    if (roster.remove("shared", connection)) successes.incrementAndGet();
+                }
+            }));
+        }
+        for (Thread t : threads) t.start();
+        start.countDown();
+        for (Thread t : threads) t.join();
+
+        RosterSnapshot<Object> last = roster.snapshot();
+        assertTrue(last.size() <= 1);
+        assertEquals(successes.get(), last.getVersion());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
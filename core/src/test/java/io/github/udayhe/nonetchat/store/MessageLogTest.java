@@ -0,0 +1,178 @@
+package io.github.udayhe.nonetchat.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+import io.github.udayhe.nonetchat.log.ChatLog;
+import io.github.udayhe.nonetchat.payload.Message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageLogTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("messagelog", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        ChatLog.setLevel(ChatLog.DEBUG);
+        File[] files = dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void appendsAcrossSegmentsAndSurvivesReopen() throws Exception {
+        try (MessageLog log = new MessageLog(dir, 512)) {
+            for (int i = 0; i < 100; i++) assertEquals(i, log.append(message(i)));
+            assertTrue(log.getSegmentCount() > 5);
+            assertMessage(42, log.get(42));
+        }
+        try (MessageLog log = new MessageLog(dir, 512)) {
+            assertEquals(100, log.size());
+            for (int i = 0; i < 100; i++) assertMessage(i, log.get(i));
+            assertEquals(100, log.append(message(100)));
+            assertMessage(100, log.get(100));
+        }
+    }
+
+    @Test
+    public void readsPages() throws Exception {
+        try (MessageLog log = new MessageLog(dir, 256)) {
+            for (int i = 0; i < 30; i++) log.append(message(i));
+            Message[] page = new Message[10];
+            assertEquals(10, log.read(5, page, 0, 10));
+            for (int i = 0; i < 10; i++) assertMessage(5 + i, page[i]);
+            assertEquals(3, log.read(27, page, 0, 10));
+            assertEquals(0, log.read(30, page, 0, 10));
+        }
+    }
+
+    @Test
+    public void findsMessagesByTimestamp() throws Exception {
+        try (MessageLog log = new MessageLog(dir, 300)) {
+            for (int i = 0; i < 50; i++) log.append(message(i));
+            assertEquals(0, log.indexOfTimestamp(0));
+            assertEquals(17, log.indexOfTimestamp(timestamp(17)));
+            assertEquals(18, log.indexOfTimestamp(timestamp(17) + 1));
+            assertEquals(50, log.indexOfTimestamp(timestamp(50)));
+        }
+    }
+
+    @Test
+    public void recoversFromTruncationAtEveryOffsetOfTheLastRecord() throws Exception {
+        long intact;
+        long full;
+        try (MessageLog log = new MessageLog(dir, 1 << 20)) {
+            for (int i = 0; i < 9; i++) log.append(message(i));
+            intact = segmentFile(0).length();
+            log.append(message(9));
+            full = segmentFile(0).length();
+        }
+        byte[] original = readAll(segmentFile(0));
+
+        // Every reopen below warns about the torn tail it cuts off.
+        ChatLog.setLevel(ChatLog.ERROR);
+        for (long cut = intact; cut < full; cut++) {
+            writeAll(segmentFile(0), Arrays.copyOf(original, (int) cut));
+            try (MessageLog log = new MessageLog(dir, 1 << 20)) {
+                assertEquals("cut at " + cut, 9, log.size());
+                assertEquals(intact, segmentFile(0).length());
+                assertMessage(8, log.get(8));
+                assertEquals(9, log.append(message(99)));
+                assertMessage(99, log.get(9));
+            }
+        }
+    }
+
+    @Test
+    public void stopsAtACorruptRecordAndDropsLaterSegments() throws Exception {
+        try (MessageLog log = new MessageLog(dir, 300)) {
+            for (int i = 0; i < 40; i++) log.append(message(i));
+            assertTrue(log.getSegmentCount() >= 3);
+        }
+        // Flip a content byte of the third record in the first segment, and drop its index
+        // as if the crash came before sealing.
+        File first = segmentFile(0);
+        new File(dir, first.getName().replace(".log", ".idx")).delete();
+        byte[] bytes = readAll(first);
+        int third = 2 * recordLength(bytes, 0);
+        bytes[third + recordLength(bytes, third) - 1] ^= 0x55;
+        writeAll(first, bytes);
+
+        try (MessageLog log = new MessageLog(dir, 300)) {
+            assertEquals(2, log.size());
+            assertEquals(1, log.getSegmentCount());
+            assertEquals(2, log.append(message(2)));
+            assertMessage(2, log.get(2));
+        }
+    }
+
+    @Test
+    public void ignoresAStaleIndex() throws Exception {
+        try (MessageLog log = new MessageLog(dir, 300)) {
+            for (int i = 0; i < 20; i++) log.append(message(i));
+        }
+        File index = new File(dir, segmentFile(0).getName().replace(".log", ".idx"));
+        assertTrue(index.isFile());
+        byte[] bytes = readAll(index);
+        bytes[12] ^= 1;
+        writeAll(index, bytes);
+
+        try (MessageLog log = new MessageLog(dir, 300)) {
+            assertEquals(20, log.size());
+            for (int i = 0; i < 20; i++) assertMessage(i, log.get(i));
+        }
+    }
+
+    private File segmentFile(long baseIndex) {
+        return Segment.logFile(dir, baseIndex);
+    }
+
+    private static int recordLength(byte[] segment, int offset) {
+        int frameLength = ((segment[offset] & 0xFF) << 24) | ((segment[offset + 1] & 0xFF) << 16)
+                | ((segment[offset + 2] & 0xFF) << 8) | (segment[offset + 3] & 0xFF);
+        return Segment.RECORD_HEADER + frameLength;
+    }
+
+    private static Message message(int i) {
+        return new Message(1000 + i, "user" + (i % 3), "all", "message number " + i, timestamp(i));
+    }
+
+    private static long timestamp(int i) {
+        return 1_700_000_000_000L + i * 1000L;
+    }
+
+    private static void assertMessage(int i, Message message) {
+        assertEquals(1000 + i, message.getId());
+        assertEquals("message number " + i, message.getContent());
+        assertEquals(timestamp(i), message.getTimestamp());
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return bytes;
+        }
+    }
+
+    private static void writeAll(File file, byte[] bytes) throws IOException {
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(0);
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package io.github.udayhe.nonetchat.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import io.github.udayhe.nonetchat.payload.Message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageWindowTest {
+
+    private File dir;
+    private MessageLog log;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("messagewindow", "");
+        assertTrue(dir.delete() && dir.mkdir());
+        log = new MessageLog(dir, 4096);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        log.close();
+        File[] files = dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void keepsABoundedWindowWhileScrolling() throws Exception {
+        MessageWindow window = new MessageWindow(log, 50);
+        for (int i = 0; i < 1000; i++) window.append(message(i));
+        assertEquals(50, window.getCachedCount());
+        assertEquals(0, window.getLoadCount());
+
+        // Scrolling back from the tail pages in one window at a time.
+        for (int i = 999; i >= 0; i--) assertEquals("message " + i, window.get(i).getContent());
+        assertTrue(window.getCachedCount() <= 50);
+        assertTrue("loads: " + window.getLoadCount(), window.getLoadCount() <= 1000 / 25 + 1);
+
+        Random random = new Random(5);
+        for (int n = 0; n < 500; n++) {
+            int i = random.nextInt(1000);
+            assertEquals(1000 + i, window.get(i).getId());
+        }
+    }
+
+    @Test
+    public void appendsSlideTheWindowOnlyWhenItCoversTheTail() throws Exception {
+        MessageWindow window = new MessageWindow(log, 10);
+        for (int i = 0; i < 30; i++) window.append(message(i));
+        window.get(0);
+        long loads = window.getLoadCount();
+        window.append(message(30));
+        assertEquals("message 30", window.get(30).getContent());
+        assertEquals(loads + 1, window.getLoadCount());
+        window.append(message(31));
+        assertEquals("message 31", window.get(31).getContent());
+        assertEquals(loads + 1, window.getLoadCount());
+    }
+
+    private static Message message(int i) {
+        return new Message(1000 + i, "alice", "bob", "message " + i, i);
+    }
+}
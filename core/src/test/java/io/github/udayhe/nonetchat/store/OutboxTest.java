@@ -0,0 +1,124 @@
+package io.github.udayhe.nonetchat.store;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import io.github.udayhe.nonetchat.metrics.Histogram;
+import io.github.udayhe.nonetchat.payload.Message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutboxTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("outbox", "");
+        assertTrue(dir.delete() && dir.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) for (File file : files) file.delete();
+        dir.delete();
+    }
+
+    @Test
+    public void keepsUndeliveredMessagesAcrossReopen() throws Exception {
+        try (Outbox outbox = new Outbox(dir)) {
+            for (int i = 1; i <= 5; i++) outbox.offer(message(i, "bob ☕"), 100 + i);
+            outbox.offer(message(6, "carol"), 200);
+            assertEquals(Arrays.asList(1L, 2L), ids(outbox.take("bob ☕", 2, 300)));
+            assertTrue(outbox.remove(1));
+            assertFalse(outbox.remove(1));
+        }
+        try (Outbox outbox = new Outbox(dir)) {
+            assertEquals(5, outbox.size());
+            // Taken but unconfirmed messages are handed out again after a restart.
+            assertEquals(Arrays.asList(2L, 3L, 4L, 5L), ids(outbox.take("bob ☕", 10, 300)));
+            assertEquals("text 6", outbox.take("carol", 10, 300).get(0).getContent());
+            for (long id = 2; id <= 5; id++) outbox.remove(id);
+        }
+        try (Outbox outbox = new Outbox(dir)) {
+            assertEquals(Arrays.asList("carol"), outbox.getRecipients());
+        }
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    @Test
+    public void dropsTheOldestOverCapsAndTheExpired() throws Exception {
+        try (Outbox outbox = new Outbox(dir, 1000, 3, 1 << 20)) {
+            for (int i = 1; i <= 5; i++) outbox.offer(message(i, "bob"), i * 100);
+            assertEquals(2, outbox.getDroppedCount());
+            assertEquals(400, outbox.getOldestAgeMillis(700));
+
+            assertEquals(2, outbox.expire(1450));
+            assertEquals(Arrays.asList(5L), ids(outbox.take("bob", 10, 1450)));
+            assertEquals(2, outbox.getExpiredCount());
+        }
+        try (Outbox outbox = new Outbox(dir, 1000, 100, 200)) {
+            assertFalse(outbox.offer(new Message(9, "me", "bob", new String(new char[300]), 0), 0));
+            assertEquals(1, outbox.size());
+        }
+    }
+
+    @Test
+    public void releasedMessagesAreHandedOutAgain() throws Exception {
+        try (Outbox outbox = new Outbox(dir)) {
+            Histogram ages = new Histogram();
+            outbox.setAgeHistogram(ages);
+            outbox.offer(message(1, "bob"), 0);
+            outbox.offer(message(2, "bob"), 10);
+            assertEquals(2, outbox.take("bob", 10, 50).size());
+            assertEquals(0, outbox.getAvailable("bob"));
+            assertTrue(outbox.release(2));
+            assertEquals(Arrays.asList(2L), ids(outbox.take("bob", 10, 90)));
+            assertEquals(2, ages.getCount());
+            assertEquals(50, ages.getMax());
+        }
+    }
+
+    @Test
+    public void cutsATornTail() throws Exception {
+        File file;
+        long intact;
+        try (Outbox outbox = new Outbox(dir)) {
+            for (int i = 1; i <= 3; i++) outbox.offer(message(i, "bob"), i);
+            file = new File(dir, Outbox.encodeName("bob") + Outbox.SUFFIX);
+            intact = file.length();
+            outbox.offer(message(4, "bob"), 4);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 3);
+        }
+        try (Outbox outbox = new Outbox(dir)) {
+            assertEquals(intact, file.length());
+            assertEquals(Arrays.asList(1L, 2L, 3L), ids(outbox.take("bob", 10, 10)));
+            outbox.offer(message(5, "bob"), 5);
+        }
+        try (Outbox outbox = new Outbox(dir)) {
+            assertEquals(4, outbox.size("bob"));
+        }
+    }
+
+    private static Message message(long id, String to) {
+        return new Message(id, "me", to, "text " + id, 1_000 + id);
+    }
+
+    private static List<Long> ids(List<Message> messages) {
+        Long[] ids = new Long[messages.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = messages.get(i).getId();
+        return Arrays.asList(ids);
+    }
+}
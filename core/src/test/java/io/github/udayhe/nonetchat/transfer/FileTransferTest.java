@@ -0,0 +1,246 @@
+package io.github.udayhe.nonetchat.transfer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import io.github.udayhe.nonetchat.exec.ConnectionExecutor;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameDecoder;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.FrameReader;
+import io.github.udayhe.nonetchat.server.ChatConnection;
+import io.github.udayhe.nonetchat.server.ChatServer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileTransferTest {
+
+    private final ConnectionExecutor executor = ConnectionExecutor.platform("transfer-test", 16);
+    private final BlockingQueue<Object> outcomes = new LinkedBlockingQueue<>();
+    private final AtomicLong lastOfferOffset = new AtomicLong(-1);
+    private File root;
+    private File inbox;
+    private FileReceiver receiver;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("transfer", "");
+        assertTrue(root.delete() && root.mkdirs());
+        inbox = new File(root, "inbox");
+        receiver = new FileReceiver(inbox, new FileReceiver.Listener() {
+            @Override
+            public boolean onOffer(Transfer transfer, long resumeOffset) {
+                lastOfferOffset.set(resumeOffset);
+                return true;
+            }
+
+            @Override
+            public void onProgress(Transfer transfer, long received) {
+            }
+
+            @Override
+            public void onComplete(Transfer transfer, File file) {
+                outcomes.add(file);
+            }
+
+            @Override
+            public void onFailed(Transfer transfer, IOException cause) {
+                outcomes.add(cause);
+            }
+        });
+        receiver.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        receiver.start(executor);
+    }
+
+    @After
+    public void tearDown() {
+        assertTrue(executor.shutdown(5000));
+        deleteRecursively(root);
+    }
+
+    @Test
+    public void chatStaysResponsiveDuringHundredMegabyteTransfer() throws Exception {
+        File source = createFile("big.bin", 100);
+        ChatServer chat = startEchoServer();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), chat.getLocalPort());
+             FileChannel file = new FileInputStream(source).getChannel()) {
+            socket.setTcpNoDelay(true);
+            OutputStream out = socket.getOutputStream();
+            FrameReader reader = new FrameReader(socket.getInputStream());
+            long[] idle = ping(out, reader, 200);
+
+            Transfer transfer = new Transfer(1, "alice", "big.bin", source.length());
+            AtomicLong acked = new AtomicLong();
+            Thread sending = new Thread(() -> {
+                try {
+                    new FileSender().send(address(), transfer, file, (t, bytes) -> acked.set(bytes));
+                } catch (IOException e) {
+                    outcomes.add(e);
+                }
+            }, "FileSender-test");
+            long start = System.nanoTime();
+            sending.start();
+            while (acked.get() == 0) Thread.sleep(1);
+            long[] busy = ping(out, reader, 200);
+            boolean overlapped = acked.get() < source.length();
+            sending.join(60_000);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            File received = (File) outcomes.poll(10, TimeUnit.SECONDS);
+            assertNotNull(received);
+            assertEquals(crcOf(source), crcOf(received));
+            System.out.println(String.format(Locale.ROOT,
+                    "100 MB in %.2f s (%.0f MB/s); chat p50/p99 idle %.0f/%.0f us, during transfer %.0f/%.0f us%s",
+                    seconds, 100 / seconds, percentile(idle, 50), percentile(idle, 99), percentile(busy, 50),
+                    percentile(busy, 99), overlapped ? "" : " (transfer ended before the pings did)"));
+            assertTrue("chat p99 " + percentile(busy, 99) + " us", percentile(busy, 99) < 50_000);
+        } finally {
+            chat.close();
+        }
+    }
+
+    @Test
+    public void resumesFromTheLastAcknowledgedChunk() throws Exception {
+        File source = createFile("photo.jpg", 3);
+        Transfer transfer = new Transfer(7, "alice", "photo.jpg", source.length());
+        try (FileChannel file = new FileInputStream(source).getChannel()) {
+            try {
+                new FileSender(64 * 1024, 2).send(address(), transfer, file, (t, acked) -> {
+                    if (acked >= 1024 * 1024) throw new IllegalStateException("link dropped");
+                });
+                fail("First attempt should break off");
+            } catch (IllegalStateException expected) {
+            }
+            assertTrue(outcomes.poll(5, TimeUnit.SECONDS) instanceof IOException);
+
+            new FileSender(64 * 1024, 2).send(address(), transfer, file, null);
+        }
+        File received = (File) outcomes.poll(5, TimeUnit.SECONDS);
+        assertTrue(lastOfferOffset.get() >= 1024 * 1024);
+        assertEquals("photo.jpg", received.getName());
+        assertEquals(crcOf(source), crcOf(received));
+        assertFalse(new File(inbox, "7.part").exists());
+    }
+
+    @Test
+    public void corruptChunkIsNeverKept() throws Exception {
+        Transfer transfer = new Transfer(9, "mallory", "../../etc/passwd", 4);
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), receiver.getLocalPort())) {
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            ByteBuffer offer = TransferFormat.encodeOffer(transfer);
+            out.write(offer.array(), 0, offer.remaining());
+            assertEquals(0, new DataInputStream(socket.getInputStream()).readLong());
+            out.writeInt(4);
+            out.writeInt(12345);
+            out.write(new byte[]{1, 2, 3, 4});
+            out.flush();
+            assertTrue(outcomes.poll(5, TimeUnit.SECONDS) instanceof ProtocolException);
+        }
+        assertEquals(0, new File(inbox, "9.part").length());
+    }
+
+    private ChatServer startEchoServer() throws IOException {
+        ChatServer server = new ChatServer(new ChatServer.Handler() {
+            private final FrameDecoder decoder = new FrameDecoder();
+            private final Frame frame = new Frame();
+
+            @Override
+            public void onOpen(ChatConnection connection) {
+            }
+
+            @Override
+            public void onRead(ChatConnection connection, ByteBuffer in) throws IOException {
+                while (decoder.next(in, frame)) connection.send(frame.copyEncoded());
+            }
+
+            @Override
+            public void onClose(ChatConnection connection, IOException cause) {
+            }
+        });
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+        server.start(executor);
+        return server;
+    }
+
+    private static long[] ping(OutputStream out, FrameReader reader, int count) throws IOException {
+        Frame frame = new Frame();
+        long[] rtt = new long[count];
+        for (int i = 0; i < count; i++) {
+            ByteBuffer ping = FrameEncoder.encodeChat(new Message(i, "bob", "host", "ping", i));
+            long start = System.nanoTime();
+            out.write(ping.array(), ping.arrayOffset(), ping.remaining());
+            out.flush();
+            assertTrue(reader.read(frame));
+            rtt[i] = System.nanoTime() - start;
+        }
+        return rtt;
+    }
+
+    private InetSocketAddress address() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), receiver.getLocalPort());
+    }
+
+    private File createFile(String name, int megabytes) throws IOException {
+        byte[] block = new byte[1024 * 1024];
+        new Random(megabytes).nextBytes(block);
+        File file = new File(root, name);
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            for (int i = 0; i < megabytes; i++) {
+                block[0] = (byte) i;
+                out.write(block);
+            }
+        }
+        return file;
+    }
+
+    private static long crcOf(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) crc.update(buffer, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    private static double percentile(long[] values, int p) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[Math.min(sorted.length - 1, sorted.length * p / 100)] / 1000.0;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) for (File child : children) deleteRecursively(child);
+        file.delete();
+    }
+}
@@ -0,0 +1,170 @@
+package io.github.udayhe.nonetchat.transport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import io.github.udayhe.nonetchat.mesh.MeshRelay;
+import io.github.udayhe.nonetchat.payload.Message;
+import io.github.udayhe.nonetchat.protocol.Frame;
+import io.github.udayhe.nonetchat.protocol.FrameEncoder;
+import io.github.udayhe.nonetchat.protocol.WireFormat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TransportRouterTest {
+
+    private static final int BLE_MAX_FRAME = 200;
+
+    private final Clock clock = new Clock();
+    private final User alice = new User("alice");
+    private final User bob = new User("bob");
+
+    @Before
+    public void setUp() {
+        alice.router.add(alice.tcp);
+        alice.router.add(alice.ble);
+        bob.router.add(bob.tcp);
+        bob.router.add(bob.ble);
+    }
+
+    @Test
+    public void smallMessagesTakeTheMeshWithoutAGroupAndLargeOnesWaitForIt() {
+        alice.ble.link(bob.ble);
+        assertEquals(Collections.singletonList("bob"), alice.peers);
+
+        assertTrue(alice.router.send(message(1, "bob", 20)));
+        assertFalse(alice.router.send(message(2, "bob", 500)));
+        assertEquals(1, alice.router.getUnroutableCount());
+        clock.advance(10_000);
+        assertEquals(Arrays.asList(1L), ids(bob.received));
+
+        alice.tcp.link(bob.tcp);
+        assertTrue(alice.router.send(message(2, "bob", 500)));
+        clock.advance(10_000);
+        assertTrue(alice.router.send(message(3, "bob", 20)));
+        clock.advance(10_000);
+        assertEquals(Arrays.asList(1L, 2L, 3L), ids(bob.received));
+        assertEquals(2, alice.tcp.getSentCount());
+        assertEquals(1, alice.ble.getSentCount());
+        assertEquals(Arrays.asList(1L, 2L, 3L), alice.acked);
+    }
+
+    @Test
+    public void followsMeasuredRoundTrips() {
+        // The group claims to be fast, but its owner is struggling.
+        InMemoryTransport slowTcp = new InMemoryTransport("tcp", "alice", clock, 3_000, 1 << 20, 1 << 20);
+        InMemoryTransport bobTcp = new InMemoryTransport("tcp", "bob", clock, 3_000, 1 << 20, 1 << 20);
+        slowTcp.setNominal(20, 1 << 20);
+        bobTcp.setNominal(20, 1 << 20);
+        alice.router.add(slowTcp);
+        bob.router.add(bobTcp);
+        slowTcp.link(bobTcp);
+        alice.ble.link(bob.ble);
+
+        assertSame(slowTcp, alice.router.choose("bob", 40));
+        alice.router.send(message(1, "bob", 20));
+        clock.advance(10_000);
+        TransportRouter.Link link = alice.router.getLink(slowTcp, "bob");
+        assertEquals(1, link.getSamples());
+        assertEquals(6_000, link.getRoundTripMillis());
+        assertSame(alice.ble, alice.router.choose("bob", 40));
+        // Anything too long for the mesh still takes the group.
+        assertSame(slowTcp, alice.router.choose("bob", 5_000));
+    }
+
+    @Test
+    public void broadcastsGoEverywhereAndArriveOnce() {
+        alice.tcp.link(bob.tcp);
+        alice.ble.link(bob.ble);
+        assertTrue(alice.router.send(message(1, WireFormat.RECIPIENT_ALL, 20)));
+        clock.advance(10_000);
+        assertEquals(1, alice.tcp.getSentCount());
+        assertEquals(1, alice.ble.getSentCount());
+        assertEquals(Arrays.asList(1L), ids(bob.received));
+
+        alice.tcp.unlink(bob.tcp);
+        alice.ble.unlink(bob.ble);
+        assertEquals(Collections.<String>emptyList(), alice.peers);
+        assertFalse(alice.router.send(message(2, WireFormat.RECIPIENT_ALL, 20)));
+    }
+
+    private final class User implements TransportRouter.Listener {
+        final String name;
+        final TransportRouter router;
+        final InMemoryTransport tcp;
+        final InMemoryTransport ble;
+        final List<Message> received = new ArrayList<>();
+        final List<Long> acked = new ArrayList<>();
+        List<String> peers = Collections.emptyList();
+
+        User(String name) {
+            this.name = name;
+            router = new TransportRouter(name, this, clock);
+            tcp = new InMemoryTransport("tcp", name, clock, 10, 1 << 20, 1 << 20);
+            ble = new InMemoryTransport("ble", name, clock, 1_000, 200, BLE_MAX_FRAME);
+        }
+
+        @Override
+        public void onFrame(Frame frame) {
+            if (frame.getType() == WireFormat.TYPE_ACK) {
+                for (int i = 0; i < frame.getAckCount(); i++) acked.add(frame.getAckId(i));
+                return;
+            }
+            Message message = frame.toMessage();
+            received.add(message);
+            router.sendAck(message.getSender(), FrameEncoder.encodeAck(WireFormat.ACK_DELIVERED, name,
+                    message.getSender(), new long[]{message.getId()}, 1));
+        }
+
+        @Override
+        public void onPeersChanged(List<String> peers) {
+            this.peers = peers;
+        }
+    }
+
+    private static Message message(long id, String to, int length) {
+        return new Message(id, "alice", to, new String(new char[length]).replace('\0', 'x'), id);
+    }
+
+    private static List<Long> ids(List<Message> messages) {
+        List<Long> ids = new ArrayList<>();
+        for (Message message : messages) ids.add(message.getId());
+        return ids;
+    }
+
+    private static final class Clock implements MeshRelay.Scheduler {
+        private final PriorityQueue<long[]> order = new PriorityQueue<>((a, b) -> Long.compare(a[0], b[0]));
+        private final List<Runnable> tasks = new ArrayList<>();
+        private long now;
+
+        @Override
+        public long nowMillis() {
+            return now;
+        }
+
+        @Override
+        public void schedule(Runnable task, long delayMillis) {
+            order.add(new long[]{now + delayMillis, tasks.size()});
+            tasks.add(task);
+        }
+
+        void advance(long millis) {
+            long until = now + millis;
+            while (!order.isEmpty() && order.peek()[0] <= until) {
+                long[] next = order.poll();
+                now = next[0];
+                tasks.get((int) next[1]).run();
+            }
+            now = until;
+        }
+    }
+}